@@ -0,0 +1,114 @@
+package com.example.android.quakereport;
+
+import android.app.IntentService;
+import android.content.Context;
+import android.content.Intent;
+import android.content.SharedPreferences;
+import android.net.Uri;
+import android.util.Log;
+
+import java.util.List;
+
+/**
+ * 指定した期間の地震データを {@link BulkImporter} でローカルストアに取り込む。
+ * <p>
+ * EarthquakeActivity と同じクエリ (絞り込み・監視する領域) で取り込むので、取り込んだ履歴は
+ * 通常の表示や検索・集計からそのまま使える。取り込んだ行は表示期間から外れても削除されない。
+ * 途中で止まった場合も、同じ期間で start() し直せばチェックポイントの続きから取り込む。
+ */
+public class BulkImportService extends IntentService {
+
+    private static final String LOG_TAG = BulkImportService.class.getSimpleName();
+
+    private static final String EXTRA_START_MILLIS = "start_millis";
+    private static final String EXTRA_END_MILLIS = "end_millis";
+
+    static final String PREFS_NAME = "earthquake_import";
+    private static final String KEY_PROGRESS_PREFIX = "import:";
+
+    //onDestroy() から止められるよう、実行中のものを持っておく
+    private volatile BulkImporter mImporter;
+
+    public BulkImportService() {
+        super(LOG_TAG);
+    }
+
+    /**
+     * 取り込み済みの範囲の記録を消す。テーブルを作り直して取り込んだ行が消えた場合に、最初から取り込み直すため
+     */
+    static void clearProgress(Context context) {
+        context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE).edit().clear().apply();
+    }
+
+    /**
+     * [startMillis, endMillis) の地震の取り込みを始める
+     */
+    static void start(Context context, long startMillis, long endMillis) {
+        Intent intent = new Intent(context, BulkImportService.class);
+        intent.putExtra(EXTRA_START_MILLIS, startMillis);
+        intent.putExtra(EXTRA_END_MILLIS, endMillis);
+        context.startService(intent);
+    }
+
+    @Override
+    protected void onHandleIntent(Intent intent) {
+        long startMillis = intent.getLongExtra(EXTRA_START_MILLIS, 0);
+        long endMillis = intent.getLongExtra(EXTRA_END_MILLIS, System.currentTimeMillis());
+        if (startMillis >= endMillis) {
+            Log.e(LOG_TAG, "onHandleIntent: empty range " + startMillis + " - " + endMillis);
+            return;
+        }
+
+        final EarthquakeStore store = EarthquakeStore.getInstance(this);
+        final SharedPreferences prefs = getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+        FetchCoordinator.Fetcher fetcher = new FetchCoordinator.Fetcher() {
+            @Override
+            public List<Earthquake> fetch(String url, CancellationToken token) {
+                return QueryUtils.fetchWhole(url, token);
+            }
+        };
+        BulkImporter.Sink sink = new BulkImporter.Sink() {
+            @Override
+            public void write(List<Earthquake> earthquakes) {
+                store.upsert(earthquakes, true);
+            }
+        };
+
+        //監視する領域が設定されている場合は、領域ごとに順に取り込む
+        for (String url : EarthquakeActivity.buildQueryUrls(this)) {
+            Uri baseUri = Uri.parse(url);
+            final String key = KEY_PROGRESS_PREFIX + EarthquakeSyncer.filterKey(baseUri)
+                    + "#" + startMillis + "-" + endMillis;
+            BulkImporter.Checkpoint checkpoint = new BulkImporter.Checkpoint() {
+                @Override
+                public String load() {
+                    return prefs.getString(key, null);
+                }
+
+                @Override
+                public void save(String progress) {
+                    prefs.edit().putString(key, progress).apply();
+                }
+            };
+
+            BulkImporter importer = new BulkImporter(baseUri, startMillis, endMillis, fetcher, sink, checkpoint);
+            mImporter = importer;
+            BulkImporter.Report report = importer.run();
+            mImporter = null;
+            Log.i(LOG_TAG, "onHandleIntent: " + report);
+            if (!report.isComplete()) {
+                //失敗が続いたか止められた。続きは次に start() されたときに取り込む
+                return;
+            }
+        }
+    }
+
+    @Override
+    public void onDestroy() {
+        BulkImporter importer = mImporter;
+        if (importer != null) {
+            importer.cancel();
+        }
+        super.onDestroy();
+    }
+}
@@ -0,0 +1,458 @@
+package com.example.android.quakereport;
+
+import android.net.Uri;
+import android.util.Log;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 何年分もの地震データを、時間窓に分けて取り込む一括インポート。
+ * <p>
+ * 1つの FDSN クエリで長い期間を取得すると、サーバーの件数の上限に当たるか、端末のメモリが足りなくなる。
+ * ここでは期間を古い方から時間窓に区切り、窓ごとに starttime / endtime を付けて取得する。
+ * <ul>
+ * <li>窓の長さは、それまでに取得した窓の件数の密度から、1つの窓が {@link #TARGET_EVENTS_PER_WINDOW} 件
+ *     程度になるように決める。密度の高い時期は短く、低い時期は長くなる</li>
+ * <li>上限の件数ちょうどが返ってきた窓は取りこぼしがあるので、半分に分けて取り直す</li>
+ * <li>窓は上限付きの並列数で同時に取得し、終わったものから {@link Sink} (ローカルストア) に書き込む</li>
+ * <li>書き込み終えた範囲を {@link Checkpoint} に記録するので、途中で止まっても次回は続きから取り込む</li>
+ * </ul>
+ * 取り込んだ件数と毎秒の件数は {@link Report} で返す。
+ */
+final class BulkImporter {
+
+    private static final String LOG_TAG = BulkImporter.class.getSimpleName();
+
+    /**
+     * 1つの窓の地震を書き込む。取り込みのスレッド (run() を呼んだスレッド) から順に呼ばれる
+     */
+    interface Sink {
+        void write(List<Earthquake> earthquakes);
+    }
+
+    /**
+     * 取り込み終えた範囲を保存する。内容は BulkImporter が作る文字列で、そのまま返せばよい
+     */
+    interface Checkpoint {
+        /**
+         * @return 前回保存したもの。ない場合は null
+         */
+        String load();
+
+        void save(String progress);
+    }
+
+    //1つの窓で取得したい件数と、1回のクエリの上限 (FDSN の limit の最大値)
+    static final int TARGET_EVENTS_PER_WINDOW = 5000;
+    static final int MAX_EVENTS_PER_QUERY = 20000;
+
+    static final int DEFAULT_PARALLELISM = 4;
+    static final long MIN_WINDOW_MILLIS = 60 * 1000L;
+    static final long MAX_WINDOW_MILLIS = 90 * 24 * 60 * 60 * 1000L;
+    //密度がまだ分からない最初の窓の長さ
+    static final long INITIAL_WINDOW_MILLIS = 24 * 60 * 60 * 1000L;
+    //密度が急に変わっても大きく外さないよう、前の窓から伸ばすのはこの倍数まで
+    private static final int MAX_GROWTH = 4;
+    //失敗した窓を取り直す回数と、その間の待ち時間の初期値 (倍々に延ばす)
+    private static final int MAX_ATTEMPTS = 4;
+    private static final long RETRY_DELAY_MILLIS = 1000;
+
+    private final Uri mBaseUri;
+    private final long mStartMillis;
+    private final long mEndMillis;
+    private final FetchCoordinator.Fetcher mFetcher;
+    private final Sink mSink;
+    private final Checkpoint mCheckpoint;
+    private final int mParallelism;
+    private final long mRetryDelayMillis;
+    private final CancellationToken mCancellation = new CancellationToken();
+
+    //取り込み終えた範囲 ([開始, 終了) を開始の順に、重ならないようにまとめたもの)
+    private final List<long[]> mCompleted = new ArrayList<>();
+
+    /**
+     * @param baseUri ベースとなるクエリ。format / starttime / endtime / limit / offset / orderby は付け直す
+     * @param startMillis 取り込む期間の始まり (含む)
+     * @param endMillis   取り込む期間の終わり (含まない)
+     */
+    BulkImporter(Uri baseUri, long startMillis, long endMillis, FetchCoordinator.Fetcher fetcher,
+                 Sink sink, Checkpoint checkpoint) {
+        this(baseUri, startMillis, endMillis, fetcher, sink, checkpoint, DEFAULT_PARALLELISM, RETRY_DELAY_MILLIS);
+    }
+
+    BulkImporter(Uri baseUri, long startMillis, long endMillis, FetchCoordinator.Fetcher fetcher,
+                 Sink sink, Checkpoint checkpoint, int parallelism, long retryDelayMillis) {
+        mBaseUri = baseUri;
+        mStartMillis = startMillis;
+        mEndMillis = endMillis;
+        mFetcher = fetcher;
+        mSink = sink;
+        mCheckpoint = checkpoint;
+        mParallelism = parallelism;
+        mRetryDelayMillis = retryDelayMillis;
+    }
+
+    /**
+     * 取り込みを止める。取得中の窓は通信の途中で止め、書き込み済みの範囲はチェックポイントに残る
+     */
+    void cancel() {
+        mCancellation.cancel();
+    }
+
+    /**
+     * 期間のうち、まだ取り込んでいない範囲をすべて取り込む。終わるか、失敗が続くか、cancel() されるまで戻らない
+     */
+    Report run() {
+        long started = System.nanoTime();
+        Report report = new Report();
+        restoreCheckpoint();
+
+        ExecutorService executor = createExecutor(mParallelism);
+        CompletionService<Window> completion = new ExecutorCompletionService<>(executor);
+        //上限に当たって分けた窓や、失敗して取り直す窓。新しい窓より先に取得する
+        Deque<Window> pending = new ArrayDeque<>();
+        long cursor = mStartMillis;
+        long lastWindowMillis = INITIAL_WINDOW_MILLIS;
+        //密度 (1ミリ秒あたりの件数)。分からないうちは負
+        double density = -1;
+        int inFlight = 0;
+
+        try {
+            while (!mCancellation.isCancelled()) {
+                //並列数に空きがある限り、窓を投げる
+                while (inFlight < mParallelism) {
+                    Window window = pending.pollFirst();
+                    if (window == null) {
+                        cursor = skipCompleted(cursor);
+                        if (cursor >= mEndMillis) {
+                            break;
+                        }
+                        long length = nextWindowMillis(density, lastWindowMillis);
+                        long end = Math.min(Math.min(cursor + length, mEndMillis), nextCompletedStart(cursor));
+                        window = new Window(cursor, end, 1);
+                        lastWindowMillis = end - cursor;
+                        cursor = end;
+                    }
+                    submit(completion, window);
+                    inFlight++;
+                }
+                if (inFlight == 0) {
+                    break;
+                }
+
+                Window window = take(completion);
+                inFlight--;
+                if (window == null) {
+                    //取り込みのスレッドが割り込まれた
+                    break;
+                }
+                List<Earthquake> earthquakes = window.mResult;
+                if (earthquakes == null) {
+                    if (mCancellation.isCancelled()) {
+                        break;
+                    }
+                    report.mFailures++;
+                    if (window.mAttempt >= MAX_ATTEMPTS) {
+                        Log.e(LOG_TAG, "Giving up on window " + window + " after " + window.mAttempt + " attempts");
+                        mCancellation.cancel();
+                        break;
+                    }
+                    sleep(mRetryDelayMillis << (window.mAttempt - 1));
+                    pending.addFirst(new Window(window.mStart, window.mEnd, window.mAttempt + 1));
+                    continue;
+                }
+
+                long length = window.mEnd - window.mStart;
+                if (earthquakes.size() >= MAX_EVENTS_PER_QUERY && length > MIN_WINDOW_MILLIS) {
+                    //上限に当たった。少なくともこの密度はあるので、次の窓も短くする
+                    report.mSplits++;
+                    density = Math.max(density, earthquakes.size() / (double) length);
+                    long middle = window.mStart + length / 2;
+                    pending.addFirst(new Window(middle, window.mEnd, 1));
+                    pending.addFirst(new Window(window.mStart, middle, 1));
+                    continue;
+                }
+                if (earthquakes.size() >= MAX_EVENTS_PER_QUERY) {
+                    Log.e(LOG_TAG, "Window " + window + " is still truncated at the minimum length");
+                }
+
+                mSink.write(earthquakes);
+                markCompleted(window.mStart, window.mEnd);
+                report.mWindows++;
+                report.mEvents += earthquakes.size();
+                //密度は時期によって変わるので、直近の窓を重く見る
+                double observed = earthquakes.size() / (double) length;
+                density = density < 0 ? observed : (density + observed) / 2;
+                Log.i(LOG_TAG, "run: " + window + " " + earthquakes.size() + " events");
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+
+        report.mElapsedMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started);
+        report.mComplete = skipCompleted(mStartMillis) >= mEndMillis;
+        Log.i(LOG_TAG, "run: " + report);
+        return report;
+    }
+
+    private void submit(CompletionService<Window> completion, final Window window) {
+        final String url = buildWindowUrl(mBaseUri, window.mStart, window.mEnd);
+        completion.submit(new Callable<Window>() {
+            @Override
+            public Window call() {
+                window.mResult = mFetcher.fetch(url, mCancellation);
+                return window;
+            }
+        });
+    }
+
+    private static Window take(CompletionService<Window> completion) {
+        try {
+            return completion.take().get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        } catch (ExecutionException e) {
+            //Fetcher は失敗を null で返すので、ここに来るのは想定外の例外だけ
+            throw new RuntimeException(e.getCause());
+        }
+    }
+
+    private void sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            mCancellation.cancel();
+        }
+    }
+
+    /**
+     * 密度から、次の窓がおよそ TARGET_EVENTS_PER_WINDOW 件になる長さを求める
+     */
+    static long nextWindowMillis(double density, long lastWindowMillis) {
+        if (density < 0) {
+            return lastWindowMillis;
+        }
+        long length = density > 0 ? (long) (TARGET_EVENTS_PER_WINDOW / density) : MAX_WINDOW_MILLIS;
+        length = Math.min(length, lastWindowMillis * MAX_GROWTH);
+        return Math.max(MIN_WINDOW_MILLIS, Math.min(MAX_WINDOW_MILLIS, length));
+    }
+
+    /**
+     * 窓のクエリの URL。件数が多いので、形式は常に小さい {@link QueryUtils#RESPONSE_FORMAT} にする。
+     * FDSN の endtime は境界を含むので、1ミリ秒手前までにして隣の窓と重ならないようにする
+     */
+    static String buildWindowUrl(Uri baseUri, long start, long end) {
+        Uri.Builder builder = baseUri.buildUpon().clearQuery();
+        for (String name : baseUri.getQueryParameterNames()) {
+            if ("format".equals(name) || "starttime".equals(name) || "endtime".equals(name)
+                    || "limit".equals(name) || "offset".equals(name) || "orderby".equals(name)) {
+                continue;
+            }
+            for (String value : baseUri.getQueryParameters(name)) {
+                builder.appendQueryParameter(name, value);
+            }
+        }
+        builder.appendQueryParameter("format", QueryUtils.RESPONSE_FORMAT);
+        builder.appendQueryParameter("starttime", EarthquakeSyncer.formatIsoTime(start));
+        builder.appendQueryParameter("endtime", EarthquakeSyncer.formatIsoTime(end - 1));
+        builder.appendQueryParameter("orderby", "time-asc");
+        builder.appendQueryParameter("limit", String.valueOf(MAX_EVENTS_PER_QUERY));
+        return builder.toString();
+    }
+
+    //----- チェックポイント -----
+
+    private void restoreCheckpoint() {
+        mCompleted.clear();
+        String progress = mCheckpoint.load();
+        if (progress == null || progress.isEmpty()) {
+            return;
+        }
+        for (String range : progress.split(";")) {
+            String[] bounds = range.split(":");
+            try {
+                if (bounds.length == 2) {
+                    mCompleted.add(new long[]{Long.parseLong(bounds[0]), Long.parseLong(bounds[1])});
+                }
+            } catch (NumberFormatException e) {
+                Log.e(LOG_TAG, "Ignoring malformed checkpoint range: " + range);
+            }
+        }
+        coalesce();
+        Log.i(LOG_TAG, "restoreCheckpoint: resuming with " + formatProgress());
+    }
+
+    private void markCompleted(long start, long end) {
+        mCompleted.add(new long[]{start, end});
+        coalesce();
+        mCheckpoint.save(formatProgress());
+    }
+
+    /**
+     * 開始の順に並べ、隣り合う・重なる範囲を1つにまとめる。
+     * 窓は並行に終わるので、範囲の数は並列数と分けた窓の数くらいにしかならない
+     */
+    private void coalesce() {
+        Collections.sort(mCompleted, new Comparator<long[]>() {
+            @Override
+            public int compare(long[] a, long[] b) {
+                return a[0] < b[0] ? -1 : (a[0] == b[0] ? 0 : 1);
+            }
+        });
+        List<long[]> merged = new ArrayList<>(mCompleted.size());
+        for (long[] range : mCompleted) {
+            long[] last = merged.isEmpty() ? null : merged.get(merged.size() - 1);
+            if (last != null && range[0] <= last[1]) {
+                last[1] = Math.max(last[1], range[1]);
+            } else {
+                merged.add(new long[]{range[0], range[1]});
+            }
+        }
+        mCompleted.clear();
+        mCompleted.addAll(merged);
+    }
+
+    private String formatProgress() {
+        StringBuilder builder = new StringBuilder();
+        for (long[] range : mCompleted) {
+            if (builder.length() > 0) {
+                builder.append(';');
+            }
+            builder.append(range[0]).append(':').append(range[1]);
+        }
+        return builder.toString();
+    }
+
+    /**
+     * time が取り込み済みの範囲の中なら、その範囲の終わりまで進める
+     */
+    private long skipCompleted(long time) {
+        for (long[] range : mCompleted) {
+            if (range[0] <= time && time < range[1]) {
+                time = range[1];
+            }
+        }
+        return time;
+    }
+
+    /**
+     * time より後で、最初に始まる取り込み済みの範囲の開始。ない場合は Long.MAX_VALUE
+     */
+    private long nextCompletedStart(long time) {
+        for (long[] range : mCompleted) {
+            if (range[0] > time) {
+                return range[0];
+            }
+        }
+        return Long.MAX_VALUE;
+    }
+
+    private static ExecutorService createExecutor(int parallelism) {
+        return new ThreadPoolExecutor(parallelism, parallelism, 0, TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                    private final AtomicInteger mCount = new AtomicInteger();
+
+                    @Override
+                    public Thread newThread(Runnable runnable) {
+                        Thread thread = new Thread(runnable, "BulkImporter #" + mCount.incrementAndGet());
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+    }
+
+    /**
+     * [mStart, mEnd) の時間窓
+     */
+    private static final class Window {
+        final long mStart;
+        final long mEnd;
+        final int mAttempt;
+        //取得のスレッドで書き、CompletionService を通して取り込みのスレッドが読む
+        List<Earthquake> mResult;
+
+        Window(long start, long end, int attempt) {
+            mStart = start;
+            mEnd = end;
+            mAttempt = attempt;
+        }
+
+        @Override
+        public String toString() {
+            return "[" + EarthquakeSyncer.formatIsoTime(mStart) + ", " + EarthquakeSyncer.formatIsoTime(mEnd) + ")";
+        }
+    }
+
+    /**
+     * 1回の run() の結果
+     */
+    static final class Report {
+        private int mEvents;
+        private int mWindows;
+        private int mSplits;
+        private int mFailures;
+        private long mElapsedMillis;
+        private boolean mComplete;
+
+        int getEvents() {
+            return mEvents;
+        }
+
+        int getWindows() {
+            return mWindows;
+        }
+
+        /**
+         * 上限に当たって半分に分けた回数
+         */
+        int getSplits() {
+            return mSplits;
+        }
+
+        /**
+         * 取得に失敗して取り直した回数 (最後に諦めたものも含む)
+         */
+        int getFailures() {
+            return mFailures;
+        }
+
+        long getElapsedMillis() {
+            return mElapsedMillis;
+        }
+
+        /**
+         * 期間をすべて取り込み終えたかどうか。false の場合は、次の run() で続きから取り込む
+         */
+        boolean isComplete() {
+            return mComplete;
+        }
+
+        double getEventsPerSecond() {
+            return mElapsedMillis > 0 ? mEvents * 1000.0 / mElapsedMillis : 0;
+        }
+
+        @Override
+        public String toString() {
+            return mEvents + " events in " + mWindows + " windows, " + mElapsedMillis + "ms ("
+                    + Math.round(getEventsPerSecond()) + " events/s), splits=" + mSplits
+                    + ", failures=" + mFailures + (mComplete ? "" : ", incomplete");
+        }
+    }
+}
@@ -0,0 +1,92 @@
+package com.example.android.quakereport;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 実行中の取得を途中で止めるためのフラグ。
+ * <p>
+ * 取得する側は {@link #wrap(InputStream)} したストリームから読むだけで、
+ * キャンセルされた後の最初の read() で {@link InterruptedIOException} になり、パースがそこで終わる。
+ * 読み込みで止まっているスレッドは read() まで戻ってこないので、
+ * {@link #addOnCancelListener(Runnable)} でソケットを閉じる処理を登録しておく。
+ */
+final class CancellationToken {
+
+    private volatile boolean mCancelled;
+    //cancel() で1回だけ呼ぶ。this で守る
+    private final List<Runnable> mListeners = new ArrayList<>();
+
+    /**
+     * キャンセルし、登録されているリスナーを呼び出し元のスレッドで呼ぶ。2回目以降は何もしない
+     */
+    void cancel() {
+        List<Runnable> listeners;
+        synchronized (this) {
+            if (mCancelled) {
+                return;
+            }
+            mCancelled = true;
+            listeners = new ArrayList<>(mListeners);
+            mListeners.clear();
+        }
+        for (Runnable listener : listeners) {
+            listener.run();
+        }
+    }
+
+    /**
+     * キャンセルされたときに呼ぶ処理を登録する。すでにキャンセルされていれば、すぐに呼ぶ
+     */
+    void addOnCancelListener(Runnable listener) {
+        synchronized (this) {
+            if (!mCancelled) {
+                mListeners.add(listener);
+                return;
+            }
+        }
+        listener.run();
+    }
+
+    void removeOnCancelListener(Runnable listener) {
+        synchronized (this) {
+            mListeners.remove(listener);
+        }
+    }
+
+    boolean isCancelled() {
+        return mCancelled;
+    }
+
+    /**
+     * キャンセルされていれば InterruptedIOException を投げる
+     */
+    void throwIfCancelled() throws InterruptedIOException {
+        if (mCancelled) {
+            throw new InterruptedIOException("Cancelled");
+        }
+    }
+
+    /**
+     * 読むたびにキャンセルされていないかを確かめるストリームにする
+     */
+    InputStream wrap(InputStream in) {
+        return new FilterInputStream(in) {
+            @Override
+            public int read() throws IOException {
+                throwIfCancelled();
+                return super.read();
+            }
+
+            @Override
+            public int read(byte[] buffer, int offset, int count) throws IOException {
+                throwIfCancelled();
+                return super.read(buffer, offset, count);
+            }
+        };
+    }
+}
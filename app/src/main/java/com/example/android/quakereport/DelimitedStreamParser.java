@@ -0,0 +1,476 @@
+package com.example.android.quakereport;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * FDSN event サービスの format=csv と format=text のレスポンスを、バイト列のまま1行ずつ読むパーサー。
+ * <p>
+ * 1行目のヘッダーで列の並びと区切り文字 (csv は ',', text は '|') を決め、使う列だけを取り出す。
+ * 数値と時刻はバッファのバイトから直接組み立て、フィールドごとの String は作らない
+ * (String になるのは id と place だけ)。
+ * 得られる {@link Earthquake} は、同じクエリの GeoJSON を {@link GeoJsonStreamParser} で読んだものと同じになる。
+ * ただし text には updated と status の列がないので、それぞれ 0 と null になる。
+ */
+final class DelimitedStreamParser {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final Charset US_ASCII = Charset.forName("US-ASCII");
+
+    private static final int BUFFER_SIZE = 65536;
+
+    //CSV には url の列がないので、GeoJSON の properties.url と同じものを id から作る
+    static final String EVENT_PAGE_URL = "https://earthquake.usgs.gov/earthquakes/eventpage/";
+
+    //使う列の種類。ヘッダーの列名から決める
+    private static final int COLUMN_UNUSED = 0;
+    private static final int COLUMN_ID = 1;
+    private static final int COLUMN_TIME = 2;
+    private static final int COLUMN_LATITUDE = 3;
+    private static final int COLUMN_LONGITUDE = 4;
+    private static final int COLUMN_DEPTH = 5;
+    private static final int COLUMN_MAG = 6;
+    private static final int COLUMN_PLACE = 7;
+    private static final int COLUMN_UPDATED = 8;
+    private static final int COLUMN_STATUS = 9;
+
+    //status は数種類しかないので、バイト列を比べて同じ String を使い回す
+    private static final String[] KNOWN_STATUSES = {"reviewed", "automatic", "deleted"};
+    private static final byte[][] KNOWN_STATUS_BYTES = {
+            "reviewed".getBytes(US_ASCII), "automatic".getBytes(US_ASCII), "deleted".getBytes(US_ASCII)};
+
+    //Clinger の高速パスで、整数の仮数をそのまま割って正しく丸められる 10 の累乗
+    private static final double[] POWERS_OF_TEN = {
+            1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+            1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22};
+    private static final long MAX_EXACT_MANTISSA = 1L << 53;
+
+    private final InputStream mInput;
+    //途中で止めるためのフラグ。null の場合は最後まで読む
+    private CancellationToken mCancellation;
+
+    private byte[] mBuffer = new byte[BUFFER_SIZE];
+    private int mPos;
+    private int mLimit;
+    //改行を探し終えた位置。バッファを継ぎ足したときに、同じところを探し直さないため
+    private int mScan;
+    private boolean mEof;
+
+    //今の行の範囲 (改行を含まない)
+    private int mLineStart;
+    private int mLineEnd;
+
+    private byte mDelimiter;
+    //ヘッダーの列ごとの種類と、使う列のうち一番右のもの
+    private int[] mColumnKinds;
+    private int mRequiredColumns;
+
+    //今の行のフィールドの範囲。列の種類ごとに持つ
+    private final int[] mFieldStart = new int[COLUMN_STATUS + 1];
+    private final int[] mFieldEnd = new int[COLUMN_STATUS + 1];
+    //"" のエスケープを含む引用符付きのフィールド
+    private final boolean[] mFieldEscaped = new boolean[COLUMN_STATUS + 1];
+    private byte[] mUnescaped = new byte[256];
+
+    /**
+     * @param input レスポンスの InputStream。バッファリングは本クラスで行うので、素のストリームでよい
+     */
+    DelimitedStreamParser(InputStream input) {
+        mInput = input;
+    }
+
+    /**
+     * 読み込みの塊ごと、行ごとに token を確かめ、キャンセルされていたら
+     * {@link java.io.InterruptedIOException} で止まるようにする
+     */
+    void setCancellationToken(CancellationToken token) {
+        mCancellation = token;
+    }
+
+    /**
+     * ヘッダーとすべての行を読み、1行ごとに callback を呼ぶ
+     *
+     * @return callback に渡した Earthquake の件数
+     * @throws IOException ストリームの読み込みに失敗した場合、必要な列がない場合、
+     *                     もしくは最後の行が改行で終わっていない (途中で切れている) 場合
+     */
+    int parse(GeoJsonStreamParser.Callback callback) throws IOException {
+        if (!nextLine()) {
+            //該当するイベントがない場合、サーバーは空の本文を返す
+            return 0;
+        }
+        readHeader();
+        int count = 0;
+        while (nextLine()) {
+            if (mCancellation != null) {
+                mCancellation.throwIfCancelled();
+            }
+            if (mLineEnd > mLineStart && readRow(callback)) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private void readHeader() throws IOException {
+        int start = mLineStart;
+        if (mLineEnd - start >= 3 && mBuffer[start] == (byte) 0xEF && mBuffer[start + 1] == (byte) 0xBB
+                && mBuffer[start + 2] == (byte) 0xBF) {
+            //FDSN のレスポンスには付かない。列名がずれて読めないので、はっきり失敗にする
+            throw syntaxError("Unexpected byte order mark");
+        }
+        //text のヘッダーは "#EventID|Time|..." のように # で始まる
+        if (start < mLineEnd && mBuffer[start] == '#') {
+            start++;
+        }
+        String header = new String(mBuffer, start, mLineEnd - start, UTF_8);
+        mDelimiter = (byte) (header.indexOf('|') >= 0 ? '|' : ',');
+        String[] names = header.split(mDelimiter == '|' ? "\\|" : ",", -1);
+        mColumnKinds = new int[names.length];
+        boolean hasTime = false;
+        boolean hasMag = false;
+        for (int i = 0; i < names.length; i++) {
+            mColumnKinds[i] = columnKind(names[i].trim().toLowerCase(Locale.US));
+            if (mColumnKinds[i] != COLUMN_UNUSED) {
+                mRequiredColumns = i + 1;
+            }
+            hasTime |= mColumnKinds[i] == COLUMN_TIME;
+            hasMag |= mColumnKinds[i] == COLUMN_MAG;
+        }
+        if (!hasTime || !hasMag) {
+            throw syntaxError("Missing time or magnitude column in header: " + header);
+        }
+    }
+
+    private static int columnKind(String name) {
+        switch (name) {
+            case "id":
+            case "eventid":
+                return COLUMN_ID;
+            case "time":
+                return COLUMN_TIME;
+            case "latitude":
+                return COLUMN_LATITUDE;
+            case "longitude":
+                return COLUMN_LONGITUDE;
+            case "depth":
+            case "depth/km":
+                return COLUMN_DEPTH;
+            case "mag":
+            case "magnitude":
+                return COLUMN_MAG;
+            case "place":
+            case "eventlocationname":
+                return COLUMN_PLACE;
+            case "updated":
+                return COLUMN_UPDATED;
+            case "status":
+                return COLUMN_STATUS;
+            default:
+                return COLUMN_UNUSED;
+        }
+    }
+
+    /**
+     * 1行をフィールドに分けて Earthquake を組み上げる
+     *
+     * @return Earthquake を callback に渡した場合は true
+     */
+    private boolean readRow(GeoJsonStreamParser.Callback callback) throws IOException {
+        Arrays.fill(mFieldStart, -1);
+        int column = 0;
+        int pos = mLineStart;
+        while (column < mRequiredColumns) {
+            int start = pos;
+            int end;
+            boolean escaped = false;
+            if (pos < mLineEnd && mBuffer[pos] == '"') {
+                //"5km S of Volcano, Hawaii" のように区切り文字を含む値は引用符で囲まれる
+                start = ++pos;
+                while (true) {
+                    if (pos >= mLineEnd) {
+                        throw syntaxError("Unterminated quoted field");
+                    }
+                    if (mBuffer[pos] == '"') {
+                        if (pos + 1 < mLineEnd && mBuffer[pos + 1] == '"') {
+                            escaped = true;
+                            pos += 2;
+                            continue;
+                        }
+                        break;
+                    }
+                    pos++;
+                }
+                end = pos++;
+            } else {
+                while (pos < mLineEnd && mBuffer[pos] != mDelimiter) {
+                    pos++;
+                }
+                end = pos;
+            }
+            int kind = mColumnKinds[column];
+            if (kind != COLUMN_UNUSED) {
+                mFieldStart[kind] = start;
+                mFieldEnd[kind] = end;
+                mFieldEscaped[kind] = escaped;
+            }
+            column++;
+            if (pos >= mLineEnd) {
+                break;
+            }
+            if (mBuffer[pos] != mDelimiter) {
+                throw syntaxError("Expected a delimiter after a quoted field");
+            }
+            pos++;
+        }
+        if (column < mRequiredColumns) {
+            throw syntaxError("Expected " + mRequiredColumns + " columns but was " + column);
+        }
+
+        String id = hasValue(COLUMN_ID) ? readString(COLUMN_ID) : null;
+        String status = hasValue(COLUMN_STATUS) ? readStatus() : null;
+        boolean hasMag = hasValue(COLUMN_MAG);
+        boolean hasTime = hasValue(COLUMN_TIME);
+        //GeoJSON と同じく、mag か time がないものは捨てる。削除されたイベントは差分同期のために渡す
+        boolean deleted = "deleted".equals(status) && id != null;
+        if ((!hasMag || !hasTime) && !deleted) {
+            return false;
+        }
+        double mag = hasMag ? readDouble(COLUMN_MAG) : 0;
+        long time = hasTime ? readTime(COLUMN_TIME) : 0;
+        long updated = hasValue(COLUMN_UPDATED) ? readTime(COLUMN_UPDATED) : 0;
+        String place = hasValue(COLUMN_PLACE) ? readString(COLUMN_PLACE) : "";
+        String url = id != null ? EVENT_PAGE_URL + id : "";
+        double latitude = hasValue(COLUMN_LATITUDE) ? readDouble(COLUMN_LATITUDE) : Double.NaN;
+        double longitude = hasValue(COLUMN_LONGITUDE) ? readDouble(COLUMN_LONGITUDE) : Double.NaN;
+        double depth = hasValue(COLUMN_DEPTH) ? readDouble(COLUMN_DEPTH) : Double.NaN;
+        callback.onEarthquake(new Earthquake(id, mag, place, time, url, updated, status,
+                latitude, longitude, depth));
+        return true;
+    }
+
+    private boolean hasValue(int kind) {
+        return mFieldStart[kind] >= 0 && mFieldEnd[kind] > mFieldStart[kind];
+    }
+
+    private String readString(int kind) {
+        int start = mFieldStart[kind];
+        int end = mFieldEnd[kind];
+        if (!mFieldEscaped[kind]) {
+            return new String(mBuffer, start, end - start, UTF_8);
+        }
+        if (mUnescaped.length < end - start) {
+            mUnescaped = new byte[end - start];
+        }
+        int length = 0;
+        for (int i = start; i < end; i++) {
+            mUnescaped[length++] = mBuffer[i];
+            if (mBuffer[i] == '"') {
+                //"" を " にする
+                i++;
+            }
+        }
+        return new String(mUnescaped, 0, length, UTF_8);
+    }
+
+    private String readStatus() {
+        int start = mFieldStart[COLUMN_STATUS];
+        int length = mFieldEnd[COLUMN_STATUS] - start;
+        for (int i = 0; i < KNOWN_STATUS_BYTES.length; i++) {
+            byte[] known = KNOWN_STATUS_BYTES[i];
+            if (known.length != length) {
+                continue;
+            }
+            int j = 0;
+            while (j < length && mBuffer[start + j] == known[j]) {
+                j++;
+            }
+            if (j == length) {
+                return KNOWN_STATUSES[i];
+            }
+        }
+        return readString(COLUMN_STATUS);
+    }
+
+    /**
+     * 17 桁以内の10進数は、仮数を整数として積み上げてから 10 の累乗で1回だけ割る。
+     * 仮数が 2^53 以下で、小数の桁数が 22 以下なら、これで Double.parseDouble と同じ値になる。
+     * それ以外 (指数表記など) は Double.parseDouble に任せる
+     */
+    private double readDouble(int kind) throws IOException {
+        int start = mFieldStart[kind];
+        int end = mFieldEnd[kind];
+        int pos = start;
+        boolean negative = false;
+        if (mBuffer[pos] == '-' || mBuffer[pos] == '+') {
+            negative = mBuffer[pos] == '-';
+            pos++;
+        }
+        long mantissa = 0;
+        int digits = 0;
+        int fractionDigits = -1;
+        for (; pos < end; pos++) {
+            byte c = mBuffer[pos];
+            if (c >= '0' && c <= '9') {
+                if (digits == 17) {
+                    return parseDoubleSlow(start, end);
+                }
+                mantissa = mantissa * 10 + (c - '0');
+                digits++;
+                if (fractionDigits >= 0) {
+                    fractionDigits++;
+                }
+            } else if (c == '.' && fractionDigits < 0) {
+                fractionDigits = 0;
+            } else {
+                return parseDoubleSlow(start, end);
+            }
+        }
+        if (digits == 0 || mantissa > MAX_EXACT_MANTISSA || fractionDigits >= POWERS_OF_TEN.length) {
+            return parseDoubleSlow(start, end);
+        }
+        double value = fractionDigits > 0 ? mantissa / POWERS_OF_TEN[fractionDigits] : mantissa;
+        return negative ? -value : value;
+    }
+
+    private double parseDoubleSlow(int start, int end) throws IOException {
+        String literal = new String(mBuffer, start, end - start, US_ASCII);
+        try {
+            return Double.parseDouble(literal);
+        } catch (NumberFormatException e) {
+            throw syntaxError("Expected a number but was " + literal);
+        }
+    }
+
+    /**
+     * "2016-09-16T17:19:58.123Z" (csv) や "2016-09-16T17:19:58.123" (text) を UTC のエポックミリ秒にする。
+     * 小数部は 1 桁から何桁でもよく、ミリ秒より細かい桁は切り捨てる
+     */
+    private long readTime(int kind) throws IOException {
+        int start = mFieldStart[kind];
+        int end = mFieldEnd[kind];
+        if (end - start < 19 || mBuffer[start + 4] != '-' || mBuffer[start + 7] != '-'
+                || (mBuffer[start + 10] != 'T' && mBuffer[start + 10] != ' ')
+                || mBuffer[start + 13] != ':' || mBuffer[start + 16] != ':') {
+            throw syntaxError("Expected an ISO 8601 time but was " + new String(mBuffer, start, end - start, US_ASCII));
+        }
+        int year = readDigits(start, 4);
+        int month = readDigits(start + 5, 2);
+        int day = readDigits(start + 8, 2);
+        int hour = readDigits(start + 11, 2);
+        int minute = readDigits(start + 14, 2);
+        int second = readDigits(start + 17, 2);
+        int millis = 0;
+        int pos = start + 19;
+        if (pos < end && mBuffer[pos] == '.') {
+            pos++;
+            int scale = 100;
+            while (pos < end && mBuffer[pos] >= '0' && mBuffer[pos] <= '9') {
+                millis += (mBuffer[pos] - '0') * scale;
+                scale /= 10;
+                pos++;
+            }
+        }
+        if (pos < end && mBuffer[pos] == 'Z') {
+            pos++;
+        }
+        if (pos != end || month < 1 || month > 12 || day < 1 || day > 31) {
+            throw syntaxError("Expected an ISO 8601 time but was " + new String(mBuffer, start, end - start, US_ASCII));
+        }
+        long days = daysFromCivil(year, month, day);
+        return (((days * 24 + hour) * 60 + minute) * 60 + second) * 1000 + millis;
+    }
+
+    private int readDigits(int pos, int count) throws IOException {
+        int value = 0;
+        for (int i = pos; i < pos + count; i++) {
+            byte c = mBuffer[i];
+            if (c < '0' || c > '9') {
+                throw syntaxError("Expected a digit in time but was '" + (char) c + "'");
+            }
+            value = value * 10 + (c - '0');
+        }
+        return value;
+    }
+
+    /**
+     * グレゴリオ暦の日付から、1970-01-01 からの日数を求める (H. Hinnant の days_from_civil)
+     */
+    static long daysFromCivil(int year, int month, int day) {
+        year -= month <= 2 ? 1 : 0;
+        int era = (year >= 0 ? year : year - 399) / 400;
+        int yearOfEra = year - era * 400;
+        int dayOfYear = (153 * (month + (month > 2 ? -3 : 9)) + 2) / 5 + day - 1;
+        int dayOfEra = yearOfEra * 365 + yearOfEra / 4 - yearOfEra / 100 + dayOfYear;
+        return era * 146097L + dayOfEra - 719468;
+    }
+
+    //---- ここから下は行単位の読み取り ----
+
+    /**
+     * 次の行を mLineStart と mLineEnd に設定する。行末の \r は含めない
+     *
+     * @return 行がない (ストリームの終わり) 場合は false
+     */
+    private boolean nextLine() throws IOException {
+        while (true) {
+            for (int i = mScan; i < mLimit; i++) {
+                if (mBuffer[i] == '\n') {
+                    setLine(mPos, i);
+                    mPos = i + 1;
+                    mScan = mPos;
+                    return true;
+                }
+            }
+            mScan = mLimit;
+            if (mEof) {
+                if (mPos == mLimit) {
+                    return false;
+                }
+                //FDSN のレスポンスはすべての行が改行で終わる。改行のない最後の行は、
+                //列の数が足りていても数値の途中で切れているかもしれないので、読まずに失敗にする
+                throw syntaxError("Last line is not terminated by a newline");
+            }
+            fill();
+        }
+    }
+
+    private void setLine(int start, int newline) {
+        mLineStart = start;
+        mLineEnd = newline > start && mBuffer[newline - 1] == '\r' ? newline - 1 : newline;
+    }
+
+    /**
+     * 読み終えた行を詰めてから、バッファの空きに読み込む。1行がバッファより長い場合はバッファを広げる
+     */
+    private void fill() throws IOException {
+        if (mCancellation != null) {
+            mCancellation.throwIfCancelled();
+        }
+        if (mPos > 0) {
+            System.arraycopy(mBuffer, mPos, mBuffer, 0, mLimit - mPos);
+            mLimit -= mPos;
+            mScan -= mPos;
+            mPos = 0;
+        }
+        if (mLimit == mBuffer.length) {
+            mBuffer = Arrays.copyOf(mBuffer, mBuffer.length * 2);
+        }
+        int read;
+        do {
+            read = mInput.read(mBuffer, mLimit, mBuffer.length - mLimit);
+        } while (read == 0);
+        if (read < 0) {
+            mEof = true;
+        } else {
+            mLimit += read;
+        }
+    }
+
+    private IOException syntaxError(String message) {
+        return new IOException("Malformed FDSN " + (mDelimiter == '|' ? "text" : "csv") + ": " + message);
+    }
+}
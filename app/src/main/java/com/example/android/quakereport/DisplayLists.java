@@ -0,0 +1,170 @@
+package com.example.android.quakereport;
+
+import android.content.ComponentCallbacks2;
+import android.util.Log;
+
+import java.io.File;
+import java.util.List;
+
+/**
+ * ローダーが扱う結果のリストを、メモリの予算に合わせて {@link TieredEarthquakeList} にし、
+ * ディスクに書き出したリストのファイルの寿命を管理する。
+ * <p>
+ * リストを持ち続ける場所 (最終結果・表示中のリスト・フィードの元のリスト) はそれぞれ {@link Slot} にし、
+ * 入れたときに retain、差し替えたときに release する。どの Slot にも入らずに捨てるリストは
+ * {@link #discard(List)} する。予算に収まるリスト (ArrayList など) はどれも何もしない。
+ */
+final class DisplayLists {
+
+    private static final String LOG_TAG = DisplayLists.class.getSimpleName();
+
+    //予算を超えた結果のページを書き出すディレクトリ
+    private final File mDirectory;
+    //結果のリストをメモリに持つ上限 (見積もりのバイト数)
+    private volatile long mBudgetBytes;
+
+    DisplayLists(File directory, long budgetBytes) {
+        mDirectory = directory;
+        mBudgetBytes = budgetBytes;
+    }
+
+    long getBudgetBytes() {
+        return mBudgetBytes;
+    }
+
+    /**
+     * 次に作るリストから使われる
+     */
+    void setBudgetBytes(long budgetBytes) {
+        mBudgetBytes = budgetBytes;
+    }
+
+    /**
+     * 先頭から1件ずつ追加して、予算を超えた分をディスクに書き出すリストを作る
+     */
+    TieredEarthquakeList.Builder newBuilder() {
+        return new TieredEarthquakeList.Builder(mDirectory, mBudgetBytes);
+    }
+
+    boolean fitsInBudget(List<Earthquake> earthquakes) {
+        return TieredEarthquakeList.fitsInBudget(earthquakes, mBudgetBytes);
+    }
+
+    /**
+     * 予算を超える結果は、ディスクに書き出してページ単位で読み込むリストにする。
+     * 収まる場合はそのまま返す
+     */
+    List<Earthquake> toDisplayList(List<Earthquake> earthquakes) {
+        long budget = mBudgetBytes;
+        if (earthquakes == null || TieredEarthquakeList.fitsInBudget(earthquakes, budget)) {
+            return earthquakes;
+        }
+        TieredEarthquakeList.Builder builder = new TieredEarthquakeList.Builder(mDirectory, budget);
+        builder.addAll(earthquakes);
+        TieredEarthquakeList tiered = builder.build();
+        Log.i(LOG_TAG, "toDisplayList: " + tiered.getResidentSize() + "/" + tiered.size() + " events in memory");
+        return tiered;
+    }
+
+    /**
+     * onTrimMemory の level に合わせて、earthquakes のメモリ上のページを減らす。
+     * 減らしたページはスクロールで表示するときにディスクから読み直す
+     */
+    void trimMemory(List<Earthquake> earthquakes, int level) {
+        if (!(earthquakes instanceof TieredEarthquakeList)) {
+            return;
+        }
+        TieredEarthquakeList tiered = (TieredEarthquakeList) earthquakes;
+        long budget = mBudgetBytes;
+        long maxBytes;
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_BACKGROUND) {
+            //次に破棄されるプロセスの候補になっているので、メモリ上のページはすべて捨てる
+            maxBytes = 0;
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL) {
+            //TRIM_MEMORY_UI_HIDDEN も含む。先頭のページだけ残す
+            maxBytes = tiered.getFirstPageBytes();
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW) {
+            maxBytes = budget / 4;
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_MODERATE) {
+            maxBytes = budget / 2;
+        } else {
+            return;
+        }
+        tiered.trimHotTier(maxBytes);
+        Log.i(LOG_TAG, "trimMemory: level " + level + ", " + tiered.getHotBytes() + " bytes in memory");
+    }
+
+    /**
+     * ディスクに書き出したリストの場合は、先頭からメモリにある分だけを返す
+     */
+    static List<Earthquake> residentPart(List<Earthquake> earthquakes) {
+        if (earthquakes instanceof TieredEarthquakeList) {
+            TieredEarthquakeList tiered = (TieredEarthquakeList) earthquakes;
+            if (tiered.isSpilled()) {
+                return tiered.subList(0, tiered.getResidentSize());
+            }
+        }
+        return earthquakes;
+    }
+
+    /**
+     * 表示も保持もしないまま捨てるリストのファイルを、他で使っていなければ閉じる
+     */
+    static void discard(List<Earthquake> earthquakes) {
+        if (earthquakes instanceof TieredEarthquakeList) {
+            ((TieredEarthquakeList) earthquakes).discardIfUnused();
+        }
+    }
+
+    private static void retain(List<Earthquake> earthquakes) {
+        if (earthquakes instanceof TieredEarthquakeList) {
+            ((TieredEarthquakeList) earthquakes).retain();
+        }
+    }
+
+    private static void release(List<Earthquake> earthquakes) {
+        if (earthquakes instanceof TieredEarthquakeList) {
+            ((TieredEarthquakeList) earthquakes).release();
+        }
+    }
+
+    /**
+     * リストを持ち続ける場所。入れたリストを retain し、差し替えたら前のリストを release する。
+     * 複数のスレッドから使ってよい
+     */
+    static final class Slot {
+        private volatile List<Earthquake> mList;
+
+        /**
+         * @return 入っていない場合は null
+         */
+        List<Earthquake> get() {
+            return mList;
+        }
+
+        /**
+         * earthquakes に差し替え、前のリストを release する
+         */
+        void set(List<Earthquake> earthquakes) {
+            release(replace(earthquakes));
+        }
+
+        /**
+         * earthquakes に差し替え、前のリストを release せずに返す。
+         * 前のリストをまだ使う場合 (表示を切り替え終わるまでなど) は、使い終わってから {@link #release(List)} する
+         */
+        synchronized List<Earthquake> replace(List<Earthquake> earthquakes) {
+            List<Earthquake> previous = mList;
+            mList = earthquakes;
+            retain(earthquakes);
+            return previous;
+        }
+
+        /**
+         * {@link #replace(List)} で返ったリストを release する
+         */
+        static void release(List<Earthquake> earthquakes) {
+            DisplayLists.release(earthquakes);
+        }
+    }
+}
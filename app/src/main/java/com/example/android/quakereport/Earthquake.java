@@ -4,16 +4,80 @@ package com.example.android.quakereport;
  * Created by Yasuaki on 2016/09/06.
  */
 public class Earthquake {
+
+    //"88km N of Yelizovo, Russia" を "88km N of " と "Yelizovo, Russia" に分ける区切り文字
+    private static final String LOCATION_SEPARATOR = " of ";
+
+    //USGS のイベントID (GeoJSON feature の id)。ローカルの保存先ではこれをキーにする
+    private String mId;
     private double mMagnitude;
     private String mLocation;
     private long mTimeInMilliseconds;
     private String mUrl;
+    //USGS 側で最後に更新された時刻 (エポックミリ秒)。差分同期の基準に使う
+    private long mUpdated;
+    //レビュー状況。"deleted" の場合はサーバ側で削除されたイベント
+    private String mStatus;
+    //震源の位置 (GeoJSON geometry の coordinates)。不明な場合は NaN
+    private double mLatitude;
+    private double mLongitude;
+    //震源の深さ (km)
+    private double mDepth;
+
+    //表示用に、パースの時点で分割しておいた場所の文字列
+    private String mPrimaryLocation;
+    //区切り文字を含まない場所の場合は null (表示側で "Near the" を使う)
+    private String mLocationOffset;
+
+    //バックグラウンドで作っておいた表示用データ。ロケールなどが変わったら作り直される
+    private volatile EarthquakeDisplay mDisplay;
 
     public Earthquake(double magnitude, String location, long timeInMilliseconds, String url){
+        this(null, magnitude, location, timeInMilliseconds, url);
+    }
+
+    public Earthquake(String id, double magnitude, String location, long timeInMilliseconds, String url){
+        this(id, magnitude, location, timeInMilliseconds, url, 0, null);
+    }
+
+    public Earthquake(String id, double magnitude, String location, long timeInMilliseconds, String url,
+                      long updated, String status){
+        this(id, magnitude, location, timeInMilliseconds, url, updated, status, Double.NaN, Double.NaN, Double.NaN);
+    }
+
+    public Earthquake(String id, double magnitude, String location, long timeInMilliseconds, String url,
+                      long updated, String status, double latitude, double longitude, double depth){
+        mId = id;
         mMagnitude = magnitude;
         mLocation = location;
         mTimeInMilliseconds = timeInMilliseconds;
         mUrl = url;
+        mUpdated = updated;
+        mStatus = status;
+        mLatitude = latitude;
+        mLongitude = longitude;
+        mDepth = depth;
+        splitLocation(location);
+    }
+
+    /**
+     * 1つの String を、オフセット部分と主な場所の部分にスプリットする。
+     * リストの行をバインドするたびに split しなくて済むよう、生成時に1度だけ行う
+     */
+    private void splitLocation(String location) {
+        int separatorIndex = location == null ? -1 : location.indexOf(LOCATION_SEPARATOR);
+        if (separatorIndex >= 0) {
+            int primaryStart = separatorIndex + LOCATION_SEPARATOR.length();
+            mLocationOffset = location.substring(0, primaryStart);
+            mPrimaryLocation = location.substring(primaryStart);
+        } else {
+            mLocationOffset = null;
+            mPrimaryLocation = location;
+        }
+    }
+
+    public String getId() {
+        return mId;
     }
 
     public double getMagnitude() {
@@ -24,6 +88,25 @@ public class Earthquake {
         return mLocation;
     }
 
+    public String getPrimaryLocation() {
+        return mPrimaryLocation;
+    }
+
+    /**
+     * @return "88km N of " のような場所のオフセット。ない場合は null
+     */
+    public String getLocationOffset() {
+        return mLocationOffset;
+    }
+
+    EarthquakeDisplay getDisplay() {
+        return mDisplay;
+    }
+
+    void setDisplay(EarthquakeDisplay display) {
+        mDisplay = display;
+    }
+
     public long getTimeInMilliseconds() {
         return mTimeInMilliseconds;
     }
@@ -31,4 +114,56 @@ public class Earthquake {
     public String getUrl(){
         return mUrl;
     }
+
+    public long getUpdated() {
+        return mUpdated;
+    }
+
+    public String getStatus() {
+        return mStatus;
+    }
+
+    public double getLatitude() {
+        return mLatitude;
+    }
+
+    public double getLongitude() {
+        return mLongitude;
+    }
+
+    public double getDepth() {
+        return mDepth;
+    }
+
+    /**
+     * 震源の緯度・経度が分かっているかどうか
+     */
+    public boolean hasCoordinates() {
+        return !Double.isNaN(mLatitude) && !Double.isNaN(mLongitude);
+    }
+
+    /**
+     * 表示に関わる内容が同じかどうか。リストの差分を取るときに、行を再バインドするか決めるのに使う
+     */
+    public boolean hasSameContent(Earthquake other) {
+        if (this == other) {
+            return true;
+        }
+        return mMagnitude == other.mMagnitude
+                && mTimeInMilliseconds == other.mTimeInMilliseconds
+                && mUpdated == other.mUpdated
+                && equalsNullable(mLocation, other.mLocation)
+                && equalsNullable(mUrl, other.mUrl);
+    }
+
+    private static boolean equalsNullable(String a, String b) {
+        return a == null ? b == null : a.equals(b);
+    }
+
+    /**
+     * サーバ側で削除されたイベントかどうか (includedeleted=true で取得した場合のみ返ってくる)
+     */
+    public boolean isDeleted() {
+        return "deleted".equals(mStatus);
+    }
 }
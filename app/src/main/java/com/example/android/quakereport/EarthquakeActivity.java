@@ -15,8 +15,10 @@
  */
 package com.example.android.quakereport;
 
+import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
+import android.content.IntentFilter;
 import android.content.SharedPreferences;
 import android.net.ConnectivityManager;
 import android.net.NetworkInfo;
@@ -25,17 +27,23 @@ import android.os.Bundle;
 import android.preference.PreferenceManager;
 import android.support.v4.app.LoaderManager;
 import android.support.v4.content.Loader;
+import android.support.v4.view.MenuItemCompat;
 import android.support.v7.app.AppCompatActivity;
+import android.support.v7.widget.LinearLayoutManager;
+import android.support.v7.widget.RecyclerView;
+import android.support.v7.widget.SearchView;
+import android.text.TextUtils;
 import android.util.Log;
 import android.view.Menu;
 import android.view.MenuItem;
 import android.view.View;
-import android.widget.AdapterView;
-import android.widget.ListView;
 import android.widget.ProgressBar;
 import android.widget.TextView;
 
+import java.io.FileDescriptor;
+import java.io.PrintWriter;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 
 public class EarthquakeActivity extends AppCompatActivity implements LoaderManager.LoaderCallbacks<List<Earthquake>> {
@@ -51,6 +59,12 @@ public class EarthquakeActivity extends AppCompatActivity implements LoaderManag
     //USGS データセットから取得する地震データの ベース URI
     private static final String USGS_REQUEST_URL = "http://earthquake.usgs.gov/fdsnws/event/1/query";
 
+    //取得する地震データの件数の上限。Loader が offset/limit でページに分けて取りに行く
+    private static final String MAX_EVENTS = "20000";
+
+    //場所で検索したときに表示する件数の上限
+    private static final int SEARCH_LIMIT = 500;
+
     /**
      * Adapter for the list of earthquakes
      */
@@ -60,12 +74,77 @@ public class EarthquakeActivity extends AppCompatActivity implements LoaderManag
     private ProgressBar mProgressBar;
     private int mProgressStatus = 0;
 
+    //Loader から最後に受け取ったリスト。検索をやめたら、これに戻す
+    private List<Earthquake> mLoadedResult;
+    //検索中の文字列。検索していない場合は null
+    private String mSearchQuery;
+
+    //設定で条件を狭めたときに、作り直したローダーが前回の結果から選び直せるよう、ローダーをまたいで持つ。
+    //Activity が作り直されたら捨てる (次のロードはローカルストアかネットワークから)
+    private final EarthquakeResultSet.Holder mResultSetHolder = new EarthquakeResultSet.Holder();
+
+    //タイムゾーンが変わったら、表示用の日付・時刻を作り直す。
+    //※ロケールの変更は構成変更として Activity が作り直されるので、onCreate で対応される
+    private final BroadcastReceiver mTimeZoneReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            mAdapter.setFormatter(EarthquakeAdapter.currentFormatter(context));
+        }
+    };
+
+    //クエリの条件が変わったら、その場でローダーを作り直す。条件を狭めただけなら、
+    //ローダーがメモリ上の前回の結果から選び直すので、ネットワークには行かない。
+    //※SharedPreferences はリスナーを弱参照で持つので、フィールドに保持しておく
+    private final SharedPreferences.OnSharedPreferenceChangeListener mQueryChangeListener =
+            new SharedPreferences.OnSharedPreferenceChangeListener() {
+                @Override
+                public void onSharedPreferenceChanged(SharedPreferences sharedPreferences, String key) {
+                    if (key.equals(getString(R.string.settings_min_magnitude_key))
+                            || key.equals(getString(R.string.settings_order_by_key))
+                            || key.equals(getString(R.string.settings_regions_key))
+                            || key.equals(getString(R.string.settings_near_key))
+                            || key.equals(getString(R.string.settings_stream_url_key))) {
+                        Log.i(LOG_TAG, "onSharedPreferenceChanged: " + key);
+                        getSupportLoaderManager().restartLoader(EARTHQUAKE_LOADER_ID, null, EarthquakeActivity.this);
+                    }
+                }
+            };
+
     @Override
     public boolean onCreateOptionsMenu(Menu menu) {
         getMenuInflater().inflate(R.menu.menu, menu);
+
+        //場所の検索はサーバーに問い合わせず、取得済みのイベントの検索インデックスで1文字ごとに絞り込む
+        SearchView searchView = (SearchView) MenuItemCompat.getActionView(menu.findItem(R.id.action_search));
+        searchView.setQueryHint(getString(R.string.search_hint));
+        searchView.setOnQueryTextListener(new SearchView.OnQueryTextListener() {
+            @Override
+            public boolean onQueryTextSubmit(String query) {
+                showSearchResults(query);
+                return true;
+            }
+
+            @Override
+            public boolean onQueryTextChange(String newText) {
+                showSearchResults(newText);
+                return true;
+            }
+        });
         return true;
     }
 
+    /**
+     * 検索の結果を表示する。文字列が空になったら (検索を閉じた場合も)、Loader の結果に戻す
+     */
+    private void showSearchResults(String query) {
+        mSearchQuery = TextUtils.isEmpty(query) || query.trim().isEmpty() ? null : query;
+        if (mSearchQuery == null) {
+            mAdapter.submitList(mLoadedResult);
+        } else {
+            mAdapter.submitList(PlaceSearchIndex.getInstance().search(mSearchQuery, SEARCH_LIMIT));
+        }
+    }
+
     @Override
     public boolean onOptionsItemSelected(MenuItem item) {
         int id = item.getItemId();
@@ -82,27 +161,22 @@ public class EarthquakeActivity extends AppCompatActivity implements LoaderManag
         super.onCreate(savedInstanceState);
         setContentView(R.layout.earthquake_activity);
 
-        // Find a reference to the {@link ListView} in the layout
-        ListView earthquakeListView = (ListView) findViewById(R.id.list);
+        // Find a reference to the {@link RecyclerView} in the layout
+        RecyclerView earthquakeListView = (RecyclerView) findViewById(R.id.list);
+        earthquakeListView.setLayoutManager(new LinearLayoutManager(this));
 
         mProgressBar = (ProgressBar) findViewById(R.id.loading_spinner);
 
-
         mEmptyTextView = (TextView) findViewById(R.id.empty_text);
-        earthquakeListView.setEmptyView(mEmptyTextView);
 
-        //View に 空のArrayList を元にAdapter をセットする
-        mAdapter = new EarthquakeAdapter(EarthquakeActivity.this, new ArrayList<Earthquake>());
-        earthquakeListView.setAdapter(mAdapter);
-
-        //ListView にアイテムクリックリスナーをセット
-        earthquakeListView.setOnItemClickListener(new AdapterView.OnItemClickListener() {
+        //行がタップされたら、その地震の USGS のページを開く
+        mAdapter = new EarthquakeAdapter(EarthquakeActivity.this, new EarthquakeAdapter.OnEarthquakeClickListener() {
             @Override
-            public void onItemClick(AdapterView<?> parent, View view, int position, long id) {
-
-                //クリックされたアイテムを見つける
-                Earthquake currentEarthquake = mAdapter.getItem(position);
-
+            public void onEarthquakeClick(Earthquake currentEarthquake) {
+                //url のないイベント (レスポンスで null だったもの) は開くページがない
+                if (TextUtils.isEmpty(currentEarthquake.getUrl())) {
+                    return;
+                }
                 //String の url を URI OBJ にパース（変換）する
                 Uri earthquakeUri = Uri.parse(currentEarthquake.getUrl());
 
@@ -111,26 +185,90 @@ public class EarthquakeActivity extends AppCompatActivity implements LoaderManag
                 startActivity(websiteIntent);
             }
         });
+        earthquakeListView.setAdapter(mAdapter);
 
+        //RecyclerView には setEmptyView がないので、件数が変わるたびに自前で切り替える
+        mAdapter.registerAdapterDataObserver(new RecyclerView.AdapterDataObserver() {
+            @Override
+            public void onChanged() {
+                updateEmptyView();
+            }
 
-        ConnectivityManager cm = (ConnectivityManager) getSystemService(Context.CONNECTIVITY_SERVICE);
+            @Override
+            public void onItemRangeInserted(int positionStart, int itemCount) {
+                updateEmptyView();
+            }
 
-        NetworkInfo networkInfo = cm.getActiveNetworkInfo();
-        if (networkInfo != null && networkInfo.isConnected()) {
-            //getLoaderManager と同じ機能。import android.support.v4.app.LoaderManager; しているからサポートになってる？
-            LoaderManager loaderManager = getSupportLoaderManager();
+            @Override
+            public void onItemRangeRemoved(int positionStart, int itemCount) {
+                updateEmptyView();
+            }
+        });
+        updateEmptyView();
 
-            //$2: バンドル には nullを渡す
-            loaderManager.initLoader(EARTHQUAKE_LOADER_ID, null, this);
-        } else {
-            mProgressBar.setVisibility(View.GONE);
-            mEmptyTextView.setText("インターネットコネクションがないです");
-        }
+        registerReceiver(mTimeZoneReceiver, new IntentFilter(Intent.ACTION_TIMEZONE_CHANGED));
+        PreferenceManager.getDefaultSharedPreferences(this)
+                .registerOnSharedPreferenceChangeListener(mQueryChangeListener);
+
+        //オフラインでも、スナップショットやローカルストアに前回の結果があれば表示できるので、常にロードする。
+        //接続がないことは、何も表示できなかった場合に onLoadFinished で伝える
+        //getLoaderManager と同じ機能。import android.support.v4.app.LoaderManager; しているからサポートになってる？
+        LoaderManager loaderManager = getSupportLoaderManager();
+
+        //$2: バンドル には nullを渡す
+        loaderManager.initLoader(EARTHQUAKE_LOADER_ID, null, this);
         Log.i(LOG_TAG, "initLoader");
 
 
     }
 
+    private boolean isConnected() {
+        ConnectivityManager cm = (ConnectivityManager) getSystemService(Context.CONNECTIVITY_SERVICE);
+        NetworkInfo networkInfo = cm.getActiveNetworkInfo();
+        return networkInfo != null && networkInfo.isConnected();
+    }
+
+    /**
+     * リストが空のときだけ、メッセージ用の TextView を表示する
+     */
+    private void updateEmptyView() {
+        mEmptyTextView.setVisibility(mAdapter.getItemCount() == 0 ? View.VISIBLE : View.GONE);
+    }
+
+    @Override
+    protected void onStart() {
+        super.onStart();
+        //設定画面で更新間隔や計測の有無が変わっていることがあるので、表示のたびに反映し直す
+        Metrics.init(this);
+        RefreshScheduler.schedule(this);
+    }
+
+    //adb shell dumpsys activity com.example.android.quakereport で計測値と地震の集計を出す
+    @Override
+    public void dump(String prefix, FileDescriptor fd, PrintWriter writer, String[] args) {
+        super.dump(prefix, fd, writer, args);
+        Metrics.dump(writer);
+        EarthquakeAggregator.getInstance().dump(writer);
+    }
+
+    //メモリが足りなくなったら、表示中のリストのうちメモリに持っている分を減らす
+    @Override
+    public void onTrimMemory(int level) {
+        super.onTrimMemory(level);
+        Loader<List<Earthquake>> loader = getSupportLoaderManager().getLoader(EARTHQUAKE_LOADER_ID);
+        if (loader instanceof EarthquakeLoader) {
+            ((EarthquakeLoader) loader).onTrimMemory(level);
+        }
+    }
+
+    @Override
+    protected void onDestroy() {
+        unregisterReceiver(mTimeZoneReceiver);
+        PreferenceManager.getDefaultSharedPreferences(this)
+                .unregisterOnSharedPreferenceChangeListener(mQueryChangeListener);
+        super.onDestroy();
+    }
+
     @Override
     public Loader<List<Earthquake>> onCreateLoader(int id, Bundle args) {
         //Loader で、バックグラウンドでやってほしい処理を行い、
@@ -138,42 +276,74 @@ public class EarthquakeActivity extends AppCompatActivity implements LoaderManag
         //EarthquakeLoader を new するときに、データ取得元となる URL を組み上げて、渡す
         Log.i(LOG_TAG, "onCreateLoader");
 
-        //SharedPreferences OBJ を取得
+        EarthquakeLoader loader = new EarthquakeLoader(this, buildQueryUrls(this));
+        loader.setResultSetHolder(mResultSetHolder);
+        //地点からの距離はサーバーに送らず、取得した結果をローダーの中で絞り込む
         SharedPreferences sharedPrefs = PreferenceManager.getDefaultSharedPreferences(this);
+        loader.setLocationFilter(LocationFilter.parse(sharedPrefs.getString(
+                getString(R.string.settings_near_key), getString(R.string.settings_near_default))));
+        //フィードが設定されていれば、ロードの後も接続し続けて新しい地震をすぐに反映する
+        loader.setStreamUrl(sharedPrefs.getString(
+                getString(R.string.settings_stream_url_key), getString(R.string.settings_stream_url_default)));
+        return loader;
+    }
+
+    /**
+     * 設定画面の値から、USGS へのクエリの URL を組み上げる。
+     * バックグラウンドの定期更新 ({@link RefreshService}) でも同じクエリを使う
+     */
+    static List<String> buildQueryUrls(Context context) {
+        //SharedPreferences OBJ を取得
+        SharedPreferences sharedPrefs = PreferenceManager.getDefaultSharedPreferences(context);
 
         String minMagnitude = sharedPrefs.getString(//最小 マグニチュードのデフォルト値を取得
-                getString(R.string.settings_min_magnitude_key),//strings.xml からキーを取得
-                getString(R.string.settings_min_magnitude_default)//デフォルト値を取得
+                context.getString(R.string.settings_min_magnitude_key),//strings.xml からキーを取得
+                context.getString(R.string.settings_min_magnitude_default)//デフォルト値を取得
         );
 
 
         String orderBy = sharedPrefs.getString(//ソート方法のデフォルト値を取得
-                getString(R.string.settings_order_by_key),//キー
-                getString(R.string.settings_order_by_default)//デフォルト値
+                context.getString(R.string.settings_order_by_key),//キー
+                context.getString(R.string.settings_order_by_default)//デフォルト値
         );
 
+        //監視する領域が設定されている場合は、領域ごとのクエリを並行に取得してまとめる
+        List<QuerySpec> regions = QuerySpec.parseList(sharedPrefs.getString(
+                context.getString(R.string.settings_regions_key),
+                context.getString(R.string.settings_regions_default)));
+        if (!regions.isEmpty()) {
+            List<String> urls = new ArrayList<>(regions.size());
+            for (QuerySpec region : regions) {
+                urls.add(region.toUrl(USGS_REQUEST_URL, MAX_EVENTS, orderBy));
+            }
+            return urls;
+        }
+
         Uri baseUri = Uri.parse(USGS_REQUEST_URL);//ベースとなる URI を URI OBJ として取得
         Uri.Builder uriBuilder = baseUri.buildUpon();//URI を ビルドするビルダーを生成
 
         //URI を組み上げていく
-        uriBuilder.appendQueryParameter("format", "geojson");
-        uriBuilder.appendQueryParameter("limit", "10");
+        uriBuilder.appendQueryParameter("format", QueryUtils.RESPONSE_FORMAT);
+        uriBuilder.appendQueryParameter("limit", MAX_EVENTS);
         uriBuilder.appendQueryParameter("minmag", minMagnitude);
         uriBuilder.appendQueryParameter("orderby", orderBy);
 
-        return new EarthquakeLoader(this, uriBuilder.toString());//組み上げた URI を元に Loader に仕事をさせる
+        //組み上げた URI を元に Loader に仕事をさせる
+        return Collections.singletonList(uriBuilder.toString());
     }
 
     @Override
     public void onLoadFinished(Loader<List<Earthquake>> loader, List<Earthquake> result) {
-        //前の earthquake data のAdapterをクリア
-        mAdapter.clear();
-
-        //バックグラウンドスレッドでのデータ取得の結果に、
-        // 有効な List<Earthquake> があれば、Adapter のデータセットに追加
-        // ⇒上記処理が、ListView の更新のトリガーとなる
-        if (result != null && !result.isEmpty()) {
-            mAdapter.addAll(result);//コメントアウトすると、引っ張ってこれなかった場合の状況が見られる
+        long start = Metrics.startTimer();
+        //Loader はページを取得するたびに、それまでの結果をまとめて渡してくる。
+        //Adapter がイベントIDで差分を取り、増えた行・変わった行だけを更新する
+        // ⇒上記処理が、RecyclerView の更新のトリガーとなる
+        mLoadedResult = result;
+        if (mSearchQuery == null) {
+            mAdapter.submitList(result);//コメントアウトすると、引っ張ってこれなかった場合の状況が見られる
+        } else {
+            //検索中は、新しく取得したイベントも含めて検索し直す
+            showSearchResults(mSearchQuery);
         }
         Log.i(LOG_TAG, "onLoadFinished");
 
@@ -181,12 +351,19 @@ public class EarthquakeActivity extends AppCompatActivity implements LoaderManag
 
         //onCreate の時にセットすると、毎回文字がちらっと出てしまうので、ロードが終わってからセット
         //ロードされるたびにセットすることとなるが、コストはかからないため、受け入れてよいトレードオフ
-        mEmptyTextView.setText("データを引っ張ってこれませんでした。。。");
+        //スナップショットにもローカルストアにも何もなく、接続もない場合だけ、オフラインであることを伝える
+        if (isConnected()) {
+            mEmptyTextView.setText("データを引っ張ってこれませんでした。。。");
+        } else {
+            mEmptyTextView.setText("インターネットコネクションがないです");
+        }
+        Metrics.recordSince(Metrics.Metric.DELIVER, start);
     }
 
     @Override
     //Loader からの情報はもう無効だと知らされたから、onLoaderReset はコールされるわけなので、クリアしておく。
     public void onLoaderReset(Loader<List<Earthquake>> loader) {
+        mLoadedResult = null;
         mAdapter.clear();
         Log.i(LOG_TAG, "onLoadReset");
     }
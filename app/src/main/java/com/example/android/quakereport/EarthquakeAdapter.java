@@ -2,171 +2,254 @@ package com.example.android.quakereport;
 
 import android.content.Context;
 import android.graphics.drawable.GradientDrawable;
+import android.os.AsyncTask;
 import android.support.v4.content.ContextCompat;
+import android.support.v7.widget.RecyclerView;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
-import android.widget.ArrayAdapter;
 import android.widget.TextView;
 
-import java.text.DecimalFormat;
-import java.text.SimpleDateFormat;
-import java.util.Date;
+import java.util.Collections;
 import java.util.List;
+import java.util.Locale;
+import java.util.TimeZone;
 
 /**
  * Created by Yasuaki on 2016/09/06.
  */
-public class EarthquakeAdapter extends ArrayAdapter<Earthquake> {
+public class EarthquakeAdapter extends RecyclerView.Adapter<EarthquakeAdapter.ViewHolder> {
 
-    private static final String LOCATION_SEPARATER = " of ";
+    /**
+     * 行がタップされたときに呼ばれる
+     */
+    public interface OnEarthquakeClickListener {
+        void onEarthquakeClick(Earthquake earthquake);
+    }
+
+    private final LayoutInflater mInflater;
+    private final OnEarthquakeClickListener mClickListener;
+
+    //表示中のリスト。差し替えるときは丸ごと新しいリストにし、中身は変更しない
+    private List<Earthquake> mEarthquakes = Collections.emptyList();
+
+    //submitList のたびに増やす。古い差分の計算結果が、新しいリストの後に適用されないようにするため
+    private int mSubmitGeneration;
+
+    //表示用の文字列と色を作るフォーマッタ。Loader で前もって作ったものがあればそれを使う
+    private EarthquakeFormatter mFormatter;
 
     /**
      * カスタムコンストラクタなので、スーパークラスのコンストラクタと異なる
      *
-     * @param context     レイアウトファイルをインフレーとするのに使用
-     * @param earthquakes A List of AndroidFlavor objects to display in a list
+     * @param context       レイアウトファイルをインフレーとするのに使用
+     * @param clickListener 行がタップされたときのリスナー
      */
-    public EarthquakeAdapter(Context context, List<Earthquake> earthquakes) {
-        super(context, 0, earthquakes);
+    public EarthquakeAdapter(Context context, OnEarthquakeClickListener clickListener) {
+        mInflater = LayoutInflater.from(context);
+        mClickListener = clickListener;
+        mFormatter = currentFormatter(context);
     }
 
     /**
-     * AdapterView に View を提供する (ListView, GridView, etc.)
-     *
-     * @param position    list item view.に表示されるデータの、リスト内のポジション
-     * @param convertView 配置に使用するリサイクルView
-     * @param parent      インフレートに使う 親ViewGroup
-     * @return AdapterView に渡す View
+     * 表示するリストを差し替える。
+     * イベントIDで差分をバックグラウンドスレッドで計算し、変わった行だけを挿入・変更・削除として通知する。
+     * 変わっていない行は再バインドされず、スクロール位置も保たれる
+     */
+    public void submitList(List<Earthquake> earthquakes) {
+        final List<Earthquake> newList = earthquakes != null
+                ? earthquakes : Collections.<Earthquake>emptyList();
+        final List<Earthquake> oldList = mEarthquakes;
+        final int generation = ++mSubmitGeneration;
+
+        if (oldList.isEmpty() || newList.isEmpty() || isSpilled(oldList) || isSpilled(newList)) {
+            //どちらかが空なら差分を取るまでもない。
+            //ディスクに書き出したリストは、差分を取ると全件を読み込んでメモリの予算を超えるので取らない
+            mEarthquakes = newList;
+            notifyDataSetChanged();
+            return;
+        }
+
+        new AsyncTask<Void, Void, EarthquakeDiff>() {
+            @Override
+            protected EarthquakeDiff doInBackground(Void... params) {
+                return EarthquakeDiff.calculate(oldList, newList);
+            }
+
+            @Override
+            protected void onPostExecute(EarthquakeDiff diff) {
+                //計算している間に別のリストが渡されていたら捨てる
+                if (generation != mSubmitGeneration) {
+                    return;
+                }
+                mEarthquakes = newList;
+                diff.dispatchTo(mDiffCallback);
+            }
+        }.execute();
+    }
+
+    private static boolean isSpilled(List<Earthquake> earthquakes) {
+        return earthquakes instanceof TieredEarthquakeList && ((TieredEarthquakeList) earthquakes).isSpilled();
+    }
+
+    /**
+     * 表示中のリストを空にする
      */
+    public void clear() {
+        submitList(null);
+    }
+
+    public Earthquake getItem(int position) {
+        return mEarthquakes.get(position);
+    }
+
     @Override
-    public View getView(int position, View convertView, ViewGroup parent) {
-        View listItemView = convertView;
-        if (listItemView == null) {
-            listItemView = LayoutInflater.from(getContext()).inflate(
-                    R.layout.list_item, parent, false);
+    public int getItemCount() {
+        return mEarthquakes.size();
+    }
 
+    /**
+     * ロケールやタイムゾーンが変わったときに、新しいフォーマッタに差し替えて再描画する。
+     * 古いフォーマッタで作られた表示用データは、バインド時に作り直される
+     */
+    public void setFormatter(EarthquakeFormatter formatter) {
+        mFormatter = formatter;
+        notifyItemRangeChanged(0, getItemCount());
+    }
+
+    private final EarthquakeDiff.Callback mDiffCallback = new EarthquakeDiff.Callback() {
+        @Override
+        public void onInserted(int position, int count) {
+            notifyItemRangeInserted(position, count);
         }
-        //現在位置の Earthquake OBJ を取得
-        Earthquake currentEarthquake = getItem(position);
 
-        //マグニチュードを表示
-        TextView magView = (TextView) listItemView.findViewById(R.id.magnitude);
-        //double を String に変換
-        Double originalMagnitude = currentEarthquake.getMagnitude();
-
-        //数値をフォーマットしてセット
-        DecimalFormat formatter = new DecimalFormat("0.0");
-        String formattedDouble = formatter.format(originalMagnitude);
-        magView.setText(formattedDouble);
-
-        //マグニチュード背景のシェイプの色をcodeしていく。
-        //背景のグラデーションdrawable を取得
-        GradientDrawable magnitudeCircle = (GradientDrawable) magView.getBackground();
-
-        //マグニチュードの数値によって背景色を変えるメソッドを実行
-        int magnitudeColor = getMagnitudeColor(currentEarthquake.getMagnitude());
-        magnitudeCircle.setColor(magnitudeColor);
-
-        //ロケーションを表示
-        String originalLocation = currentEarthquake.getPlace();
-        String primaryLocation;
-        String locationOffset;
-
-        //1つの String を スプリットする処理
-        if (originalLocation.contains(LOCATION_SEPARATER)) {
-            String[] splittedLocation = originalLocation.split(LOCATION_SEPARATER);
-            primaryLocation = splittedLocation[1];
-            locationOffset = splittedLocation[0] + LOCATION_SEPARATER;
-        } else {
-            locationOffset = getContext().getString(R.string.near_the);
-            primaryLocation = originalLocation;
+        @Override
+        public void onRemoved(int position, int count) {
+            notifyItemRangeRemoved(position, count);
         }
 
-        //ロケーション情報をセット
-        TextView offsetLocationView = (TextView) listItemView.findViewById(R.id.location_offset);
-        offsetLocationView.setText(locationOffset);
+        @Override
+        public void onMoved(int fromPosition, int toPosition) {
+            notifyItemMoved(fromPosition, toPosition);
+        }
 
-        TextView primaryLocationView = (TextView) listItemView.findViewById(R.id.primary_location);
-        primaryLocationView.setText(primaryLocation);
+        @Override
+        public void onChanged(int position, int count) {
+            notifyItemRangeChanged(position, count);
+        }
 
-        //時間を表示
-        //新規 Date OBJ を生成
-        Date dateObject = new Date(currentEarthquake.getTimeInMilliseconds());
+        @Override
+        public void onReset() {
+            notifyDataSetChanged();
+        }
+    };
 
-        //date を表示させるView参照を取得
-        TextView dateView = (TextView) listItemView.findViewById(R.id.date);
-        //date String をフォーマットして、View にセット
-        String formattedDate = formatDate(dateObject);
-        dateView.setText(formattedDate);
+    /**
+     * 行の View の参照を保持しておき、リサイクル時に findViewById をしなくて済むようにする
+     */
+    class ViewHolder extends RecyclerView.ViewHolder implements View.OnClickListener {
+        final TextView magnitudeView;
+        final GradientDrawable magnitudeCircle;
+        final TextView offsetLocationView;
+        final TextView primaryLocationView;
+        final TextView dateView;
+        final TextView timeView;
+
+        ViewHolder(View listItemView) {
+            super(listItemView);
+            magnitudeView = (TextView) listItemView.findViewById(R.id.magnitude);
+            //背景のグラデーションdrawable を取得
+            magnitudeCircle = (GradientDrawable) magnitudeView.getBackground();
+            offsetLocationView = (TextView) listItemView.findViewById(R.id.location_offset);
+            primaryLocationView = (TextView) listItemView.findViewById(R.id.primary_location);
+            dateView = (TextView) listItemView.findViewById(R.id.date);
+            timeView = (TextView) listItemView.findViewById(R.id.time);
+            listItemView.setOnClickListener(this);
+        }
 
-        //time を表示させるView参照を取得
-        TextView timeView = (TextView) listItemView.findViewById(R.id.time);
-        //time String  をフォーマットして、View にセット
-        String formattedTime = formatTime(dateObject);
-        timeView.setText(formattedTime);
+        @Override
+        public void onClick(View view) {
+            int position = getAdapterPosition();
+            //削除アニメーション中などでポジションが確定していない場合は無視
+            if (position != RecyclerView.NO_POSITION && mClickListener != null) {
+                mClickListener.onEarthquakeClick(getItem(position));
+            }
+        }
+    }
 
-        return listItemView;
+    @Override
+    public ViewHolder onCreateViewHolder(ViewGroup parent, int viewType) {
+        View listItemView = mInflater.inflate(R.layout.list_item, parent, false);
+        return new ViewHolder(listItemView);
     }
 
     /**
-     * Date OBJ を元に、フォーマットした date String を返す
+     * リサイクルされた ViewHolder に、position の地震のデータをセットする
+     *
+     * @param holder   行の View の参照を保持している ViewHolder
+     * @param position list item view.に表示されるデータの、リスト内のポジション
      */
-    private String formatDate(Date dateObject) {
-        SimpleDateFormat dateFormat = new SimpleDateFormat("LLL dd, yyyy");
-        return dateFormat.format(dateObject);
+    @Override
+    public void onBindViewHolder(ViewHolder holder, int position) {
+        long start = Metrics.startTimer();
+        //現在位置の Earthquake OBJ を取得
+        Earthquake currentEarthquake = getItem(position);
+
+        //表示用の文字列と色は Loader のバックグラウンドスレッドで作ってあるので、セットするだけ
+        EarthquakeDisplay display = mFormatter.displayFor(currentEarthquake);
+
+        //マグニチュードと、その数値に応じた背景色
+        holder.magnitudeView.setText(display.magnitude);
+        holder.magnitudeCircle.setColor(display.magnitudeColor);
+
+        //ロケーション
+        holder.offsetLocationView.setText(display.locationOffset);
+        holder.primaryLocationView.setText(display.primaryLocation);
+
+        //日付と時刻
+        holder.dateView.setText(display.date);
+        holder.timeView.setText(display.time);
+        Metrics.recordSince(Metrics.Metric.BIND, start);
     }
 
-    private String formatTime(Date dateObject) {
-        SimpleDateFormat timeFormat = new SimpleDateFormat("h:mm a");
-        return timeFormat.format(dateObject);
+    /**
+     * 現在のロケール・タイムゾーン用のフォーマッタを返す。
+     * まだないか、ロケール・タイムゾーンが変わっていれば作り直して共有する
+     */
+    public static EarthquakeFormatter currentFormatter(Context context) {
+        Locale locale = Locale.getDefault();
+        TimeZone timeZone = TimeZone.getDefault();
+        EarthquakeFormatter formatter = EarthquakeFormatter.getCurrent();
+        if (formatter == null || !formatter.matches(locale, timeZone)) {
+            formatter = new EarthquakeFormatter(locale, timeZone,
+                    resolveMagnitudeColors(context), context.getString(R.string.near_the));
+            EarthquakeFormatter.setCurrent(formatter);
+        }
+        return formatter;
     }
 
     /**
-     * マグニチュードによって、対応する背景色を決めるメソッド
+     * マグニチュードの整数部分ごとの色を、コンテキスト情報とリソースIDから1度だけ割り出しておく
      */
-    private int getMagnitudeColor(double magnitude) {
-        int magnitudeColorResourceId;
-
-        //Math.floor() で小数点以下を切り捨てる
-        //switch は double を扱えないので int にする
-        int magnitudeFloor = (int) Math.floor(magnitude);
-
-        switch (magnitudeFloor) {
-            case 0:
-            case 1:
-                magnitudeColorResourceId = R.color.magnitude1;
-                break;
-            case 2:
-                magnitudeColorResourceId = R.color.magnitude2;
-                break;
-            case 3:
-                magnitudeColorResourceId = R.color.magnitude3;
-                break;
-            case 4:
-                magnitudeColorResourceId = R.color.magnitude4;
-                break;
-            case 5:
-                magnitudeColorResourceId = R.color.magnitude5;
-                break;
-            case 6:
-                magnitudeColorResourceId = R.color.magnitude6;
-                break;
-            case 7:
-                magnitudeColorResourceId = R.color.magnitude7;
-                break;
-            case 8:
-                magnitudeColorResourceId = R.color.magnitude8;
-                break;
-            case 9:
-                magnitudeColorResourceId = R.color.magnitude9;
-                break;
-            default:
-                magnitudeColorResourceId = R.color.magnitude10plus;
-                break;
+    private static int[] resolveMagnitudeColors(Context context) {
+        int[] colorResourceIds = {
+                R.color.magnitude1,//0
+                R.color.magnitude1,//1
+                R.color.magnitude2,
+                R.color.magnitude3,
+                R.color.magnitude4,
+                R.color.magnitude5,
+                R.color.magnitude6,
+                R.color.magnitude7,
+                R.color.magnitude8,
+                R.color.magnitude9,
+                R.color.magnitude10plus//10以上
+        };
+        int[] colors = new int[EarthquakeFormatter.MAGNITUDE_COLOR_COUNT];
+        for (int i = 0; i < colors.length; i++) {
+            colors[i] = ContextCompat.getColor(context, colorResourceIds[i]);
         }
-        //コンテキスト情報とリソースIDから、実際の色情報を割り出す
-        return ContextCompat.getColor(getContext(), magnitudeColorResourceId);
+        return colors;
     }
 
 }
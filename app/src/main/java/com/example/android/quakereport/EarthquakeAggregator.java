@@ -0,0 +1,518 @@
+package com.example.android.quakereport;
+
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * 地震の件数・規模の集計を、イベントが届くたびに少しずつ更新しておくエンジン。
+ * <p>
+ * 1時間ごと・1日ごとの件数、マグニチュードの分布 (Gutenberg-Richter の累積件数と b 値)、
+ * 地域ごとの最大マグニチュードを、表示のたびに List&lt;Earthquake&gt; をなめ直さずに
+ * バケットの数だけの計算で答える。
+ * <p>
+ * {@link EarthquakeLoader} が {@link QueryUtils} に登録し、パースした地震を1件ずつ {@link #add(Earthquake)} で受け取る。
+ * キャッシュやローカルストアから同じイベントが何度も届くので、イベントIDで見分け、集計に効く値が変わっていなければ何もしない。
+ * 変わっていれば更新として前の値の分を引いてから足し直し、status が "deleted" のものは取り除く。
+ * updated が前に受け取ったものより古い場合 (古いキャッシュなど) は無視する。
+ * 集計は {@link EarthquakeActivity} の dumpsys の出力 ({@link #dump(PrintWriter)}) で見られる。
+ * <p>
+ * イベントごとの値はIDをキーにしたオープンアドレスのハッシュ表に、列ごとの配列で持つ。
+ * 1件あたり数十バイトで済むが、一括取り込みなどで届き続けても増え続けないよう、
+ * 集計に入れるのは発生時刻の新しい方から maxEvents 件までにする。上限に達したら古いイベントを集計から外し、
+ * それより古いイベントはその後も受け付けない。すべてのメソッドはスレッドセーフ。
+ */
+final class EarthquakeAggregator {
+
+    static final long HOUR_MILLIS = 60 * 60 * 1000L;
+    static final long DAY_MILLIS = 24 * HOUR_MILLIS;
+    //直近30日分の1時間ごとと、直近1年分の1日ごとの件数を持つ
+    static final int HOUR_BUCKETS = 24 * 30;
+    static final int DAY_BUCKETS = 366;
+
+    //マグニチュードは 0.1 刻み (表示と同じ桁) のビンで数える。範囲外は両端のビンに入れる
+    static final double MIN_MAGNITUDE = -2.0;
+    static final double MAX_MAGNITUDE = 10.0;
+    static final double MAGNITUDE_BIN_WIDTH = 0.1;
+    static final int MAGNITUDE_BINS = (int) Math.round((MAX_MAGNITUDE - MIN_MAGNITUDE) / MAGNITUDE_BIN_WIDTH) + 1;
+
+    //削除されたイベントの地域。updated を覚えておくため、表からは消さない
+    private static final int NO_REGION = -1;
+
+    private static final int INITIAL_CAPACITY = 1024;
+    //表示するリストの件数の上限 (20000件) より十分多く、表は数MBに収まる
+    static final int DEFAULT_MAX_EVENTS = 50000;
+    //dump() で書き出す地域の数
+    private static final int DUMP_REGIONS = 10;
+
+    private static final EarthquakeAggregator sInstance = new EarthquakeAggregator();
+
+    private final TimeBuckets mHours = new TimeBuckets(HOUR_MILLIS, HOUR_BUCKETS);
+    private final TimeBuckets mDays = new TimeBuckets(DAY_MILLIS, DAY_BUCKETS);
+    private final int[] mMagnitudeBins = new int[MAGNITUDE_BINS];
+
+    //地域名の辞書と、地域ごとのマグニチュードのビン
+    private final Map<String, Integer> mRegionIndexes = new HashMap<>();
+    private final List<String> mRegionNames = new ArrayList<>();
+    private final List<int[]> mRegionBins = new ArrayList<>();
+
+    //イベントIDをキーにしたハッシュ表 (線形探索)。mIds[slot] が null のスロットは空き
+    private String[] mIds = new String[INITIAL_CAPACITY];
+    private long[] mTimes = new long[INITIAL_CAPACITY];
+    private long[] mUpdated = new long[INITIAL_CAPACITY];
+    private short[] mBins = new short[INITIAL_CAPACITY];
+    private int[] mRegions = new int[INITIAL_CAPACITY];
+    //使用中のスロット数 (削除済みも含む) と、集計に入っているイベント数
+    private int mUsed;
+    private int mSize;
+
+    private final int mMaxEvents;
+    //上限に合わせて集計から外したイベントの中で、最も新しい発生時刻。これより古いイベントは受け付けない
+    private long mOldestTime = Long.MIN_VALUE;
+
+    EarthquakeAggregator() {
+        this(DEFAULT_MAX_EVENTS);
+    }
+
+    EarthquakeAggregator(int maxEvents) {
+        mMaxEvents = maxEvents;
+    }
+
+    static EarthquakeAggregator getInstance() {
+        return sInstance;
+    }
+
+    /**
+     * 1件を集計に反映する。同じIDが集計済みなら置き換え、削除されたイベントなら取り除く。
+     * IDのないイベントは、同じものかどうか見分けられないので数えない
+     */
+    synchronized void add(Earthquake earthquake) {
+        String id = earthquake.getId();
+        if (id == null) {
+            return;
+        }
+        int slot = find(id);
+        if (mIds[slot] != null) {
+            if (earthquake.getUpdated() < mUpdated[slot]) {
+                return;
+            }
+            if (isCounted(slot, earthquake)) {
+                //数え直しはしないが、これより古い版が後から届いたら無視できるよう updated だけ進める
+                mUpdated[slot] = earthquake.getUpdated();
+                return;
+            }
+            if (mRegions[slot] != NO_REGION) {
+                count(slot, -1);
+            }
+        } else {
+            if (earthquake.getTimeInMilliseconds() < mOldestTime) {
+                return;
+            }
+            mIds[slot] = id;
+            mUsed++;
+        }
+        mUpdated[slot] = earthquake.getUpdated();
+        if (earthquake.isDeleted()) {
+            mRegions[slot] = NO_REGION;
+        } else {
+            mTimes[slot] = earthquake.getTimeInMilliseconds();
+            mBins[slot] = (short) binOf(earthquake.getMagnitude());
+            mRegions[slot] = regionIndexOf(regionOf(earthquake));
+            count(slot, 1);
+        }
+        if (mUsed > mMaxEvents) {
+            trim();
+        } else if (mUsed * 2 > mIds.length) {
+            //表の半分を超えたら広げる
+            rehash(mIds.length * 2);
+        }
+    }
+
+    synchronized void addAll(List<Earthquake> earthquakes) {
+        for (Earthquake earthquake : earthquakes) {
+            add(earthquake);
+        }
+    }
+
+    /**
+     * 集計から取り除く
+     */
+    synchronized void remove(String id) {
+        int slot = find(id);
+        if (mIds[slot] != null && mRegions[slot] != NO_REGION) {
+            count(slot, -1);
+            mRegions[slot] = NO_REGION;
+        }
+    }
+
+    synchronized void clear() {
+        mHours.clear();
+        mDays.clear();
+        Arrays.fill(mMagnitudeBins, 0);
+        mRegionIndexes.clear();
+        mRegionNames.clear();
+        mRegionBins.clear();
+        mIds = new String[INITIAL_CAPACITY];
+        mTimes = new long[INITIAL_CAPACITY];
+        mUpdated = new long[INITIAL_CAPACITY];
+        mBins = new short[INITIAL_CAPACITY];
+        mRegions = new int[INITIAL_CAPACITY];
+        mUsed = 0;
+        mSize = 0;
+        mOldestTime = Long.MIN_VALUE;
+    }
+
+    /**
+     * 集計に入っているイベント数
+     */
+    synchronized int size() {
+        return mSize;
+    }
+
+    /**
+     * endMillis を含む1時間までの、hours 時間分の件数。古い順に並べる。
+     * 集計にある最新のイベントから {@link #HOUR_BUCKETS} 時間より前は 0 になる
+     */
+    synchronized int[] countsPerHour(long endMillis, int hours) {
+        return mHours.counts(endMillis, hours);
+    }
+
+    /**
+     * endMillis を含む日 (UTC) までの、days 日分の件数。古い順に並べる。
+     * 集計にある最新のイベントから {@link #DAY_BUCKETS} 日より前は 0 になる
+     */
+    synchronized int[] countsPerDay(long endMillis, int days) {
+        return mDays.counts(endMillis, days);
+    }
+
+    /**
+     * マグニチュードのビンごとの件数。ビン i の代表値は {@link #magnitudeOf(int)}
+     */
+    synchronized int[] magnitudeHistogram() {
+        return mMagnitudeBins.clone();
+    }
+
+    /**
+     * Gutenberg-Richter の累積件数。i 番目は、マグニチュードが magnitudeOf(i) 以上の件数
+     */
+    synchronized int[] cumulativeMagnitudeCounts() {
+        int[] cumulative = new int[MAGNITUDE_BINS];
+        int total = 0;
+        for (int i = MAGNITUDE_BINS - 1; i >= 0; i--) {
+            total += mMagnitudeBins[i];
+            cumulative[i] = total;
+        }
+        return cumulative;
+    }
+
+    /**
+     * completenessMagnitude 以上のイベントから、Aki-Utsu の最尤法で b 値を求める。
+     * ビンの幅の分は補正する
+     *
+     * @return イベントが2件未満など、求められない場合は NaN
+     */
+    synchronized double bValue(double completenessMagnitude) {
+        int from = binOf(completenessMagnitude);
+        long count = 0;
+        double sum = 0;
+        for (int i = from; i < MAGNITUDE_BINS; i++) {
+            count += mMagnitudeBins[i];
+            sum += mMagnitudeBins[i] * magnitudeOf(i);
+        }
+        if (count < 2) {
+            return Double.NaN;
+        }
+        double spread = sum / count - (magnitudeOf(from) - MAGNITUDE_BIN_WIDTH / 2);
+        return spread > 0 ? Math.log10(Math.E) / spread : Double.NaN;
+    }
+
+    /**
+     * 地域ごとの最大マグニチュード (0.1 刻み)。イベントがなくなった地域は含まない
+     */
+    synchronized Map<String, Double> maxMagnitudeByRegion() {
+        Map<String, Double> result = new LinkedHashMap<>();
+        for (int r = 0; r < mRegionNames.size(); r++) {
+            int[] bins = mRegionBins.get(r);
+            for (int i = MAGNITUDE_BINS - 1; i >= 0; i--) {
+                if (bins[i] > 0) {
+                    result.put(mRegionNames.get(r), magnitudeOf(i));
+                    break;
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * 地域ごとの件数。イベントがなくなった地域は含まない
+     */
+    synchronized Map<String, Integer> countByRegion() {
+        Map<String, Integer> result = new LinkedHashMap<>();
+        for (int r = 0; r < mRegionNames.size(); r++) {
+            int count = 0;
+            for (int n : mRegionBins.get(r)) {
+                count += n;
+            }
+            if (count > 0) {
+                result.put(mRegionNames.get(r), count);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * 直近24時間・7日の件数と、最大マグニチュードの大きい地域を書き出す
+     */
+    synchronized void dump(PrintWriter writer) {
+        long now = System.currentTimeMillis();
+        int lastDay = 0;
+        for (int count : countsPerHour(now, 24)) {
+            lastDay += count;
+        }
+        int lastWeek = 0;
+        for (int count : countsPerDay(now, 7)) {
+            lastWeek += count;
+        }
+        writer.println(String.format(Locale.US, "Aggregator: events=%d last24h=%d last7d=%d b=%.2f",
+                mSize, lastDay, lastWeek, bValue(2.5)));
+        List<Map.Entry<String, Double>> regions = new ArrayList<>(maxMagnitudeByRegion().entrySet());
+        Collections.sort(regions, new Comparator<Map.Entry<String, Double>>() {
+            @Override
+            public int compare(Map.Entry<String, Double> lhs, Map.Entry<String, Double> rhs) {
+                return Double.compare(rhs.getValue(), lhs.getValue());
+            }
+        });
+        Map<String, Integer> counts = countByRegion();
+        for (Map.Entry<String, Double> region : regions.subList(0, Math.min(DUMP_REGIONS, regions.size()))) {
+            writer.println(String.format(Locale.US, "  %-30s max=%.1f count=%d",
+                    region.getKey(), region.getValue(), counts.get(region.getKey())));
+        }
+    }
+
+    /**
+     * ビン i の代表値
+     */
+    static double magnitudeOf(int bin) {
+        return Math.round((MIN_MAGNITUDE + bin * MAGNITUDE_BIN_WIDTH) * 10) / 10.0;
+    }
+
+    static int binOf(double magnitude) {
+        if (Double.isNaN(magnitude)) {
+            return 0;
+        }
+        long bin = Math.round((magnitude - MIN_MAGNITUDE) / MAGNITUDE_BIN_WIDTH);
+        return (int) Math.max(0, Math.min(MAGNITUDE_BINS - 1, bin));
+    }
+
+    /**
+     * "10km SSW of Volcano, Hawaii" の "Hawaii" のように、場所の最後のカンマより後ろを地域とする。
+     * カンマがなければ主な場所全体 ("Fiji region" など)
+     */
+    static String regionOf(Earthquake earthquake) {
+        String primary = earthquake.getPrimaryLocation();
+        if (primary == null) {
+            return "";
+        }
+        int comma = primary.lastIndexOf(", ");
+        return comma >= 0 ? primary.substring(comma + 2) : primary;
+    }
+
+    /**
+     * slot に、earthquake と同じ発生時刻・ビン・地域で集計済みか (削除済みなら、削除済みのままか) どうか
+     */
+    private boolean isCounted(int slot, Earthquake earthquake) {
+        if (earthquake.isDeleted() || mRegions[slot] == NO_REGION) {
+            return earthquake.isDeleted() && mRegions[slot] == NO_REGION;
+        }
+        Integer region = mRegionIndexes.get(regionOf(earthquake));
+        return mTimes[slot] == earthquake.getTimeInMilliseconds()
+                && mBins[slot] == binOf(earthquake.getMagnitude())
+                && region != null && mRegions[slot] == region;
+    }
+
+    private int regionIndexOf(String region) {
+        Integer index = mRegionIndexes.get(region);
+        if (index == null) {
+            index = mRegionNames.size();
+            mRegionIndexes.put(region, index);
+            mRegionNames.add(region);
+            mRegionBins.add(new int[MAGNITUDE_BINS]);
+        }
+        return index;
+    }
+
+    private void count(int slot, int delta) {
+        mHours.add(mTimes[slot], delta);
+        mDays.add(mTimes[slot], delta);
+        mMagnitudeBins[mBins[slot]] += delta;
+        mRegionBins.get(mRegions[slot])[mBins[slot]] += delta;
+        mSize += delta;
+    }
+
+    /**
+     * id のスロット。表にない場合は、入れるべき空きスロット
+     */
+    private int find(String id) {
+        int mask = mIds.length - 1;
+        int slot = mix(id.hashCode()) & mask;
+        while (mIds[slot] != null && !mIds[slot].equals(id)) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    /**
+     * 上限の 3/4 まで、発生時刻の古いイベントから集計を外す。削除済みのイベントの updated も忘れ、
+     * 表と地域の辞書を残ったイベントだけで作り直す
+     */
+    private void trim() {
+        int target = mMaxEvents * 3 / 4;
+        if (mSize > target) {
+            long[] times = new long[mSize];
+            int n = 0;
+            for (int i = 0; i < mIds.length; i++) {
+                if (mIds[i] != null && mRegions[i] != NO_REGION) {
+                    times[n++] = mTimes[i];
+                }
+            }
+            Arrays.sort(times);
+            mOldestTime = times[mSize - target];
+            for (int i = 0; i < mIds.length; i++) {
+                if (mIds[i] != null && mRegions[i] != NO_REGION && mTimes[i] < mOldestTime) {
+                    count(i, -1);
+                    mRegions[i] = NO_REGION;
+                }
+            }
+        }
+
+        //イベントがなくなった地域を辞書から除き、番号を詰める
+        int[] regionMap = new int[mRegionNames.size()];
+        List<String> names = new ArrayList<>();
+        List<int[]> regionBins = new ArrayList<>();
+        mRegionIndexes.clear();
+        for (int r = 0; r < regionMap.length; r++) {
+            int[] bins = mRegionBins.get(r);
+            regionMap[r] = NO_REGION;
+            for (int count : bins) {
+                if (count > 0) {
+                    regionMap[r] = names.size();
+                    mRegionIndexes.put(mRegionNames.get(r), names.size());
+                    names.add(mRegionNames.get(r));
+                    regionBins.add(bins);
+                    break;
+                }
+            }
+        }
+        mRegionNames.clear();
+        mRegionNames.addAll(names);
+        mRegionBins.clear();
+        mRegionBins.addAll(regionBins);
+
+        for (int i = 0; i < mIds.length; i++) {
+            if (mIds[i] == null) {
+                continue;
+            }
+            if (mRegions[i] == NO_REGION) {
+                mIds[i] = null;
+                mUsed--;
+            } else {
+                mRegions[i] = regionMap[mRegions[i]];
+            }
+        }
+        //空けたスロットで探索が途切れないよう、同じ大きさで入れ直す
+        rehash(mIds.length);
+    }
+
+    private void rehash(int capacity) {
+        String[] ids = mIds;
+        long[] times = mTimes;
+        long[] updated = mUpdated;
+        short[] bins = mBins;
+        int[] regions = mRegions;
+        mIds = new String[capacity];
+        mTimes = new long[capacity];
+        mUpdated = new long[capacity];
+        mBins = new short[capacity];
+        mRegions = new int[capacity];
+        for (int i = 0; i < ids.length; i++) {
+            if (ids[i] != null) {
+                int slot = find(ids[i]);
+                mIds[slot] = ids[i];
+                mTimes[slot] = times[i];
+                mUpdated[slot] = updated[i];
+                mBins[slot] = bins[i];
+                mRegions[slot] = regions[i];
+            }
+        }
+    }
+
+    //"us20001234" のような似たIDが続いても、下位ビットが偏らないようにする
+    private static int mix(int hash) {
+        hash *= 0x9E3779B9;
+        return hash ^ (hash >>> 16);
+    }
+
+    /**
+     * 一定の幅の時間ごとの件数を、リングバッファで持つ。
+     * スロットにはどの時間の件数かを一緒に覚えておき、新しい時間が同じスロットに来たら古い分は捨てる
+     */
+    private static final class TimeBuckets {
+        private final long mWidth;
+        private final long[] mKeys;
+        private final int[] mCounts;
+
+        TimeBuckets(long width, int size) {
+            mWidth = width;
+            mKeys = new long[size];
+            mCounts = new int[size];
+            clear();
+        }
+
+        void clear() {
+            Arrays.fill(mKeys, Long.MIN_VALUE);
+            Arrays.fill(mCounts, 0);
+        }
+
+        void add(long time, int delta) {
+            long key = keyOf(time);
+            int slot = slotOf(key);
+            if (mKeys[slot] == key) {
+                mCounts[slot] += delta;
+            } else if (mKeys[slot] < key && delta > 0) {
+                mKeys[slot] = key;
+                mCounts[slot] = delta;
+            }
+            //スロットがより新しい時間に使われている場合は、窓より古いので数えない
+        }
+
+        int[] counts(long endTime, int n) {
+            n = Math.min(n, mKeys.length);
+            int[] counts = new int[n];
+            long endKey = keyOf(endTime);
+            for (int i = 0; i < n; i++) {
+                long key = endKey - (n - 1 - i);
+                int slot = slotOf(key);
+                counts[i] = mKeys[slot] == key ? mCounts[slot] : 0;
+            }
+            return counts;
+        }
+
+        private long keyOf(long time) {
+            //負の時刻 (1970年より前) でも切り捨てになるように
+            long key = time / mWidth;
+            return time < 0 && key * mWidth != time ? key - 1 : key;
+        }
+
+        private int slotOf(long key) {
+            int slot = (int) (key % mKeys.length);
+            return slot < 0 ? slot + mKeys.length : slot;
+        }
+    }
+}
@@ -0,0 +1,35 @@
+package com.example.android.quakereport;
+
+import android.provider.BaseColumns;
+
+/**
+ * ローカルに保存する地震データのテーブル・カラム名の定義
+ */
+public final class EarthquakeContract {
+
+    //定数を保持するだけのクラスなので、インスタンス化させない
+    private EarthquakeContract() {
+    }
+
+    public static final class EarthquakeEntry implements BaseColumns {
+
+        public static final String TABLE_NAME = "earthquakes";
+
+        //USGS のイベントID。upsert のキーになるので UNIQUE
+        public static final String COLUMN_EVENT_ID = "event_id";
+        public static final String COLUMN_MAGNITUDE = "magnitude";
+        public static final String COLUMN_PLACE = "place";
+        //発生時刻 (エポックミリ秒)
+        public static final String COLUMN_TIME = "time";
+        public static final String COLUMN_URL = "url";
+        //USGS 側での最終更新時刻 (エポックミリ秒)
+        public static final String COLUMN_UPDATED = "updated";
+        //震源の位置。不明な場合は NULL
+        public static final String COLUMN_LATITUDE = "latitude";
+        public static final String COLUMN_LONGITUDE = "longitude";
+        //震源の深さ (km)
+        public static final String COLUMN_DEPTH = "depth";
+        //一括インポートで取り込んだものは 1。表示期間から外れても削除しない
+        public static final String COLUMN_ARCHIVED = "archived";
+    }
+}
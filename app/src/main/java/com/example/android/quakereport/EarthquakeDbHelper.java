@@ -0,0 +1,59 @@
+package com.example.android.quakereport;
+
+import android.content.Context;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+
+import com.example.android.quakereport.EarthquakeContract.EarthquakeEntry;
+
+/**
+ * 地震データを保存する SQLite データベースの作成・アップグレードを行う
+ */
+public class EarthquakeDbHelper extends SQLiteOpenHelper {
+
+    private static final String DATABASE_NAME = "earthquakes.db";
+
+    //スキーマを変更したらインクリメントする
+    private static final int DATABASE_VERSION = 4;
+
+    private final Context mContext;
+
+    public EarthquakeDbHelper(Context context) {
+        super(context, DATABASE_NAME, null, DATABASE_VERSION);
+        mContext = context;
+    }
+
+    @Override
+    public void onCreate(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE " + EarthquakeEntry.TABLE_NAME + " ("
+                + EarthquakeEntry._ID + " INTEGER PRIMARY KEY AUTOINCREMENT, "
+                + EarthquakeEntry.COLUMN_EVENT_ID + " TEXT NOT NULL UNIQUE, "
+                + EarthquakeEntry.COLUMN_MAGNITUDE + " REAL NOT NULL, "
+                + EarthquakeEntry.COLUMN_PLACE + " TEXT, "
+                + EarthquakeEntry.COLUMN_TIME + " INTEGER NOT NULL, "
+                + EarthquakeEntry.COLUMN_URL + " TEXT, "
+                + EarthquakeEntry.COLUMN_UPDATED + " INTEGER NOT NULL DEFAULT 0, "
+                + EarthquakeEntry.COLUMN_LATITUDE + " REAL, "
+                + EarthquakeEntry.COLUMN_LONGITUDE + " REAL, "
+                + EarthquakeEntry.COLUMN_DEPTH + " REAL, "
+                + EarthquakeEntry.COLUMN_ARCHIVED + " INTEGER NOT NULL DEFAULT 0);");
+
+        //設定画面の orderby (time / magnitude) と minmag の絞り込みをインデックスで答えるため
+        db.execSQL("CREATE INDEX idx_earthquakes_time ON " + EarthquakeEntry.TABLE_NAME
+                + " (" + EarthquakeEntry.COLUMN_TIME + ");");
+        db.execSQL("CREATE INDEX idx_earthquakes_magnitude ON " + EarthquakeEntry.TABLE_NAME
+                + " (" + EarthquakeEntry.COLUMN_MAGNITUDE + ");");
+    }
+
+    @Override
+    public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+        //中身はサーバから取り直せるキャッシュなので、作り直すだけでよい
+        db.execSQL("DROP TABLE IF EXISTS " + EarthquakeEntry.TABLE_NAME);
+        onCreate(db);
+        //テーブルの中身を前提にした記録も消す。残っていると、空のストアを取り込み済みとして扱ったり、
+        //消えたイベントを差分同期や一括インポートの続きで取り戻せなくなる
+        EarthquakeStore.clearCoverage(mContext);
+        EarthquakeSyncer.clearMarks(mContext);
+        BulkImportService.clearProgress(mContext);
+    }
+}
@@ -0,0 +1,207 @@
+package com.example.android.quakereport;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * 古いリストと新しいリストをイベントIDで突き合わせ、RecyclerView に通知する
+ * 挿入・変更・削除・移動の操作の列を求める。
+ * <p>
+ * バックグラウンドスレッドで {@link #calculate(List, List)} し、UIスレッドで
+ * {@link #dispatchTo(Callback)} する。変更がない行は再バインドされない。
+ */
+final class EarthquakeDiff {
+
+    /**
+     * 求めた操作を受け取る。RecyclerView.Adapter の notifyItemRange〜 にそのまま対応する
+     */
+    interface Callback {
+        void onInserted(int position, int count);
+
+        void onRemoved(int position, int count);
+
+        void onMoved(int fromPosition, int toPosition);
+
+        void onChanged(int position, int count);
+
+        /**
+         * 並べ替えなどで差分が大きすぎる場合。全体を再描画する
+         */
+        void onReset();
+    }
+
+    //並び順の変更などでこれを超える移動が必要な場合は、全体を再描画したほうが安い
+    private static final int MAX_MOVES = 100;
+
+    private static final int INSERT = 0;
+    private static final int REMOVE = 1;
+    private static final int MOVE = 2;
+    private static final int CHANGE = 3;
+
+    //操作の種類・位置・件数 (移動の場合は移動先) を3つ組で並べたもの
+    private final int[] mOperations;
+    private final int mOperationCount;
+    private final boolean mReset;
+
+    private EarthquakeDiff(int[] operations, int operationCount, boolean reset) {
+        mOperations = operations;
+        mOperationCount = operationCount;
+        mReset = reset;
+    }
+
+    /**
+     * 古いリストを新しいリストに変えるための操作を求める。どちらのリストも変更しない
+     */
+    static EarthquakeDiff calculate(List<Earthquake> oldList, List<Earthquake> newList) {
+        Builder builder = new Builder();
+
+        //1.新しいリストにないイベントを、後ろから順に削除する
+        Set<Object> newKeys = new HashSet<>(newList.size() * 2);
+        for (Earthquake earthquake : newList) {
+            if (!newKeys.add(keyOf(earthquake))) {
+                //同じイベントが2回出てくる場合は位置を対応付けられないので、全体を再描画する
+                return new EarthquakeDiff(null, 0, true);
+            }
+        }
+        List<Earthquake> current = new ArrayList<>(oldList.size());
+        for (int i = oldList.size() - 1; i >= 0; i--) {
+            Earthquake earthquake = oldList.get(i);
+            if (newKeys.contains(keyOf(earthquake))) {
+                current.add(earthquake);
+            } else {
+                builder.add(REMOVE, i, 1);
+            }
+        }
+        //後ろから追加したので、元の順番に戻す
+        Collections.reverse(current);
+
+        Set<Object> currentKeys = new HashSet<>(current.size() * 2);
+        for (Earthquake earthquake : current) {
+            currentKeys.add(keyOf(earthquake));
+        }
+
+        //2.新しいリストの先頭から、位置ごとに挿入・移動・変更を決める
+        int moves = 0;
+        for (int i = 0; i < newList.size(); i++) {
+            Earthquake newItem = newList.get(i);
+            Object key = keyOf(newItem);
+
+            if (i < current.size() && key.equals(keyOf(current.get(i)))) {
+                if (!newItem.hasSameContent(current.get(i))) {
+                    builder.add(CHANGE, i, 1);
+                }
+                continue;
+            }
+
+            if (!currentKeys.contains(key)) {
+                builder.add(INSERT, i, 1);
+                current.add(i, newItem);
+                continue;
+            }
+
+            //後ろの方にあるので、ここまで移動させる
+            if (++moves > MAX_MOVES) {
+                return new EarthquakeDiff(null, 0, true);
+            }
+            int from = indexOfKey(current, key, i + 1);
+            Earthquake moved = current.remove(from);
+            current.add(i, moved);
+            builder.add(MOVE, from, i);
+            if (!newItem.hasSameContent(moved)) {
+                builder.add(CHANGE, i, 1);
+            }
+        }
+        return new EarthquakeDiff(builder.mOperations, builder.mCount, false);
+    }
+
+    /**
+     * 求めた操作を、求めた順番に通知する
+     */
+    void dispatchTo(Callback callback) {
+        if (mReset) {
+            callback.onReset();
+            return;
+        }
+        for (int i = 0; i < mOperationCount; i++) {
+            int type = mOperations[i * 3];
+            int position = mOperations[i * 3 + 1];
+            int argument = mOperations[i * 3 + 2];
+            switch (type) {
+                case INSERT:
+                    callback.onInserted(position, argument);
+                    break;
+                case REMOVE:
+                    callback.onRemoved(position, argument);
+                    break;
+                case MOVE:
+                    callback.onMoved(position, argument);
+                    break;
+                default:
+                    callback.onChanged(position, argument);
+                    break;
+            }
+        }
+    }
+
+    /**
+     * 操作の件数。全体を再描画する場合は -1
+     */
+    int getOperationCount() {
+        return mReset ? -1 : mOperationCount;
+    }
+
+    private static Object keyOf(Earthquake earthquake) {
+        //イベントIDがない場合は、同じ OBJ かどうかで比べる
+        String id = earthquake.getId();
+        return id != null && !id.isEmpty() ? id : earthquake;
+    }
+
+    private static int indexOfKey(List<Earthquake> list, Object key, int start) {
+        for (int i = start; i < list.size(); i++) {
+            if (key.equals(keyOf(list.get(i)))) {
+                return i;
+            }
+        }
+        throw new IllegalStateException("Key not found: " + key);
+    }
+
+    /**
+     * 連続する挿入・変更 (前から順) と削除 (後ろから順) を1つの範囲にまとめながら操作を溜める
+     */
+    private static final class Builder {
+        private int[] mOperations = new int[3 * 16];
+        private int mCount;
+
+        void add(int type, int position, int argument) {
+            if (mCount > 0 && type != MOVE) {
+                int last = (mCount - 1) * 3;
+                int lastType = mOperations[last];
+                int lastPosition = mOperations[last + 1];
+                int lastCount = mOperations[last + 2];
+                if (lastType == type) {
+                    if ((type == INSERT || type == CHANGE) && position == lastPosition + lastCount) {
+                        mOperations[last + 2] = lastCount + argument;
+                        return;
+                    }
+                    if (type == REMOVE && position + argument == lastPosition) {
+                        mOperations[last + 1] = position;
+                        mOperations[last + 2] = lastCount + argument;
+                        return;
+                    }
+                }
+            }
+            if ((mCount + 1) * 3 > mOperations.length) {
+                int[] operations = new int[mOperations.length * 2];
+                System.arraycopy(mOperations, 0, operations, 0, mCount * 3);
+                mOperations = operations;
+            }
+            mOperations[mCount * 3] = type;
+            mOperations[mCount * 3 + 1] = position;
+            mOperations[mCount * 3 + 2] = argument;
+            mCount++;
+        }
+    }
+}
@@ -0,0 +1,30 @@
+package com.example.android.quakereport;
+
+/**
+ * リストの1行に表示する、フォーマット済みの文字列と色。
+ * Loader のバックグラウンドスレッドで {@link EarthquakeFormatter} が作り、
+ * UIスレッドの Adapter は値を View にセットするだけにする
+ */
+final class EarthquakeDisplay {
+
+    //どのフォーマッタ (ロケール・タイムゾーン) で作ったものか
+    final EarthquakeFormatter formatter;
+
+    final String magnitude;
+    final int magnitudeColor;
+    final String locationOffset;
+    final String primaryLocation;
+    final String date;
+    final String time;
+
+    EarthquakeDisplay(EarthquakeFormatter formatter, String magnitude, int magnitudeColor,
+                      String locationOffset, String primaryLocation, String date, String time) {
+        this.formatter = formatter;
+        this.magnitude = magnitude;
+        this.magnitudeColor = magnitudeColor;
+        this.locationOffset = locationOffset;
+        this.primaryLocation = primaryLocation;
+        this.date = date;
+        this.time = time;
+    }
+}
@@ -0,0 +1,135 @@
+package com.example.android.quakereport;
+
+import java.text.DecimalFormat;
+import java.text.DecimalFormatSymbols;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+import java.util.TimeZone;
+
+/**
+ * Earthquake の不変なフィールドから、リスト表示用の {@link EarthquakeDisplay} を作る。
+ * <p>
+ * 1つのインスタンスは1つのロケール・タイムゾーンに対応する。ロケールやタイムゾーンが変わったら
+ * 新しいインスタンスを {@link #setCurrent(EarthquakeFormatter)} し直すと、
+ * 古いフォーマッタで作った表示用データは {@link #displayFor(Earthquake)} で作り直される。
+ */
+final class EarthquakeFormatter {
+
+    //マグニチュードの整数部分ごとの色の数 (0〜9 と 10以上)
+    static final int MAGNITUDE_COLOR_COUNT = 11;
+
+    private static volatile EarthquakeFormatter sCurrent;
+
+    private final Locale mLocale;
+    private final TimeZone mTimeZone;
+    private final DecimalFormat mMagnitudeFormat;
+    private final SimpleDateFormat mDateFormat;
+    private final SimpleDateFormat mTimeFormat;
+    private final Date mDate = new Date();
+
+    //マグニチュードの整数部分をインデックスにした色のテーブル
+    private final int[] mMagnitudeColors;
+    //区切り文字を含まない場所のオフセットとして表示する文字列
+    private final String mNearThe;
+
+    /**
+     * @param magnitudeColors マグニチュードの整数部分 (0〜10以上) ごとの色。要素数は {@link #MAGNITUDE_COLOR_COUNT}
+     * @param nearThe         "88km N of " のようなオフセットがない場所の前に表示する文字列
+     */
+    EarthquakeFormatter(Locale locale, TimeZone timeZone, int[] magnitudeColors, String nearThe) {
+        mLocale = locale;
+        mTimeZone = timeZone;
+        mMagnitudeFormat = new DecimalFormat("0.0", DecimalFormatSymbols.getInstance(locale));
+        mDateFormat = new SimpleDateFormat("LLL dd, yyyy", locale);
+        mDateFormat.setTimeZone(timeZone);
+        mTimeFormat = new SimpleDateFormat("h:mm a", locale);
+        mTimeFormat.setTimeZone(timeZone);
+        mMagnitudeColors = magnitudeColors;
+        mNearThe = nearThe;
+    }
+
+    /**
+     * 現在のロケール・タイムゾーン用のフォーマッタ。まだ作られていない場合は null
+     */
+    static EarthquakeFormatter getCurrent() {
+        return sCurrent;
+    }
+
+    static void setCurrent(EarthquakeFormatter formatter) {
+        sCurrent = formatter;
+    }
+
+    /**
+     * このフォーマッタが、与えられたロケール・タイムゾーン用のものかどうか
+     */
+    boolean matches(Locale locale, TimeZone timeZone) {
+        return mLocale.equals(locale) && mTimeZone.hasSameRules(timeZone)
+                && mTimeZone.getID().equals(timeZone.getID());
+    }
+
+    /**
+     * このフォーマッタで作った表示用データを返す。
+     * まだ作っていないか、別のフォーマッタで作られていた場合は作り直して Earthquake に持たせる
+     */
+    EarthquakeDisplay displayFor(Earthquake earthquake) {
+        EarthquakeDisplay display = earthquake.getDisplay();
+        if (display == null || display.formatter != this) {
+            display = format(earthquake);
+            earthquake.setDisplay(display);
+        }
+        return display;
+    }
+
+    /**
+     * リストの全件について、表示用データを前もって作っておく。Loader のバックグラウンドスレッドから呼ぶ
+     */
+    void prepare(List<Earthquake> earthquakes) {
+        for (Earthquake earthquake : earthquakes) {
+            displayFor(earthquake);
+        }
+    }
+
+    //フォーマッタは UIスレッドと Loader のスレッドの両方から使われるので、同期化する
+    private synchronized EarthquakeDisplay format(Earthquake earthquake) {
+        mDate.setTime(earthquake.getTimeInMilliseconds());
+        String locationOffset = earthquake.getLocationOffset();
+        return new EarthquakeDisplay(this,
+                formatMagnitude(earthquake.getMagnitude()),
+                getMagnitudeColor(earthquake.getMagnitude()),
+                locationOffset != null ? locationOffset : mNearThe,
+                earthquake.getPrimaryLocation(),
+                formatDate(mDate),
+                formatTime(mDate));
+    }
+
+    String formatMagnitude(double magnitude) {
+        return mMagnitudeFormat.format(magnitude);
+    }
+
+    /**
+     * Date OBJ を元に、フォーマットした date String を返す
+     */
+    String formatDate(Date dateObject) {
+        return mDateFormat.format(dateObject);
+    }
+
+    String formatTime(Date dateObject) {
+        return mTimeFormat.format(dateObject);
+    }
+
+    /**
+     * マグニチュードによって、対応する背景色を決めるメソッド
+     */
+    int getMagnitudeColor(double magnitude) {
+        //Math.floor() で小数点以下を切り捨て、テーブルのインデックスにする
+        int magnitudeFloor = (int) Math.floor(magnitude);
+        if (magnitudeFloor < 0) {
+            magnitudeFloor = 0;
+        } else if (magnitudeFloor >= MAGNITUDE_COLOR_COUNT) {
+            magnitudeFloor = MAGNITUDE_COLOR_COUNT - 1;
+        }
+        return mMagnitudeColors[magnitudeFloor];
+    }
+}
@@ -1,10 +1,20 @@
 package com.example.android.quakereport;
 
+import android.app.ActivityManager;
+import android.content.ComponentCallbacks2;
 import android.content.Context;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
 import android.support.v4.content.AsyncTaskLoader;
 import android.util.Log;
 
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Created by Yasuaki on 2016/09/13.
@@ -15,33 +25,762 @@ public class EarthquakeLoader extends AsyncTaskLoader<List<Earthquake>> {
 
     private static final String LOG_TAG = EarthquakeLoader.class.getName();
 
+    //URL に limit がない場合の上限。FDSN の1クエリあたりの上限値
+    private static final int DEFAULT_MAX_EVENTS = 20000;
+    //URL に starttime がない場合に FDSN が使う期間 (30日前から現在まで)
+    private static final long DEFAULT_WINDOW_MILLIS = 30L * 24 * 60 * 60 * 1000;
+    //ローダーごとの FetchCoordinator のチャンネルの番号
+    private static final AtomicInteger sChannelIds = new AtomicInteger();
+    //最後に表示したリストのスナップショット (getCacheDir() の下)
+    private static final String SNAPSHOT_FILE_NAME = "earthquakes.snapshot";
+    //結果のリストをメモリに持つ上限の、アプリのヒープの上限 (getMemoryClass) に対する割合 (1/16)
+    private static final int MEMORY_BUDGET_DIVISOR = 16;
+
+    //取得した地震を、集計エンジンと場所の検索インデックスに渡す。
+    //同じ定数を登録するので、ローダーを何度作っても1つずつしか登録されない
+    private static final QueryUtils.EarthquakeObserver AGGREGATOR_OBSERVER = new QueryUtils.EarthquakeObserver() {
+        @Override
+        public void onEarthquake(Earthquake earthquake) {
+            EarthquakeAggregator.getInstance().add(earthquake);
+        }
+    };
+    private static final QueryUtils.EarthquakeObserver SEARCH_INDEX_OBSERVER = new QueryUtils.EarthquakeObserver() {
+        @Override
+        public void onEarthquake(Earthquake earthquake) {
+            PlaceSearchIndex.getInstance().add(earthquake);
+        }
+    };
+
     //クエリに使う URL
     private String mUrl;
 
+    //複数の領域を監視する場合の、領域ごとのクエリの URL。1つだけの場合は null
+    private List<String> mRegionUrls;
+
+    //FetchCoordinator のチャンネル。このローダーのクエリが変わったら、前のクエリの取得を止める。
+    //RefreshService のローダーなど、別のローダーの取得は止めないよう、ローダーごとに分ける
+    private final String mFetchChannel = EarthquakeLoader.class.getName() + "#" + sChannelIds.incrementAndGet();
+
+    //ページごとのレスポンスを保存しておくディスクキャッシュ
+    private final HttpDiskCache mCache;
+
+    //取得した地震をイベントIDごとに保存しておくローカルストア
+    private final EarthquakeStore mStore;
+
+    //前回の取得以降の変更だけを取り込む差分同期
+    private final EarthquakeSyncer mSyncer;
+
+    //起動直後にネットワークを待たずに表示する、前回の結果のスナップショット
+    private final File mSnapshotFile;
+
+    //結果のリストをメモリの予算に合わせてディスクに書き出し、書き出したファイルを使い終わったら閉じる
+    private final DisplayLists mLists;
+
+    //取得した結果を、地点からの距離でローカルに絞り込む条件。絞り込まない場合は null
+    private LocationFilter mLocationFilter;
+
+    //直近に最後まで取得できた結果の入れ物。設定の変更で条件を狭めただけなら、ここから選び直して答える。
+    //選び直さない場合 (バックグラウンドの定期更新など) は null
+    private EarthquakeResultSet.Holder mResultSetHolder;
+
+    //イベントフィードから届いた追加・更新を、表示中のリストに反映する。フィードを使わない場合は null
+    private EarthquakeStreamMerger mStreamMerger;
+
+    //途中経過をUIスレッドで deliverResult するための Handler
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+
+    //ロードのたびに増やす。古いロードの途中経過が、新しいロードの後に届かないようにするため
+    private volatile int mLoadGeneration;
+
+    //直近のロードの最終結果と、それを得た時刻 (elapsedRealtime)。
+    //onStartLoading で、結果があればロードし直さずにそれを渡すため
+    private final DisplayLists.Slot mResult = new DisplayLists.Slot();
+    private volatile long mResultAt;
+    //最後に deliverResult したリスト。UIスレッドからだけ触る
+    private final DisplayLists.Slot mDelivered = new DisplayLists.Slot();
+    //ロード中かどうか。ロード中に onStartLoading が呼ばれても、同じロードを重ねないため
+    private volatile boolean mLoading;
+
+    //実行中のロードを止めるためのフラグ。ロードのたびに作り直す
+    private volatile CancellationToken mCancellation;
+
+    //直近のロードでネットワークから取得できなかったかどうか。
+    //失敗してもローカルの結果を返すことがあるので、戻り値とは別に持つ
+    private volatile boolean mLastLoadFailed;
+
     /**
      * @param context Activity のコンテキスト
-     * @param url データのロード元の URL を渡す
+     * @param url データのロード元の URL を渡す。limit は全体の取得件数の上限として扱い、
+     *            実際のリクエストは offset/limit でページごとに分割する
      */
     public EarthquakeLoader(Context context, String url){
         super(context);
         mUrl = url;
+        mCache = HttpDiskCache.getInstance(context);
+        mStore = EarthquakeStore.getInstance(context);
+        mSyncer = new EarthquakeSyncer(context, mStore);
+        File cacheDir = context.getApplicationContext().getCacheDir();
+        mSnapshotFile = new File(cacheDir, SNAPSHOT_FILE_NAME);
+        ActivityManager activityManager = (ActivityManager) context.getSystemService(Context.ACTIVITY_SERVICE);
+        mLists = new DisplayLists(cacheDir,
+                activityManager.getMemoryClass() * 1024L * 1024L / MEMORY_BUDGET_DIVISOR);
+        QueryUtils.addObserver(AGGREGATOR_OBSERVER);
+        QueryUtils.addObserver(SEARCH_INDEX_OBSERVER);
+    }
+
+    /**
+     * 複数のクエリを並行に実行し、結果をまとめて1つのリストにする
+     *
+     * @param urls 領域ごとのクエリの URL。orderby はすべて同じであること
+     */
+    public EarthquakeLoader(Context context, List<String> urls) {
+        this(context, urls.isEmpty() ? null : urls.get(0));
+        if (urls.size() > 1) {
+            mRegionUrls = new ArrayList<>(urls);
+        }
+    }
+
+    /**
+     * 結果を地点からの距離で絞り込む。ローカルストアとスナップショットには絞り込む前の結果を保存するので、
+     * 条件を変えてもサーバーに問い合わせ直す必要はない
+     */
+    public void setLocationFilter(LocationFilter locationFilter) {
+        mLocationFilter = locationFilter;
+    }
+
+    /**
+     * 条件を狭めただけのクエリに、メモリ上の前回の結果から答えるようにする。
+     * 設定の変更でローダーが作り直されても前回の結果を使えるよう、holder はローダーより長く持っておくこと
+     *
+     * @param holder null の場合は選び直さない
+     */
+    public void setResultSetHolder(EarthquakeResultSet.Holder holder) {
+        mResultSetHolder = holder;
+    }
+
+    /**
+     * ロードの後もイベントフィードに接続し続け、届いた地震を表示中のリストに反映する。
+     * 表示している間 (onStartLoading 〜 onStopLoading) だけ接続する
+     *
+     * @param streamUrl text/event-stream のフィードの URL。null か空の場合は使わない
+     */
+    public void setStreamUrl(String streamUrl) {
+        if (mStreamMerger != null) {
+            mStreamMerger.stop();
+            mStreamMerger.setBase(null);
+            mStreamMerger = null;
+        }
+        //クエリがなければ何も表示しないので、フィードにも接続しない
+        if (streamUrl == null || streamUrl.isEmpty() || mUrl == null) {
+            return;
+        }
+        Uri uri = Uri.parse(mUrl);
+        mStreamMerger = new EarthquakeStreamMerger(streamUrl, mStore, mLists,
+                parseDouble(uri.getQueryParameter("minmag")), uri.getQueryParameter("orderby"),
+                parseLimit(uri.getQueryParameter("limit")), new EarthquakeStreamMerger.Listener() {
+            @Override
+            public void onMerged(List<Earthquake> merged) {
+                onStreamMerged(merged);
+            }
+        });
     }
 
-    //loadInBackground() をトリガーするには forceLoad が必要なので、オーバーライド
+    /**
+     * 結果のリストをメモリに持つ上限を変える。次のロードから使われる
+     *
+     * @param budgetBytes ヒープ上の大きさの見積もりのバイト数
+     */
+    public void setMemoryBudget(long budgetBytes) {
+        mLists.setBudgetBytes(budgetBytes);
+    }
+
+    /**
+     * Activity の onTrimMemory から呼ぶ。メモリが足りなくなるほど、表示中のリストのメモリ上のページを減らす。
+     * 減らしたページはスクロールで表示するときにディスクから読み直す
+     */
+    public void onTrimMemory(int level) {
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW) {
+            //選び直し用の結果と、取得の重複を避けるための結果は、なくなっても取得し直せば済む
+            EarthquakeResultSet.Holder holder = mResultSetHolder;
+            if (holder != null) {
+                holder.clear();
+            }
+            FetchCoordinator.getInstance().invalidate();
+        }
+        mLists.trimMemory(mResult.get(), level);
+    }
+
+    //画面の回転や Activity への出入りのたびに取得し直さないよう、結果があればそれを渡し、
+    //結果がない・内容が変わった・古くなった場合だけ forceLoad で loadInBackground() をトリガーする
     @Override
     protected void onStartLoading() {
-        forceLoad();
+        List<Earthquake> result = mResult.get();
+        if (result != null) {
+            deliverResult(result);
+        }
+        boolean stale = SystemClock.elapsedRealtime() - mResultAt >= HttpDiskCache.DEFAULT_TTL_MILLIS;
+        if (takeContentChanged() || (!mLoading && (result == null || stale))) {
+            forceLoad();
+        }
+        if (mStreamMerger != null) {
+            mStreamMerger.start();
+        }
         Log.i(LOG_TAG,"onStartLoading");
     }
 
+    @Override
+    protected void onStopLoading() {
+        //表示していない間は接続しない。次の onStartLoading で、最後に受け取ったイベントの続きから受け取る
+        if (mStreamMerger != null) {
+            mStreamMerger.stop();
+        }
+        //画面を離れたら、実行中のロードはダウンロードとパースの途中でも止める。
+        //止めた場合は内容が変わったことにして、次の onStartLoading でロードし直す
+        if (cancelLoad()) {
+            onContentChanged();
+        }
+    }
+
+    /**
+     * 設定の変更 (restartLoader) や画面を離れたとき (onStopLoading) に、LoaderManager から
+     * 呼ばれる。通信中のソケットをその場で閉じ、パースも次の塊か次の feature で止まる
+     */
+    @Override
+    public void cancelLoadInBackground() {
+        CancellationToken cancellation = mCancellation;
+        if (cancellation != null) {
+            Log.i(LOG_TAG, "cancelLoadInBackground");
+            cancellation.cancel();
+        }
+    }
+
+    /**
+     * 表示するリストを差し替える。前のリストのページのファイルは、どこからも使われなくなった時点で閉じる
+     */
+    @Override
+    public void deliverResult(List<Earthquake> data) {
+        if (isReset()) {
+            DisplayLists.discard(data);
+            return;
+        }
+        //前のリストは、Adapter が新しいリストに切り替えるまで読まれる
+        List<Earthquake> previous = mDelivered.replace(data);
+        super.deliverResult(data);
+        DisplayLists.Slot.release(previous);
+    }
+
+    @Override
+    public void onCanceled(List<Earthquake> data) {
+        DisplayLists.discard(data);
+    }
+
+    @Override
+    protected void onReset() {
+        onStopLoading();
+        mResult.set(null);
+        mDelivered.set(null);
+        setStreamBase(null);
+    }
+
+    @Override
+    protected void onForceLoad() {
+        mLoadGeneration++;
+        super.onForceLoad();
+    }
+
     @Override
     public List<Earthquake> loadInBackground() {
+        long start = Metrics.startTimer();
+        mLoading = true;
+        CancellationToken cancellation = new CancellationToken();
+        mCancellation = cancellation;
+        //トークンを作る前に cancelLoadInBackground が呼ばれていた場合
+        if (isLoadInBackgroundCanceled()) {
+            cancellation.cancel();
+        }
+        try {
+            List<Earthquake> result = mLists.toDisplayList(load(cancellation));
+            if (cancellation.isCancelled()) {
+                //結果は捨てられる (onCanceled に渡される) ので、次の onStartLoading で使わない
+                Log.i(LOG_TAG, "loadInBackground: cancelled");
+                DisplayLists.discard(result);
+                return null;
+            }
+            if (result != null) {
+                mResult.set(result);
+                mResultAt = SystemClock.elapsedRealtime();
+            }
+            return result;
+        } finally {
+            mLoading = false;
+            Metrics.recordSince(Metrics.Metric.LOAD, start);
+        }
+    }
+
+    private List<Earthquake> load(CancellationToken cancellation) {
         if(mUrl == null){
             return null;
         }
+        int generation = mLoadGeneration;
+        mLastLoadFailed = false;
+
+        //設定画面で条件を狭めただけなら、メモリ上の前回の結果を並べ替え・絞り込みし直すだけで済む
+        List<Earthquake> selected = selectFromResultSet();
+        if (selected != null) {
+            writeSnapshot(selected);
+            setStreamBase(selected);
+            selected = applyLocationFilter(selected);
+            prepareForDisplay(selected);
+            return selected;
+        }
+
+        //コールドスタート: SQLite やネットワーク、JSON のパースより先に、前回表示したリストを出しておく
+        List<Earthquake> snapshot = readSnapshot();
+        if (snapshot != null) {
+            deliverPartialResult(generation, snapshot);
+        }
+        //オフラインでも前回までのイベントを検索できるよう、場所の検索インデックスをストアから作っておく
+        PlaceSearchIndex.getInstance().loadFrom(new PlaceSearchIndex.Source() {
+            @Override
+            public List<Earthquake> newest(int limit) {
+                return mStore.query(-Double.MAX_VALUE, "time", Long.MIN_VALUE, limit);
+            }
+        });
 
-        List<Earthquake> earthquakes = QueryUtils.fetchEarthquakeData(mUrl);
+        List<Earthquake> earthquakes = mRegionUrls != null ? loadRegions(cancellation)
+                : loadEarthquakes(generation, snapshot != null ? snapshot.size() : 0, cancellation);
+        //止められた場合は、途中までの結果をストアやスナップショットに残さない
+        if (cancellation.isCancelled()) {
+            return null;
+        }
+        if (earthquakes == null) {
+            //取得できなかった場合は、スナップショットを表示したままにする
+            mLastLoadFailed = true;
+            if (snapshot == null) {
+                return null;
+            }
+            setStreamBase(snapshot);
+            return applyLocationFilter(snapshot);
+        }
+        writeSnapshot(earthquakes);
+        rememberResultSet(earthquakes);
+        setStreamBase(earthquakes);
+        List<Earthquake> filtered = applyLocationFilter(earthquakes);
+        if (filtered != earthquakes) {
+            //絞り込む前のリストは、フィードの元として持っていなければもう使わない
+            DisplayLists.discard(earthquakes);
+            earthquakes = filtered;
+        }
+        //UIスレッドでは値をセットするだけで済むよう、表示用の文字列と色をここで作っておく
+        prepareForDisplay(earthquakes);
         Log.i(LOG_TAG,"loadInBackground");
         return earthquakes;
     }
+
+    /**
+     * @param snapshotCount 表示済みのスナップショットの件数。途中経過で表示が縮まないようにするため
+     */
+    private List<Earthquake> loadEarthquakes(final int generation, int snapshotCount,
+                                             final CancellationToken cancellation) {
+
+        Uri baseUri = Uri.parse(mUrl);
+        int maxEvents = parseLimit(baseUri.getQueryParameter("limit"));
+
+        double minMagnitude = parseDouble(baseUri.getQueryParameter("minmag"));
+        String orderBy = baseUri.getQueryParameter("orderby");
+        long now = System.currentTimeMillis();
+
+        //設定画面で minmag / orderby を変えただけなら、ローカルストアのインデックスで答えられる
+        List<Earthquake> shown = mStore.query(minMagnitude, orderBy, now - DEFAULT_WINDOW_MILLIS, maxEvents);
+        if (mStore.covers(minMagnitude, now)) {
+            Log.i(LOG_TAG, "loadInBackground: answered from local store");
+            //ネットワークを通らなかったイベントも、集計と検索インデックスに入れておく
+            QueryUtils.notifyObservers(shown);
+            return shown;
+        }
+
+        //差分同期は、ローカルストアに前回の結果が残っている場合のみできる
+        boolean storedLocally = !shown.isEmpty();
+
+        //ウォームスタート: ローカルストアになければ前回のキャッシュを、ネットワークを待たずにまず表示しておく
+        if (!storedLocally) {
+            shown = readCachedPages(baseUri, maxEvents, cancellation);
+        }
+        if (!shown.isEmpty()) {
+            deliverPartialResult(generation, shown);
+        }
+        final int shownCount = Math.max(shown.size(), snapshotCount);
+
+        if (cancellation.isCancelled()) {
+            return null;
+        }
+
+        //前回の全件取得以降に変わったイベントだけを取り込めば済む場合は、差分同期する
+        if (storedLocally && mSyncer.hasHighWaterMark(baseUri)) {
+            if (mSyncer.syncChanges(baseUri, cancellation) >= 0) {
+                long windowStart = now - DEFAULT_WINDOW_MILLIS;
+                mStore.deleteOlderThan(windowStart);
+                mStore.markCovered(minMagnitude, now);
+                Log.i(LOG_TAG, "loadInBackground: delta sync");
+                List<Earthquake> synced = mStore.query(minMagnitude, orderBy, windowStart, maxEvents);
+                QueryUtils.notifyObservers(synced);
+                return synced;
+            }
+            if (cancellation.isCancelled()) {
+                return null;
+            }
+        }
+
+        //キャッシュの再検証も含め、ページごとに取得し直す。
+        //件数が多くてもメモリの予算を超えた分はディスクに書き出しながら貯める
+        final TieredEarthquakeList.Builder earthquakes = mLists.newBuilder();
+        EarthquakePager.Result paged = new EarthquakePager(maxEvents).fetch(
+                networkPages(baseUri, mFetchChannel, cancellation), new EarthquakePager.Callback() {
+                    @Override
+                    public boolean onPage(List<Earthquake> events, boolean last) {
+                        if (cancellation.isCancelled()) {
+                            return false;
+                        }
+                        earthquakes.addAll(events);
+                        //最後のページの結果は onLoadFinished に任せる。
+                        //ローカルの結果で表示している件数より少ない間は、表示が縮まないように途中経過を渡さない
+                        if (!last && earthquakes.size() > shownCount) {
+                            deliverPartialResult(generation, earthquakes.view());
+                        }
+                        return true;
+                    }
+                });
+        if (cancellation.isCancelled()) {
+            earthquakes.discard();
+            return null;
+        }
+        if (paged == EarthquakePager.Result.FAILED) {
+            mLastLoadFailed = true;
+            //1ページ目から失敗した場合は、これまで通り null を返す
+            if (earthquakes.isEmpty()) {
+                earthquakes.discard();
+                //ローカルの結果を表示している場合は、それを最終結果にする
+                return shown.isEmpty() ? null : shown;
+            }
+        }
+
+        //次に minmag / orderby を変えたときにローカルで答えられるよう保存しておく
+        List<Earthquake> result = earthquakes.build();
+        mStore.upsert(result);
+        //limit で打ち切った場合は、最後のページまで取り切れていない
+        if (paged == EarthquakePager.Result.COMPLETE) {
+            mStore.markCovered(minMagnitude, now);
+            //次回からは updatedafter で差分だけを取得する
+            mSyncer.recordFullFetch(baseUri, result);
+        }
+
+        return result;
+    }
+
+    /**
+     * 直近の loadInBackground が、通信の失敗でローカルの結果や途中までの結果を返したかどうか
+     */
+    boolean isLastLoadFailed() {
+        return mLastLoadFailed;
+    }
+
+    private void setStreamBase(List<Earthquake> earthquakes) {
+        //複数の領域をまとめた結果には、フィードの変更を差し込まない (ローカルストアにだけ反映する)
+        EarthquakeStreamMerger merger = mStreamMerger;
+        if (merger != null && mRegionUrls == null) {
+            merger.setBase(earthquakes);
+        }
+    }
+
+    /**
+     * フィードの変更を反映したリストを、ストリームのスレッドで途中経過として届ける
+     */
+    private void onStreamMerged(List<Earthquake> merged) {
+        rememberResultSet(merged);
+        //次の onStartLoading でも、フィードの変更を反映したリストを渡す
+        List<Earthquake> shown = deliverPartialResult(mLoadGeneration, merged);
+        if (mResult.get() != null) {
+            mResult.set(shown);
+        }
+    }
+
+    /**
+     * メモリ上の前回の結果で、このローダーのクエリに答える。答えられない場合は null
+     */
+    private List<Earthquake> selectFromResultSet() {
+        EarthquakeResultSet.Holder holder = mResultSetHolder;
+        EarthquakeResultSet resultSet = holder != null ? holder.get() : null;
+        //領域ごとのクエリは minmag が領域ごとに違うので、ここでは扱わない
+        if (resultSet == null || mRegionUrls != null) {
+            return null;
+        }
+        Uri uri = Uri.parse(mUrl);
+        List<Earthquake> selected = resultSet.select(scopeOf(uri),
+                parseDouble(uri.getQueryParameter("minmag")), uri.getQueryParameter("orderby"),
+                System.currentTimeMillis());
+        if (selected != null) {
+            Log.i(LOG_TAG, "loadInBackground: selected " + selected.size() + "/" + resultSet.size()
+                    + " events in memory");
+        }
+        return selected;
+    }
+
+    /**
+     * 最後まで取得できた結果を、次に条件を狭めたときのために並べ替えて持っておく
+     */
+    private void rememberResultSet(List<Earthquake> earthquakes) {
+        EarthquakeResultSet.Holder holder = mResultSetHolder;
+        if (holder == null || mRegionUrls != null) {
+            return;
+        }
+        //失敗して途中までの結果やローカルの結果を返した場合は、前回の結果も今の条件とは合わない
+        if (mLastLoadFailed) {
+            holder.clear();
+            return;
+        }
+        Uri uri = Uri.parse(mUrl);
+        //limit で打ち切られている場合は、並び順を変えると入れ替わるイベントがあるので使えない
+        if (earthquakes.size() >= parseLimit(uri.getQueryParameter("limit"))) {
+            holder.clear();
+            return;
+        }
+        //選び直すには全件を並べ替えてメモリに持つ必要があるので、予算を超える結果は持たない
+        if (!mLists.fitsInBudget(earthquakes)) {
+            holder.clear();
+            return;
+        }
+        holder.set(new EarthquakeResultSet(scopeOf(uri), parseDouble(uri.getQueryParameter("minmag")),
+                earthquakes, System.currentTimeMillis(), HttpDiskCache.DEFAULT_TTL_MILLIS));
+    }
+
+    /**
+     * このローダーのクエリについて保存されたスナップショットを読む。ない場合や読めない場合は null
+     */
+    private List<Earthquake> readSnapshot() {
+        try {
+            EarthquakeSnapshot snapshot = EarthquakeSnapshot.read(mSnapshotFile);
+            if (snapshot == null || !snapshot.getQuery().equals(snapshotKey()) || snapshot.size() == 0) {
+                return null;
+            }
+            Log.i(LOG_TAG, "readSnapshot: " + snapshot.size() + " events");
+            return snapshot.toList();
+        } catch (IOException e) {
+            //古い形式や壊れたファイルは、次に書き出すまで使わない
+            Log.e(LOG_TAG, "Discarding unreadable snapshot", e);
+            mSnapshotFile.delete();
+            return null;
+        }
+    }
+
+    private void writeSnapshot(List<Earthquake> earthquakes) {
+        //次の起動ですべてメモリに読み込むので、予算を超えた結果はメモリにある上位の分だけにする
+        earthquakes = DisplayLists.residentPart(earthquakes);
+        try {
+            EarthquakeSnapshot.write(mSnapshotFile, snapshotKey(), earthquakes, System.currentTimeMillis());
+        } catch (IOException e) {
+            Log.e(LOG_TAG, "Problem writing the snapshot", e);
+        }
+    }
+
+    /**
+     * スナップショットがどのクエリの結果かを表す文字列。設定を変えた後に、前の条件の結果を出さないため
+     */
+    private String snapshotKey() {
+        if (mRegionUrls == null) {
+            return mUrl;
+        }
+        StringBuilder key = new StringBuilder();
+        for (String url : mRegionUrls) {
+            key.append(url).append('\n');
+        }
+        return key.toString();
+    }
+
+    /**
+     * 領域ごとのクエリを並行に取得し、イベントIDで重複を除いてまとめる。
+     * ※ローカルストアの covers() は minmag だけで範囲を判定するので、領域で絞った結果は保存しない。
+     * 各ページはディスクキャッシュを通すので、TTL 以内の再表示はネットワークに行かない
+     */
+    private List<Earthquake> loadRegions(final CancellationToken cancellation) {
+        String orderBy = Uri.parse(mRegionUrls.get(0)).getQueryParameter("orderby");
+        int maxEvents = 0;
+        for (String url : mRegionUrls) {
+            maxEvents = Math.max(maxEvents, parseLimit(Uri.parse(url).getQueryParameter("limit")));
+        }
+
+        long start = SystemClock.elapsedRealtime();
+        List<Earthquake> earthquakes = new FanOutFetcher().fetch(mRegionUrls, new FanOutFetcher.Query() {
+            @Override
+            public List<Earthquake> fetch(String url) {
+                Uri baseUri = Uri.parse(url);
+                return fetchAllPages(baseUri, parseLimit(baseUri.getQueryParameter("limit")), cancellation);
+            }
+        }, orderBy, maxEvents);
+        Log.i(LOG_TAG, "loadRegions: " + mRegionUrls.size() + " queries in "
+                + (SystemClock.elapsedRealtime() - start) + "ms");
+        return earthquakes;
+    }
+
+    /**
+     * 途中経過を渡さずに、ページごとに最後まで (または maxEvents 件まで) 取得する
+     *
+     * @return 1ページ目から失敗した場合は null
+     */
+    private List<Earthquake> fetchAllPages(Uri baseUri, int maxEvents, CancellationToken cancellation) {
+        List<Earthquake> earthquakes = new ArrayList<>();
+        EarthquakePager.Result paged = new EarthquakePager(maxEvents)
+                .fetch(networkPages(baseUri, null, cancellation), collectInto(earthquakes, cancellation));
+        if (cancellation.isCancelled()) {
+            return null;
+        }
+        if (paged == EarthquakePager.Result.FAILED && earthquakes.isEmpty()) {
+            return null;
+        }
+        return earthquakes;
+    }
+
+    /**
+     * キャッシュに残っているページを、ネットワークと同じページ割りで先頭から読めるだけ読む
+     */
+    private List<Earthquake> readCachedPages(final Uri baseUri, int maxEvents, CancellationToken cancellation) {
+        List<Earthquake> earthquakes = new ArrayList<>();
+        new EarthquakePager(maxEvents).fetch(new EarthquakePager.PageFetcher() {
+            @Override
+            public List<Earthquake> fetchPage(int offset, int limit) {
+                return QueryUtils.readCachedEarthquakeData(buildPageUrl(baseUri, offset, limit), mCache);
+            }
+        }, collectInto(earthquakes, cancellation));
+        return earthquakes;
+    }
+
+    /**
+     * ページごとに、ディスクキャッシュを通してネットワークから取得する
+     */
+    private EarthquakePager.PageFetcher networkPages(final Uri baseUri, final String channel,
+                                                    final CancellationToken cancellation) {
+        return new EarthquakePager.PageFetcher() {
+            @Override
+            public List<Earthquake> fetchPage(int offset, int limit) {
+                return QueryUtils.fetchEarthquakeData(
+                        buildPageUrl(baseUri, offset, limit), mCache, channel, cancellation);
+            }
+        };
+    }
+
+    /**
+     * ページをそのまま list に貯める。キャンセルされたら続きを取得しない
+     */
+    private static EarthquakePager.Callback collectInto(final List<Earthquake> list,
+                                                        final CancellationToken cancellation) {
+        return new EarthquakePager.Callback() {
+            @Override
+            public boolean onPage(List<Earthquake> events, boolean last) {
+                list.addAll(events);
+                return !cancellation.isCancelled();
+            }
+        };
+    }
+
+    /**
+     * ここまでに取得できた分を、UIスレッドで onLoadFinished に届ける。
+     * snapshot は呼び出し側で作ったコピーなので、以降バックグラウンドで追加しても影響しない
+     */
+    private List<Earthquake> deliverPartialResult(final int generation, List<Earthquake> partial) {
+        final List<Earthquake> snapshot = applyLocationFilter(partial);
+        prepareForDisplay(snapshot);
+        mMainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (generation == mLoadGeneration && isStarted() && !isAbandoned()) {
+                    deliverResult(snapshot);
+                } else {
+                    DisplayLists.discard(snapshot);
+                }
+            }
+        });
+        return snapshot;
+    }
+
+    /**
+     * 地点からの距離の条件がある場合は、それに合う地震だけを元の並び順のまま返す
+     */
+    private List<Earthquake> applyLocationFilter(List<Earthquake> earthquakes) {
+        LocationFilter locationFilter = mLocationFilter;
+        if (locationFilter == null) {
+            return earthquakes;
+        }
+        long start = SystemClock.elapsedRealtime();
+        List<Earthquake> filtered = mLists.toDisplayList(locationFilter.apply(earthquakes));
+        Log.i(LOG_TAG, "applyLocationFilter: " + filtered.size() + "/" + earthquakes.size()
+                + " events in " + (SystemClock.elapsedRealtime() - start) + "ms");
+        return filtered;
+    }
+
+    /**
+     * 現在のロケール・タイムゾーン用のフォーマッタで、表示用データを作っておく。
+     * 作成済みのものはそのまま使われるので、途中経過と最終結果で重複して作ることはない
+     */
+    private static void prepareForDisplay(List<Earthquake> earthquakes) {
+        EarthquakeFormatter formatter = EarthquakeFormatter.getCurrent();
+        if (formatter != null) {
+            //ディスクにあるページは読み込むたびに作り直されるので、作っておいても残らない
+            formatter.prepare(DisplayLists.residentPart(earthquakes));
+        }
+    }
+
+    /**
+     * ベースとなる URI の limit/offset を、ページ用の値に差し替えた URL を返す
+     */
+    private static String buildPageUrl(Uri baseUri, int offset, int limit) {
+        Uri.Builder builder = baseUri.buildUpon().clearQuery();
+        for (String name : baseUri.getQueryParameterNames()) {
+            if ("limit".equals(name) || "offset".equals(name)) {
+                continue;
+            }
+            for (String value : baseUri.getQueryParameters(name)) {
+                builder.appendQueryParameter(name, value);
+            }
+        }
+        builder.appendQueryParameter("offset", String.valueOf(offset));
+        builder.appendQueryParameter("limit", String.valueOf(limit));
+        return builder.toString();
+    }
+
+    /**
+     * minmag と orderby を除いたクエリ。これが同じなら、ローカルで選び直せる
+     */
+    private static String scopeOf(Uri uri) {
+        Uri.Builder builder = uri.buildUpon().clearQuery();
+        for (String name : uri.getQueryParameterNames()) {
+            if ("minmag".equals(name) || "orderby".equals(name)) {
+                continue;
+            }
+            for (String value : uri.getQueryParameters(name)) {
+                builder.appendQueryParameter(name, value);
+            }
+        }
+        return builder.toString();
+    }
+
+    private static double parseDouble(String value) {
+        if (value == null) {
+            return 0;
+        }
+        try {
+            return Double.parseDouble(value);
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    private static int parseLimit(String limit) {
+        if (limit == null) {
+            return DEFAULT_MAX_EVENTS;
+        }
+        try {
+            return Math.max(1, Integer.parseInt(limit));
+        } catch (NumberFormatException e) {
+            return DEFAULT_MAX_EVENTS;
+        }
+    }
 }
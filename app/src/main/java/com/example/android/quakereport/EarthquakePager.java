@@ -0,0 +1,121 @@
+package com.example.android.quakereport;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * FDSN のクエリを offset/limit のページに分けて、先頭から順に取得する。
+ * <p>
+ * 最初のページは小さくして、件数が多くても最初の1行目が出るまでの時間を一定に保つ。2ページ目以降は倍々に増やす。
+ * フィードはページの間にも更新されるので、offset だけで進めると境目のイベントが重複したり抜けたりする。
+ * 2ページ目以降は前のページの末尾と {@link #OVERLAP} 件重ねて取り、イベントIDで重複を除く。
+ * 重ねた件数までの削除であれば、ずれても抜けない。
+ */
+final class EarthquakePager {
+
+    //最初のページの件数
+    static final int FIRST_PAGE_SIZE = 20;
+    //2ページ目以降は倍々に増やし、この件数で頭打ちにする
+    static final int MAX_PAGE_SIZE = 1000;
+    //前のページの末尾と重ねて取る件数
+    static final int OVERLAP = 5;
+
+    /**
+     * 1つのページを取得する
+     */
+    interface PageFetcher {
+        /**
+         * @param offset 1 始まりの位置
+         * @return 失敗した場合は null
+         */
+        List<Earthquake> fetchPage(int offset, int limit);
+    }
+
+    /**
+     * ページを取得するたびに呼ばれる
+     */
+    interface Callback {
+        /**
+         * @param events 前のページまでに出てこなかったイベント
+         * @param last   これで最後のページか、件数の上限に達した
+         * @return 続きを取得しない場合は false
+         */
+        boolean onPage(List<Earthquake> events, boolean last);
+    }
+
+    /**
+     * {@link #fetch} の終わり方
+     */
+    enum Result {
+        //最後のページまで取得できた
+        COMPLETE,
+        //件数の上限で打ち切った
+        LIMIT_REACHED,
+        //途中のページで失敗した
+        FAILED,
+        //Callback が止めた
+        STOPPED
+    }
+
+    private final int mMaxEvents;
+    private final Set<String> mSeenIds = new HashSet<>();
+    private int mCount;
+
+    /**
+     * @param maxEvents 重複を除いた件数の上限
+     */
+    EarthquakePager(int maxEvents) {
+        mMaxEvents = maxEvents;
+    }
+
+    /**
+     * これまでに Callback に渡したイベントの数
+     */
+    int getCount() {
+        return mCount;
+    }
+
+    Result fetch(PageFetcher fetcher, Callback callback) {
+        int pageSize = FIRST_PAGE_SIZE;
+        //次に読む、まだ受け取っていない位置
+        int nextOffset = 1;
+
+        while (mCount < mMaxEvents) {
+            //上限の近くでも、先頭に入ったイベントの分だけずれて進まなくならないよう、重ねる件数以上は新しく読む
+            int want = Math.min(pageSize, Math.max(mMaxEvents - mCount, OVERLAP));
+            int offset = Math.max(1, nextOffset - OVERLAP);
+            int limit = want + nextOffset - offset;
+            List<Earthquake> page = fetcher.fetchPage(offset, limit);
+            if (page == null) {
+                return Result.FAILED;
+            }
+
+            List<Earthquake> fresh = new ArrayList<>(page.size());
+            for (Earthquake earthquake : page) {
+                if (mCount + fresh.size() >= mMaxEvents) {
+                    break;
+                }
+                String id = earthquake.getId();
+                if (id == null || mSeenIds.add(id)) {
+                    fresh.add(earthquake);
+                }
+            }
+            mCount += fresh.size();
+
+            //これ以上ページがない
+            boolean complete = page.size() < limit;
+            boolean last = complete || mCount >= mMaxEvents;
+            if (!callback.onPage(fresh, last)) {
+                return Result.STOPPED;
+            }
+            if (complete) {
+                return Result.COMPLETE;
+            }
+            nextOffset = offset + page.size();
+            pageSize = Math.min(pageSize * 2, MAX_PAGE_SIZE);
+        }
+        return Result.LIMIT_REACHED;
+    }
+}
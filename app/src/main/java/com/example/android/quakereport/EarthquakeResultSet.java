@@ -0,0 +1,167 @@
+package com.example.android.quakereport;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 直近に取得した地震のリストを、新しい順・マグニチュードの大きい順に並べたインデックスの配列と一緒に持つ。
+ * <p>
+ * 設定画面で最小マグニチュードを上げたり並び順を変えたりした場合は、この中から選び直すだけで
+ * 新しいクエリの結果になるので、ネットワークにも SQLite にも行かずに答えられる。
+ * 並べ替えは作成時に1回だけ行い、{@link #select(String, double, String, long)} は
+ * 配列を順になめて条件に合うものを拾うだけにする。作成後は変更しないので、複数のスレッドから読んでよい。
+ */
+final class EarthquakeResultSet {
+
+    static final String ORDER_BY_TIME = "time";
+    static final String ORDER_BY_MAGNITUDE = "magnitude";
+
+    //minmag と orderby を除いたクエリ。これが同じでなければ、別の条件の結果なので使えない
+    private final String mScope;
+    private final double mMinMagnitude;
+    private final long mLoadedAt;
+    private final long mFreshnessMillis;
+    private final List<Earthquake> mEarthquakes;
+    private final int[] mByTime;
+    private final int[] mByMagnitude;
+
+    /**
+     * @param scope        minmag と orderby を除いたクエリ
+     * @param minMagnitude このリストを取得したときの最小マグニチュード
+     * @param earthquakes  その条件に合う地震のすべて。limit で打ち切られたリストは渡さないこと
+     *                     (並び順を変えると、サーバーなら返すはずのイベントが抜ける)
+     * @param freshnessMillis 取得からこの時間を過ぎたら、サーバーに問い合わせ直す
+     */
+    EarthquakeResultSet(String scope, double minMagnitude, List<Earthquake> earthquakes,
+                        long loadedAt, long freshnessMillis) {
+        mScope = scope;
+        mMinMagnitude = minMagnitude;
+        mLoadedAt = loadedAt;
+        mFreshnessMillis = freshnessMillis;
+        mEarthquakes = new ArrayList<>(earthquakes);
+
+        int size = mEarthquakes.size();
+        long[] times = new long[size];
+        long[] magnitudes = new long[size];
+        for (int i = 0; i < size; i++) {
+            Earthquake earthquake = mEarthquakes.get(i);
+            times[i] = earthquake.getTimeInMilliseconds();
+            magnitudes[i] = sortableBits(earthquake.getMagnitude());
+        }
+        mByTime = sortDescending(times);
+        mByMagnitude = sortDescending(magnitudes);
+    }
+
+    int size() {
+        return mEarthquakes.size();
+    }
+
+    /**
+     * 手元のリストでクエリに答える。
+     *
+     * @return 答えられない場合は null。スコープが違う・最小マグニチュードを下げた (持っていないイベントが要る)・
+     * 並び順が分からない・古くなった、のいずれか
+     */
+    List<Earthquake> select(String scope, double minMagnitude, String orderBy, long now) {
+        if (!mScope.equals(scope) || minMagnitude < mMinMagnitude || now - mLoadedAt >= mFreshnessMillis) {
+            return null;
+        }
+        int[] order;
+        if (ORDER_BY_TIME.equals(orderBy)) {
+            order = mByTime;
+        } else if (ORDER_BY_MAGNITUDE.equals(orderBy)) {
+            order = mByMagnitude;
+        } else {
+            return null;
+        }
+
+        List<Earthquake> selected = new ArrayList<>();
+        for (int index : order) {
+            Earthquake earthquake = mEarthquakes.get(index);
+            if (earthquake.getMagnitude() >= minMagnitude) {
+                selected.add(earthquake);
+            }
+        }
+        return selected;
+    }
+
+    /**
+     * keys の大きい順に並べたインデックスの配列を返す。
+     * Integer や Comparator を介さずにプリミティブ配列のまま安定ソート (マージソート) する
+     */
+    static int[] sortDescending(long[] keys) {
+        int size = keys.length;
+        int[] order = new int[size];
+        for (int i = 0; i < size; i++) {
+            order[i] = i;
+        }
+        int[] buffer = new int[size];
+        for (int width = 1; width < size; width *= 2) {
+            for (int start = 0; start < size; start += 2 * width) {
+                int middle = Math.min(start + width, size);
+                int end = Math.min(start + 2 * width, size);
+                int left = start;
+                int right = middle;
+                int out = start;
+                while (left < middle && right < end) {
+                    //同じ値の場合は左側を先にして、安定にする
+                    if (keys[order[left]] >= keys[order[right]]) {
+                        buffer[out++] = order[left++];
+                    } else {
+                        buffer[out++] = order[right++];
+                    }
+                }
+                while (left < middle) {
+                    buffer[out++] = order[left++];
+                }
+                while (right < end) {
+                    buffer[out++] = order[right++];
+                }
+            }
+            int[] swap = order;
+            order = buffer;
+            buffer = swap;
+        }
+        return order;
+    }
+
+    /**
+     * double を、大小関係を保ったまま long として比べられるビット列に変換する
+     */
+    static long sortableBits(double value) {
+        long bits = Double.doubleToLongBits(value);
+        return bits >= 0 ? bits : bits ^ Long.MAX_VALUE;
+    }
+
+    /**
+     * 直近の結果を、ローダーが作り直されても使えるように持っておく入れ物。
+     * 設定の変更ではローダーだけが作り直されるので、EarthquakeActivity が1つ持ち、作るローダーに渡す。
+     * <p>
+     * 次の場合に差し替え、または捨てる。
+     * <ul>
+     * <li>ネットワーク・ローカルストア・差分同期のロードが終わったら、その結果に差し替える</li>
+     * <li>イベントフィードの変更を表示中のリストに反映したら、反映後のリストに差し替える</li>
+     * <li>ロードに失敗した・limit で打ち切られた・メモリの予算を超えた場合と、メモリが足りなくなった場合は捨てる</li>
+     * </ul>
+     * バックグラウンドの定期更新や一括インポートがローカルストアを更新しても差し替えないので、
+     * それらの変更は {@link #select(String, double, String, long)} の freshnessMillis が過ぎるまで反映されない
+     */
+    static final class Holder {
+        private volatile EarthquakeResultSet mResultSet;
+
+        /**
+         * @return 持っていない場合は null
+         */
+        EarthquakeResultSet get() {
+            return mResultSet;
+        }
+
+        void set(EarthquakeResultSet resultSet) {
+            mResultSet = resultSet;
+        }
+
+        void clear() {
+            mResultSet = null;
+        }
+    }
+}
@@ -0,0 +1,294 @@
+package com.example.android.quakereport;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 最後に表示した地震のリストを保存しておく、バイナリのスナップショット。
+ * <p>
+ * 起動直後はネットワークや JSON のパースを待たずに、これをメモリマップして読むだけでリストを表示できる。
+ * <pre>
+ * ヘッダ       magic(int) version(int) 件数(int) 文字列数(int) 保存時刻(long) クエリ(文字列)
+ * 文字列テーブル 長さ(int) + UTF-8 のバイト列 を文字列数だけ
+ * レコード     magnitude(double) time(long) updated(long) latitude(double) longitude(double) depth(double)
+ *             id(int) place(int) url(int) を件数だけ
+ * </pre>
+ * レコードは固定長なので、i 番目のイベントは先頭から順に読まなくても直接読める。
+ * id / place / url は文字列テーブルのインデックス。url は
+ * イベントIDで終わる場合はプレフィックスのインデックス (0以上)、そうでない場合は url 全体の ~index (負)。
+ */
+final class EarthquakeSnapshot {
+
+    //"QKSN"
+    private static final int MAGIC = 0x514B534E;
+    //レコードのレイアウトを変えたら上げる。違うバージョンのファイルは読まずに捨てる
+    static final int VERSION = 2;
+
+    private static final int HEADER_SIZE = 4 + 4 + 4 + 4 + 8;
+    private static final int RECORD_SIZE = 8 + 8 + 8 + 8 + 8 + 8 + 4 + 4 + 4;
+    private static final int OFFSET_TIME = 8;
+    private static final int OFFSET_UPDATED = 16;
+    private static final int OFFSET_LATITUDE = 24;
+    private static final int OFFSET_LONGITUDE = 32;
+    private static final int OFFSET_DEPTH = 40;
+    private static final int OFFSET_ID = 48;
+    private static final int OFFSET_PLACE = 52;
+    private static final int OFFSET_URL = 56;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final String mQuery;
+    private final long mSavedAt;
+    private final int mSize;
+    private final String[] mStrings;
+    //レコード部分だけを切り出したバッファ
+    private final ByteBuffer mRecords;
+
+    private EarthquakeSnapshot(String query, long savedAt, int size, String[] strings, ByteBuffer records) {
+        mQuery = query;
+        mSavedAt = savedAt;
+        mSize = size;
+        mStrings = strings;
+        mRecords = records;
+    }
+
+    /**
+     * スナップショットを読み込む。ファイルがない場合は null
+     *
+     * @throws IOException 壊れている、またはバージョンが違う場合
+     */
+    static EarthquakeSnapshot read(File file) throws IOException {
+        if (!file.exists()) {
+            return null;
+        }
+        RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+        MappedByteBuffer buffer;
+        try {
+            FileChannel channel = randomAccessFile.getChannel();
+            //マップしたバッファは、ファイルを閉じた後も有効
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        } finally {
+            randomAccessFile.close();
+        }
+
+        try {
+            if (buffer.remaining() < HEADER_SIZE || buffer.getInt() != MAGIC) {
+                throw new IOException("Not an earthquake snapshot: " + file);
+            }
+            int version = buffer.getInt();
+            if (version != VERSION) {
+                throw new IOException("Unsupported snapshot version " + version + ": " + file);
+            }
+            int size = buffer.getInt();
+            int stringCount = buffer.getInt();
+            long savedAt = buffer.getLong();
+            if (size < 0 || stringCount < 0) {
+                throw new IOException("Corrupt snapshot header: " + file);
+            }
+            String query = readString(buffer);
+
+            String[] strings = new String[stringCount];
+            for (int i = 0; i < stringCount; i++) {
+                strings[i] = readString(buffer);
+            }
+
+            if (buffer.remaining() != (long) size * RECORD_SIZE) {
+                throw new IOException("Truncated snapshot: " + file);
+            }
+            ByteBuffer records = buffer.slice();
+            return new EarthquakeSnapshot(query, savedAt, size, strings, records);
+        } catch (RuntimeException e) {
+            //長さが壊れていて、バッファの外を読もうとした場合など
+            throw new IOException("Corrupt snapshot: " + file, e);
+        }
+    }
+
+    /**
+     * earthquakes を、このクエリの結果としてスナップショットに書き出す。
+     * 一時ファイルに書いてから置き換えるので、途中で落ちても前のスナップショットは壊れない
+     */
+    static void write(File file, String query, List<Earthquake> earthquakes, long savedAt) throws IOException {
+        //文字列テーブルを作りながら、レコードのインデックスを決めておく
+        StringTable table = new StringTable();
+        int size = earthquakes.size();
+        int[] ids = new int[size];
+        int[] places = new int[size];
+        int[] urls = new int[size];
+        for (int i = 0; i < size; i++) {
+            Earthquake earthquake = earthquakes.get(i);
+            String id = earthquake.getId();
+            ids[i] = table.indexOf(id != null ? id : "");
+            places[i] = table.indexOf(earthquake.getPlace() != null ? earthquake.getPlace() : "");
+
+            String url = earthquake.getUrl() != null ? earthquake.getUrl() : "";
+            if (id != null && !id.isEmpty() && url.endsWith(id)) {
+                urls[i] = table.indexOf(url.substring(0, url.length() - id.length()));
+            } else {
+                urls[i] = ~table.indexOf(url);
+            }
+        }
+
+        File temp = new File(file.getPath() + ".tmp");
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp), 16 * 1024));
+        boolean success = false;
+        try {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(size);
+            out.writeInt(table.mValues.size());
+            out.writeLong(savedAt);
+            writeString(out, query);
+            for (String value : table.mValues) {
+                writeString(out, value);
+            }
+            for (int i = 0; i < size; i++) {
+                Earthquake earthquake = earthquakes.get(i);
+                out.writeDouble(earthquake.getMagnitude());
+                out.writeLong(earthquake.getTimeInMilliseconds());
+                out.writeLong(earthquake.getUpdated());
+                out.writeDouble(earthquake.getLatitude());
+                out.writeDouble(earthquake.getLongitude());
+                out.writeDouble(earthquake.getDepth());
+                out.writeInt(ids[i]);
+                out.writeInt(places[i]);
+                out.writeInt(urls[i]);
+            }
+            out.close();
+            success = temp.renameTo(file);
+            if (!success) {
+                throw new IOException("Could not replace snapshot: " + file);
+            }
+        } finally {
+            if (!success) {
+                //ベンチマークからも使えるよう、Android に依存するヘルパーは使わずに閉じる
+                try {
+                    out.close();
+                } catch (IOException ignored) {
+                    //書き込みに失敗した一時ファイルは消すだけ
+                }
+                temp.delete();
+            }
+        }
+    }
+
+    /**
+     * 保存したときのクエリ。違うクエリの結果を表示しないために使う
+     */
+    String getQuery() {
+        return mQuery;
+    }
+
+    long getSavedAt() {
+        return mSavedAt;
+    }
+
+    int size() {
+        return mSize;
+    }
+
+    double getMagnitude(int index) {
+        return mRecords.getDouble(index * RECORD_SIZE);
+    }
+
+    long getTimeInMilliseconds(int index) {
+        return mRecords.getLong(index * RECORD_SIZE + OFFSET_TIME);
+    }
+
+    long getUpdated(int index) {
+        return mRecords.getLong(index * RECORD_SIZE + OFFSET_UPDATED);
+    }
+
+    double getLatitude(int index) {
+        return mRecords.getDouble(index * RECORD_SIZE + OFFSET_LATITUDE);
+    }
+
+    double getLongitude(int index) {
+        return mRecords.getDouble(index * RECORD_SIZE + OFFSET_LONGITUDE);
+    }
+
+    double getDepth(int index) {
+        return mRecords.getDouble(index * RECORD_SIZE + OFFSET_DEPTH);
+    }
+
+    String getId(int index) {
+        return mStrings[mRecords.getInt(index * RECORD_SIZE + OFFSET_ID)];
+    }
+
+    String getPlace(int index) {
+        return mStrings[mRecords.getInt(index * RECORD_SIZE + OFFSET_PLACE)];
+    }
+
+    String getUrl(int index) {
+        int urlIndex = mRecords.getInt(index * RECORD_SIZE + OFFSET_URL);
+        if (urlIndex < 0) {
+            return mStrings[~urlIndex];
+        }
+        return mStrings[urlIndex] + getId(index);
+    }
+
+    /**
+     * index 番目のイベントを Earthquake OBJ として組み立てる
+     */
+    Earthquake get(int index) {
+        return new Earthquake(getId(index), getMagnitude(index), getPlace(index),
+                getTimeInMilliseconds(index), getUrl(index), getUpdated(index), null,
+                getLatitude(index), getLongitude(index), getDepth(index));
+    }
+
+    /**
+     * 保存した順番のまま、すべてのイベントを返す
+     */
+    List<Earthquake> toList() {
+        List<Earthquake> earthquakes = new ArrayList<>(mSize);
+        for (int i = 0; i < mSize; i++) {
+            earthquakes.add(get(i));
+        }
+        return earthquakes;
+    }
+
+    private static String readString(ByteBuffer buffer) {
+        int length = buffer.getInt();
+        if (length < 0 || length > buffer.remaining()) {
+            throw new IllegalStateException("Bad string length " + length);
+        }
+        byte[] bytes = new byte[length];
+        buffer.get(bytes);
+        return new String(bytes, UTF_8);
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        byte[] bytes = value.getBytes(UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    /**
+     * 同じ文字列は1つだけ保持する文字列テーブル
+     */
+    private static final class StringTable {
+        private final Map<String, Integer> mIndexes = new HashMap<>();
+        private final List<String> mValues = new ArrayList<>();
+
+        int indexOf(String value) {
+            Integer index = mIndexes.get(value);
+            if (index == null) {
+                index = mValues.size();
+                mIndexes.put(value, index);
+                mValues.add(value);
+            }
+            return index;
+        }
+    }
+}
@@ -0,0 +1,242 @@
+package com.example.android.quakereport;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+
+import com.example.android.quakereport.EarthquakeContract.EarthquakeEntry;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * パース済みの地震データをイベントIDをキーにローカルに保存し、
+ * 設定画面の minmag / orderby の変更にネットワークなしで答えられるようにする
+ */
+final class EarthquakeStore {
+
+    static final String PREFS_NAME = "earthquake_store";
+    //どこまでの最小マグニチュードの地震を、いつ取り込んだか
+    private static final String KEY_COVERED_MIN_MAGNITUDE = "covered_min_magnitude";
+    private static final String KEY_COVERED_AT = "covered_at";
+
+    //この時間内に取り込んだデータなら、ネットワークに問い合わせずにローカルだけで答える
+    private static final long COVERAGE_TTL_MILLIS = HttpDiskCache.DEFAULT_TTL_MILLIS;
+
+    //archived は、すでにインポート済みの行を通常の取得で上書きしても 0 に戻らないようにする
+    private static final String UPSERT_SQL = "INSERT OR REPLACE INTO " + EarthquakeEntry.TABLE_NAME
+            + " (" + EarthquakeEntry.COLUMN_EVENT_ID + ", "
+            + EarthquakeEntry.COLUMN_MAGNITUDE + ", "
+            + EarthquakeEntry.COLUMN_PLACE + ", "
+            + EarthquakeEntry.COLUMN_TIME + ", "
+            + EarthquakeEntry.COLUMN_URL + ", "
+            + EarthquakeEntry.COLUMN_UPDATED + ", "
+            + EarthquakeEntry.COLUMN_LATITUDE + ", "
+            + EarthquakeEntry.COLUMN_LONGITUDE + ", "
+            + EarthquakeEntry.COLUMN_DEPTH + ", "
+            + EarthquakeEntry.COLUMN_ARCHIVED + ") VALUES (?1, ?2, ?3, ?4, ?5, ?6, ?7, ?8, ?9, MAX(?10, COALESCE("
+            + "(SELECT " + EarthquakeEntry.COLUMN_ARCHIVED + " FROM " + EarthquakeEntry.TABLE_NAME
+            + " WHERE " + EarthquakeEntry.COLUMN_EVENT_ID + " = ?1), 0)))";
+
+    private static final String DELETE_SQL = "DELETE FROM " + EarthquakeEntry.TABLE_NAME
+            + " WHERE " + EarthquakeEntry.COLUMN_EVENT_ID + " = ?";
+
+    private static final String[] PROJECTION = {
+            EarthquakeEntry.COLUMN_EVENT_ID,
+            EarthquakeEntry.COLUMN_MAGNITUDE,
+            EarthquakeEntry.COLUMN_PLACE,
+            EarthquakeEntry.COLUMN_TIME,
+            EarthquakeEntry.COLUMN_URL,
+            EarthquakeEntry.COLUMN_UPDATED,
+            EarthquakeEntry.COLUMN_LATITUDE,
+            EarthquakeEntry.COLUMN_LONGITUDE,
+            EarthquakeEntry.COLUMN_DEPTH
+    };
+
+    private static EarthquakeStore sInstance;
+
+    private final EarthquakeDbHelper mDbHelper;
+    private final SharedPreferences mPrefs;
+
+    static synchronized EarthquakeStore getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new EarthquakeStore(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    //テストでは、アプリケーションごとに作り直せるよう getInstance() を通さずに作る
+    EarthquakeStore(Context context) {
+        mDbHelper = new EarthquakeDbHelper(context);
+        mPrefs = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+    }
+
+    /**
+     * イベントIDをキーに、まとめて1つのトランザクションで insert / update する。
+     * 削除済み (status が deleted) のイベントはローカルからも消す。イベントIDがないものは保存しない
+     */
+    void upsert(List<Earthquake> earthquakes) {
+        upsert(earthquakes, false);
+    }
+
+    /**
+     * @param archive true の場合は、表示期間から外れても {@link #deleteOlderThan(long)} で削除しない
+     */
+    void upsert(List<Earthquake> earthquakes, boolean archive) {
+        SQLiteDatabase db = mDbHelper.getWritableDatabase();
+        SQLiteStatement upsert = db.compileStatement(UPSERT_SQL);
+        SQLiteStatement delete = db.compileStatement(DELETE_SQL);
+        db.beginTransaction();
+        try {
+            for (Earthquake earthquake : earthquakes) {
+                String id = earthquake.getId();
+                if (id == null || id.isEmpty()) {
+                    continue;
+                }
+                if (earthquake.isDeleted()) {
+                    delete.bindString(1, id);
+                    delete.executeUpdateDelete();
+                    continue;
+                }
+                upsert.clearBindings();
+                upsert.bindString(1, id);
+                upsert.bindDouble(2, earthquake.getMagnitude());
+                bindNullableString(upsert, 3, earthquake.getPlace());
+                upsert.bindLong(4, earthquake.getTimeInMilliseconds());
+                bindNullableString(upsert, 5, earthquake.getUrl());
+                upsert.bindLong(6, earthquake.getUpdated());
+                bindNullableDouble(upsert, 7, earthquake.getLatitude());
+                bindNullableDouble(upsert, 8, earthquake.getLongitude());
+                bindNullableDouble(upsert, 9, earthquake.getDepth());
+                upsert.bindLong(10, archive ? 1 : 0);
+                upsert.executeInsert();
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+            upsert.close();
+            delete.close();
+        }
+    }
+
+    /**
+     * 表示期間から外れた古いイベントを削除する。一括インポートで取り込んだものは残す
+     */
+    void deleteOlderThan(long time) {
+        SQLiteDatabase db = mDbHelper.getWritableDatabase();
+        db.delete(EarthquakeEntry.TABLE_NAME, EarthquakeEntry.COLUMN_TIME + " < ? AND "
+                        + EarthquakeEntry.COLUMN_ARCHIVED + " = 0",
+                new String[]{String.valueOf(time)});
+    }
+
+    /**
+     * インデックスを使って、ローカルに保存済みの地震を絞り込み・並べ替えして返す
+     *
+     * @param minMagnitude この値以上のマグニチュードのみ
+     * @param orderBy      FDSN の orderby と同じ値 (time, time-asc, magnitude, magnitude-asc)
+     * @param startTime    この時刻 (エポックミリ秒) 以降に発生したもののみ
+     * @param limit        最大件数
+     */
+    List<Earthquake> query(double minMagnitude, String orderBy, long startTime, int limit) {
+        SQLiteDatabase db = mDbHelper.getReadableDatabase();
+        Cursor cursor = db.query(EarthquakeEntry.TABLE_NAME,
+                PROJECTION,
+                EarthquakeEntry.COLUMN_MAGNITUDE + " >= ? AND " + EarthquakeEntry.COLUMN_TIME + " >= ?",
+                new String[]{String.valueOf(minMagnitude), String.valueOf(startTime)},
+                null,
+                null,
+                orderByClause(orderBy),
+                String.valueOf(limit));
+
+        List<Earthquake> earthquakes = new ArrayList<>();
+        try {
+            while (cursor.moveToNext()) {
+                earthquakes.add(new Earthquake(
+                        cursor.getString(0),
+                        cursor.getDouble(1),
+                        cursor.getString(2),
+                        cursor.getLong(3),
+                        cursor.getString(4),
+                        cursor.getLong(5),
+                        null,
+                        getNullableDouble(cursor, 6),
+                        getNullableDouble(cursor, 7),
+                        getNullableDouble(cursor, 8)));
+            }
+        } finally {
+            cursor.close();
+        }
+        return earthquakes;
+    }
+
+    /**
+     * minMagnitude 以上の地震を全て取り込み済みで、まだ新しいかどうか
+     */
+    boolean covers(double minMagnitude, long now) {
+        if (!mPrefs.contains(KEY_COVERED_MIN_MAGNITUDE)) {
+            return false;
+        }
+        double coveredMinMagnitude = Double.longBitsToDouble(mPrefs.getLong(KEY_COVERED_MIN_MAGNITUDE, 0));
+        long coveredAt = mPrefs.getLong(KEY_COVERED_AT, 0);
+        return minMagnitude >= coveredMinMagnitude && now - coveredAt < COVERAGE_TTL_MILLIS;
+    }
+
+    /**
+     * minMagnitude 以上の地震を、取りこぼしなくサーバから取り込んだことを記録する
+     */
+    void markCovered(double minMagnitude, long now) {
+        mPrefs.edit()
+                .putLong(KEY_COVERED_MIN_MAGNITUDE, Double.doubleToLongBits(minMagnitude))
+                .putLong(KEY_COVERED_AT, now)
+                .apply();
+    }
+
+    /**
+     * 取り込み済みの記録を消す。次に covers() で答えられるのは、もう一度 markCovered() した後になる
+     */
+    void clearCoverage() {
+        mPrefs.edit().clear().apply();
+    }
+
+    /**
+     * 取り込み済みの記録を消す。テーブルを作り直したときに、空のストアで答えないようにする
+     */
+    static void clearCoverage(Context context) {
+        context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE).edit().clear().apply();
+    }
+
+    private static void bindNullableString(SQLiteStatement statement, int index, String value) {
+        if (value == null) {
+            statement.bindNull(index);
+        } else {
+            statement.bindString(index, value);
+        }
+    }
+
+    //位置が不明な場合 (NaN) は NULL として保存する
+    private static void bindNullableDouble(SQLiteStatement statement, int index, double value) {
+        if (Double.isNaN(value)) {
+            statement.bindNull(index);
+        } else {
+            statement.bindDouble(index, value);
+        }
+    }
+
+    private static double getNullableDouble(Cursor cursor, int index) {
+        return cursor.isNull(index) ? Double.NaN : cursor.getDouble(index);
+    }
+
+    private static String orderByClause(String orderBy) {
+        if ("magnitude".equals(orderBy)) {
+            return EarthquakeEntry.COLUMN_MAGNITUDE + " DESC";
+        } else if ("magnitude-asc".equals(orderBy)) {
+            return EarthquakeEntry.COLUMN_MAGNITUDE + " ASC";
+        } else if ("time-asc".equals(orderBy)) {
+            return EarthquakeEntry.COLUMN_TIME + " ASC";
+        }
+        //FDSN のデフォルトと同じく、新しい順
+        return EarthquakeEntry.COLUMN_TIME + " DESC";
+    }
+}
@@ -0,0 +1,312 @@
+package com.example.android.quakereport;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.StringReader;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * イベントフィード (Server-Sent Events) に接続し続け、届いた地震を {@link Listener} に渡す。
+ * <p>
+ * FDSN のクエリをポーリングする代わりに、サーバーが地震の追加・更新を送ってくるのを待つ。
+ * フィードは次の形式を想定する。
+ * <ul>
+ * <li>{@code event: earthquake} (または event なし): data は GeoJSON の Feature 1つ</li>
+ * <li>{@code event: earthquakes}: data は GeoJSON の FeatureCollection</li>
+ * <li>削除されたイベントは properties.status が "deleted" の Feature として届く</li>
+ * </ul>
+ * 接続が切れたら、最後に受け取ったイベントIDを Last-Event-ID で送って再接続し、続きから受け取る。
+ * 失敗が続く間は待ち時間を倍々に延ばし、イベントを受け取れたら初期値に戻す。
+ * 接続と読み込みは専用のスレッドで行い、Listener もそのスレッドから呼ばれる。
+ */
+final class EarthquakeStreamClient {
+
+    private static final String LOG_TAG = EarthquakeStreamClient.class.getSimpleName();
+
+    /**
+     * 地震の追加・更新・削除が届くたびに、ストリームのスレッドから呼ばれる
+     */
+    interface Listener {
+        void onEarthquakes(List<Earthquake> changes);
+    }
+
+    static final String EVENT_EARTHQUAKE = "earthquake";
+    static final String EVENT_EARTHQUAKES = "earthquakes";
+
+    private static final int CONNECT_TIMEOUT_MILLIS = 15000;
+    //サーバーはこれより短い間隔でハートビート (コメント行) を送ること。届かなければ切れたとみなす
+    private static final int READ_TIMEOUT_MILLIS = 90000;
+    //サーバーが retry を指定しない場合の、再接続までの待ち時間の初期値
+    static final long DEFAULT_RETRY_MILLIS = 3000;
+    static final long MAX_RETRY_MILLIS = 5 * 60 * 1000;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final String mUrl;
+    private final Listener mListener;
+    private final long mMaxRetryMillis;
+
+    //start() と stop() は UIスレッドから、それ以外はストリームのスレッドから触る
+    private volatile Thread mThread;
+    private volatile HttpURLConnection mConnection;
+    private volatile String mLastEventId;
+    private volatile long mRetryMillis;
+    private volatile int mConnectCount;
+
+    EarthquakeStreamClient(String url, Listener listener) {
+        this(url, listener, DEFAULT_RETRY_MILLIS, MAX_RETRY_MILLIS);
+    }
+
+    EarthquakeStreamClient(String url, Listener listener, long initialRetryMillis, long maxRetryMillis) {
+        mUrl = url;
+        mListener = listener;
+        mRetryMillis = initialRetryMillis;
+        mMaxRetryMillis = maxRetryMillis;
+    }
+
+    /**
+     * 接続を始める。すでに動いている場合は何もしない。
+     * stop() の後にもう一度呼ぶと、前回最後に受け取ったイベントの続きから受け取る
+     */
+    synchronized void start() {
+        if (mThread != null) {
+            return;
+        }
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                runLoop(Thread.currentThread());
+            }
+        }, LOG_TAG);
+        thread.setDaemon(true);
+        mThread = thread;
+        thread.start();
+    }
+
+    /**
+     * 接続を切り、再接続もやめる。受信中のイベントは捨てる
+     */
+    synchronized void stop() {
+        Thread thread = mThread;
+        mThread = null;
+        if (thread == null) {
+            return;
+        }
+        //読み込みで止まっているスレッドは、ソケットを閉じないと抜けない
+        HttpURLConnection connection = mConnection;
+        if (connection != null) {
+            connection.disconnect();
+        }
+        thread.interrupt();
+    }
+
+    boolean isRunning() {
+        return mThread != null;
+    }
+
+    String getLastEventId() {
+        return mLastEventId;
+    }
+
+    /**
+     * これまでに接続を試みた回数
+     */
+    int getConnectCount() {
+        return mConnectCount;
+    }
+
+    private boolean isCurrent(Thread thread) {
+        return mThread == thread;
+    }
+
+    private void runLoop(Thread self) {
+        long failureDelay = 0;
+        while (isCurrent(self)) {
+            boolean receivedEvents = false;
+            try {
+                receivedEvents = connectAndRead(self);
+            } catch (IOException e) {
+                if (isCurrent(self)) {
+                    Log.e(LOG_TAG, "Stream disconnected: " + e.getMessage());
+                }
+            } catch (StopException e) {
+                Log.i(LOG_TAG, "runLoop: server asked not to reconnect");
+                synchronized (this) {
+                    if (mThread == self) {
+                        mThread = null;
+                    }
+                }
+                return;
+            }
+            if (!isCurrent(self)) {
+                break;
+            }
+
+            //イベントを受け取れた接続の後はすぐ (retry の分だけ待って) つなぎ直し、
+            //受け取れないまま切れ続ける間は待ち時間を倍々にする
+            failureDelay = receivedEvents || failureDelay == 0
+                    ? mRetryMillis : Math.min(failureDelay * 2, mMaxRetryMillis);
+            try {
+                Thread.sleep(failureDelay);
+            } catch (InterruptedException e) {
+                break;
+            }
+        }
+        Log.i(LOG_TAG, "runLoop: stopped");
+    }
+
+    /**
+     * 1回接続し、切れるまでイベントを読む
+     *
+     * @return 1つ以上のイベントを受け取った場合は true
+     */
+    private boolean connectAndRead(final Thread self) throws IOException, StopException {
+        mConnectCount++;
+        HttpURLConnection connection = (HttpURLConnection) new URL(mUrl).openConnection();
+        mConnection = connection;
+        InputStream in = null;
+        try {
+            connection.setConnectTimeout(CONNECT_TIMEOUT_MILLIS);
+            connection.setReadTimeout(READ_TIMEOUT_MILLIS);
+            connection.setRequestProperty("Accept", "text/event-stream");
+            connection.setRequestProperty("Cache-Control", "no-cache");
+            String lastEventId = mLastEventId;
+            if (lastEventId != null && !lastEventId.isEmpty()) {
+                connection.setRequestProperty("Last-Event-ID", lastEventId);
+            }
+            //stop() が connect の前に呼ばれていたら、ここで抜ける
+            if (!isCurrent(self)) {
+                return false;
+            }
+
+            int code = connection.getResponseCode();
+            //204 はサーバーが「もう接続しないで」と言っている
+            if (code == HttpURLConnection.HTTP_NO_CONTENT) {
+                throw new StopException();
+            }
+            if (code != HttpURLConnection.HTTP_OK) {
+                throw new IOException("Unexpected response code " + code);
+            }
+            Log.i(LOG_TAG, "connectAndRead: connected, resuming after " + lastEventId);
+
+            in = connection.getInputStream();
+            final ServerSentEventReader reader = new ServerSentEventReader(
+                    new InputStreamReader(in, UTF_8), lastEventId);
+            final boolean[] received = new boolean[1];
+            try {
+                reader.read(new ServerSentEventReader.Callback() {
+                    @Override
+                    public void onEvent(String event, String data, String eventId) throws IOException {
+                        if (!isCurrent(self)) {
+                            throw new IOException("Stopped");
+                        }
+                        List<Earthquake> changes;
+                        try {
+                            changes = decode(event, data);
+                        } catch (IOException e) {
+                            //形式の誤ったイベントは、つなぎ直しても同じものが届くので読み飛ばす
+                            Log.e(LOG_TAG, "Skipping malformed event " + eventId, e);
+                            changes = new ArrayList<>();
+                        }
+                        if (!changes.isEmpty()) {
+                            mListener.onEarthquakes(changes);
+                        }
+                        //渡し終えてから進める。途中で切れたら、次の接続でもう一度受け取る
+                        mLastEventId = eventId;
+                        received[0] = true;
+                    }
+                });
+            } finally {
+                //retry は次の再接続までの待ち時間になる
+                if (reader.getRetryMillis() >= 0) {
+                    mRetryMillis = reader.getRetryMillis();
+                }
+            }
+            return received[0];
+        } finally {
+            mConnection = null;
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    //閉じるのに失敗しても、接続は切るので問題ない
+                }
+            }
+            //ストリームは最後まで読み切れないので、keep-alive のプールには戻さない
+            connection.disconnect();
+        }
+    }
+
+    /**
+     * イベントの data を地震のリストにする。知らない種類のイベントは空のリスト
+     */
+    static List<Earthquake> decode(String event, String data) throws IOException {
+        final List<Earthquake> earthquakes = new ArrayList<>();
+        GeoJsonStreamParser.Callback callback = new GeoJsonStreamParser.Callback() {
+            @Override
+            public void onEarthquake(Earthquake earthquake) {
+                earthquakes.add(earthquake);
+            }
+        };
+        GeoJsonStreamParser parser = new GeoJsonStreamParser(new StringReader(data));
+        if (EVENT_EARTHQUAKE.equals(event) || ServerSentEventReader.DEFAULT_EVENT.equals(event)) {
+            parser.parseFeature(callback);
+        } else if (EVENT_EARTHQUAKES.equals(event)) {
+            parser.parse(callback);
+        }
+        return earthquakes;
+    }
+
+    /**
+     * 届いた変更を表示中のリストに反映した、新しいリストを返す。current は変更しない。
+     * 更新は updated の新しい方を残し、削除されたものと minMagnitude 未満になったものは除き、
+     * orderBy の順に並べ直して maxEvents 件までにする
+     */
+    static List<Earthquake> applyChanges(List<Earthquake> current, List<Earthquake> changes,
+                                         double minMagnitude, String orderBy, int maxEvents) {
+        Set<String> removedIds = new HashSet<>();
+        List<Earthquake> added = new ArrayList<>(changes.size());
+        for (Earthquake change : changes) {
+            if (change.isDeleted() || change.getMagnitude() < minMagnitude) {
+                if (change.getId() != null) {
+                    removedIds.add(change.getId());
+                }
+            } else {
+                added.add(change);
+            }
+        }
+
+        List<Earthquake> kept = current;
+        if (!removedIds.isEmpty()) {
+            kept = new ArrayList<>(current.size());
+            for (Earthquake earthquake : current) {
+                if (earthquake.getId() == null || !removedIds.contains(earthquake.getId())) {
+                    kept.add(earthquake);
+                }
+            }
+        }
+        if (added.isEmpty()) {
+            return kept == current ? new ArrayList<>(current) : kept;
+        }
+        List<List<Earthquake>> results = new ArrayList<>(2);
+        results.add(kept);
+        results.add(added);
+        return FanOutFetcher.merge(results, orderBy, maxEvents);
+    }
+
+    /**
+     * サーバーが再接続を断った (204) ことを表す
+     */
+    private static final class StopException extends Exception {
+        private static final long serialVersionUID = 1L;
+    }
+}
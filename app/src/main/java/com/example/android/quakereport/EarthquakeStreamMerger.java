@@ -0,0 +1,101 @@
+package com.example.android.quakereport;
+
+import android.util.Log;
+
+import java.util.List;
+
+/**
+ * イベントフィードから届いた変更を、ローカルストアと表示中のリストに反映する。
+ * <p>
+ * 変更はまずローカルストアと {@link QueryUtils} の observer に渡す。
+ * {@link #setBase(List)} で元のリスト (最後にロードした絞り込む前の結果) があれば、変わったイベントだけを差し込んだ
+ * 新しいリストを作り、{@link Listener} に渡す。全件を取得し直す必要はない。
+ * 元のリストは {@link DisplayLists.Slot} に入れて持つので、差し替えたら前のリストは release される。
+ */
+final class EarthquakeStreamMerger {
+
+    private static final String LOG_TAG = EarthquakeStreamMerger.class.getSimpleName();
+
+    /**
+     * 変更を反映したリストができるたびに、ストリームのスレッドから呼ばれる
+     */
+    interface Listener {
+        void onMerged(List<Earthquake> merged);
+    }
+
+    private final EarthquakeStreamClient mClient;
+    private final EarthquakeStore mStore;
+    private final DisplayLists mLists;
+    private final Listener mListener;
+
+    //表示中のリストと同じ条件。変更を反映した後も、この条件に合うものだけを残す
+    private final double mMinMagnitude;
+    private final String mOrderBy;
+    private final int mMaxEvents;
+
+    //フィードから届いた変更を反映する元のリスト。ロードが終わるたびに差し替える
+    private final Object mLock = new Object();
+    private final DisplayLists.Slot mBase = new DisplayLists.Slot();
+
+    EarthquakeStreamMerger(String streamUrl, EarthquakeStore store, DisplayLists lists,
+                           double minMagnitude, String orderBy, int maxEvents, Listener listener) {
+        mStore = store;
+        mLists = lists;
+        mMinMagnitude = minMagnitude;
+        mOrderBy = orderBy;
+        mMaxEvents = maxEvents;
+        mListener = listener;
+        mClient = new EarthquakeStreamClient(streamUrl, new EarthquakeStreamClient.Listener() {
+            @Override
+            public void onEarthquakes(List<Earthquake> changes) {
+                onChanges(changes);
+            }
+        });
+    }
+
+    /**
+     * フィードへの接続を始める。stop() の後は、最後に受け取ったイベントの続きから受け取る
+     */
+    void start() {
+        mClient.start();
+    }
+
+    void stop() {
+        mClient.stop();
+    }
+
+    /**
+     * 届いた変更を反映する元のリストを差し替える
+     *
+     * @param earthquakes null の場合は、ローカルストアにだけ反映する
+     */
+    void setBase(List<Earthquake> earthquakes) {
+        synchronized (mLock) {
+            mBase.set(earthquakes);
+        }
+    }
+
+    /**
+     * ストリームのスレッドから呼ばれる
+     */
+    void onChanges(List<Earthquake> changes) {
+        //次に起動したときや、条件を変えたときのローカルの結果にも入れておく
+        mStore.upsert(changes);
+        //フィードで届いた変更も、ネットワークから取得したものと同じく集計に反映する
+        QueryUtils.notifyObservers(changes);
+
+        List<Earthquake> merged;
+        synchronized (mLock) {
+            //最初のロードが終わる前に届いた変更は、ロードの結果に含まれている
+            List<Earthquake> base = mBase.get();
+            if (base == null) {
+                return;
+            }
+            merged = EarthquakeStreamClient.applyChanges(base, changes, mMinMagnitude, mOrderBy, mMaxEvents);
+            merged = mLists.toDisplayList(merged);
+            mBase.set(merged);
+        }
+        Log.i(LOG_TAG, "onChanges: " + changes.size() + " changes, " + merged.size() + " events");
+        mListener.onMerged(merged);
+    }
+}
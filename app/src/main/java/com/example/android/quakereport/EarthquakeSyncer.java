@@ -0,0 +1,174 @@
+package com.example.android.quakereport;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.net.Uri;
+import android.util.Log;
+
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.TimeZone;
+import java.util.TreeSet;
+
+/**
+ * FDSN の updatedafter パラメータを使って、前回の取得以降に変更のあったイベントだけを取り込む差分同期。
+ * <p>
+ * 最後に取り込んだイベントの updated の最大値を「ハイウォーターマーク」として記録しておき、
+ * 次回は updatedafter=マーク で問い合わせる。返ってきた新規・更新・削除 (status=deleted) を
+ * {@link EarthquakeStore} にマージするので、定常状態では数件の feature しか転送されない。
+ */
+final class EarthquakeSyncer {
+
+    private static final String LOG_TAG = EarthquakeSyncer.class.getSimpleName();
+
+    static final String PREFS_NAME = "earthquake_sync";
+    private static final String KEY_MARK_PREFIX = "mark:";
+
+    //差分は通常数件だが、溜まっていた場合に備えてページに分けて取得する
+    private static final int PAGE_SIZE = 1000;
+
+    //取得する集合を変えないパラメータ。同期のキーからは外し、差分の URL では付け直す
+    private static final Set<String> NON_FILTER_PARAMETERS = new HashSet<>(Arrays.asList(
+            "format", "limit", "offset", "orderby", "updatedafter", "includedeleted"));
+
+    private final EarthquakeStore mStore;
+    private final SharedPreferences mPrefs;
+
+    EarthquakeSyncer(Context context, EarthquakeStore store) {
+        mStore = store;
+        mPrefs = context.getApplicationContext().getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+    }
+
+    /**
+     * このクエリについて、差分同期の基準となるマークが記録されているかどうか
+     */
+    boolean hasHighWaterMark(Uri baseUri) {
+        return mPrefs.contains(KEY_MARK_PREFIX + filterKey(baseUri));
+    }
+
+    /**
+     * 取りこぼしなく全件を取得できたときに呼ぶ。取得結果の updated の最大値をマークとして記録する
+     */
+    void recordFullFetch(Uri baseUri, List<Earthquake> earthquakes) {
+        String key = KEY_MARK_PREFIX + filterKey(baseUri);
+        long mark = Math.max(mPrefs.getLong(key, 0), maxUpdated(earthquakes));
+        mPrefs.edit().putLong(key, mark).apply();
+    }
+
+    /**
+     * マーク以降に更新されたイベントを取得し、ローカルストアにマージする。
+     * 差分は発生時刻の順に返ってくるので、途中で切れたページを受け入れてマークを進めると、
+     * 届かなかったイベントがマークより前に残って二度と取り込まれない。
+     * そのため、ページは途中までの結果を使わずに、すべてのページが最後まで届いた場合だけマージする
+     *
+     * @param cancellation null の場合はキャンセルしない
+     * @return マージした件数。通信に失敗した場合・止められた場合は -1 (マークは進めない)
+     */
+    int syncChanges(Uri baseUri, CancellationToken cancellation) {
+        String key = KEY_MARK_PREFIX + filterKey(baseUri);
+        long mark = mPrefs.getLong(key, 0);
+
+        List<Earthquake> changes = new ArrayList<>();
+        //FDSN の offset は 1 始まり
+        int offset = 1;
+        while (true) {
+            List<Earthquake> page = QueryUtils.fetchWhole(buildDeltaUrl(baseUri, mark, offset), cancellation);
+            if (cancellation != null && cancellation.isCancelled()) {
+                Log.i(LOG_TAG, "Delta sync cancelled, keeping high-water mark " + mark);
+                return -1;
+            }
+            if (page == null) {
+                Log.e(LOG_TAG, "Delta sync failed, keeping high-water mark " + mark);
+                return -1;
+            }
+            changes.addAll(page);
+            if (page.size() < PAGE_SIZE) {
+                break;
+            }
+            offset += page.size();
+        }
+
+        mStore.upsert(changes);
+        mPrefs.edit().putLong(key, Math.max(mark, maxUpdated(changes))).apply();
+        Log.i(LOG_TAG, "syncChanges: merged " + changes.size() + " changed events");
+        return changes.size();
+    }
+
+    /**
+     * ベースとなるクエリに updatedafter と includedeleted を付けた、差分取得用の URL を返す。
+     * 削除されたイベントも status=deleted として返してもらう
+     */
+    private static String buildDeltaUrl(Uri baseUri, long mark, int offset) {
+        Uri.Builder builder = baseUri.buildUpon().clearQuery();
+        for (String name : baseUri.getQueryParameterNames()) {
+            if (NON_FILTER_PARAMETERS.contains(name)) {
+                continue;
+            }
+            for (String value : baseUri.getQueryParameters(name)) {
+                builder.appendQueryParameter(name, value);
+            }
+        }
+        //format はキーから外してあるが、差分も同じ形式で受け取る (includedeleted は csv / geojson でしか使えない)
+        builder.appendQueryParameter("format", QueryUtils.RESPONSE_FORMAT);
+        builder.appendQueryParameter("updatedafter", formatIsoTime(mark));
+        builder.appendQueryParameter("includedeleted", "true");
+        builder.appendQueryParameter("orderby", "time");
+        builder.appendQueryParameter("offset", String.valueOf(offset));
+        builder.appendQueryParameter("limit", String.valueOf(PAGE_SIZE));
+        return builder.toString();
+    }
+
+    /**
+     * ページングや並び順を除いた、取得するイベントの集合を決めるパラメータだけでキーを作る。
+     * パラメータの順番が違っても同じキーになるよう、名前順に並べる
+     */
+    static String filterKey(Uri baseUri) {
+        StringBuilder builder = new StringBuilder();
+        builder.append(baseUri.getScheme()).append("://")
+                .append(baseUri.getAuthority())
+                .append(baseUri.getPath());
+        Set<String> names = new TreeSet<>(baseUri.getQueryParameterNames());
+        char separator = '?';
+        for (String name : names) {
+            if (NON_FILTER_PARAMETERS.contains(name)) {
+                continue;
+            }
+            for (String value : baseUri.getQueryParameters(name)) {
+                builder.append(separator).append(name).append('=').append(value);
+                separator = '&';
+            }
+        }
+        return builder.toString();
+    }
+
+    /**
+     * 記録したマークをすべて消す。ローカルストアのテーブルを作り直したときに、
+     * 消えたイベントを差分だけで取り戻そうとしないようにする
+     */
+    static void clearMarks(Context context) {
+        context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE).edit().clear().apply();
+    }
+
+    private static long maxUpdated(List<Earthquake> earthquakes) {
+        long max = 0;
+        for (Earthquake earthquake : earthquakes) {
+            max = Math.max(max, earthquake.getUpdated());
+        }
+        return max;
+    }
+
+    /**
+     * FDSN の starttime / endtime / updatedafter に渡す、UTC の ISO 8601 の文字列
+     */
+    static String formatIsoTime(long timeInMilliseconds) {
+        SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS", Locale.US);
+        format.setTimeZone(TimeZone.getTimeZone("UTC"));
+        return format.format(new Date(timeInMilliseconds));
+    }
+}
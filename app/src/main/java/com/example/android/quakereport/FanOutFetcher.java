@@ -0,0 +1,202 @@
+package com.example.android.quakereport;
+
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 複数の FDSN クエリ (領域ごとの監視条件) を同時に投げ、結果を1つのリストにまとめる。
+ * <p>
+ * クエリは上限付きのスレッドプールで並行に実行するので、全体の待ち時間は一番遅いクエリの分だけで済む。
+ * 時間内に終わらなかったクエリや失敗したクエリは捨て、残りの結果だけで返す。
+ * 同じイベントが複数の領域に入っている場合は、イベントIDで1件にまとめる。
+ */
+final class FanOutFetcher {
+
+    private static final String LOG_TAG = FanOutFetcher.class.getSimpleName();
+
+    //同時に投げるクエリの数。USGS に負荷をかけすぎないよう小さくしておく
+    private static final int MAX_PARALLEL_QUERIES = 4;
+    //1つのクエリ (全ページ) に待つ時間
+    static final long DEFAULT_TIMEOUT_MILLIS = 20000;
+
+    private static final ExecutorService SHARED_EXECUTOR = createExecutor();
+
+    /**
+     * 1つの URL の地震データを取得する。失敗した場合は null を返す
+     */
+    interface Query {
+        List<Earthquake> fetch(String url);
+    }
+
+    private final ExecutorService mExecutor;
+    private final long mTimeoutMillis;
+
+    FanOutFetcher() {
+        this(SHARED_EXECUTOR, DEFAULT_TIMEOUT_MILLIS);
+    }
+
+    FanOutFetcher(ExecutorService executor, long timeoutMillis) {
+        mExecutor = executor;
+        mTimeoutMillis = timeoutMillis;
+    }
+
+    /**
+     * urls のクエリを並行に実行し、重複を除いて orderBy の順に並べた結果を返す
+     *
+     * @param maxEvents まとめた結果の件数の上限
+     * @return すべてのクエリが失敗した場合は null
+     */
+    List<Earthquake> fetch(List<String> urls, final Query query, String orderBy, int maxEvents) {
+        List<Future<List<Earthquake>>> futures = new ArrayList<>(urls.size());
+        for (final String url : urls) {
+            futures.add(mExecutor.submit(new Callable<List<Earthquake>>() {
+                @Override
+                public List<Earthquake> call() {
+                    return query.fetch(url);
+                }
+            }));
+        }
+
+        //すべてのクエリは同時に始まっているので、締め切りは共通にする
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(mTimeoutMillis);
+        List<List<Earthquake>> results = new ArrayList<>(futures.size());
+        for (int i = 0; i < futures.size(); i++) {
+            Future<List<Earthquake>> future = futures.get(i);
+            try {
+                List<Earthquake> result = future.get(
+                        Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+                if (result != null) {
+                    results.add(result);
+                } else {
+                    Log.e(LOG_TAG, "Query failed: " + urls.get(i));
+                }
+            } catch (TimeoutException e) {
+                future.cancel(true);
+                Log.e(LOG_TAG, "Query timed out after " + mTimeoutMillis + "ms: " + urls.get(i));
+            } catch (ExecutionException e) {
+                Log.e(LOG_TAG, "Query failed: " + urls.get(i), e.getCause());
+            } catch (InterruptedException e) {
+                //ロードが中止された。残りのクエリも止める
+                for (Future<List<Earthquake>> remaining : futures) {
+                    remaining.cancel(true);
+                }
+                Thread.currentThread().interrupt();
+                return null;
+            }
+        }
+
+        if (results.isEmpty()) {
+            return null;
+        }
+        return merge(results, orderBy, maxEvents);
+    }
+
+    /**
+     * イベントIDで重複を除き、orderBy の順に並べて maxEvents 件までにする。
+     * 同じイベントが複数ある場合は、updated の新しい方を残す
+     */
+    static List<Earthquake> merge(List<List<Earthquake>> results, String orderBy, int maxEvents) {
+        int total = 0;
+        for (List<Earthquake> result : results) {
+            total += result.size();
+        }
+        List<Earthquake> merged = new ArrayList<>(total);
+        Map<String, Integer> positions = new HashMap<>(total * 2);
+        for (List<Earthquake> result : results) {
+            for (Earthquake earthquake : result) {
+                String id = earthquake.getId();
+                if (id == null || id.isEmpty()) {
+                    //イベントIDがない場合は突き合わせられないので、そのまま入れる
+                    merged.add(earthquake);
+                    continue;
+                }
+                Integer position = positions.get(id);
+                if (position == null) {
+                    positions.put(id, merged.size());
+                    merged.add(earthquake);
+                } else if (earthquake.getUpdated() > merged.get(position).getUpdated()) {
+                    merged.set(position, earthquake);
+                }
+            }
+        }
+
+        Collections.sort(merged, comparatorFor(orderBy));
+        if (merged.size() > maxEvents) {
+            return new ArrayList<>(merged.subList(0, maxEvents));
+        }
+        return merged;
+    }
+
+    /**
+     * FDSN の orderby と同じ並び順の Comparator を返す。既定は新しい順
+     */
+    private static Comparator<Earthquake> comparatorFor(String orderBy) {
+        if ("magnitude".equals(orderBy)) {
+            return new Comparator<Earthquake>() {
+                @Override
+                public int compare(Earthquake a, Earthquake b) {
+                    return Double.compare(b.getMagnitude(), a.getMagnitude());
+                }
+            };
+        } else if ("magnitude-asc".equals(orderBy)) {
+            return new Comparator<Earthquake>() {
+                @Override
+                public int compare(Earthquake a, Earthquake b) {
+                    return Double.compare(a.getMagnitude(), b.getMagnitude());
+                }
+            };
+        } else if ("time-asc".equals(orderBy)) {
+            return new Comparator<Earthquake>() {
+                @Override
+                public int compare(Earthquake a, Earthquake b) {
+                    return compareLong(a.getTimeInMilliseconds(), b.getTimeInMilliseconds());
+                }
+            };
+        }
+        return new Comparator<Earthquake>() {
+            @Override
+            public int compare(Earthquake a, Earthquake b) {
+                return compareLong(b.getTimeInMilliseconds(), a.getTimeInMilliseconds());
+            }
+        };
+    }
+
+    //Long.compare は API 19 から
+    private static int compareLong(long a, long b) {
+        return a < b ? -1 : (a == b ? 0 : 1);
+    }
+
+    private static ExecutorService createExecutor() {
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(
+                MAX_PARALLEL_QUERIES, MAX_PARALLEL_QUERIES, 30, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                    private final AtomicInteger mCount = new AtomicInteger();
+
+                    @Override
+                    public Thread newThread(Runnable runnable) {
+                        Thread thread = new Thread(runnable, "FanOutFetcher #" + mCount.incrementAndGet());
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+        //使っていない間はスレッドを残さない
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+}
@@ -0,0 +1,333 @@
+package com.example.android.quakereport;
+
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 同じクエリの取得を、プロセス全体で1回にまとめる。
+ * <p>
+ * クエリは正規化した URL (パラメータの順番や大文字小文字の違いを除いたもの) で区別する。
+ * <ul>
+ * <li>同じクエリを取得中なら、新たにリクエストせずにその結果を待つ</li>
+ * <li>取得から freshness 以内なら、メモリ上の結果をそのまま返す</li>
+ * <li>同じチャンネル (1つの画面のリストなど) で別のクエリが始まったら、前のクエリは不要なので、
+ *     他に待っている呼び出し元がいなければ途中で止める</li>
+ * </ul>
+ * 画面の回転や設定の切り替え、Activity への出入りで同じロードが重なっても、USGS へのリクエストは1回になる。
+ * <p>
+ * 呼び出し元は自分の {@link CancellationToken} で待つのをやめられる。待っている呼び出し元が
+ * 1人もいなくなったクエリは、通信とパースも途中で止める。
+ */
+final class FetchCoordinator {
+
+    private static final String LOG_TAG = FetchCoordinator.class.getSimpleName();
+
+    /**
+     * 実際に取得する処理。token がキャンセルされたら、途中でも null を返してよい
+     */
+    interface Fetcher {
+        List<Earthquake> fetch(String url, CancellationToken token);
+    }
+
+    //Activity に入り直したり、設定を行き来したりする程度の間だけ持てばよい
+    static final long DEFAULT_FRESHNESS_MILLIS = 60 * 1000;
+    //1ページ分ずつ持つので、1回のロードのページ数より多めにしておく
+    private static final int MAX_COMPLETED_ENTRIES = 32;
+
+    private static final FetchCoordinator sInstance =
+            new FetchCoordinator(DEFAULT_FRESHNESS_MILLIS, RefreshPolicy.SYSTEM_CLOCK);
+
+    private final long mFreshnessMillis;
+    private final RefreshPolicy.Clock mClock;
+
+    private final Object mLock = new Object();
+    private final Map<String, InFlight> mInFlight = new HashMap<>();
+    //チャンネルごとの、最後に始まったクエリ
+    private final Map<String, InFlight> mChannels = new HashMap<>();
+    //アクセス順の LinkedHashMap で、古いものから捨てる
+    private final LinkedHashMap<String, Completed> mCompleted = new LinkedHashMap<>(16, 0.75f, true);
+
+    //統計。テストやログで、まとめられた回数を確かめるため
+    private final AtomicInteger mStarted = new AtomicInteger();
+    private final AtomicInteger mJoined = new AtomicInteger();
+    private final AtomicInteger mMemoryHits = new AtomicInteger();
+    private final AtomicInteger mCancelled = new AtomicInteger();
+
+    FetchCoordinator(long freshnessMillis, RefreshPolicy.Clock clock) {
+        mFreshnessMillis = freshnessMillis;
+        mClock = clock;
+    }
+
+    static FetchCoordinator getInstance() {
+        return sInstance;
+    }
+
+    /**
+     * url の結果を返す。同じクエリを取得中ならその結果を待ち、新しい結果があればそれを返す
+     *
+     * @param channel このクエリで前のクエリを置き換えるチャンネル。置き換えない場合は null
+     * @return 取得に失敗した場合や、置き換えられて途中で止めた場合は null
+     */
+    List<Earthquake> fetch(String url, String channel, Fetcher fetcher) {
+        return fetch(url, channel, fetcher, null);
+    }
+
+    /**
+     * @param cancellation 呼び出し元のキャンセル。キャンセルされたら null を返す。
+     *                     ただし自分が取得を実行していて、他にも待っている呼び出し元がいる場合は、
+     *                     その呼び出し元のために最後まで取得してから返る
+     */
+    List<Earthquake> fetch(String url, String channel, Fetcher fetcher, CancellationToken cancellation) {
+        if (cancellation != null && cancellation.isCancelled()) {
+            return null;
+        }
+        String key = normalize(url);
+        InFlight flight;
+        boolean leader = false;
+        synchronized (mLock) {
+            Completed completed = mCompleted.get(key);
+            if (completed != null && mClock.now() - completed.completedAt < mFreshnessMillis) {
+                mMemoryHits.incrementAndGet();
+                return new ArrayList<>(completed.result);
+            }
+            flight = mInFlight.get(key);
+            if (flight == null || flight.token.isCancelled()) {
+                flight = new InFlight(key);
+                mInFlight.put(key, flight);
+                leader = true;
+                mStarted.incrementAndGet();
+            } else {
+                mJoined.incrementAndGet();
+            }
+            flight.waiters++;
+            if (channel != null) {
+                supersede(channel, flight);
+            }
+        }
+
+        final InFlight joined = flight;
+        final String joinedChannel = channel;
+        Runnable withdraw = null;
+        if (cancellation != null) {
+            withdraw = new Runnable() {
+                //cancel() とこのメソッドの終わりが重なっても、1回だけ抜ける
+                private boolean mWithdrawn;
+
+                @Override
+                public void run() {
+                    synchronized (mLock) {
+                        if (mWithdrawn || joined.done) {
+                            return;
+                        }
+                        mWithdrawn = true;
+                        withdraw(joined, joinedChannel);
+                    }
+                }
+            };
+            cancellation.addOnCancelListener(withdraw);
+        }
+        try {
+            if (leader) {
+                return lead(url, flight, fetcher);
+            }
+            return await(flight, cancellation);
+        } finally {
+            if (withdraw != null) {
+                cancellation.removeOnCancelListener(withdraw);
+            }
+        }
+    }
+
+    /**
+     * 呼び出し元が待つのをやめる。誰も待たなくなったら、取得自体を止める。mLock の中で呼ぶこと
+     */
+    private void withdraw(InFlight flight, String channel) {
+        flight.waiters--;
+        //チャンネルの呼び出し元はもう待っていないので、チャンネルの次のクエリで、残りの呼び出し元が待っている取得を止めない
+        if (channel != null && mChannels.get(channel) == flight) {
+            mChannels.remove(channel);
+        }
+        if (flight.waiters <= 0 && !flight.token.isCancelled()) {
+            mCancelled.incrementAndGet();
+            Log.i(LOG_TAG, "withdraw: cancelled " + flight.key);
+            //ソケットを閉じるリスナーが呼ばれるので、ロックを持ったままでも待たされない
+            flight.token.cancel();
+        }
+        mLock.notifyAll();
+    }
+
+    /**
+     * チャンネルの前のクエリを、他に待っている呼び出し元がいなければ止める。mLock の中で呼ぶこと
+     */
+    private void supersede(String channel, InFlight flight) {
+        InFlight previous = mChannels.put(channel, flight);
+        if (previous == null || previous == flight || previous.done) {
+            return;
+        }
+        if (previous.waiters <= 1) {
+            previous.token.cancel();
+            mCancelled.incrementAndGet();
+            Log.i(LOG_TAG, "supersede: cancelled " + previous.key);
+        }
+    }
+
+    private List<Earthquake> lead(String url, InFlight flight, Fetcher fetcher) {
+        List<Earthquake> result = null;
+        try {
+            if (!flight.token.isCancelled()) {
+                result = fetcher.fetch(url, flight.token);
+            }
+        } finally {
+            synchronized (mLock) {
+                if (flight.token.isCancelled()) {
+                    //途中で止めた結果は、他のクエリの結果として使えない
+                    result = null;
+                }
+                if (mInFlight.get(flight.key) == flight) {
+                    mInFlight.remove(flight.key);
+                }
+                Iterator<InFlight> channels = mChannels.values().iterator();
+                while (channels.hasNext()) {
+                    if (channels.next() == flight) {
+                        channels.remove();
+                    }
+                }
+                if (result != null) {
+                    mCompleted.put(flight.key, new Completed(result, mClock.now()));
+                    trimCompleted();
+                }
+                flight.result = result;
+                flight.done = true;
+                mLock.notifyAll();
+            }
+        }
+        return result != null ? new ArrayList<>(result) : null;
+    }
+
+    private List<Earthquake> await(InFlight flight, CancellationToken cancellation) {
+        synchronized (mLock) {
+            while (!flight.done) {
+                if (cancellation != null && cancellation.isCancelled()) {
+                    return null;
+                }
+                try {
+                    mLock.wait();
+                } catch (InterruptedException e) {
+                    //待つのはやめるが、取得を止めるかどうかは cancellation の側で決める
+                    Thread.currentThread().interrupt();
+                    return null;
+                }
+            }
+            return flight.result != null ? new ArrayList<>(flight.result) : null;
+        }
+    }
+
+    private void trimCompleted() {
+        long now = mClock.now();
+        Iterator<Completed> iterator = mCompleted.values().iterator();
+        while (iterator.hasNext()) {
+            Completed completed = iterator.next();
+            if (mCompleted.size() > MAX_COMPLETED_ENTRIES || now - completed.completedAt >= mFreshnessMillis) {
+                iterator.remove();
+            }
+        }
+    }
+
+    /**
+     * メモリ上の結果を捨てる。ローカルのデータが変わったことが分かっている場合に使う
+     */
+    void invalidate() {
+        synchronized (mLock) {
+            mCompleted.clear();
+        }
+    }
+
+    int getStartedCount() {
+        return mStarted.get();
+    }
+
+    int getJoinedCount() {
+        return mJoined.get();
+    }
+
+    int getMemoryHitCount() {
+        return mMemoryHits.get();
+    }
+
+    int getCancelledCount() {
+        return mCancelled.get();
+    }
+
+    /**
+     * URL を正規化する。スキームとホストは小文字にし、クエリのパラメータは名前・値の順に並べ替え、
+     * フラグメントは除く。同じクエリなら、組み立て方が違っても同じ文字列になる
+     */
+    static String normalize(String url) {
+        int fragment = url.indexOf('#');
+        if (fragment >= 0) {
+            url = url.substring(0, fragment);
+        }
+        int question = url.indexOf('?');
+        String base = question < 0 ? url : url.substring(0, question);
+        int schemeEnd = base.indexOf("://");
+        if (schemeEnd >= 0) {
+            int hostEnd = base.indexOf('/', schemeEnd + 3);
+            if (hostEnd < 0) {
+                hostEnd = base.length();
+            }
+            base = base.substring(0, hostEnd).toLowerCase(Locale.US) + base.substring(hostEnd);
+        }
+        if (question < 0 || question == url.length() - 1) {
+            return base;
+        }
+        String[] parameters = url.substring(question + 1).split("&");
+        Arrays.sort(parameters);
+        StringBuilder normalized = new StringBuilder(base).append('?');
+        boolean first = true;
+        for (String parameter : parameters) {
+            if (parameter.isEmpty()) {
+                continue;
+            }
+            if (!first) {
+                normalized.append('&');
+            }
+            normalized.append(parameter);
+            first = false;
+        }
+        return normalized.toString();
+    }
+
+    /**
+     * 取得中のクエリ。mLock で守る
+     */
+    private static final class InFlight {
+        final String key;
+        final CancellationToken token = new CancellationToken();
+        int waiters;
+        boolean done;
+        List<Earthquake> result;
+
+        InFlight(String key) {
+            this.key = key;
+        }
+    }
+
+    private static final class Completed {
+        final List<Earthquake> result;
+        final long completedAt;
+
+        Completed(List<Earthquake> result, long completedAt) {
+            this.result = result;
+            this.completedAt = completedAt;
+        }
+    }
+}
@@ -0,0 +1,615 @@
+package com.example.android.quakereport;
+
+import java.io.IOException;
+import java.io.Reader;
+
+/**
+ * USGS の GeoJSON レスポンスを、ストリームの先頭から一度だけ読み進めるプル型パーサー。
+ * <p>
+ * features[i] を読み終えるたびに、id と properties から {@link Earthquake} を組み上げて
+ * {@link Callback} に渡す。JSON 全体を String や JSONObject のツリーとして保持しないので、
+ * limit を大きくしてもヒープにレスポンスのコピーが溜まらない。
+ * 使わないフィールド（tsunami, felt など）は String を生成せずに読み飛ばす。
+ * <p>
+ * id / place / url / status が null の場合やキーがない場合は、空文字列にせず null のまま渡す
+ * ({@link QueryUtils#extractFeatureFromJson} も同じ)。
+ */
+final class GeoJsonStreamParser {
+
+    /**
+     * Earthquake が1件パースされるたびに呼ばれる
+     */
+    interface Callback {
+        void onEarthquake(Earthquake earthquake);
+    }
+
+    private static final int BUFFER_SIZE = 8192;
+
+    //キーの比較用。キーごとに String を作らないよう、定数は char[] で持っておく
+    private static final char[] KEY_FEATURES = "features".toCharArray();
+    private static final char[] KEY_ID = "id".toCharArray();
+    private static final char[] KEY_PROPERTIES = "properties".toCharArray();
+    private static final char[] KEY_MAG = "mag".toCharArray();
+    private static final char[] KEY_PLACE = "place".toCharArray();
+    private static final char[] KEY_TIME = "time".toCharArray();
+    private static final char[] KEY_URL = "url".toCharArray();
+    private static final char[] KEY_UPDATED = "updated".toCharArray();
+    private static final char[] KEY_STATUS = "status".toCharArray();
+    private static final char[] KEY_GEOMETRY = "geometry".toCharArray();
+    private static final char[] KEY_COORDINATES = "coordinates".toCharArray();
+
+    private final Reader mReader;
+    //途中で止めるためのフラグ。null の場合は最後まで読む
+    private CancellationToken mCancellation;
+    private final char[] mBuffer = new char[BUFFER_SIZE];
+    private int mPos;
+    private int mLimit;
+
+    //読み取ったキーを格納して使い回すバッファ
+    private char[] mKey = new char[32];
+    private int mKeyLength;
+
+    //数値・文字列を組み立てるときに使い回すバッファ
+    private final StringBuilder mScratch = new StringBuilder();
+
+    //今読んでいる feature の id と properties の値
+    private String mId;
+    private double mMag;
+    private boolean mHasMag;
+    private String mPlace;
+    private long mTime;
+    private boolean mHasTime;
+    private String mUrl;
+    private long mUpdated;
+    private String mStatus;
+    //geometry.coordinates の [経度, 緯度, 深さ]
+    private double mLongitude;
+    private double mLatitude;
+    private double mDepth;
+
+    /**
+     * @param reader GeoJSON を読み出す Reader。バッファリングは本クラスで行うので、素の Reader でよい
+     */
+    GeoJsonStreamParser(Reader reader) {
+        mReader = reader;
+    }
+
+    /**
+     * 読み込みの塊ごと、feature ごとに token を確かめ、キャンセルされていたら
+     * {@link java.io.InterruptedIOException} で止まるようにする。
+     * 1つの feature や塊は大きさに上限があるので、レスポンス全体の大きさに関わらず短い時間で止まる
+     */
+    void setCancellationToken(CancellationToken token) {
+        mCancellation = token;
+    }
+
+    /**
+     * ドキュメント全体を読み、features の各要素ごとに callback を呼ぶ
+     *
+     * @return callback に渡した Earthquake の件数
+     * @throws IOException ストリームの読み込みに失敗した場合、もしくは JSON の形式が不正な場合
+     */
+    int parse(Callback callback) throws IOException {
+        int count = 0;
+        expect('{');
+        if (consumeIf('}')) {
+            return count;
+        }
+        do {
+            readKey();
+            expect(':');
+            if (keyEquals(KEY_FEATURES) && peek() == '[') {
+                count += readFeatures(callback);
+            } else {
+                skipValue();
+            }
+        } while (consumeIf(','));
+        expect('}');
+        return count;
+    }
+
+    /**
+     * features の要素ではなく、Feature オブジェクト1つだけのドキュメントを読む。
+     * イベントストリームのように、1イベントずつ届く場合に使う
+     *
+     * @return callback に渡した Earthquake の件数 (0 か 1)
+     * @throws IOException ストリームの読み込みに失敗した場合、もしくは JSON の形式が不正な場合
+     */
+    int parseFeature(Callback callback) throws IOException {
+        return readFeature(callback) ? 1 : 0;
+    }
+
+    private int readFeatures(Callback callback) throws IOException {
+        int count = 0;
+        expect('[');
+        if (consumeIf(']')) {
+            return count;
+        }
+        do {
+            if (mCancellation != null) {
+                mCancellation.throwIfCancelled();
+            }
+            if (readFeature(callback)) {
+                count++;
+            }
+        } while (consumeIf(','));
+        expect(']');
+        return count;
+    }
+
+    /**
+     * features 配列の要素1つを読む。id と properties 以外のキーは読み飛ばす
+     *
+     * @return Earthquake を callback に渡した場合は true
+     */
+    private boolean readFeature(Callback callback) throws IOException {
+        if (peek() != '{') {
+            skipValue();
+            return false;
+        }
+        resetProperties();
+        boolean hasProperties = false;
+
+        expect('{');
+        if (!consumeIf('}')) {
+            do {
+                readKey();
+                expect(':');
+                if (keyEquals(KEY_PROPERTIES) && peek() == '{') {
+                    readProperties();
+                    hasProperties = true;
+                } else if (keyEquals(KEY_ID)) {
+                    mId = readNullableString();
+                } else if (keyEquals(KEY_GEOMETRY) && peek() == '{') {
+                    readGeometry();
+                } else {
+                    skipValue();
+                }
+            } while (consumeIf(','));
+            expect('}');
+        }
+
+        //mag か time が null のものは表示できないので捨てる。
+        //ただし削除されたイベントは、差分同期でローカルから消すために必要なので渡す
+        boolean deleted = "deleted".equals(mStatus) && mId != null;
+        if (!hasProperties || ((!mHasMag || !mHasTime) && !deleted)) {
+            return false;
+        }
+        callback.onEarthquake(new Earthquake(mId, mMag, mPlace, mTime, mUrl, mUpdated, mStatus,
+                mLatitude, mLongitude, mDepth));
+        return true;
+    }
+
+    private void readProperties() throws IOException {
+        expect('{');
+        if (consumeIf('}')) {
+            return;
+        }
+        do {
+            readKey();
+            expect(':');
+            if (keyEquals(KEY_MAG)) {
+                if (!consumeNull()) {
+                    mMag = readDouble();
+                    mHasMag = true;
+                }
+            } else if (keyEquals(KEY_PLACE)) {
+                mPlace = readNullableString();
+            } else if (keyEquals(KEY_TIME)) {
+                if (!consumeNull()) {
+                    mTime = readLong();
+                    mHasTime = true;
+                }
+            } else if (keyEquals(KEY_URL)) {
+                mUrl = readNullableString();
+            } else if (keyEquals(KEY_UPDATED)) {
+                if (!consumeNull()) {
+                    mUpdated = readLong();
+                }
+            } else if (keyEquals(KEY_STATUS)) {
+                mStatus = readNullableString();
+            } else {
+                skipValue();
+            }
+        } while (consumeIf(','));
+        expect('}');
+    }
+
+    /**
+     * geometry の coordinates だけを読む。USGS の geometry は常に Point
+     */
+    private void readGeometry() throws IOException {
+        expect('{');
+        if (consumeIf('}')) {
+            return;
+        }
+        do {
+            readKey();
+            expect(':');
+            if (keyEquals(KEY_COORDINATES) && peek() == '[') {
+                readCoordinates();
+            } else {
+                skipValue();
+            }
+        } while (consumeIf(','));
+        expect('}');
+    }
+
+    /**
+     * [経度, 緯度, 深さ] を読む。足りない要素や null は NaN のまま、4つ目以降は読み飛ばす
+     */
+    private void readCoordinates() throws IOException {
+        expect('[');
+        if (consumeIf(']')) {
+            return;
+        }
+        int index = 0;
+        do {
+            if (index > 2 || consumeNull()) {
+                if (index > 2) {
+                    skipValue();
+                }
+            } else {
+                double value = readDouble();
+                if (index == 0) {
+                    mLongitude = value;
+                } else if (index == 1) {
+                    mLatitude = value;
+                } else {
+                    mDepth = value;
+                }
+            }
+            index++;
+        } while (consumeIf(','));
+        expect(']');
+    }
+
+    private void resetProperties() {
+        mId = null;
+        mMag = 0;
+        mHasMag = false;
+        mPlace = null;
+        mTime = 0;
+        mHasTime = false;
+        mUrl = null;
+        mUpdated = 0;
+        mStatus = null;
+        mLongitude = Double.NaN;
+        mLatitude = Double.NaN;
+        mDepth = Double.NaN;
+    }
+
+    //---- ここから下はトークン単位の読み取り ----
+
+    /**
+     * 空白を読み飛ばし、次の文字を消費せずに返す
+     */
+    private char peek() throws IOException {
+        while (true) {
+            if (mPos == mLimit && !fill()) {
+                throw syntaxError("Unexpected end of input");
+            }
+            char c = mBuffer[mPos];
+            if (c == ' ' || c == '\n' || c == '\r' || c == '\t') {
+                mPos++;
+            } else {
+                return c;
+            }
+        }
+    }
+
+    private void expect(char expected) throws IOException {
+        char c = peek();
+        if (c != expected) {
+            throw syntaxError("Expected '" + expected + "' but was '" + c + "'");
+        }
+        mPos++;
+    }
+
+    private boolean consumeIf(char expected) throws IOException {
+        if (peek() == expected) {
+            mPos++;
+            return true;
+        }
+        return false;
+    }
+
+    private boolean consumeNull() throws IOException {
+        if (peek() != 'n') {
+            return false;
+        }
+        skipLiteral();
+        return true;
+    }
+
+    /**
+     * オブジェクトのキーを mKey に読み込む。String は生成しない
+     */
+    private void readKey() throws IOException {
+        expect('"');
+        mKeyLength = 0;
+        while (true) {
+            if (mPos == mLimit && !fill()) {
+                throw syntaxError("Unterminated key");
+            }
+            char c = mBuffer[mPos++];
+            if (c == '"') {
+                return;
+            }
+            if (c == '\\') {
+                c = readEscapeCharacter();
+            }
+            if (mKeyLength == mKey.length) {
+                char[] newKey = new char[mKey.length * 2];
+                System.arraycopy(mKey, 0, newKey, 0, mKeyLength);
+                mKey = newKey;
+            }
+            mKey[mKeyLength++] = c;
+        }
+    }
+
+    private boolean keyEquals(char[] key) {
+        if (key.length != mKeyLength) {
+            return false;
+        }
+        for (int i = 0; i < mKeyLength; i++) {
+            if (key[i] != mKey[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * 文字列を読む。null の場合は null を返す
+     */
+    private String readNullableString() throws IOException {
+        if (consumeNull()) {
+            return null;
+        }
+        if (peek() != '"') {
+            //数値などが入っていた場合も文字列として扱う
+            mScratch.setLength(0);
+            readLiteralInto(mScratch);
+            return mScratch.toString();
+        }
+        mPos++;
+        mScratch.setLength(0);
+        while (true) {
+            if (mPos == mLimit && !fill()) {
+                throw syntaxError("Unterminated string");
+            }
+            char c = mBuffer[mPos++];
+            if (c == '"') {
+                return mScratch.toString();
+            }
+            if (c == '\\') {
+                c = readEscapeCharacter();
+            }
+            mScratch.append(c);
+        }
+    }
+
+    private double readDouble() throws IOException {
+        mScratch.setLength(0);
+        if (peek() == '"') {
+            //"mag":"4.5" のように文字列で入っている場合にも対応
+            mScratch.append(readNullableString());
+        } else {
+            readLiteralInto(mScratch);
+        }
+        try {
+            return Double.parseDouble(mScratch.toString());
+        } catch (NumberFormatException e) {
+            throw syntaxError("Expected a number but was " + mScratch);
+        }
+    }
+
+    /**
+     * 整数の場合はそのまま桁を積み上げる。小数・指数表記の場合のみ double 経由で読む
+     */
+    private long readLong() throws IOException {
+        if (peek() == '"') {
+            return (long) readDouble();
+        }
+        long value = 0;
+        boolean negative = false;
+        int digits = 0;
+        if (mBuffer[mPos] == '-') {
+            negative = true;
+            mPos++;
+        }
+        while (true) {
+            if (mPos == mLimit && !fill()) {
+                break;
+            }
+            char c = mBuffer[mPos];
+            if (c >= '0' && c <= '9') {
+                value = value * 10 + (c - '0');
+                digits++;
+                mPos++;
+            } else if (c == '.' || c == 'e' || c == 'E') {
+                //整数部分は読み終えたので、残りを double として読んで合成する
+                mScratch.setLength(0);
+                mScratch.append(negative ? "-" : "").append(value);
+                readLiteralInto(mScratch);
+                try {
+                    return (long) Double.parseDouble(mScratch.toString());
+                } catch (NumberFormatException e) {
+                    throw syntaxError("Expected a number but was " + mScratch);
+                }
+            } else {
+                break;
+            }
+        }
+        if (digits == 0) {
+            throw syntaxError("Expected a number");
+        }
+        return negative ? -value : value;
+    }
+
+    /**
+     * 数値・true/false/null などのリテラルを区切り文字まで読み、builder に追加する
+     */
+    private void readLiteralInto(StringBuilder builder) throws IOException {
+        while (true) {
+            if (mPos == mLimit && !fill()) {
+                return;
+            }
+            char c = mBuffer[mPos];
+            if (isLiteralEnd(c)) {
+                return;
+            }
+            builder.append(c);
+            mPos++;
+        }
+    }
+
+    /**
+     * 値を1つ丸ごと読み飛ばす。ネストしたオブジェクト・配列も含め、何もアロケーションしない
+     */
+    private void skipValue() throws IOException {
+        int depth = 0;
+        do {
+            char c = peek();
+            switch (c) {
+                case '{':
+                case '[':
+                    depth++;
+                    mPos++;
+                    break;
+                case '}':
+                case ']':
+                    depth--;
+                    mPos++;
+                    break;
+                case ',':
+                case ':':
+                    mPos++;
+                    break;
+                case '"':
+                    mPos++;
+                    skipString();
+                    break;
+                default:
+                    skipLiteral();
+                    break;
+            }
+        } while (depth > 0);
+    }
+
+    private void skipString() throws IOException {
+        while (true) {
+            if (mPos == mLimit && !fill()) {
+                throw syntaxError("Unterminated string");
+            }
+            char c = mBuffer[mPos++];
+            if (c == '"') {
+                return;
+            }
+            if (c == '\\') {
+                readEscapeCharacter();
+            }
+        }
+    }
+
+    private void skipLiteral() throws IOException {
+        int length = 0;
+        while (true) {
+            if (mPos == mLimit && !fill()) {
+                break;
+            }
+            if (isLiteralEnd(mBuffer[mPos])) {
+                break;
+            }
+            mPos++;
+            length++;
+        }
+        if (length == 0) {
+            throw syntaxError("Unexpected character '" + mBuffer[mPos] + "'");
+        }
+    }
+
+    private static boolean isLiteralEnd(char c) {
+        switch (c) {
+            case ',':
+            case ':':
+            case '}':
+            case ']':
+            case '{':
+            case '[':
+            case '"':
+            case ' ':
+            case '\n':
+            case '\r':
+            case '\t':
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * バックスラッシュの直後から読み、エスケープされた1文字を返す
+     */
+    private char readEscapeCharacter() throws IOException {
+        if (mPos == mLimit && !fill()) {
+            throw syntaxError("Unterminated escape sequence");
+        }
+        char escaped = mBuffer[mPos++];
+        switch (escaped) {
+            case 'u':
+                int result = 0;
+                for (int i = 0; i < 4; i++) {
+                    if (mPos == mLimit && !fill()) {
+                        throw syntaxError("Unterminated escape sequence");
+                    }
+                    int digit = Character.digit(mBuffer[mPos++], 16);
+                    if (digit < 0) {
+                        throw syntaxError("Malformed \\u escape sequence");
+                    }
+                    result = (result << 4) + digit;
+                }
+                return (char) result;
+            case 't':
+                return '\t';
+            case 'b':
+                return '\b';
+            case 'n':
+                return '\n';
+            case 'r':
+                return '\r';
+            case 'f':
+                return '\f';
+            default:
+                // '"', '\\', '/' はそのまま
+                return escaped;
+        }
+    }
+
+    /**
+     * バッファを使い切ったときに、Reader から次の塊を読み込む
+     *
+     * @return 1文字以上読み込めた場合は true
+     */
+    private boolean fill() throws IOException {
+        if (mCancellation != null) {
+            mCancellation.throwIfCancelled();
+        }
+        mPos = 0;
+        mLimit = 0;
+        int read;
+        do {
+            read = mReader.read(mBuffer, 0, mBuffer.length);
+        } while (read == 0);
+        if (read < 0) {
+            return false;
+        }
+        mLimit = read;
+        return true;
+    }
+
+    private IOException syntaxError(String message) {
+        return new IOException("Malformed GeoJSON: " + message);
+    }
+}
@@ -0,0 +1,129 @@
+package com.example.android.quakereport;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * 0以上の long の値の分布を、2のべき乗ごとのバケットで数えるヒストグラム。
+ * <p>
+ * 記録はロックを取らずに Atomic の加算だけで済むので、複数のスレッドのホットパスから呼んでよい。
+ * パーセンタイルはバケットの上限で返すので、誤差は最大で2倍。
+ */
+final class Histogram {
+
+    //バケット i には [2^(i-1), 2^i) の値が入る。バケット 0 は値 0 だけ
+    private static final int BUCKET_COUNT = 64;
+
+    private final AtomicLongArray mBuckets = new AtomicLongArray(BUCKET_COUNT);
+    private final AtomicLong mCount = new AtomicLong();
+    private final AtomicLong mSum = new AtomicLong();
+    private final AtomicLong mMin = new AtomicLong(Long.MAX_VALUE);
+    private final AtomicLong mMax = new AtomicLong(Long.MIN_VALUE);
+
+    void record(long value) {
+        if (value < 0) {
+            value = 0;
+        }
+        mBuckets.incrementAndGet(bucketOf(value));
+        mCount.incrementAndGet();
+        mSum.addAndGet(value);
+
+        long min = mMin.get();
+        while (value < min && !mMin.compareAndSet(min, value)) {
+            min = mMin.get();
+        }
+        long max = mMax.get();
+        while (value > max && !mMax.compareAndSet(max, value)) {
+            max = mMax.get();
+        }
+    }
+
+    void reset() {
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            mBuckets.set(i, 0);
+        }
+        mCount.set(0);
+        mSum.set(0);
+        mMin.set(Long.MAX_VALUE);
+        mMax.set(Long.MIN_VALUE);
+    }
+
+    /**
+     * 現在の値を写し取る。記録と同時に呼ばれた場合、各値の間で数件ずれることがある
+     */
+    Snapshot snapshot() {
+        long[] buckets = new long[BUCKET_COUNT];
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            buckets[i] = mBuckets.get(i);
+        }
+        long count = mCount.get();
+        return new Snapshot(buckets, count, mSum.get(),
+                count > 0 ? mMin.get() : 0, count > 0 ? mMax.get() : 0);
+    }
+
+    private static int bucketOf(long value) {
+        return Math.min(BUCKET_COUNT - 1, 64 - Long.numberOfLeadingZeros(value));
+    }
+
+    /**
+     * ある時点のヒストグラムの値。変更されない
+     */
+    static final class Snapshot {
+        private final long[] mBuckets;
+        private final long mCount;
+        private final long mSum;
+        private final long mMin;
+        private final long mMax;
+
+        Snapshot(long[] buckets, long count, long sum, long min, long max) {
+            mBuckets = buckets;
+            mCount = count;
+            mSum = sum;
+            mMin = min;
+            mMax = max;
+        }
+
+        long getCount() {
+            return mCount;
+        }
+
+        long getSum() {
+            return mSum;
+        }
+
+        long getMin() {
+            return mMin;
+        }
+
+        long getMax() {
+            return mMax;
+        }
+
+        double getMean() {
+            return mCount > 0 ? (double) mSum / mCount : 0;
+        }
+
+        /**
+         * percentile (0〜100) 番目の値の上限。記録がない場合は 0
+         */
+        long getPercentile(double percentile) {
+            long total = 0;
+            for (long bucket : mBuckets) {
+                total += bucket;
+            }
+            if (total == 0) {
+                return 0;
+            }
+            long rank = (long) Math.ceil(total * Math.min(100, Math.max(0, percentile)) / 100);
+            long seen = 0;
+            for (int i = 0; i < mBuckets.length; i++) {
+                seen += mBuckets[i];
+                if (seen >= Math.max(1, rank)) {
+                    long upperBound = i == 0 ? 0 : (i >= 63 ? Long.MAX_VALUE : (1L << i) - 1);
+                    return Math.max(mMin, Math.min(upperBound, mMax));
+                }
+            }
+            return mMax;
+        }
+    }
+}
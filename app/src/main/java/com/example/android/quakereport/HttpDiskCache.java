@@ -0,0 +1,363 @@
+package com.example.android.quakereport;
+
+import android.content.Context;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.Properties;
+import java.util.Set;
+
+/**
+ * USGS へのクエリ結果をディスクに保存する HTTP キャッシュ。
+ * <p>
+ * クエリ URI ごとにレスポンス本体と ETag / Last-Modified を保存しておき、
+ * TTL 以内ならネットワークに行かずにそのまま使う。TTL を過ぎたものは条件付き GET で再検証し、
+ * 304 が返ってきたら保存済みの本体を使い回す。合計サイズが上限を超えたら、最近使っていないものから消す。
+ */
+final class HttpDiskCache {
+
+    private static final String LOG_TAG = HttpDiskCache.class.getSimpleName();
+
+    //キャッシュを置くディレクトリ名 (getCacheDir() の下)
+    private static final String DIRECTORY_NAME = "usgs-http";
+    //ディスク上の合計サイズの上限
+    private static final long DEFAULT_MAX_SIZE_BYTES = 10 * 1024 * 1024;
+    //USGS のデータは数分単位でしか変わらないので、この時間内は再検証もしない
+    static final long DEFAULT_TTL_MILLIS = 5 * 60 * 1000;
+
+    private static final String BODY_SUFFIX = ".body";
+    private static final String META_SUFFIX = ".meta";
+    private static final String TEMP_SUFFIX = ".tmp";
+
+    private static final String META_URL = "url";
+    private static final String META_ETAG = "etag";
+    private static final String META_LAST_MODIFIED = "lastModified";
+    private static final String META_FETCHED_AT = "fetchedAt";
+
+    private static HttpDiskCache sInstance;
+
+    private final File mDirectory;
+    private final long mMaxSizeBytes;
+    private volatile long mTtlMillis;
+    //書き込み中の Editor の一時ファイル。これ以外の一時ファイルは、プロセスが途中で落ちたときの残り
+    private final Set<File> mEditing = new HashSet<>();
+
+    /**
+     * アプリ全体で共有するインスタンスを返す
+     */
+    static synchronized HttpDiskCache getInstance(Context context) {
+        if (sInstance == null) {
+            File directory = new File(context.getApplicationContext().getCacheDir(), DIRECTORY_NAME);
+            sInstance = new HttpDiskCache(directory, DEFAULT_MAX_SIZE_BYTES, DEFAULT_TTL_MILLIS);
+        }
+        return sInstance;
+    }
+
+    HttpDiskCache(File directory, long maxSizeBytes, long ttlMillis) {
+        mDirectory = directory;
+        mMaxSizeBytes = maxSizeBytes;
+        mTtlMillis = ttlMillis;
+    }
+
+    /**
+     * この時間を過ぎたエントリは、使う前にサーバに再検証する
+     */
+    void setTtlMillis(long ttlMillis) {
+        mTtlMillis = ttlMillis;
+    }
+
+    /**
+     * 保存済みのエントリを返す。ない場合は null。
+     * 取得したエントリは LRU の順番で「最近使った」扱いになる
+     */
+    synchronized Entry get(String url) {
+        String key = keyFor(url);
+        File body = new File(mDirectory, key + BODY_SUFFIX);
+        File meta = new File(mDirectory, key + META_SUFFIX);
+        if (!body.exists() || !meta.exists()) {
+            return null;
+        }
+
+        Properties properties = readMeta(meta);
+        //ハッシュが衝突した場合に、別の URL のレスポンスを返さないよう確認する
+        if (properties == null || !url.equals(properties.getProperty(META_URL))) {
+            return null;
+        }
+
+        long now = System.currentTimeMillis();
+        body.setLastModified(now);
+        long fetchedAt = parseLong(properties.getProperty(META_FETCHED_AT));
+        return new Entry(body,
+                properties.getProperty(META_ETAG),
+                properties.getProperty(META_LAST_MODIFIED),
+                fetchedAt,
+                now - fetchedAt < mTtlMillis);
+    }
+
+    /**
+     * 304 Not Modified が返ってきたときに呼ぶ。保存済みの本体を新しいものとして扱う
+     */
+    synchronized void markRevalidated(String url, String etag, String lastModified) {
+        String key = keyFor(url);
+        Properties properties = readMeta(new File(mDirectory, key + META_SUFFIX));
+        if (properties == null) {
+            return;
+        }
+        //304 で新しい検証子が返ってきた場合のみ差し替える
+        if (etag != null) {
+            properties.setProperty(META_ETAG, etag);
+        }
+        if (lastModified != null) {
+            properties.setProperty(META_LAST_MODIFIED, lastModified);
+        }
+        properties.setProperty(META_FETCHED_AT, String.valueOf(System.currentTimeMillis()));
+        writeMeta(new File(mDirectory, key + META_SUFFIX), properties);
+    }
+
+    /**
+     * レスポンス本体を書き込むための Editor を返す。
+     * {@link Editor#wrap(InputStream)} で包んだストリームを読み進めると、その内容が一時ファイルに書かれる
+     */
+    synchronized Editor edit(String url) throws IOException {
+        if (!mDirectory.exists() && !mDirectory.mkdirs()) {
+            throw new IOException("Unable to create cache directory " + mDirectory);
+        }
+        String key = keyFor(url);
+        File temp = File.createTempFile(key, TEMP_SUFFIX, mDirectory);
+        mEditing.add(temp);
+        return new Editor(url, key, temp);
+    }
+
+    private synchronized void commit(Editor editor, String etag, String lastModified) {
+        mEditing.remove(editor.mTempFile);
+        File body = new File(mDirectory, editor.mKey + BODY_SUFFIX);
+        File meta = new File(mDirectory, editor.mKey + META_SUFFIX);
+
+        //古いエントリを消してから差し替える
+        meta.delete();
+        body.delete();
+        if (!editor.mTempFile.renameTo(body)) {
+            editor.mTempFile.delete();
+            return;
+        }
+
+        Properties properties = new Properties();
+        properties.setProperty(META_URL, editor.mUrl);
+        if (etag != null) {
+            properties.setProperty(META_ETAG, etag);
+        }
+        if (lastModified != null) {
+            properties.setProperty(META_LAST_MODIFIED, lastModified);
+        }
+        properties.setProperty(META_FETCHED_AT, String.valueOf(System.currentTimeMillis()));
+        writeMeta(meta, properties);
+
+        trimToSize();
+    }
+
+    private synchronized void abort(Editor editor) {
+        mEditing.remove(editor.mTempFile);
+        editor.mTempFile.delete();
+    }
+
+    /**
+     * 書き込み中でない一時ファイルを消し、合計サイズが上限を下回るまで、最近使っていないエントリから削除する
+     */
+    private void trimToSize() {
+        File[] bodies = mDirectory.listFiles();
+        if (bodies == null) {
+            return;
+        }
+        long totalSize = 0;
+        for (File file : bodies) {
+            if (file.getName().endsWith(TEMP_SUFFIX) && !mEditing.contains(file)) {
+                //commit も abort もされなかったもの。残しておくと合計サイズに数えられ続ける
+                file.delete();
+                continue;
+            }
+            totalSize += file.length();
+        }
+        if (totalSize <= mMaxSizeBytes) {
+            return;
+        }
+
+        Arrays.sort(bodies, new Comparator<File>() {
+            @Override
+            public int compare(File lhs, File rhs) {
+                long l = lhs.lastModified();
+                long r = rhs.lastModified();
+                return l < r ? -1 : (l == r ? 0 : 1);
+            }
+        });
+        for (File file : bodies) {
+            if (totalSize <= mMaxSizeBytes) {
+                break;
+            }
+            String name = file.getName();
+            if (!name.endsWith(BODY_SUFFIX)) {
+                continue;
+            }
+            String key = name.substring(0, name.length() - BODY_SUFFIX.length());
+            File meta = new File(mDirectory, key + META_SUFFIX);
+            totalSize -= file.length() + meta.length();
+            file.delete();
+            meta.delete();
+        }
+    }
+
+    private static Properties readMeta(File meta) {
+        Properties properties = new Properties();
+        InputStream in = null;
+        try {
+            in = new FileInputStream(meta);
+            properties.load(in);
+            return properties;
+        } catch (IOException e) {
+            return null;
+        } finally {
+            closeQuietly(in);
+        }
+    }
+
+    private static void writeMeta(File meta, Properties properties) {
+        OutputStream out = null;
+        try {
+            out = new FileOutputStream(meta);
+            properties.store(out, null);
+        } catch (IOException e) {
+            Log.e(LOG_TAG, "Problem writing cache metadata", e);
+            meta.delete();
+        } finally {
+            closeQuietly(out);
+        }
+    }
+
+    /**
+     * URL をファイル名に使える固定長の文字列に変換する
+     */
+    private static String keyFor(String url) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("MD5");
+            byte[] hash = digest.digest(url.getBytes(Charset.forName("UTF-8")));
+            StringBuilder builder = new StringBuilder(hash.length * 2);
+            for (byte b : hash) {
+                builder.append(Character.forDigit((b >> 4) & 0xf, 16));
+                builder.append(Character.forDigit(b & 0xf, 16));
+            }
+            return builder.toString();
+        } catch (NoSuchAlgorithmException e) {
+            return String.valueOf(url.hashCode());
+        }
+    }
+
+    private static long parseLong(String value) {
+        if (value == null) {
+            return 0;
+        }
+        try {
+            return Long.parseLong(value);
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    static void closeQuietly(java.io.Closeable closeable) {
+        if (closeable != null) {
+            try {
+                closeable.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    /**
+     * 保存済みのレスポンス
+     */
+    static final class Entry {
+        final File body;
+        final String etag;
+        final String lastModified;
+        final long fetchedAt;
+        //TTL 以内かどうか。false の場合は再検証してから使う
+        final boolean fresh;
+
+        Entry(File body, String etag, String lastModified, long fetchedAt, boolean fresh) {
+            this.body = body;
+            this.etag = etag;
+            this.lastModified = lastModified;
+            this.fetchedAt = fetchedAt;
+            this.fresh = fresh;
+        }
+
+        InputStream open() throws IOException {
+            return new FileInputStream(body);
+        }
+    }
+
+    /**
+     * ネットワークから読んだ内容を、そのまま一時ファイルにも書き出す。
+     * 最後まで読めたら commit、途中で失敗したら abort する
+     */
+    final class Editor {
+        private final String mUrl;
+        private final String mKey;
+        private final File mTempFile;
+        private OutputStream mOut;
+
+        private Editor(String url, String key, File tempFile) {
+            mUrl = url;
+            mKey = key;
+            mTempFile = tempFile;
+        }
+
+        InputStream wrap(InputStream in) throws IOException {
+            mOut = new FileOutputStream(mTempFile);
+            return new FilterInputStream(in) {
+                @Override
+                public int read() throws IOException {
+                    int b = super.read();
+                    if (b >= 0) {
+                        mOut.write(b);
+                    }
+                    return b;
+                }
+
+                @Override
+                public int read(byte[] buffer, int offset, int count) throws IOException {
+                    int read = super.read(buffer, offset, count);
+                    if (read > 0) {
+                        mOut.write(buffer, offset, read);
+                    }
+                    return read;
+                }
+            };
+        }
+
+        void commit(String etag, String lastModified) {
+            try {
+                mOut.close();
+            } catch (IOException e) {
+                abort();
+                return;
+            }
+            HttpDiskCache.this.commit(this, etag, lastModified);
+        }
+
+        void abort() {
+            closeQuietly(mOut);
+            HttpDiskCache.this.abort(this);
+        }
+    }
+}
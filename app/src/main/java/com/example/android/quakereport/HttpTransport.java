@@ -0,0 +1,46 @@
+package com.example.android.quakereport;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.util.Map;
+
+/**
+ * QueryUtils が USGS にリクエストを送るための通信の層。
+ * <p>
+ * 既定は {@link UrlConnectionTransport}。{@link QueryUtils#setTransport(HttpTransport)} で差し替えられるので、
+ * ローカルのサーバに向けて接続数や転送量を確かめることもできる。
+ */
+interface HttpTransport {
+
+    /**
+     * GET リクエストを送る。返ってきた Response は必ず close すること
+     *
+     * @param headers 追加するリクエストヘッダ (If-None-Match など)
+     */
+    Response get(URL url, Map<String, String> headers) throws IOException;
+
+    /**
+     * 1つのレスポンス。close すると接続は (可能なら) 次のリクエストのために使い回される
+     */
+    interface Response extends Closeable {
+        int getCode();
+
+        /**
+         * レスポンスヘッダの値。ない場合は null
+         */
+        String getHeader(String name);
+
+        /**
+         * 伸長済みのレスポンス本体。gzip などの Content-Encoding は transport 側で解除しておく
+         */
+        InputStream getBody() throws IOException;
+
+        /**
+         * 残りの本体を読まずに接続を切る。途中で読むのをやめた場合に、close() の読み捨てを待たないため。
+         * 別のスレッドから呼んでもよい。abort した後も close は呼ぶこと
+         */
+        void abort();
+    }
+}
@@ -0,0 +1,109 @@
+package com.example.android.quakereport;
+
+import android.text.TextUtils;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 地点からの距離で地震を絞り込む条件。サーバーには送らず、取得済みの結果を {@link SpatialIndex} で絞る。
+ * <p>
+ * 設定画面では "緯度,経度,半径km" を ; で区切って並べる。
+ * 例えば "35.68,139.69,300;34.69,135.50,300" は、東京と大阪のどちらかから 300km 以内の地震になる。
+ */
+final class LocationFilter {
+
+    private static final String LOG_TAG = LocationFilter.class.getSimpleName();
+
+    private final double[] mLatitudes;
+    private final double[] mLongitudes;
+    private final double[] mRadiusKms;
+
+    private LocationFilter(double[] latitudes, double[] longitudes, double[] radiusKms) {
+        mLatitudes = latitudes;
+        mLongitudes = longitudes;
+        mRadiusKms = radiusKms;
+    }
+
+    /**
+     * 設定画面の文字列を LocationFilter にする。書式の誤っている地点はログに出して読み飛ばす
+     *
+     * @return 地点が1つもない場合は null (絞り込まない)
+     */
+    static LocationFilter parse(String value) {
+        if (TextUtils.isEmpty(value)) {
+            return null;
+        }
+        List<double[]> sites = new ArrayList<>();
+        for (String entry : value.split(";")) {
+            entry = entry.trim();
+            if (entry.isEmpty()) {
+                continue;
+            }
+            double[] site = parseSite(entry);
+            if (site != null) {
+                sites.add(site);
+            } else {
+                Log.e(LOG_TAG, "Ignoring malformed location: " + entry);
+            }
+        }
+        if (sites.isEmpty()) {
+            return null;
+        }
+        double[] latitudes = new double[sites.size()];
+        double[] longitudes = new double[sites.size()];
+        double[] radiusKms = new double[sites.size()];
+        for (int i = 0; i < sites.size(); i++) {
+            latitudes[i] = sites.get(i)[0];
+            longitudes[i] = sites.get(i)[1];
+            radiusKms[i] = sites.get(i)[2];
+        }
+        return new LocationFilter(latitudes, longitudes, radiusKms);
+    }
+
+    private static double[] parseSite(String entry) {
+        String[] values = entry.split(",");
+        if (values.length != 3) {
+            return null;
+        }
+        try {
+            double latitude = Double.parseDouble(values[0].trim());
+            double longitude = Double.parseDouble(values[1].trim());
+            double radiusKm = Double.parseDouble(values[2].trim());
+            if (Math.abs(latitude) > 90 || Math.abs(longitude) > 180 || !(radiusKm >= 0)) {
+                return null;
+            }
+            return new double[]{latitude, longitude, radiusKm};
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    /**
+     * いずれかの地点から半径以内の地震だけを、元の並び順のまま返す。位置が不明な地震は除く
+     */
+    List<Earthquake> apply(List<Earthquake> earthquakes) {
+        if (earthquakes.isEmpty()) {
+            return earthquakes;
+        }
+        SpatialIndex index = SpatialIndex.build(earthquakes);
+        boolean[] matched = new boolean[earthquakes.size()];
+        int count = 0;
+        for (int s = 0; s < mLatitudes.length; s++) {
+            for (int i : index.withinRadius(mLatitudes[s], mLongitudes[s], mRadiusKms[s])) {
+                if (!matched[i]) {
+                    matched[i] = true;
+                    count++;
+                }
+            }
+        }
+        List<Earthquake> filtered = new ArrayList<>(count);
+        for (int i = 0; i < matched.length; i++) {
+            if (matched[i]) {
+                filtered.add(earthquakes.get(i));
+            }
+        }
+        return filtered;
+    }
+}
@@ -0,0 +1,152 @@
+package com.example.android.quakereport;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.preference.PreferenceManager;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.Locale;
+
+/**
+ * 取得〜表示のパイプラインの計測値を、種類ごとのヒストグラムに溜める。
+ * <p>
+ * 無効な間は {@link #startTimer()} と {@link #record(Metric, long)} が volatile の読み出し1回で返るので、
+ * リリースビルドに入れたままにしておける。値はアプリ内から {@link #get(Metric)} で読めるほか、
+ * {@code adb shell dumpsys activity com.example.android.quakereport} で {@link #dump(PrintWriter)} の内容が出る。
+ */
+final class Metrics {
+
+    /**
+     * 計測する値の種類
+     */
+    enum Metric {
+        //接続 (TCP/TLS のハンドシェイク) にかかった時間
+        CONNECT("connect", "us"),
+        //リクエストを送ってからレスポンスヘッダを受け取るまでの時間
+        TTFB("ttfb", "us"),
+        //1つのレスポンスでネットワークから読んだバイト数 (圧縮されたまま)
+        BYTES_READ("bytes_read", "B"),
+        //1つのレスポンスのパースにかかった時間。ストリームで読むので、本体の受信時間も含む
+        PARSE("parse", "us"),
+        //1つのレスポンスに含まれていた地震の件数
+        FEATURE_COUNT("feature_count", "events"),
+        //ディスクキャッシュの結果。値は常に1なので、件数だけを見る
+        CACHE_HIT("cache_hit", ""),
+        CACHE_REVALIDATED("cache_revalidated", ""),
+        CACHE_MISS("cache_miss", ""),
+        //EarthquakeLoader.loadInBackground 全体の時間
+        LOAD("load", "us"),
+        //onLoadFinished で UIスレッドを使った時間
+        DELIVER("deliver", "us"),
+        //onBindViewHolder 1回の時間
+        BIND("bind", "us");
+
+        final String label;
+        final String unit;
+
+        Metric(String label, String unit) {
+            this.label = label;
+            this.unit = unit;
+        }
+    }
+
+    private static final Histogram[] HISTOGRAMS = new Histogram[Metric.values().length];
+
+    static {
+        for (int i = 0; i < HISTOGRAMS.length; i++) {
+            HISTOGRAMS[i] = new Histogram();
+        }
+    }
+
+    private static volatile boolean sEnabled;
+
+    private Metrics() {
+    }
+
+    /**
+     * デバッグビルドでは常に、リリースビルドでは設定画面で有効にした場合だけ計測する
+     */
+    static void init(Context context) {
+        SharedPreferences sharedPrefs = PreferenceManager.getDefaultSharedPreferences(context);
+        setEnabled(BuildConfig.DEBUG || sharedPrefs.getBoolean(
+                context.getString(R.string.settings_metrics_key), false));
+    }
+
+    static void setEnabled(boolean enabled) {
+        sEnabled = enabled;
+    }
+
+    static boolean isEnabled() {
+        return sEnabled;
+    }
+
+    /**
+     * 時間の計測を始める。無効な場合は 0 を返し、{@link #recordSince(Metric, long)} は何もしない
+     */
+    static long startTimer() {
+        return sEnabled ? System.nanoTime() : 0;
+    }
+
+    /**
+     * startTimer() からの経過時間をマイクロ秒で記録する
+     */
+    static void recordSince(Metric metric, long startNanos) {
+        if (startNanos != 0 && sEnabled) {
+            HISTOGRAMS[metric.ordinal()].record((System.nanoTime() - startNanos) / 1000);
+        }
+    }
+
+    static void record(Metric metric, long value) {
+        if (sEnabled) {
+            HISTOGRAMS[metric.ordinal()].record(value);
+        }
+    }
+
+    /**
+     * 件数だけを数える値 (キャッシュのヒットなど) を1回記録する
+     */
+    static void increment(Metric metric) {
+        record(metric, 1);
+    }
+
+    static Histogram.Snapshot get(Metric metric) {
+        return HISTOGRAMS[metric.ordinal()].snapshot();
+    }
+
+    static void reset() {
+        for (Histogram histogram : HISTOGRAMS) {
+            histogram.reset();
+        }
+    }
+
+    /**
+     * すべての値を1行ずつ書き出す。記録のないものは省く
+     */
+    static void dump(PrintWriter writer) {
+        writer.println("Metrics (" + (sEnabled ? "enabled" : "disabled") + "):");
+        for (Metric metric : Metric.values()) {
+            Histogram.Snapshot snapshot = get(metric);
+            if (snapshot.getCount() == 0) {
+                continue;
+            }
+            if (metric.unit.isEmpty()) {
+                writer.println(String.format(Locale.US, "  %-18s count=%d", metric.label, snapshot.getCount()));
+                continue;
+            }
+            writer.println(String.format(Locale.US,
+                    "  %-18s count=%d min=%d p50=%d p90=%d p99=%d max=%d mean=%.1f %s",
+                    metric.label, snapshot.getCount(), snapshot.getMin(),
+                    snapshot.getPercentile(50), snapshot.getPercentile(90), snapshot.getPercentile(99),
+                    snapshot.getMax(), snapshot.getMean(), metric.unit));
+        }
+    }
+
+    static String dump() {
+        StringWriter out = new StringWriter();
+        PrintWriter writer = new PrintWriter(out);
+        dump(writer);
+        writer.flush();
+        return out.toString();
+    }
+}
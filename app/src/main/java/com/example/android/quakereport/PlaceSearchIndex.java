@@ -0,0 +1,460 @@
+package com.example.android.quakereport;
+
+import java.text.Normalizer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * 地震の場所 ("12km SSW of Volcano, Hawaii") で、取得済みのイベントを端末の中だけで検索するための転置インデックス。
+ * <p>
+ * 主な場所 ("Volcano, Hawaii") の単語ごとに、その単語を含むイベントの番号を並べておく。
+ * 単語は小文字にしてアクセント記号を外すので、"mexico" で "México" も見つかる。
+ * 距離と方角 ("12km SSW of ") は検索の役に立たないので入れない。
+ * <p>
+ * 問い合わせの単語は前方一致で、すべての単語を含むイベントを返す ("volc haw" で "Volcano, Hawaii")。
+ * 問い合わせにカンマがある場合、最後のカンマより後ろは地域 (場所の最後のカンマより後ろ) の前方一致になる。
+ * ", japan" は地域が Japan のイベントだけで、"Japan Trench" などは含まない。
+ * <p>
+ * プロセスで最初のロードのときに {@link #loadFrom(Source)} でローカルストアの新しいイベントから作り、
+ * その後は {@link EarthquakeLoader} が {@link QueryUtils} に登録し、パースした地震を1件ずつ {@link #add(Earthquake)} で受け取って育てる。
+ * 同じイベントが何度も届いても、イベントIDで見分けて1件として持つ。
+ * 持つのは発生時刻の新しい方から maxDocs 件までで、上限に達したら古いイベントから外す。
+ * すべてのメソッドはスレッドセーフ。
+ */
+final class PlaceSearchIndex {
+
+    private static final int INITIAL_CAPACITY = 1024;
+    //表示するリストの件数の上限と同じ。ストアにそれより古いイベントがあっても、検索するのは新しい方だけ
+    static final int DEFAULT_MAX_DOCS = 20000;
+
+    private static final PlaceSearchIndex sInstance = new PlaceSearchIndex();
+
+    //単語・地域から、それを含むイベントの番号 (昇順) へ
+    private final TreeMap<String, Postings> mTokens = new TreeMap<>();
+    private final TreeMap<String, Postings> mRegions = new TreeMap<>();
+    //主な場所ごとの、足し込む先の投稿リスト。同じ場所は何度も出てくるので、単語に分けるのは1度だけにする
+    private final Map<String, Postings[]> mPostingsByLocation = new HashMap<>();
+
+    //イベントの番号ごとの地震。削除されたり、場所が変わって番号を振り直したものは null
+    private Earthquake[] mDocs = new Earthquake[INITIAL_CAPACITY];
+    private long[] mUpdated = new long[INITIAL_CAPACITY];
+    private int mDocCount;
+    private int mLiveCount;
+    //イベントIDから、今の番号へ
+    private final Map<String, Integer> mDocIds = new HashMap<>();
+    //削除されたイベントの updated。古いものが後から届いても、生き返らせないため
+    private final Map<String, Long> mDeleted = new HashMap<>();
+
+    private final int mMaxDocs;
+    //上限に合わせて外したイベントの中で、最も新しい発生時刻。これより古いイベントは入れない
+    private long mOldestTime = Long.MIN_VALUE;
+    //ローカルストアから作ったかどうか
+    private boolean mLoaded;
+
+    PlaceSearchIndex() {
+        this(DEFAULT_MAX_DOCS);
+    }
+
+    PlaceSearchIndex(int maxDocs) {
+        mMaxDocs = maxDocs;
+    }
+
+    /**
+     * 保存済みのイベントを、発生時刻の新しい順に読む。ベンチマークなど JVM だけで動かせるよう、ストアは直接参照しない
+     */
+    interface Source {
+        List<Earthquake> newest(int limit);
+    }
+
+    static PlaceSearchIndex getInstance() {
+        return sInstance;
+    }
+
+    /**
+     * 1件をインデックスに入れる。同じIDのものがあれば置き換え、削除されたイベントなら取り除く。
+     * updated が前に受け取ったものより古い場合は無視する
+     */
+    synchronized void add(Earthquake earthquake) {
+        String id = earthquake.getId();
+        if (id == null) {
+            return;
+        }
+        Long deletedAt = mDeleted.get(id);
+        if (deletedAt != null) {
+            if (earthquake.getUpdated() < deletedAt) {
+                return;
+            }
+            mDeleted.remove(id);
+        }
+        Integer existing = mDocIds.get(id);
+        if (existing == null && earthquake.getTimeInMilliseconds() < mOldestTime) {
+            return;
+        }
+        if (existing != null) {
+            int doc = existing;
+            if (earthquake.getUpdated() < mUpdated[doc]) {
+                return;
+            }
+            if (!earthquake.isDeleted() && equalsNullable(mDocs[doc].getPlace(), earthquake.getPlace())) {
+                //単語は変わらないので、表示に使う地震だけ差し替える
+                mDocs[doc] = earthquake;
+                mUpdated[doc] = earthquake.getUpdated();
+                return;
+            }
+            //古い番号は投稿リストに残ったままになるので、null にして問い合わせで読み飛ばす
+            mDocs[doc] = null;
+            mDocIds.remove(id);
+            mLiveCount--;
+        }
+        if (earthquake.isDeleted()) {
+            //削除の記録も増え続けないよう、上限を超えたら忘れる
+            if (mDeleted.size() >= mMaxDocs) {
+                mDeleted.clear();
+            }
+            mDeleted.put(id, earthquake.getUpdated());
+            return;
+        }
+        compactIfNeeded();
+        int doc = newDoc(earthquake);
+        mDocIds.put(id, doc);
+        index(doc, earthquake);
+        if (mLiveCount > mMaxDocs) {
+            trim();
+        }
+    }
+
+    synchronized void addAll(List<Earthquake> earthquakes) {
+        for (Earthquake earthquake : earthquakes) {
+            add(earthquake);
+        }
+    }
+
+    /**
+     * ローカルストアに保存済みの新しいイベントでインデックスを作る。プロセスで最初に呼んだときだけ読み、
+     * オフラインで起動しても前回までに取得したイベントを検索できるようにする。
+     * ストアを読むので、UI スレッドでは呼ばないこと
+     */
+    void loadFrom(Source source) {
+        synchronized (this) {
+            if (mLoaded) {
+                return;
+            }
+            mLoaded = true;
+        }
+        //ロック外で読む。その間に届いたイベントの方が新しければ、add() が updated で残す
+        addAll(source.newest(mMaxDocs));
+    }
+
+    synchronized int size() {
+        return mLiveCount;
+    }
+
+    synchronized void clear() {
+        mDeleted.clear();
+        mOldestTime = Long.MIN_VALUE;
+        resetDocs();
+    }
+
+    private void resetDocs() {
+        mTokens.clear();
+        mRegions.clear();
+        mPostingsByLocation.clear();
+        mDocIds.clear();
+        mDocs = new Earthquake[INITIAL_CAPACITY];
+        mUpdated = new long[INITIAL_CAPACITY];
+        mDocCount = 0;
+        mLiveCount = 0;
+    }
+
+    /**
+     * 場所で検索し、新しい順に最大 limit 件を返す。単語が1つもない問い合わせは空のリスト
+     */
+    synchronized List<Earthquake> search(String query, int limit) {
+        List<Earthquake> results = new ArrayList<>();
+        if (query == null || limit <= 0) {
+            return results;
+        }
+        String words = query;
+        String region = null;
+        int comma = query.lastIndexOf(',');
+        if (comma >= 0) {
+            words = query.substring(0, comma);
+            region = join(tokenize(query.substring(comma + 1)));
+        }
+
+        long[] matched = null;
+        for (String word : tokenize(words)) {
+            matched = intersect(matched, prefixMatches(mTokens, word));
+        }
+        if (region != null && !region.isEmpty()) {
+            matched = intersect(matched, prefixMatches(mRegions, region));
+        }
+        if (matched == null) {
+            return results;
+        }
+
+        //一致した中から、新しい順に limit 件を選ぶ
+        int[] top = new int[limit];
+        long[] topTimes = new long[limit];
+        int count = 0;
+        for (int word = 0; word < matched.length; word++) {
+            long bits = matched[word];
+            while (bits != 0) {
+                int doc = word * 64 + Long.numberOfTrailingZeros(bits);
+                bits &= bits - 1;
+                Earthquake earthquake = mDocs[doc];
+                if (earthquake == null) {
+                    continue;
+                }
+                long time = earthquake.getTimeInMilliseconds();
+                if (count < limit) {
+                    top[count] = doc;
+                    topTimes[count] = time;
+                    siftUp(top, topTimes, count++);
+                } else if (time > topTimes[0]) {
+                    top[0] = doc;
+                    topTimes[0] = time;
+                    siftDown(top, topTimes, count);
+                }
+            }
+        }
+        //ヒープは最も古いものが先頭なので、取り出した逆順が新しい順になる
+        Earthquake[] ordered = new Earthquake[count];
+        for (int i = count - 1; i >= 0; i--) {
+            ordered[i] = mDocs[top[0]];
+            top[0] = top[i];
+            topTimes[0] = topTimes[i];
+            siftDown(top, topTimes, i);
+        }
+        results.addAll(Arrays.asList(ordered));
+        return results;
+    }
+
+    /**
+     * 小文字にしてアクセント記号を外し、英数字の並びごとに分ける
+     */
+    static List<String> tokenize(String text) {
+        List<String> tokens = new ArrayList<>();
+        if (text == null) {
+            return tokens;
+        }
+        String normalized = text.toLowerCase(Locale.US);
+        for (int i = 0; i < normalized.length(); i++) {
+            if (normalized.charAt(i) >= 0x80) {
+                normalized = Normalizer.normalize(normalized, Normalizer.Form.NFD)
+                        .replaceAll("\\p{InCombiningDiacriticalMarks}+", "");
+                break;
+            }
+        }
+        int start = -1;
+        for (int i = 0; i <= normalized.length(); i++) {
+            boolean letter = i < normalized.length() && Character.isLetterOrDigit(normalized.charAt(i));
+            if (letter && start < 0) {
+                start = i;
+            } else if (!letter && start >= 0) {
+                tokens.add(normalized.substring(start, i));
+                start = -1;
+            }
+        }
+        return tokens;
+    }
+
+    private int newDoc(Earthquake earthquake) {
+        if (mDocCount == mDocs.length) {
+            mDocs = Arrays.copyOf(mDocs, mDocCount * 2);
+            mUpdated = Arrays.copyOf(mUpdated, mDocCount * 2);
+        }
+        int doc = mDocCount++;
+        mDocs[doc] = earthquake;
+        mUpdated[doc] = earthquake.getUpdated();
+        mLiveCount++;
+        return doc;
+    }
+
+    private void index(int doc, Earthquake earthquake) {
+        String location = earthquake.getPrimaryLocation() != null ? earthquake.getPrimaryLocation() : "";
+        Postings[] targets = mPostingsByLocation.get(location);
+        if (targets == null) {
+            List<Postings> list = new ArrayList<>();
+            for (String token : tokenize(location)) {
+                list.add(postingsOf(mTokens, token));
+            }
+            String region = join(tokenize(EarthquakeAggregator.regionOf(earthquake)));
+            if (!region.isEmpty()) {
+                list.add(postingsOf(mRegions, region));
+            }
+            targets = list.toArray(new Postings[list.size()]);
+            mPostingsByLocation.put(location, targets);
+        }
+        for (Postings postings : targets) {
+            postings.add(doc);
+        }
+    }
+
+    /**
+     * 置き換えや削除で使われなくなった番号が半分を超えたら、生きているものだけで作り直す
+     */
+    private void compactIfNeeded() {
+        if (mDocCount < INITIAL_CAPACITY || mLiveCount * 2 > mDocCount) {
+            return;
+        }
+        rebuild();
+    }
+
+    /**
+     * 上限の 3/4 まで、発生時刻の古いイベントから外し、残ったものだけで作り直す。
+     * 外したイベントにしかない単語も、辞書から消える
+     */
+    private void trim() {
+        int target = mMaxDocs * 3 / 4;
+        long[] times = new long[mLiveCount];
+        int n = 0;
+        for (int i = 0; i < mDocCount; i++) {
+            if (mDocs[i] != null) {
+                times[n++] = mDocs[i].getTimeInMilliseconds();
+            }
+        }
+        Arrays.sort(times);
+        mOldestTime = times[mLiveCount - target];
+        for (int i = 0; i < mDocCount; i++) {
+            if (mDocs[i] != null && mDocs[i].getTimeInMilliseconds() < mOldestTime) {
+                mDocIds.remove(mDocs[i].getId());
+                mDocs[i] = null;
+                mLiveCount--;
+            }
+        }
+        rebuild();
+    }
+
+    private void rebuild() {
+        Earthquake[] docs = mDocs;
+        long[] updated = mUpdated;
+        int docCount = mDocCount;
+        resetDocs();
+        for (int i = 0; i < docCount; i++) {
+            if (docs[i] != null) {
+                int doc = newDoc(docs[i]);
+                mUpdated[doc] = updated[i];
+                mDocIds.put(docs[i].getId(), doc);
+                index(doc, docs[i]);
+            }
+        }
+    }
+
+    /**
+     * prefix で始まる単語のいずれかを含むイベントのビット集合
+     */
+    private long[] prefixMatches(TreeMap<String, Postings> map, String prefix) {
+        long[] bits = new long[(mDocCount + 63) / 64];
+        for (Map.Entry<String, Postings> entry : map.tailMap(prefix, true).entrySet()) {
+            if (!entry.getKey().startsWith(prefix)) {
+                break;
+            }
+            Postings postings = entry.getValue();
+            for (int i = 0; i < postings.mSize; i++) {
+                int doc = postings.mDocs[i];
+                bits[doc >>> 6] |= 1L << doc;
+            }
+        }
+        return bits;
+    }
+
+    private static long[] intersect(long[] a, long[] b) {
+        if (a == null) {
+            return b;
+        }
+        for (int i = 0; i < a.length; i++) {
+            a[i] &= b[i];
+        }
+        return a;
+    }
+
+    private static Postings postingsOf(TreeMap<String, Postings> map, String key) {
+        Postings postings = map.get(key);
+        if (postings == null) {
+            postings = new Postings();
+            map.put(key, postings);
+        }
+        return postings;
+    }
+
+    private static String join(List<String> tokens) {
+        StringBuilder builder = new StringBuilder();
+        for (String token : tokens) {
+            if (builder.length() > 0) {
+                builder.append(' ');
+            }
+            builder.append(token);
+        }
+        return builder.toString();
+    }
+
+    private static boolean equalsNullable(String a, String b) {
+        return a == null ? b == null : a.equals(b);
+    }
+
+    //times の小さい (古い) ものが先頭に来るヒープ
+    private static void siftUp(int[] docs, long[] times, int index) {
+        while (index > 0) {
+            int parent = (index - 1) / 2;
+            if (times[parent] <= times[index]) {
+                break;
+            }
+            swap(docs, times, parent, index);
+            index = parent;
+        }
+    }
+
+    private static void siftDown(int[] docs, long[] times, int size) {
+        int index = 0;
+        while (true) {
+            int smallest = index;
+            int left = index * 2 + 1;
+            int right = left + 1;
+            if (left < size && times[left] < times[smallest]) {
+                smallest = left;
+            }
+            if (right < size && times[right] < times[smallest]) {
+                smallest = right;
+            }
+            if (smallest == index) {
+                return;
+            }
+            swap(docs, times, smallest, index);
+            index = smallest;
+        }
+    }
+
+    private static void swap(int[] docs, long[] times, int i, int j) {
+        int doc = docs[i];
+        docs[i] = docs[j];
+        docs[j] = doc;
+        long time = times[i];
+        times[i] = times[j];
+        times[j] = time;
+    }
+
+    /**
+     * 1つの単語を含むイベントの番号。番号は振った順に足すので、昇順に並ぶ
+     */
+    private static final class Postings {
+        int[] mDocs = new int[4];
+        int mSize;
+
+        void add(int doc) {
+            //同じ場所に同じ単語が2回出てくる場合
+            if (mSize > 0 && mDocs[mSize - 1] == doc) {
+                return;
+            }
+            if (mSize == mDocs.length) {
+                mDocs = Arrays.copyOf(mDocs, mSize * 2);
+            }
+            mDocs[mSize++] = doc;
+        }
+    }
+}
@@ -0,0 +1,106 @@
+package com.example.android.quakereport;
+
+import android.net.Uri;
+import android.text.TextUtils;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 1つの監視対象 (領域と最小マグニチュードの組) を表す FDSN クエリの条件。
+ * <p>
+ * 設定画面では "最小マグニチュード[:最小緯度,最大緯度,最小経度,最大経度]" を ; で区切って並べる。
+ * 例えば "1.0:34,37,138,141;4.5" は、関東周辺の M1.0 以上と、全世界の M4.5 以上の2つのクエリになる。
+ */
+final class QuerySpec {
+
+    private static final String LOG_TAG = QuerySpec.class.getSimpleName();
+
+    private final String mMinMagnitude;
+    //最小緯度・最大緯度・最小経度・最大経度。全世界の場合は null
+    private final String[] mBounds;
+
+    QuerySpec(String minMagnitude, String[] bounds) {
+        mMinMagnitude = minMagnitude;
+        mBounds = bounds;
+    }
+
+    /**
+     * 設定画面の文字列を QuerySpec のリストにする。書式の誤っているものはログに出して読み飛ばす
+     *
+     * @return 空の場合は、設定されていない (これまで通り1つのクエリだけを使う)
+     */
+    static List<QuerySpec> parseList(String value) {
+        List<QuerySpec> specs = new ArrayList<>();
+        if (TextUtils.isEmpty(value)) {
+            return specs;
+        }
+        for (String entry : value.split(";")) {
+            entry = entry.trim();
+            if (entry.isEmpty()) {
+                continue;
+            }
+            QuerySpec spec = parse(entry);
+            if (spec != null) {
+                specs.add(spec);
+            } else {
+                Log.e(LOG_TAG, "Ignoring malformed region query: " + entry);
+            }
+        }
+        return specs;
+    }
+
+    private static QuerySpec parse(String entry) {
+        int colon = entry.indexOf(':');
+        String minMagnitude = (colon < 0 ? entry : entry.substring(0, colon)).trim();
+        if (!isNumber(minMagnitude)) {
+            return null;
+        }
+        if (colon < 0) {
+            return new QuerySpec(minMagnitude, null);
+        }
+
+        String[] bounds = entry.substring(colon + 1).split(",");
+        if (bounds.length != 4) {
+            return null;
+        }
+        for (int i = 0; i < bounds.length; i++) {
+            bounds[i] = bounds[i].trim();
+            if (!isNumber(bounds[i])) {
+                return null;
+            }
+        }
+        return new QuerySpec(minMagnitude, bounds);
+    }
+
+    private static boolean isNumber(String value) {
+        try {
+            Double.parseDouble(value);
+            return true;
+        } catch (NumberFormatException e) {
+            return false;
+        }
+    }
+
+    /**
+     * ベースとなる URL に、この条件のパラメータを付けた URL を返す
+     *
+     * @param limit   このクエリで取得する件数の上限
+     * @param orderBy FDSN の orderby と同じ値
+     */
+    String toUrl(String baseUrl, String limit, String orderBy) {
+        Uri.Builder uriBuilder = Uri.parse(baseUrl).buildUpon();
+        uriBuilder.appendQueryParameter("format", QueryUtils.RESPONSE_FORMAT);
+        uriBuilder.appendQueryParameter("limit", limit);
+        uriBuilder.appendQueryParameter("minmag", mMinMagnitude);
+        uriBuilder.appendQueryParameter("orderby", orderBy);
+        if (mBounds != null) {
+            uriBuilder.appendQueryParameter("minlatitude", mBounds[0]);
+            uriBuilder.appendQueryParameter("maxlatitude", mBounds[1]);
+            uriBuilder.appendQueryParameter("minlongitude", mBounds[2]);
+            uriBuilder.appendQueryParameter("maxlongitude", mBounds[3]);
+        }
+        return uriBuilder.toString();
+    }
+}
@@ -10,16 +10,23 @@ import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
-import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
+import java.io.Reader;
+import java.io.UnsupportedEncodingException;
 import java.net.HttpURLConnection;
 import java.net.MalformedURLException;
 import java.net.URL;
+import java.net.URLDecoder;
 import java.nio.charset.Charset;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 /**
  * USGS へリクエストし、取得した地震データに関するヘルパーメソッド
@@ -30,8 +37,32 @@ public final class QueryUtils {
      * Tag for the log messages
      */
     public static final String LOG_TAG = QueryUtils.class.getSimpleName();
+
+    //クエリで要求するレスポンスの形式。csv は同じ内容の GeoJSON の数分の一の大きさで、
+    //差分同期に必要な updated と status の列も含む。どのパーサーで読むかは format と Content-Type で決める
+    static final String RESPONSE_FORMAT = "csv";
+
+    //読める format。FDSN の既定の quakeml (XML) などは読めない
+    static final String FORMAT_GEOJSON = "geojson";
+    static final String FORMAT_CSV = "csv";
+    static final String FORMAT_TEXT = "text";
     private  Context mContext;
 
+    //USGS との通信に使う transport。テストではローカルのサーバに向けたものに差し替える
+    private static volatile HttpTransport sTransport = new UrlConnectionTransport();
+
+    //パースした地震を受け取るもの。QueryUtils 自身は何も登録しない (EarthquakeLoader が登録する)
+    private static final CopyOnWriteArrayList<EarthquakeObserver> sObservers = new CopyOnWriteArrayList<>();
+
+    /**
+     * パースした地震を1件ずつ受け取る。ネットワークからでもキャッシュからでも呼ばれ、
+     * 同じイベントが何度も届くので、イベントIDで重複を無視すること。
+     * パースしているスレッドから呼ばれるので、すぐに戻ること
+     */
+    interface EarthquakeObserver {
+        void onEarthquake(Earthquake earthquake);
+    }
+
 
     /**
      * このクラスは static な変数及びメソッドを保持するためだけのもの。
@@ -41,9 +72,109 @@ public final class QueryUtils {
     private QueryUtils() {
     }
 
-    //createUrl(), makeHttpRequest(), extractFeatureFromJson() をそれぞれ本メソッド内でコール
+    /**
+     * 通信に使う transport を差し替える
+     */
+    static void setTransport(HttpTransport transport) {
+        sTransport = transport;
+    }
+
+    static HttpTransport getTransport() {
+        return sTransport;
+    }
+
+    /**
+     * observer を登録する。登録済みなら何もしない
+     */
+    static void addObserver(EarthquakeObserver observer) {
+        sObservers.addIfAbsent(observer);
+    }
+
+    static void removeObserver(EarthquakeObserver observer) {
+        sObservers.remove(observer);
+    }
+
+    /**
+     * QueryUtils の外で組み上げた地震 (イベントフィードで届いたものなど) も、observer に渡す
+     */
+    static void notifyObservers(List<Earthquake> earthquakes) {
+        for (Earthquake earthquake : earthquakes) {
+            notifyObservers(earthquake);
+        }
+    }
+
+    private static void notifyObservers(Earthquake earthquake) {
+        for (EarthquakeObserver observer : sObservers) {
+            observer.onEarthquake(earthquake);
+        }
+    }
+
+    //createUrl(), makeHttpRequest(), extractFeatureFromStream() をそれぞれ本メソッド内でコール
     //上記メソッドは全て private。本メソッドは public。本メソッドのみ他のクラスからコールして使用。
     public static List<Earthquake> fetchEarthquakeData(String requestUrl) {
+        return fetchEarthquakeData(requestUrl, null);
+    }
+
+    /**
+     * ディスクキャッシュを通して地震データを取得する。
+     * TTL 以内のキャッシュがあればネットワークに行かず、古いものは条件付き GET で再検証する
+     *
+     * @param cache null の場合はキャッシュを使わない
+     */
+    static List<Earthquake> fetchEarthquakeData(String requestUrl, HttpDiskCache cache) {
+        return fetchEarthquakeData(requestUrl, cache, null);
+    }
+
+    /**
+     * {@link FetchCoordinator} を通して取得する。同じクエリを取得中なら、その結果を待つ
+     *
+     * @param channel 同じチャンネルで別のクエリが始まったら、このクエリを途中で止めてよい場合に指定する
+     */
+    static List<Earthquake> fetchEarthquakeData(String requestUrl, HttpDiskCache cache, String channel) {
+        return fetchEarthquakeData(requestUrl, cache, channel, null);
+    }
+
+    /**
+     * 呼び出し元がキャンセルできる取得。cancellation がキャンセルされたら、待つのをやめて null を返す。
+     * 同じクエリを待っている呼び出し元が他にいなければ、通信とパースもその場で止める
+     *
+     * @param cancellation null の場合はキャンセルしない
+     */
+    static List<Earthquake> fetchEarthquakeData(String requestUrl, final HttpDiskCache cache, String channel,
+                                                CancellationToken cancellation) {
+        return FetchCoordinator.getInstance().fetch(requestUrl, channel, new FetchCoordinator.Fetcher() {
+            @Override
+            public List<Earthquake> fetch(String url, CancellationToken token) {
+                return fetchUncoordinated(url, cache, token);
+            }
+        }, cancellation);
+    }
+
+    /**
+     * {@link FetchCoordinator} もキャッシュも通さずに取得する。一括インポートの時間窓のように1度しか取得しない
+     * URL 用で、結果をメモリにもディスクにも残さない。
+     * 表示用の取得と違い、途中で接続が切れた場合は途中までの結果ではなく null を返す。
+     * 何十万件にもなる一括インポートで集計や検索インデックスを膨らませないよう、observer にも渡さない。
+     * 必要なら呼び出し元が {@link #notifyObservers(List)} で渡す
+     *
+     * @param token null の場合はキャンセルしない
+     */
+    static List<Earthquake> fetchWhole(String requestUrl, CancellationToken token) {
+        return fetchUncoordinated(requestUrl, null, token != null ? token : new CancellationToken(), false, false);
+    }
+
+    private static List<Earthquake> fetchUncoordinated(String requestUrl, HttpDiskCache cache,
+                                                       CancellationToken token) {
+        return fetchUncoordinated(requestUrl, cache, token, true, true);
+    }
+
+    /**
+     * @param allowPartial パースの途中で失敗した場合に、そこまでの結果を返すかどうか
+     * @param notify       パースした地震を observer に渡すかどうか
+     */
+    private static List<Earthquake> fetchUncoordinated(String requestUrl, HttpDiskCache cache,
+                                                       CancellationToken token, boolean allowPartial,
+                                                       boolean notify) {
 
         //プログレスバーのテストをするときは下記スニペットをアクティブにする
 /*        try {
@@ -52,29 +183,72 @@ public final class QueryUtils {
             e.printStackTrace();
         }*/
 
+        //キャッシュがまだ新しければ、それをそのまま使う
+        HttpDiskCache.Entry cacheEntry = cache != null ? cache.get(requestUrl) : null;
+        if (cacheEntry != null && cacheEntry.fresh) {
+            List<Earthquake> cached = readCacheEntry(requestUrl, cacheEntry, token);
+            if (cached != null) {
+                Metrics.increment(Metrics.Metric.CACHE_HIT);
+                Log.i(LOG_TAG, "fetchEarthquakeData: cache hit");
+                return cached;
+            }
+        }
+
         //1.URL をクリエイトして。。。
         //String を URL OBJ に変換する
         URL url = createUrl(requestUrl);
 
-        //URL OBJ を使って HTTP リクエストを実施し、JSONレスポンスを受け取る
-        String jsonResponse = null;
+        //URL OBJ を使って HTTP リクエストを実施し、レスポンスのストリームを直接パースする
+        List<Earthquake> earthquakes = null;
 
         try {
-            //2.Http のリクエストを 作成して、実行。帰ってきた JSON を格納
-            jsonResponse = makeHttpRequest(url);
+            //2.Http のリクエストを 作成して、実行。
+            //3.帰ってきたストリームを読み進めながら、欲しいフィールドだけを取り出して ArrayList に add していく
+            earthquakes = makeHttpRequest(url, requestUrl, cache, cacheEntry, token, allowPartial, notify);
         } catch (IOException e) {
             Log.e(LOG_TAG, "Problem making the HTTP request.", e);
         }
 
-        //3.受け取った JSON レスポンス から、欲しいフィールドを取り出して、
-        // ArrayListに add を繰り返した結果を取得
-        List<Earthquake> earthquakes = extractFeatureFromJson(jsonResponse);
-
         Log.i(LOG_TAG, "fetchEarthquakeData");
         // Return the {@link Earthquake}
         return earthquakes;
     }
 
+    /**
+     * 期限切れかどうかに関わらず、キャッシュ済みの結果を返す。キャッシュがない場合は null。
+     * 起動直後にネットワークを待たずに表示するために使う
+     */
+    static List<Earthquake> readCachedEarthquakeData(String requestUrl, HttpDiskCache cache) {
+        HttpDiskCache.Entry cacheEntry = cache.get(requestUrl);
+        if (cacheEntry == null) {
+            return null;
+        }
+        return readCacheEntry(requestUrl, cacheEntry, null);
+    }
+
+    /**
+     * キャッシュにはレスポンスヘッダーを保存していないので、形式はクエリの format だけで決める
+     *
+     * @param token null の場合はキャンセルしない
+     */
+    private static List<Earthquake> readCacheEntry(String requestUrl, HttpDiskCache.Entry cacheEntry,
+                                                   CancellationToken token) {
+        InputStream inputStream = null;
+        try {
+            String format = responseFormat(requestUrl, null);
+            inputStream = cacheEntry.open();
+            return parseStream(inputStream, format, token);
+        } catch (InterruptedIOException e) {
+            Log.i(LOG_TAG, "readCacheEntry: cancelled");
+            return null;
+        } catch (IOException e) {
+            Log.e(LOG_TAG, "Problem reading the cached earthquake JSON result.", e);
+            return null;
+        } finally {
+            HttpDiskCache.closeQuietly(inputStream);
+        }
+    }
+
 
     /**
      * 1.String URL を URL OBJ に変換して返す
@@ -90,75 +264,290 @@ public final class QueryUtils {
     }
 
     /**
-     * 引数に与えられた URL に対する HTTP リクエストを作成
-     * String として返す
+     * 引数に与えられた URL に対する HTTP リクエストを作成し、
+     * レスポンスを String に溜めずにそのままパースして返す。
+     * cacheEntry がある場合は条件付き GET にして、304 ならキャッシュの内容を返す
      */
-    private static String makeHttpRequest(URL url) throws IOException {
-
-        String jsonResponse = "";
+    private static List<Earthquake> makeHttpRequest(URL url, String requestUrl, HttpDiskCache cache,
+                                                    HttpDiskCache.Entry cacheEntry,
+                                                    CancellationToken token,
+                                                    boolean allowPartial,
+                                                    boolean notify) throws IOException {
 
         //URL がnull の場合、メソッドから抜ける
         if (url == null) {
-            return jsonResponse;
+            return null;
         }
 
-        HttpURLConnection urlConnection = null;
-        InputStream inputStream = null;
+        Map<String, String> headers = new HashMap<>();
+        if (cacheEntry != null) {
+            //保存済みの検証子を送り、変わっていなければ 304 で本体を省略してもらう
+            if (cacheEntry.etag != null) {
+                headers.put("If-None-Match", cacheEntry.etag);
+            }
+            if (cacheEntry.lastModified != null) {
+                headers.put("If-Modified-Since", cacheEntry.lastModified);
+            }
+        }
+
+        List<Earthquake> earthquakes = null;
+        HttpTransport.Response response = null;
+        Runnable abortOnCancel = null;
 
         try {
-            //新規 HttpURLConnection を取得
-            urlConnection = (HttpURLConnection) url.openConnection();
-            urlConnection.setReadTimeout(10000/*milliseconds*/);
-            urlConnection.setConnectTimeout(15000/*milliseconds*/);
-            urlConnection.setRequestMethod("GET");
-            urlConnection.connect();//リクエスト実行
-
-            //レスポンスコードを確認。 ⇒200 なら読み込み開始。
-            if (urlConnection.getResponseCode() == 200) {
-                inputStream = urlConnection.getInputStream();
-                jsonResponse = readFromStream(inputStream);
+            //リクエスト実行。接続は transport が keep-alive で使い回す
+            response = sTransport.get(url, headers);
+
+            //キャンセルされたら、キャンセルしたスレッドでソケットを閉じる。
+            //データが届かずに read() で止まっていても、タイムアウトを待たずにすぐ抜けられる
+            final HttpTransport.Response abortable = response;
+            abortOnCancel = new Runnable() {
+                @Override
+                public void run() {
+                    abortable.abort();
+                }
+            };
+            token.addOnCancelListener(abortOnCancel);
+
+            //レスポンスコードを確認。 ⇒200 なら読み込み開始。304 ならキャッシュを使う
+            int responseCode = response.getCode();
+            if (responseCode == HttpURLConnection.HTTP_NOT_MODIFIED && cacheEntry != null) {
+                Metrics.increment(Metrics.Metric.CACHE_REVALIDATED);
+                cache.markRevalidated(requestUrl,
+                        response.getHeader("ETag"),
+                        response.getHeader("Last-Modified"));
+                earthquakes = readCacheEntry(requestUrl, cacheEntry, token);
+            } else if (responseCode == 200) {
+                //HTML のエラーページなど、読めない形式の本文はパースせずに失敗にする
+                String format = responseFormat(requestUrl, response.getHeader("Content-Type"));
+                //getBody() は伸長済みなので、キャッシュにも伸長後の JSON が保存される。
+                //キャンセルされたら次の read() で止まり、途中までのものはキャッシュに残さない
+                InputStream inputStream = token.wrap(response.getBody());
+                if (cache != null) {
+                    Metrics.increment(Metrics.Metric.CACHE_MISS);
+                    earthquakes = parseIntoCache(inputStream, format, requestUrl, cache,
+                            response.getHeader("ETag"),
+                            response.getHeader("Last-Modified"), token);
+                } else {
+                    //extractFeatureFromStream と同じく、パースに失敗した場合はそこまでの結果を返す。
+                    //キャンセルされた場合と、途中までの結果では困る呼び出し元 (allowPartial が false)、
+                    //1件も読めなかった場合 (本文が期待した形式ではない) には使わない
+                    List<Earthquake> parsed = new ArrayList<>();
+                    try {
+                        parseStream(inputStream, format, parsed, token, notify);
+                    } catch (IOException e) {
+                        if (token.isCancelled() || !allowPartial || parsed.isEmpty()) {
+                            throw e;
+                        }
+                        Log.e(LOG_TAG, "Problem parsing the earthquake JSON results", e);
+                    }
+                    earthquakes = parsed;
+                }
             } else {
-                Log.e(LOG_TAG, "Error response code: " + urlConnection.getResponseCode());
+                Log.e(LOG_TAG, "Error response code: " + responseCode);
             }
         } catch (IOException e) {
-            Log.e(LOG_TAG, "Problem retrieving the earthquake JSON result.", e);
+            if (token.isCancelled()) {
+                //FetchCoordinator が途中で止めた。通信の失敗ではない
+                Log.i(LOG_TAG, "makeHttpRequest: cancelled " + requestUrl);
+            } else {
+                Log.e(LOG_TAG, "Problem retrieving the earthquake JSON result.", e);
+            }
         } finally {
-            if (urlConnection != null) {
-                urlConnection.disconnect();
+            if (abortOnCancel != null) {
+                token.removeOnCancelListener(abortOnCancel);
             }
-            if (inputStream != null) {
-                //input stream をクローズする際も、IOException がスローされる可能性あり。
+            if (response != null && token.isCancelled()) {
+                //止めたリクエストの残りは読み捨てずに、接続ごと切る。
+                //その後の close() では、読み捨てずにストリームだけを解放する
+                response.abort();
+                response.close();
+            } else if (response != null) {
+                //disconnect() はしない。残りを読み捨てて閉じ、接続を次のリクエストに使い回す
+                //close する際も、IOException がスローされる可能性あり。
                 //よって、本メソッドのシグニチャにて、IOException を指定してある。
-                inputStream.close();
+                response.close();
+            }
+        }
+        return earthquakes;
+    }
+
+    /**
+     * レスポンスをパースしながら、同じバイト列をキャッシュにも書き出す。
+     * 最後まで正しくパースできた場合のみキャッシュに保存する
+     */
+    private static List<Earthquake> parseIntoCache(InputStream inputStream, String format, String requestUrl,
+                                                   HttpDiskCache cache, String etag,
+                                                   String lastModified,
+                                                   CancellationToken token) throws IOException {
+        HttpDiskCache.Editor editor = cache.edit(requestUrl);
+        boolean committed = false;
+        try {
+            InputStream teeStream = editor.wrap(inputStream);
+            List<Earthquake> earthquakes = parseStream(teeStream, format, token);
+            //JSON の後ろに残っている改行なども含めて保存する
+            byte[] drain = new byte[1024];
+            while (teeStream.read(drain) != -1) {
+                //読み捨てる
+            }
+            editor.commit(etag, lastModified);
+            committed = true;
+            return earthquakes;
+        } finally {
+            //IOException 以外で抜けた場合も、一時ファイルを残さない
+            if (!committed) {
+                editor.abort();
+            }
+        }
+    }
+
+    /**
+     * サーバからの GeoJSON レスポンスを {@link InputStream} から一度だけ読み進め、
+     * features[i].properties に出会うたびに Earthquake OBJ を組み上げて返す。
+     * レスポンス全体を String や JSONObject として保持しないので、件数が多くてもヒープを圧迫しない。
+     */
+    public static List<Earthquake> extractFeatureFromStream(InputStream inputStream) {
+        final List<Earthquake> earthquakes = new ArrayList<>();
+        if (inputStream == null) {
+            return earthquakes;
+        }
+        try {
+            parseStream(inputStream, FORMAT_GEOJSON, earthquakes, null, true);
+        } catch (IOException e) {
+            //extractFeatureFromJson と同じく、途中で失敗した場合はそこまでの結果を返す
+            Log.e(LOG_TAG, "Problem parsing the earthquake JSON results", e);
+        }
+        return earthquakes;
+    }
+
+    private static List<Earthquake> parseStream(InputStream inputStream, String format,
+                                                CancellationToken token) throws IOException {
+        List<Earthquake> earthquakes = new ArrayList<>();
+        parseStream(inputStream, format, earthquakes, token, true);
+        return earthquakes;
+    }
+
+    /**
+     * {@link #responseFormat(String, String)} で決めた形式に応じて、GeoJSON と csv / text のパーサーを使い分ける。
+     * 本文が形式と合わない場合 (HTML、空白だけ、BOM 付きなど) は、パーサーが IOException にする
+     *
+     * @param token  読み込みの塊ごと・feature ごとに確かめる。null の場合は最後まで読む
+     * @param notify パースした地震を observer にも渡すかどうか
+     */
+    private static void parseStream(InputStream inputStream, String format, final List<Earthquake> earthquakes,
+                                    CancellationToken token, final boolean notify) throws IOException {
+        long start = Metrics.startTimer();
+        GeoJsonStreamParser.Callback callback = new GeoJsonStreamParser.Callback() {
+            @Override
+            public void onEarthquake(Earthquake earthquake) {
+                earthquakes.add(earthquake);
+                if (notify) {
+                    notifyObservers(earthquake);
+                }
             }
+        };
+        int count;
+        if (FORMAT_GEOJSON.equals(format)) {
+            //InputStreamReader はバイト列を UTF-8 の文字として読む。バッファリングはパーサー側で行う
+            Reader reader = new InputStreamReader(inputStream, Charset.forName("UTF-8"));
+            GeoJsonStreamParser parser = new GeoJsonStreamParser(reader);
+            parser.setCancellationToken(token);
+            count = parser.parse(callback);
+        } else {
+            DelimitedStreamParser parser = new DelimitedStreamParser(inputStream);
+            parser.setCancellationToken(token);
+            count = parser.parse(callback);
         }
-        return jsonResponse;
+        Metrics.recordSince(Metrics.Metric.PARSE, start);
+        Metrics.record(Metrics.Metric.FEATURE_COUNT, count);
     }
 
     /**
-     * {@link InputStream} を サーバからのJSONレスポンスを含む String に変換する
+     * クエリの format と Content-Type から、本文をどのパーサーで読むかを決める。
+     * 要求した format を優先し、Content-Type がある場合はそれと食い違わないことを確かめる
+     * (captive portal の HTML や、format を付け忘れたクエリへの QuakeML を、別の形式として読まないため)。
+     * format のないクエリは Content-Type だけで決める
+     *
+     * @param contentType キャッシュから読む場合など、ヘッダーがない場合は null
+     * @return {@link #FORMAT_GEOJSON}、{@link #FORMAT_CSV}、{@link #FORMAT_TEXT} のいずれか
+     * @throws IOException 読めない形式の場合
      */
-    private static String readFromStream(InputStream inputStream) throws IOException {
-        StringBuilder output = new StringBuilder();
-        if (inputStream != null) {
+    static String responseFormat(String requestUrl, String contentType) throws IOException {
+        String format = queryParameter(requestUrl, "format");
+        String mimeType = null;
+        if (contentType != null) {
+            int semicolon = contentType.indexOf(';');
+            mimeType = (semicolon >= 0 ? contentType.substring(0, semicolon) : contentType)
+                    .trim().toLowerCase(Locale.US);
+        }
+        if (format == null) {
+            if (mimeType == null) {
+                throw new IOException("Cannot tell the response format of " + requestUrl);
+            }
+            if (isJson(mimeType)) {
+                return FORMAT_GEOJSON;
+            }
+            if ("text/csv".equals(mimeType)) {
+                return FORMAT_CSV;
+            }
+            throw new IOException("Unsupported Content-Type " + contentType + " for " + requestUrl);
+        }
+        format = format.toLowerCase(Locale.US);
+        boolean matches;
+        switch (format) {
+            case FORMAT_GEOJSON:
+                matches = mimeType == null || isJson(mimeType);
+                break;
+            case FORMAT_CSV:
+                //サーバーによっては csv も text/plain で返す
+                matches = mimeType == null || "text/csv".equals(mimeType) || "text/plain".equals(mimeType);
+                break;
+            case FORMAT_TEXT:
+                matches = mimeType == null || "text/plain".equals(mimeType);
+                break;
+            default:
+                throw new IOException("Unsupported format " + format + " for " + requestUrl);
+        }
+        if (!matches) {
+            throw new IOException("Expected " + format + " but Content-Type was " + contentType);
+        }
+        return format;
+    }
 
-            //InputStreamReader は一度に一文字ずつ読み取る
-            InputStreamReader inputStreamReader =
-                    new InputStreamReader(inputStream, Charset.forName("UTF-8"));
+    private static boolean isJson(String mimeType) {
+        return "application/json".equals(mimeType) || "application/geo+json".equals(mimeType)
+                || "application/vnd.geo+json".equals(mimeType);
+    }
 
-            //HD から一文字ずつ読むと凄く時間かかるので、貯めてから一塊で読むようにする
-            BufferedReader reader = new BufferedReader(inputStreamReader);
-            String line = reader.readLine();
-            while (line != null) {
-                output.append(line);
-                line = reader.readLine();
+    /**
+     * URL のクエリパラメーターの値。ない場合は null。
+     * JVM のユニットテストでも動くよう、android.net.Uri は使わない
+     */
+    private static String queryParameter(String url, String name) throws IOException {
+        int question = url.indexOf('?');
+        if (question < 0) {
+            return null;
+        }
+        int fragment = url.indexOf('#', question);
+        String query = fragment >= 0 ? url.substring(question + 1, fragment) : url.substring(question + 1);
+        for (String pair : query.split("&")) {
+            int equals = pair.indexOf('=');
+            String key = equals >= 0 ? pair.substring(0, equals) : pair;
+            if (name.equals(key)) {
+                try {
+                    return URLDecoder.decode(equals >= 0 ? pair.substring(equals + 1) : "", "UTF-8");
+                } catch (UnsupportedEncodingException e) {
+                    throw new IOException(e);
+                }
             }
         }
-        return output.toString();
+        return null;
     }
 
     /**
      * JSON レスポンスを パースして組み上げた Earthquake OBJ のリストを返す
+     * ※レスポンス全体を JSONObject のツリーにするため、件数が多い場合は
+     * {@link #extractFeatureFromStream(InputStream)} を使う
      */
     public static List<Earthquake> extractFeatureFromJson(String earthquakeJSON) {
         //渡された String としての JSON が null だった場合に抜ける
@@ -181,18 +570,39 @@ public final class QueryUtils {
             for (int i = 0; i < jsonArray.length(); i++) {
                 JSONObject jsonObject = jsonArray.getJSONObject(i);
                 JSONObject properties = jsonObject.optJSONObject("properties");
+                //GeoJsonStreamParser と同じく、mag か time が null のものは表示できないので読み飛ばす
+                //(ここで例外にすると、残りの feature まで読めなくなる)
+                if (properties == null || properties.isNull("mag") || properties.isNull("time")) {
+                    continue;
+                }
 
                 //表示したいデータを抜き出す
                 double mag = properties.getDouble("mag");
-                String place = properties.optString("place");
+                String place = optNullableString(properties, "place");
                 long mTimeInMilliseconds = properties.getLong("time");
-                String url = properties.getString("url");
+                String url = optNullableString(properties, "url");
+                //USGS のイベントID。ローカルに保存するときのキーになる
+                String id = optNullableString(jsonObject, "id");
+
+                //震源の位置。geometry.coordinates は [経度, 緯度, 深さ] の順。ない場合は NaN
+                double longitude = Double.NaN;
+                double latitude = Double.NaN;
+                double depth = Double.NaN;
+                JSONObject geometry = jsonObject.optJSONObject("geometry");
+                JSONArray coordinates = geometry != null ? geometry.optJSONArray("coordinates") : null;
+                if (coordinates != null && coordinates.length() >= 2) {
+                    longitude = coordinates.optDouble(0);
+                    latitude = coordinates.optDouble(1);
+                    depth = coordinates.optDouble(2);
+                }
 
                 //抜き出したデータを元に、Earthquake OBJ を作成。Earthquake クラスにて、状態と振る舞いを定義
-                Earthquake earthquake = new Earthquake(mag, place, mTimeInMilliseconds, url);
+                Earthquake earthquake = new Earthquake(id, mag, place, mTimeInMilliseconds, url,
+                        0, null, latitude, longitude, depth);
 
                 //Earthquake OBJ を ArrayList に add
                 earthquakes.add(earthquake);
+                notifyObservers(earthquake);
             }
 
         } catch (JSONException e) {
@@ -201,4 +611,12 @@ public final class QueryUtils {
         return earthquakes;//Earthquake のリストを返す
     }
 
+    /**
+     * GeoJsonStreamParser と同じく、null の場合やキーがない場合は null を返す。
+     * ※optString は null を "null" という文字列にしてしまう
+     */
+    private static String optNullableString(JSONObject jsonObject, String name) {
+        return jsonObject.isNull(name) ? null : jsonObject.optString(name);
+    }
+
 }
@@ -0,0 +1,121 @@
+package com.example.android.quakereport;
+
+/**
+ * バックグラウンドでの定期更新を、いつ実行するかを決める。
+ * <p>
+ * Android には依存せず、時刻は {@link Clock} から取るので、偽の時計を渡してテストできる。
+ * <ul>
+ * <li>前回の成功からまだ新しい間は、何度トリガーされても実行しない (複数のトリガーを1回にまとめる)</li>
+ * <li>失敗 (通信エラーや 200 以外のレスポンス) が続いたら、次に試すまでの間隔を倍々に延ばす</li>
+ * </ul>
+ */
+final class RefreshPolicy {
+
+    /**
+     * 現在時刻 (ミリ秒) を返す
+     */
+    interface Clock {
+        long now();
+    }
+
+    static final Clock SYSTEM_CLOCK = new Clock() {
+        @Override
+        public long now() {
+            return System.currentTimeMillis();
+        }
+    };
+
+    /**
+     * トリガーされたときの判断
+     */
+    enum Decision {
+        //更新する
+        RUN,
+        //前回の成功からまだ新しいので、このトリガーは前回の更新にまとめる
+        SKIP_FRESH,
+        //失敗が続いているので、バックオフの間は試さない
+        SKIP_BACKOFF
+    }
+
+    private final Clock mClock;
+    private final long mFreshnessMillis;
+    private final long mInitialBackoffMillis;
+    private final long mMaxBackoffMillis;
+
+    private long mLastSuccessAt;
+    private int mFailureCount;
+    private long mNextAttemptAt;
+
+    /**
+     * @param freshnessMillis      前回の成功からこの時間内は、更新しない
+     * @param initialBackoffMillis 1回目の失敗の後に待つ時間。失敗するたびに倍になる
+     * @param maxBackoffMillis     バックオフの上限
+     */
+    RefreshPolicy(Clock clock, long freshnessMillis, long initialBackoffMillis, long maxBackoffMillis) {
+        mClock = clock;
+        mFreshnessMillis = freshnessMillis;
+        mInitialBackoffMillis = initialBackoffMillis;
+        mMaxBackoffMillis = maxBackoffMillis;
+    }
+
+    /**
+     * 保存しておいた状態を戻す
+     */
+    void restore(long lastSuccessAt, int failureCount, long nextAttemptAt) {
+        mLastSuccessAt = lastSuccessAt;
+        mFailureCount = failureCount;
+        mNextAttemptAt = nextAttemptAt;
+    }
+
+    /**
+     * 今トリガーされたら更新するかどうか
+     */
+    Decision check() {
+        long now = mClock.now();
+        if (mFailureCount > 0 && now < mNextAttemptAt) {
+            return Decision.SKIP_BACKOFF;
+        }
+        //時計が戻された場合 (now < mLastSuccessAt) は新しいとみなさない
+        if (mLastSuccessAt > 0 && now >= mLastSuccessAt && now - mLastSuccessAt < mFreshnessMillis) {
+            return Decision.SKIP_FRESH;
+        }
+        return Decision.RUN;
+    }
+
+    void onSucceeded() {
+        mLastSuccessAt = mClock.now();
+        mFailureCount = 0;
+        mNextAttemptAt = 0;
+    }
+
+    void onFailed() {
+        mFailureCount++;
+        mNextAttemptAt = mClock.now() + getBackoffMillis(mFailureCount);
+    }
+
+    /**
+     * failureCount 回続けて失敗した後に待つ時間
+     */
+    long getBackoffMillis(int failureCount) {
+        long backoff = mInitialBackoffMillis;
+        for (int i = 1; i < failureCount && backoff < mMaxBackoffMillis; i++) {
+            backoff *= 2;
+        }
+        return Math.min(backoff, mMaxBackoffMillis);
+    }
+
+    long getLastSuccessAt() {
+        return mLastSuccessAt;
+    }
+
+    int getFailureCount() {
+        return mFailureCount;
+    }
+
+    /**
+     * バックオフ中の場合、次に試してよい時刻。そうでない場合は 0
+     */
+    long getNextAttemptAt() {
+        return mNextAttemptAt;
+    }
+}
@@ -0,0 +1,108 @@
+package com.example.android.quakereport;
+
+import android.app.AlarmManager;
+import android.app.PendingIntent;
+import android.content.Context;
+import android.content.Intent;
+import android.content.SharedPreferences;
+import android.os.SystemClock;
+import android.preference.PreferenceManager;
+import android.util.Log;
+
+/**
+ * {@link RefreshService} を AlarmManager で定期的に起動する。
+ * <p>
+ * setInexactRepeating の ELAPSED_REALTIME (スリープ中は起こさない) を使うので、
+ * システムが他のアプリのアラームとまとめて起動してくれ、更新のためだけに端末を起こすことはない。
+ * {@link RefreshPolicy} の状態 (最後の成功時刻・失敗回数) は SharedPreferences に保存する。
+ */
+final class RefreshScheduler {
+
+    private static final String LOG_TAG = RefreshScheduler.class.getSimpleName();
+
+    private static final String PREFS_NAME = "earthquake_refresh";
+    private static final String KEY_LAST_SUCCESS_AT = "lastSuccessAt";
+    private static final String KEY_FAILURE_COUNT = "failureCount";
+    private static final String KEY_NEXT_ATTEMPT_AT = "nextAttemptAt";
+
+    //定期更新と、失敗後の再試行とで別の PendingIntent にする
+    private static final int REQUEST_PERIODIC = 0;
+    private static final int REQUEST_RETRY = 1;
+
+    //前回の成功からこの時間内のトリガーは実行しない。ディスクキャッシュの TTL と同じ
+    private static final long FRESHNESS_MILLIS = HttpDiskCache.DEFAULT_TTL_MILLIS;
+    private static final long INITIAL_BACKOFF_MILLIS = 60 * 1000;
+    private static final long MAX_BACKOFF_MILLIS = 60 * 60 * 1000;
+
+    private RefreshScheduler() {
+    }
+
+    /**
+     * 設定画面の更新間隔で、定期更新のアラームを登録し直す。間隔が 0 の場合は定期更新を止める。
+     * 同じ PendingIntent で登録するので、何度呼んでもアラームは1つだけ
+     */
+    static void schedule(Context context) {
+        SharedPreferences sharedPrefs = PreferenceManager.getDefaultSharedPreferences(context);
+        long intervalMinutes = parseMinutes(sharedPrefs.getString(
+                context.getString(R.string.settings_refresh_interval_key),
+                context.getString(R.string.settings_refresh_interval_default)));
+
+        AlarmManager alarmManager = (AlarmManager) context.getSystemService(Context.ALARM_SERVICE);
+        PendingIntent periodic = createPendingIntent(context, REQUEST_PERIODIC);
+        if (intervalMinutes <= 0) {
+            alarmManager.cancel(periodic);
+            Log.i(LOG_TAG, "schedule: periodic refresh disabled");
+            return;
+        }
+        long intervalMillis = intervalMinutes * 60 * 1000;
+        alarmManager.setInexactRepeating(AlarmManager.ELAPSED_REALTIME,
+                SystemClock.elapsedRealtime() + intervalMillis, intervalMillis, periodic);
+        Log.i(LOG_TAG, "schedule: every " + intervalMinutes + " minutes");
+    }
+
+    /**
+     * 失敗した後、バックオフの時間が過ぎたらもう一度だけ試す
+     */
+    static void scheduleRetry(Context context, long delayMillis) {
+        AlarmManager alarmManager = (AlarmManager) context.getSystemService(Context.ALARM_SERVICE);
+        alarmManager.set(AlarmManager.ELAPSED_REALTIME,
+                SystemClock.elapsedRealtime() + Math.max(0, delayMillis),
+                createPendingIntent(context, REQUEST_RETRY));
+        Log.i(LOG_TAG, "scheduleRetry: in " + delayMillis + "ms");
+    }
+
+    static RefreshPolicy loadPolicy(Context context) {
+        SharedPreferences prefs = getPrefs(context);
+        RefreshPolicy policy = new RefreshPolicy(RefreshPolicy.SYSTEM_CLOCK,
+                FRESHNESS_MILLIS, INITIAL_BACKOFF_MILLIS, MAX_BACKOFF_MILLIS);
+        policy.restore(prefs.getLong(KEY_LAST_SUCCESS_AT, 0),
+                prefs.getInt(KEY_FAILURE_COUNT, 0),
+                prefs.getLong(KEY_NEXT_ATTEMPT_AT, 0));
+        return policy;
+    }
+
+    static void savePolicy(Context context, RefreshPolicy policy) {
+        getPrefs(context).edit()
+                .putLong(KEY_LAST_SUCCESS_AT, policy.getLastSuccessAt())
+                .putInt(KEY_FAILURE_COUNT, policy.getFailureCount())
+                .putLong(KEY_NEXT_ATTEMPT_AT, policy.getNextAttemptAt())
+                .apply();
+    }
+
+    private static SharedPreferences getPrefs(Context context) {
+        return context.getApplicationContext().getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+    }
+
+    private static PendingIntent createPendingIntent(Context context, int requestCode) {
+        Intent intent = new Intent(context, RefreshService.class);
+        return PendingIntent.getService(context, requestCode, intent, PendingIntent.FLAG_UPDATE_CURRENT);
+    }
+
+    private static long parseMinutes(String value) {
+        try {
+            return Long.parseLong(value);
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+}
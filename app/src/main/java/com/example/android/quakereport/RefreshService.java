@@ -0,0 +1,94 @@
+package com.example.android.quakereport;
+
+import android.app.IntentService;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.net.ConnectivityManager;
+import android.net.NetworkInfo;
+import android.os.BatteryManager;
+import android.util.Log;
+
+import java.util.List;
+
+/**
+ * {@link RefreshScheduler} から起動され、バックグラウンドで地震データを更新する。
+ * <p>
+ * EarthquakeActivity と同じクエリでロードするので、ローカルストア・ディスクキャッシュ・スナップショットが
+ * 新しくなり、次にアプリを開いたときはネットワークを待たずに最新のデータが表示される。
+ * IntentService はトリガーを1つずつ順に処理するので、溜まったトリガーは2つ目以降が
+ * {@link RefreshPolicy.Decision#SKIP_FRESH} になって1回の更新にまとまる。
+ */
+public class RefreshService extends IntentService {
+
+    private static final String LOG_TAG = RefreshService.class.getSimpleName();
+
+    //充電していないときに、これを下回る電池残量 (%) なら更新しない
+    private static final int MIN_BATTERY_PERCENT = 15;
+
+    public RefreshService() {
+        super(LOG_TAG);
+    }
+
+    @Override
+    protected void onHandleIntent(Intent intent) {
+        //アラームでプロセスが起動された場合は Activity を通らないので、ここでも計測の有無を決める
+        Metrics.init(this);
+        RefreshPolicy policy = RefreshScheduler.loadPolicy(this);
+        RefreshPolicy.Decision decision = policy.check();
+        if (decision != RefreshPolicy.Decision.RUN) {
+            Log.i(LOG_TAG, "onHandleIntent: " + decision);
+            return;
+        }
+        //ネットワークや電池の状態が悪いときは、失敗とは数えずに次のアラームを待つ
+        if (!isNetworkConnected() || isBatteryLow()) {
+            Log.i(LOG_TAG, "onHandleIntent: deferred until the next alarm");
+            return;
+        }
+
+        EarthquakeLoader loader = new EarthquakeLoader(this, EarthquakeActivity.buildQueryUrls(this));
+        if (!refresh(loader, policy)) {
+            long delay = policy.getNextAttemptAt() - System.currentTimeMillis();
+            RefreshScheduler.scheduleRetry(this, delay);
+            Log.e(LOG_TAG, "Refresh failed " + policy.getFailureCount() + " times, retrying in " + delay + "ms");
+        }
+        RefreshScheduler.savePolicy(this, policy);
+    }
+
+    /**
+     * loader で1回ロードし、結果を policy に記録する。
+     * 通信エラーや 200 以外のレスポンスで取得できなかった場合は、ローカルの結果を返せても失敗として数える
+     *
+     * @return 更新できた場合は true
+     */
+    static boolean refresh(EarthquakeLoader loader, RefreshPolicy policy) {
+        List<Earthquake> earthquakes = loader.loadInBackground();
+        if (earthquakes == null || loader.isLastLoadFailed()) {
+            policy.onFailed();
+            return false;
+        }
+        policy.onSucceeded();
+        Log.i(LOG_TAG, "refresh: refreshed " + earthquakes.size() + " events");
+        return true;
+    }
+
+    private boolean isNetworkConnected() {
+        ConnectivityManager cm = (ConnectivityManager) getSystemService(Context.CONNECTIVITY_SERVICE);
+        NetworkInfo networkInfo = cm.getActiveNetworkInfo();
+        return networkInfo != null && networkInfo.isConnected();
+    }
+
+    private boolean isBatteryLow() {
+        //ACTION_BATTERY_CHANGED は sticky なので、レシーバーなしで最新の状態が取れる
+        Intent battery = registerReceiver(null, new IntentFilter(Intent.ACTION_BATTERY_CHANGED));
+        if (battery == null) {
+            return false;
+        }
+        if (battery.getIntExtra(BatteryManager.EXTRA_PLUGGED, 0) != 0) {
+            return false;
+        }
+        int level = battery.getIntExtra(BatteryManager.EXTRA_LEVEL, -1);
+        int scale = battery.getIntExtra(BatteryManager.EXTRA_SCALE, -1);
+        return level >= 0 && scale > 0 && level * 100 / scale < MIN_BATTERY_PERCENT;
+    }
+}
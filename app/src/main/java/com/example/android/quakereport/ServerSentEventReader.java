@@ -0,0 +1,129 @@
+package com.example.android.quakereport;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+
+/**
+ * text/event-stream (Server-Sent Events) を1行ずつ読み、空行ごとに1つのイベントとして渡す。
+ * <p>
+ * data は複数行を \n でつなぎ、id は次の接続の Last-Event-ID に使えるよう、イベントをまたいで保持する。
+ * ":" で始まる行はコメント (サーバーのハートビート) なので読み飛ばす。
+ */
+final class ServerSentEventReader {
+
+    /**
+     * イベントが1つ届くたびに呼ばれる
+     *
+     * @param event event フィールドの値。ない場合は "message"
+     */
+    interface Callback {
+        void onEvent(String event, String data, String lastEventId) throws IOException;
+    }
+
+    static final String DEFAULT_EVENT = "message";
+
+    private final BufferedReader mReader;
+
+    private final StringBuilder mData = new StringBuilder();
+    private String mEvent;
+    //最後に受け取ったイベントID。空行で確定するまでは mPendingId に持つ
+    private String mLastEventId;
+    private String mPendingId;
+    //サーバーが retry で指定した再接続までの時間。指定がない場合は -1
+    private long mRetryMillis = -1;
+
+    /**
+     * @param lastEventId 前の接続で最後に受け取ったイベントID。ない場合は null
+     */
+    ServerSentEventReader(Reader reader, String lastEventId) {
+        mReader = reader instanceof BufferedReader ? (BufferedReader) reader : new BufferedReader(reader);
+        mLastEventId = lastEventId;
+        mPendingId = lastEventId;
+    }
+
+    /**
+     * ストリームの終わりまで読み、イベントごとに callback を呼ぶ
+     *
+     * @throws IOException 読み込みに失敗した場合、もしくは callback が投げた場合
+     */
+    void read(Callback callback) throws IOException {
+        String line;
+        //readLine は \r\n, \n, \r のいずれも行の終わりとして扱う
+        while ((line = mReader.readLine()) != null) {
+            if (line.isEmpty()) {
+                dispatch(callback);
+                continue;
+            }
+            if (line.charAt(0) == ':') {
+                continue;
+            }
+            int colon = line.indexOf(':');
+            String field = colon < 0 ? line : line.substring(0, colon);
+            String value = "";
+            if (colon >= 0) {
+                //"data: x" のように、コロンの後の空白1つは値に含めない
+                int start = colon + 1 < line.length() && line.charAt(colon + 1) == ' ' ? colon + 2 : colon + 1;
+                value = line.substring(start);
+            }
+            processField(field, value);
+        }
+        //最後の空行がないまま切れたイベントは、途中までしか届いていないので捨てる
+        mData.setLength(0);
+        mEvent = null;
+    }
+
+    String getLastEventId() {
+        return mLastEventId;
+    }
+
+    long getRetryMillis() {
+        return mRetryMillis;
+    }
+
+    private void processField(String field, String value) {
+        if ("data".equals(field)) {
+            mData.append(value).append('\n');
+        } else if ("event".equals(field)) {
+            mEvent = value;
+        } else if ("id".equals(field)) {
+            if (value.indexOf('\0') < 0) {
+                mPendingId = value;
+            }
+        } else if ("retry".equals(field)) {
+            if (!value.isEmpty() && isDigits(value)) {
+                try {
+                    mRetryMillis = Long.parseLong(value);
+                } catch (NumberFormatException e) {
+                    //long に収まらない値は無視する
+                }
+            }
+        }
+        //その他のフィールドは仕様どおり無視する
+    }
+
+    private void dispatch(Callback callback) throws IOException {
+        mLastEventId = mPendingId;
+        if (mData.length() == 0) {
+            mEvent = null;
+            return;
+        }
+        //末尾の \n を除く
+        mData.setLength(mData.length() - 1);
+        String data = mData.toString();
+        String event = mEvent != null && !mEvent.isEmpty() ? mEvent : DEFAULT_EVENT;
+        mData.setLength(0);
+        mEvent = null;
+        callback.onEvent(event, data, mLastEventId);
+    }
+
+    private static boolean isDigits(String value) {
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c < '0' || c > '9') {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -39,6 +39,22 @@ public class SettingsActivity extends AppCompatActivity {
             //key を元に、preference OBJ を findPreference
             Preference orderBy = findPreference(getString(R.string.settings_order_by_key));
             bindPreferenceSummaryToValue(orderBy);
+
+            //監視する領域。空の場合は最小 Magnitude で全世界を1つのクエリで取得する
+            Preference regions = findPreference(getString(R.string.settings_regions_key));
+            bindPreferenceSummaryToValue(regions);
+
+            //地点からの距離での絞り込み。空の場合は絞り込まない
+            Preference near = findPreference(getString(R.string.settings_near_key));
+            bindPreferenceSummaryToValue(near);
+
+            //イベントフィードの URL。空の場合はポーリング (ロード時の取得) だけにする
+            Preference streamUrl = findPreference(getString(R.string.settings_stream_url_key));
+            bindPreferenceSummaryToValue(streamUrl);
+
+            //バックグラウンド更新の間隔。EarthquakeActivity に戻ったときにアラームが登録し直される
+            Preference refreshInterval = findPreference(getString(R.string.settings_refresh_interval_key));
+            bindPreferenceSummaryToValue(refreshInterval);
         }
 
         @Override
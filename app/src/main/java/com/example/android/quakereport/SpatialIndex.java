@@ -0,0 +1,356 @@
+package com.example.android.quakereport;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * 震源の緯度・経度による、メモリ上のグリッド型の空間インデックス。
+ * <p>
+ * 地球を cellDegrees 度四方のセルに分け、セルごとにイベントのインデックスを並べておく
+ * (セルの開始位置の配列 + インデックスの配列なので、イベントごとのオブジェクトは作らない)。
+ * 半径・矩形・近い順 N 件の問い合わせは、範囲にかかるセルだけを調べ、最後に正確な距離で絞り込む。
+ * 作成後は変更しないので、複数のスレッドから読んでよい。
+ */
+final class SpatialIndex {
+
+    //平均地球半径 (km)
+    static final double EARTH_RADIUS_KM = 6371.0088;
+    //地球の裏側までの距離。これ以上の半径はすべてのイベントを含む
+    private static final double MAX_DISTANCE_KM = Math.PI * EARTH_RADIUS_KM;
+
+    //数万件の地震なら、1度四方 (赤道で約 111km) でセルあたり数件になる
+    static final double DEFAULT_CELL_DEGREES = 1.0;
+
+    private final double mCellDegrees;
+    private final int mRows;
+    private final int mColumns;
+    //セル c のイベントは mEntries[mCellStarts[c]] 〜 mEntries[mCellStarts[c + 1] - 1]
+    private final int[] mCellStarts;
+    private final int[] mEntries;
+    private final double[] mLatitudes;
+    private final double[] mLongitudes;
+
+    private SpatialIndex(double cellDegrees, double[] latitudes, double[] longitudes, int size) {
+        mCellDegrees = cellDegrees;
+        mRows = (int) Math.ceil(180 / cellDegrees);
+        mColumns = (int) Math.ceil(360 / cellDegrees);
+        mLatitudes = latitudes;
+        mLongitudes = longitudes;
+
+        //1.セルごとの件数を数え、2.開始位置を決めてから、3.インデックスを詰める (計数ソート)
+        int[] cells = new int[size];
+        int[] counts = new int[mRows * mColumns + 1];
+        int indexed = 0;
+        for (int i = 0; i < size; i++) {
+            if (Double.isNaN(latitudes[i]) || Double.isNaN(longitudes[i])) {
+                //位置が不明なイベントはインデックスに入れない
+                cells[i] = -1;
+                continue;
+            }
+            cells[i] = cellOf(latitudes[i], longitudes[i]);
+            counts[cells[i] + 1]++;
+            indexed++;
+        }
+        for (int c = 1; c < counts.length; c++) {
+            counts[c] += counts[c - 1];
+        }
+        mCellStarts = counts.clone();
+        mEntries = new int[indexed];
+        for (int i = 0; i < size; i++) {
+            if (cells[i] >= 0) {
+                mEntries[counts[cells[i]]++] = i;
+            }
+        }
+    }
+
+    /**
+     * 緯度・経度の列からインデックスを作る。返すインデックスは配列の添字
+     */
+    static SpatialIndex build(double[] latitudes, double[] longitudes, int size, double cellDegrees) {
+        return new SpatialIndex(cellDegrees, latitudes, longitudes, size);
+    }
+
+    /**
+     * リストの地震からインデックスを作る。返すインデックスはリストの位置
+     */
+    static SpatialIndex build(List<Earthquake> earthquakes) {
+        int size = earthquakes.size();
+        double[] latitudes = new double[size];
+        double[] longitudes = new double[size];
+        for (int i = 0; i < size; i++) {
+            Earthquake earthquake = earthquakes.get(i);
+            latitudes[i] = earthquake.getLatitude();
+            longitudes[i] = earthquake.getLongitude();
+        }
+        return new SpatialIndex(DEFAULT_CELL_DEGREES, latitudes, longitudes, size);
+    }
+
+    /**
+     * インデックスに入っている (位置が分かっている) イベントの数
+     */
+    int size() {
+        return mEntries.length;
+    }
+
+    /**
+     * 中心から radiusKm 以内のイベントを、インデックスの昇順 (元の並び順) で返す
+     */
+    int[] withinRadius(double latitude, double longitude, double radiusKm) {
+        IntList result = new IntList();
+        collectWithinRadius(latitude, longitude, radiusKm, result);
+        int[] indexes = result.toArray();
+        Arrays.sort(indexes);
+        return indexes;
+    }
+
+    /**
+     * 矩形に入るイベントを、インデックスの昇順で返す。
+     * minLongitude &gt; maxLongitude の場合は、日付変更線をまたぐ矩形として扱う
+     */
+    int[] withinBoundingBox(double minLatitude, double maxLatitude, double minLongitude, double maxLongitude) {
+        IntList result = new IntList();
+        int firstRow = rowOf(minLatitude);
+        int lastRow = rowOf(maxLatitude);
+        boolean crossesAntimeridian = minLongitude > maxLongitude;
+
+        for (int row = firstRow; row <= lastRow; row++) {
+            if (crossesAntimeridian) {
+                scanBoxColumns(row, columnOf(minLongitude), mColumns - 1,
+                        minLatitude, maxLatitude, minLongitude, maxLongitude, true, result);
+                scanBoxColumns(row, 0, columnOf(maxLongitude),
+                        minLatitude, maxLatitude, minLongitude, maxLongitude, true, result);
+            } else {
+                scanBoxColumns(row, columnOf(minLongitude), columnOf(maxLongitude),
+                        minLatitude, maxLatitude, minLongitude, maxLongitude, false, result);
+            }
+        }
+        int[] indexes = result.toArray();
+        Arrays.sort(indexes);
+        return indexes;
+    }
+
+    /**
+     * 中心から近い順に、最大 count 件のイベントを返す
+     */
+    int[] nearest(double latitude, double longitude, int count) {
+        if (count <= 0 || mEntries.length == 0) {
+            return new int[0];
+        }
+        //半径を倍々に広げ、count 件以上見つかったらそこで止める。
+        //半径内はすべて見つかっているので、その中の近い順 count 件が全体でも近い順 count 件になる
+        double radiusKm = mCellDegrees * 111.0;
+        IntList candidates = new IntList();
+        while (true) {
+            candidates.clear();
+            collectWithinRadius(latitude, longitude, radiusKm, candidates);
+            if (candidates.size() >= count || radiusKm >= MAX_DISTANCE_KM) {
+                break;
+            }
+            radiusKm *= 2;
+        }
+        return closest(candidates, latitude, longitude, count);
+    }
+
+    /**
+     * 2点間の大円距離 (km)。haversine の公式
+     */
+    static double distanceKm(double latitude1, double longitude1, double latitude2, double longitude2) {
+        double dLatitude = Math.toRadians(latitude2 - latitude1);
+        double dLongitude = Math.toRadians(longitude2 - longitude1);
+        double sinLatitude = Math.sin(dLatitude / 2);
+        double sinLongitude = Math.sin(dLongitude / 2);
+        double a = sinLatitude * sinLatitude
+                + Math.cos(Math.toRadians(latitude1)) * Math.cos(Math.toRadians(latitude2))
+                * sinLongitude * sinLongitude;
+        return 2 * EARTH_RADIUS_KM * Math.asin(Math.min(1, Math.sqrt(a)));
+    }
+
+    private void collectWithinRadius(double latitude, double longitude, double radiusKm, IntList result) {
+        if (radiusKm < 0) {
+            return;
+        }
+        double angularRadius = radiusKm / EARTH_RADIUS_KM;
+        double radiusDegrees = Math.toDegrees(angularRadius);
+        double minLatitude = latitude - radiusDegrees;
+        double maxLatitude = latitude + radiusDegrees;
+
+        //円が極を含む場合や地球の半分を超える場合は、すべての経度を調べる
+        boolean allColumns = minLatitude <= -90 || maxLatitude >= 90 || angularRadius >= Math.PI / 2;
+        int firstColumn = 0;
+        int lastColumn = mColumns - 1;
+        if (!allColumns) {
+            //球面上の円が経度方向に広がる最大の幅
+            double dLongitude = Math.toDegrees(Math.asin(
+                    Math.sin(angularRadius) / Math.cos(Math.toRadians(latitude))));
+            //折り返す前の列番号。範囲が負や mColumns 以上になっても、後で剰余を取る
+            firstColumn = (int) Math.floor((longitude - dLongitude + 180) / mCellDegrees);
+            lastColumn = (int) Math.floor((longitude + dLongitude + 180) / mCellDegrees);
+            if (lastColumn - firstColumn + 1 >= mColumns) {
+                allColumns = true;
+                firstColumn = 0;
+                lastColumn = mColumns - 1;
+            }
+        }
+
+        int firstRow = rowOf(Math.max(-90, minLatitude));
+        int lastRow = rowOf(Math.min(90, maxLatitude));
+        for (int row = firstRow; row <= lastRow; row++) {
+            for (int column = firstColumn; column <= lastColumn; column++) {
+                int wrapped = ((column % mColumns) + mColumns) % mColumns;
+                int cell = row * mColumns + wrapped;
+                for (int e = mCellStarts[cell]; e < mCellStarts[cell + 1]; e++) {
+                    int index = mEntries[e];
+                    if (distanceKm(latitude, longitude, mLatitudes[index], mLongitudes[index]) <= radiusKm) {
+                        result.add(index);
+                    }
+                }
+            }
+        }
+    }
+
+    private void scanBoxColumns(int row, int firstColumn, int lastColumn,
+                                double minLatitude, double maxLatitude,
+                                double minLongitude, double maxLongitude,
+                                boolean crossesAntimeridian, IntList result) {
+        for (int column = firstColumn; column <= lastColumn; column++) {
+            int cell = row * mColumns + column;
+            for (int e = mCellStarts[cell]; e < mCellStarts[cell + 1]; e++) {
+                int index = mEntries[e];
+                double lat = mLatitudes[index];
+                double lon = mLongitudes[index];
+                boolean inLongitude = crossesAntimeridian
+                        ? lon >= minLongitude || lon <= maxLongitude
+                        : lon >= minLongitude && lon <= maxLongitude;
+                if (inLongitude && lat >= minLatitude && lat <= maxLatitude) {
+                    result.add(index);
+                }
+            }
+        }
+    }
+
+    /**
+     * 候補の中から近い順に count 件を選ぶ。大きさ count の最大ヒープで、遠いものから追い出す
+     */
+    private int[] closest(IntList candidates, double latitude, double longitude, int count) {
+        int size = Math.min(count, candidates.size());
+        int[] heap = new int[size];
+        double[] distances = new double[size];
+        int heapSize = 0;
+        for (int i = 0; i < candidates.size(); i++) {
+            int index = candidates.get(i);
+            double distance = distanceKm(latitude, longitude, mLatitudes[index], mLongitudes[index]);
+            if (heapSize < size) {
+                //末尾に追加して上に移動する
+                int child = heapSize++;
+                while (child > 0) {
+                    int parent = (child - 1) / 2;
+                    if (distances[parent] >= distance) {
+                        break;
+                    }
+                    heap[child] = heap[parent];
+                    distances[child] = distances[parent];
+                    child = parent;
+                }
+                heap[child] = index;
+                distances[child] = distance;
+            } else if (distance < distances[0]) {
+                //一番遠いもの (根) と入れ替えて下に移動する
+                int parent = 0;
+                while (true) {
+                    int child = parent * 2 + 1;
+                    if (child >= heapSize) {
+                        break;
+                    }
+                    if (child + 1 < heapSize && distances[child + 1] > distances[child]) {
+                        child++;
+                    }
+                    if (distances[child] <= distance) {
+                        break;
+                    }
+                    heap[parent] = heap[child];
+                    distances[parent] = distances[child];
+                    parent = child;
+                }
+                heap[parent] = index;
+                distances[parent] = distance;
+            }
+        }
+
+        //ヒープから遠い順に取り出し、後ろから詰めて近い順にする
+        int[] result = new int[heapSize];
+        for (int last = heapSize - 1; last >= 0; last--) {
+            result[last] = heap[0];
+            int movedIndex = heap[last];
+            double movedDistance = distances[last];
+            int parent = 0;
+            while (true) {
+                int child = parent * 2 + 1;
+                if (child >= last) {
+                    break;
+                }
+                if (child + 1 < last && distances[child + 1] > distances[child]) {
+                    child++;
+                }
+                if (distances[child] <= movedDistance) {
+                    break;
+                }
+                heap[parent] = heap[child];
+                distances[parent] = distances[child];
+                parent = child;
+            }
+            heap[parent] = movedIndex;
+            distances[parent] = movedDistance;
+        }
+        return result;
+    }
+
+    private int cellOf(double latitude, double longitude) {
+        return rowOf(latitude) * mColumns + columnOf(longitude);
+    }
+
+    private int rowOf(double latitude) {
+        int row = (int) Math.floor((latitude + 90) / mCellDegrees);
+        return Math.max(0, Math.min(mRows - 1, row));
+    }
+
+    private int columnOf(double longitude) {
+        //範囲外の経度だけ -180〜180 に正規化する。180 は -180 に折り返さず最後の列に入れるので、
+        //経度 180 までの矩形で見つかる (半径の問い合わせは列を折り返して調べるので、どちらでもよい)
+        if (longitude < -180 || longitude > 180) {
+            longitude -= 360 * Math.floor((longitude + 180) / 360);
+        }
+        int column = (int) Math.floor((longitude + 180) / mCellDegrees);
+        return Math.max(0, Math.min(mColumns - 1, column));
+    }
+
+    /**
+     * 伸長する int の配列。Integer のボクシングを避けるため
+     */
+    private static final class IntList {
+        private int[] mValues = new int[64];
+        private int mSize;
+
+        void add(int value) {
+            if (mSize == mValues.length) {
+                mValues = Arrays.copyOf(mValues, mSize * 2);
+            }
+            mValues[mSize++] = value;
+        }
+
+        int get(int index) {
+            return mValues[index];
+        }
+
+        int size() {
+            return mSize;
+        }
+
+        void clear() {
+            mSize = 0;
+        }
+
+        int[] toArray() {
+            return Arrays.copyOf(mValues, mSize);
+        }
+    }
+}
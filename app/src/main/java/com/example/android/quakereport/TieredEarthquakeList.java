@@ -0,0 +1,553 @@
+package com.example.android.quakereport;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.Charset;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.RandomAccess;
+
+/**
+ * 件数の多い結果を、メモリ (hot tier) とディスク (cold tier) に分けて持つ読み取り専用の List。
+ * <p>
+ * イベントは {@link #PAGE_SIZE} 件ずつのページにまとめてキャッシュディレクトリのファイルに書き出し、
+ * メモリには並び順で上位のページと、最近読んだページだけを予算 (ヒープ上の大きさの見積もり) の範囲で持つ。
+ * スクロールして予算の外のページに来たら、そのページをファイルから読み込み、最も長く使われていないページを捨てる。
+ * 先頭のページはスクロールでは捨てず、{@link #trimHotTier(long)} でだけ捨てる。
+ * 予算に収まる間はファイルを作らず、全件をメモリに持つ。
+ * <p>
+ * 作成後は変更しない。get() は同期化してあるので、複数のスレッドから読んでよい。
+ * <p>
+ * ファイルは {@link Builder#view()} で作ったリストと最終的なリストで共有する。リストを持ち続けるものは
+ * {@link #retain()} し、手放すときに {@link #release()} する。どのリストも retain されていなければ、
+ * ファイルを閉じて領域を解放する。閉じた後は、メモリにないページを読もうとすると例外になる。
+ * {@link Builder#build()} で作ったリストは、最初に retain されるか捨てられるまでファイルを閉じさせない。
+ */
+final class TieredEarthquakeList extends AbstractList<Earthquake> implements RandomAccess {
+
+    static final int PAGE_SIZE = 256;
+
+    //ヒープ上の大きさの見積もり。予算を超えないよう、実際より大きめにしてある
+    //Earthquake 本体 (double 4つ・long 2つ・参照 7つ)
+    private static final int EARTHQUAKE_BYTES = 96;
+    //String 1つのオブジェクトと配列のヘッダ。中身は1文字 2バイトで数える
+    private static final int STRING_BYTES = 40;
+    //バインドしたときに作られて Earthquake に残る、表示用データ
+    private static final int DISPLAY_BYTES = 256;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    //予算を超えなかった場合は null
+    private final PageFile mFile;
+    private final int mSize;
+    private final long mBudgetBytes;
+    //先頭から途切れずにメモリにあった件数 (作成時)
+    private final int mResidentSize;
+
+    //先頭のページ。trimHotTier() で捨てた場合は null
+    private Page mFirstPage;
+    //先頭以外のメモリ上のページ。アクセス順の LinkedHashMap で、古いものから捨てる
+    private final LinkedHashMap<Integer, Page> mHot = new LinkedHashMap<>(16, 0.75f, true);
+    //mFirstPage と mHot の見積もりの合計
+    private long mHotBytes;
+    //統計。ファイルからページを読み込んだ回数
+    private int mPageIns;
+    //build() で作ったリストが、最初に retain されるまでファイルに持っている分
+    private boolean mPendingHold;
+
+    private TieredEarthquakeList(PageFile file, int size, long budgetBytes, List<Page> resident,
+                                 boolean pendingHold) {
+        mFile = file;
+        mPendingHold = pendingHold;
+        mSize = size;
+        mBudgetBytes = budgetBytes;
+        int residentPages = 0;
+        //深いページほど先に捨てられるよう、後ろのページから入れる
+        for (int i = resident.size() - 1; i >= 0; i--) {
+            Page page = resident.get(i);
+            if (page.mIndex == 0) {
+                mFirstPage = page;
+            } else {
+                mHot.put(page.mIndex, page);
+            }
+            mHotBytes += page.mBytes;
+        }
+        while (residentPages < resident.size() && resident.get(residentPages).mIndex == residentPages) {
+            residentPages++;
+        }
+        mResidentSize = Math.min(size, residentPages * PAGE_SIZE);
+    }
+
+    @Override
+    public Earthquake get(int index) {
+        if (index < 0 || index >= mSize) {
+            throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + mSize);
+        }
+        return pageAt(index / PAGE_SIZE).mEarthquakes[index % PAGE_SIZE];
+    }
+
+    @Override
+    public int size() {
+        return mSize;
+    }
+
+    private synchronized Page pageAt(int index) {
+        if (index == 0 && mFirstPage != null) {
+            return mFirstPage;
+        }
+        Page page = mHot.get(index);
+        if (page != null) {
+            return page;
+        }
+        //メモリにないページはすべてファイルにある
+        page = mFile.read(index);
+        mPageIns++;
+        if (index == 0) {
+            mFirstPage = page;
+        } else {
+            mHot.put(index, page);
+        }
+        mHotBytes += page.mBytes;
+        evict(mBudgetBytes, page);
+        return page;
+    }
+
+    /**
+     * 見積もりが maxBytes 以下になるまで、最も長く使われていないページから捨てる。
+     * keep と、ファイルに書き出していないページは捨てない
+     */
+    private void evict(long maxBytes, Page keep) {
+        Iterator<Page> iterator = mHot.values().iterator();
+        while (mHotBytes > maxBytes && iterator.hasNext()) {
+            Page page = iterator.next();
+            if (page != keep && page.mOnDisk) {
+                iterator.remove();
+                mHotBytes -= page.mBytes;
+            }
+        }
+    }
+
+    /**
+     * メモリ不足の通知を受けたときに、メモリ上のページを maxBytes まで減らす。
+     * それでも足りなければ先頭のページも捨てる。捨てたページは次に読まれたときにファイルから読み直す
+     */
+    synchronized void trimHotTier(long maxBytes) {
+        if (mFile == null) {
+            //全件が予算に収まっているので、捨てると読み直せない
+            return;
+        }
+        evict(maxBytes, null);
+        if (mHotBytes > maxBytes && mFirstPage != null && mFirstPage.mOnDisk) {
+            mHotBytes -= mFirstPage.mBytes;
+            mFirstPage = null;
+        }
+    }
+
+    /**
+     * このリストを持ち続けるものとして登録する。{@link #release()} と対にする
+     */
+    synchronized void retain() {
+        if (mPendingHold) {
+            //作ったときからの分を引き継ぐ
+            mPendingHold = false;
+        } else if (mFile != null) {
+            mFile.retain();
+        }
+    }
+
+    /**
+     * {@link #retain()} を取り消す。同じファイルを使うリストがどれも retain されておらず、
+     * 書き込みも終わっていれば、ファイルを閉じる
+     */
+    void release() {
+        if (mFile != null) {
+            mFile.release();
+        }
+    }
+
+    /**
+     * 一度も retain されないまま捨てるリストのファイルを、他のリストが使っていなければ閉じる
+     */
+    synchronized void discardIfUnused() {
+        if (mPendingHold) {
+            mPendingHold = false;
+            mFile.release();
+        } else if (mFile != null) {
+            mFile.closeIfUnused();
+        }
+    }
+
+    /**
+     * 予算を超えて、ディスクに書き出したかどうか
+     */
+    boolean isSpilled() {
+        return mFile != null;
+    }
+
+    /**
+     * 作成時に先頭から途切れずにメモリにあった件数。ディスクに書き出していなければ全件
+     */
+    int getResidentSize() {
+        return mResidentSize;
+    }
+
+    long getBudgetBytes() {
+        return mBudgetBytes;
+    }
+
+    /**
+     * メモリ上のページの見積もりの合計
+     */
+    synchronized long getHotBytes() {
+        return mHotBytes;
+    }
+
+    /**
+     * 先頭のページの見積もり。メモリにない場合は 0
+     */
+    synchronized long getFirstPageBytes() {
+        return mFirstPage != null ? mFirstPage.mBytes : 0;
+    }
+
+    synchronized int getPageInCount() {
+        return mPageIns;
+    }
+
+    /**
+     * earthquake 1件がヒープ上で占める大きさの見積もり
+     */
+    static long estimateBytes(Earthquake earthquake) {
+        //place は表示用に2つに分けた文字列も持つので、2回数える
+        return EARTHQUAKE_BYTES + DISPLAY_BYTES + estimateBytes(earthquake.getId())
+                + 2 * estimateBytes(earthquake.getPlace()) + estimateBytes(earthquake.getUrl());
+    }
+
+    private static long estimateBytes(String value) {
+        return value == null ? 0 : STRING_BYTES + 2L * value.length();
+    }
+
+    /**
+     * earthquakes を予算の範囲のメモリで持てるかどうか。超えると分かった時点で数えるのをやめる
+     */
+    static boolean fitsInBudget(List<Earthquake> earthquakes, long budgetBytes) {
+        if (earthquakes instanceof TieredEarthquakeList) {
+            return !((TieredEarthquakeList) earthquakes).isSpilled();
+        }
+        long bytes = 0;
+        for (Earthquake earthquake : earthquakes) {
+            bytes += estimateBytes(earthquake);
+            if (bytes > budgetBytes) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * 先頭から順に1件ずつ追加して、TieredEarthquakeList を作る。
+     * メモリに持つのは予算の範囲の上位のページと、書きかけの1ページだけなので、
+     * 何件追加してもヒープの使用量は予算 + 1ページで頭打ちになる
+     */
+    static final class Builder {
+        private final File mDirectory;
+        private final long mBudgetBytes;
+
+        //メモリに持ち続けるページ。先頭から予算に収まる分と、ディスクに書けなかったもの
+        private final List<Page> mResident = new ArrayList<>();
+        private long mResidentBytes;
+        //予算を超えたときに作る。作った後は、すべてのページをここに書く
+        private PageFile mFile;
+        //ディスクに書けなかった場合は、予算を超えてもメモリに持つ (表示できなくなるよりはよい)
+        private boolean mSpillFailed;
+
+        private Earthquake[] mCurrent = new Earthquake[PAGE_SIZE];
+        private int mCurrentCount;
+        private long mCurrentBytes;
+        private int mSize;
+        private int mPageCount;
+
+        /**
+         * @param directory   予算を超えたときにページのファイルを作るディレクトリ
+         * @param budgetBytes メモリに持つページの見積もりの上限
+         */
+        Builder(File directory, long budgetBytes) {
+            mDirectory = directory;
+            mBudgetBytes = budgetBytes;
+        }
+
+        void add(Earthquake earthquake) {
+            mCurrent[mCurrentCount++] = earthquake;
+            mCurrentBytes += estimateBytes(earthquake);
+            mSize++;
+            if (mCurrentCount == PAGE_SIZE) {
+                completePage();
+            }
+        }
+
+        void addAll(List<Earthquake> earthquakes) {
+            for (Earthquake earthquake : earthquakes) {
+                add(earthquake);
+            }
+        }
+
+        int size() {
+            return mSize;
+        }
+
+        boolean isEmpty() {
+            return mSize == 0;
+        }
+
+        /**
+         * ここまでに追加した分のリスト。ページはこの後に追加したものと共有するので、コピーは書きかけの1ページだけ
+         */
+        TieredEarthquakeList view() {
+            List<Page> pages = new ArrayList<>(mResident);
+            if (mCurrentCount > 0) {
+                pages.add(new Page(mPageCount, Arrays.copyOf(mCurrent, mCurrentCount), mCurrentBytes, false));
+            }
+            return new TieredEarthquakeList(mFile, mSize, mBudgetBytes, pages, false);
+        }
+
+        /**
+         * 追加を終えてリストを作る。この後は add() しないこと
+         */
+        TieredEarthquakeList build() {
+            if (mCurrentCount > 0) {
+                completePage();
+            }
+            if (mFile == null) {
+                return new TieredEarthquakeList(null, mSize, mBudgetBytes, mResident, false);
+            }
+            //view() のリストがすべて release されても、返すリストを呼び出し元が retain するまでは閉じない
+            mFile.finishWriting(true);
+            return new TieredEarthquakeList(mFile, mSize, mBudgetBytes, mResident, true);
+        }
+
+        /**
+         * リストを作らずに追加をやめる。view() で作ったリストが retain されていなければ、ファイルを閉じる
+         */
+        void discard() {
+            if (mFile != null) {
+                mFile.finishWriting(false);
+                mFile.closeIfUnused();
+            }
+        }
+
+        private void completePage() {
+            Page page = new Page(mPageCount++, Arrays.copyOf(mCurrent, mCurrentCount), mCurrentBytes, false);
+            mCurrentCount = 0;
+            mCurrentBytes = 0;
+            Arrays.fill(mCurrent, null);
+
+            if (mFile == null && !mSpillFailed && mResidentBytes + page.mBytes > mBudgetBytes) {
+                //予算を超えたので、ここまでのページもファイルに書き出して捨てられるようにする
+                try {
+                    mFile = PageFile.create(mDirectory);
+                    for (Page resident : mResident) {
+                        mFile.append(resident);
+                    }
+                } catch (IOException e) {
+                    mSpillFailed = true;
+                }
+            }
+            if (mFile != null && !mSpillFailed) {
+                try {
+                    mFile.append(page);
+                } catch (IOException e) {
+                    mSpillFailed = true;
+                }
+            }
+            if (!page.mOnDisk || mResidentBytes + page.mBytes <= mBudgetBytes) {
+                mResident.add(page);
+                mResidentBytes += page.mBytes;
+            }
+        }
+    }
+
+    /**
+     * 連続する最大 PAGE_SIZE 件のイベント
+     */
+    private static final class Page {
+        final int mIndex;
+        final Earthquake[] mEarthquakes;
+        //mEarthquakes の見積もりの合計
+        final long mBytes;
+        //ファイルに書き出し済みで、メモリから捨てても読み直せるかどうか
+        volatile boolean mOnDisk;
+
+        Page(int index, Earthquake[] earthquakes, long bytes, boolean onDisk) {
+            mIndex = index;
+            mEarthquakes = earthquakes;
+            mBytes = bytes;
+            mOnDisk = onDisk;
+        }
+    }
+
+    /**
+     * ページを追記していくファイル。ページごとの位置と長さはメモリに持つ。
+     * 同じファイルを Builder.view() で作った複数のリストから読むので、読み書きは同期化する
+     * <pre>
+     * レコード magnitude(double) time(long) updated(long) latitude(double) longitude(double) depth(double)
+     *         id place url status (長さ(int) + UTF-8 のバイト列。null は長さ -1)
+     * </pre>
+     */
+    private static final class PageFile {
+        private final RandomAccessFile mFile;
+        private long[] mOffsets = new long[16];
+        private int[] mLengths = new int[16];
+        private long[] mBytes = new long[16];
+        private int[] mCounts = new int[16];
+        private int mPageCount;
+        private long mEnd;
+        //このファイルを使うリストを retain している数
+        private int mHolders;
+        //Builder がまだ書き込んでいるかどうか。書き込み中は retain がなくても閉じない
+        private boolean mWriting = true;
+        private boolean mClosed;
+
+        private PageFile(RandomAccessFile file) {
+            mFile = file;
+        }
+
+        static PageFile create(File directory) throws IOException {
+            File file = File.createTempFile("earthquakes", ".pages", directory);
+            RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+            //開いたまま名前だけ消しておく。閉じられるかプロセスが終われば領域が解放されるので、ファイルが残らない
+            file.delete();
+            return new PageFile(randomAccessFile);
+        }
+
+        synchronized void retain() {
+            mHolders++;
+        }
+
+        synchronized void release() {
+            mHolders--;
+            closeIfUnused();
+        }
+
+        /**
+         * @param hold build() で返すリストの分を retain しておくかどうか
+         */
+        synchronized void finishWriting(boolean hold) {
+            mWriting = false;
+            if (hold) {
+                mHolders++;
+            }
+        }
+
+        synchronized void closeIfUnused() {
+            if (mHolders > 0 || mWriting || mClosed) {
+                return;
+            }
+            mClosed = true;
+            try {
+                //名前は作成時に消してあるので、閉じれば領域が解放される
+                mFile.close();
+            } catch (IOException ignored) {
+            }
+        }
+
+        synchronized void append(Page page) throws IOException {
+            if (page.mIndex != mPageCount) {
+                throw new IllegalStateException("Page " + page.mIndex + " appended after " + mPageCount + " pages");
+            }
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(page.mEarthquakes.length * 128);
+            DataOutputStream out = new DataOutputStream(bytes);
+            for (Earthquake earthquake : page.mEarthquakes) {
+                out.writeDouble(earthquake.getMagnitude());
+                out.writeLong(earthquake.getTimeInMilliseconds());
+                out.writeLong(earthquake.getUpdated());
+                out.writeDouble(earthquake.getLatitude());
+                out.writeDouble(earthquake.getLongitude());
+                out.writeDouble(earthquake.getDepth());
+                writeString(out, earthquake.getId());
+                writeString(out, earthquake.getPlace());
+                writeString(out, earthquake.getUrl());
+                writeString(out, earthquake.getStatus());
+            }
+            out.flush();
+
+            mFile.seek(mEnd);
+            mFile.write(bytes.toByteArray());
+            if (mPageCount == mOffsets.length) {
+                int capacity = mPageCount * 2;
+                mOffsets = Arrays.copyOf(mOffsets, capacity);
+                mLengths = Arrays.copyOf(mLengths, capacity);
+                mBytes = Arrays.copyOf(mBytes, capacity);
+                mCounts = Arrays.copyOf(mCounts, capacity);
+            }
+            mOffsets[mPageCount] = mEnd;
+            mLengths[mPageCount] = bytes.size();
+            mBytes[mPageCount] = page.mBytes;
+            mCounts[mPageCount] = page.mEarthquakes.length;
+            mPageCount++;
+            mEnd += bytes.size();
+            page.mOnDisk = true;
+        }
+
+        /**
+         * ファイルは開いたまま他から触られないので、読めないのはディスクの故障くらい。その場合は例外にする。
+         * すべて release() した後に、メモリにないページを読もうとした場合も同じ
+         */
+        synchronized Page read(int index) {
+            if (mClosed) {
+                throw new IllegalStateException("Page " + index + " read after the page file was closed");
+            }
+            try {
+                byte[] bytes = new byte[mLengths[index]];
+                mFile.seek(mOffsets[index]);
+                mFile.readFully(bytes);
+                DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes));
+                Earthquake[] earthquakes = new Earthquake[mCounts[index]];
+                for (int i = 0; i < earthquakes.length; i++) {
+                    double magnitude = in.readDouble();
+                    long time = in.readLong();
+                    long updated = in.readLong();
+                    double latitude = in.readDouble();
+                    double longitude = in.readDouble();
+                    double depth = in.readDouble();
+                    String id = readString(in);
+                    String place = readString(in);
+                    String url = readString(in);
+                    String status = readString(in);
+                    earthquakes[i] = new Earthquake(id, magnitude, place, time, url, updated, status,
+                            latitude, longitude, depth);
+                }
+                return new Page(index, earthquakes, mBytes[index], true);
+            } catch (IOException e) {
+                throw new IllegalStateException("Could not read page " + index, e);
+            }
+        }
+
+        private static void writeString(DataOutputStream out, String value) throws IOException {
+            if (value == null) {
+                out.writeInt(-1);
+                return;
+            }
+            byte[] bytes = value.getBytes(UTF_8);
+            out.writeInt(bytes.length);
+            out.write(bytes);
+        }
+
+        private static String readString(DataInputStream in) throws IOException {
+            int length = in.readInt();
+            if (length < 0) {
+                return null;
+            }
+            byte[] bytes = new byte[length];
+            in.readFully(bytes);
+            return new String(bytes, UTF_8);
+        }
+    }
+}
@@ -0,0 +1,229 @@
+package com.example.android.quakereport;
+
+import java.io.ByteArrayInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * HttpURLConnection による既定の {@link HttpTransport}。
+ * <p>
+ * disconnect() は呼ばず、レスポンス本体を最後まで読んでから close することで、
+ * 同じホストへの次のリクエストが keep-alive の接続を使い回せるようにする。
+ * Accept-Encoding: gzip を送り、GeoJSON (おおよそ 1/10 に縮む) を圧縮したまま受け取って、
+ * ここで伸長しながらパーサーに渡す。
+ */
+final class UrlConnectionTransport implements HttpTransport {
+
+    private static final int CONNECT_TIMEOUT_MILLIS = 15000;
+    private static final int READ_TIMEOUT_MILLIS = 10000;
+
+    //close 時に読み捨ててでも接続を使い回す、残りのバイト数の上限。
+    //これより多く残っている場合は、読み捨てるより接続を張り直すほうが安い
+    private static final int MAX_DRAIN_BYTES = 64 * 1024;
+
+    //転送量の統計。複数のスレッドから同時に更新される
+    private final AtomicLong mRequestCount = new AtomicLong();
+    private final AtomicLong mBytesReceived = new AtomicLong();
+    private final AtomicLong mBytesDecoded = new AtomicLong();
+
+    @Override
+    public Response get(URL url, Map<String, String> headers) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+        connection.setConnectTimeout(CONNECT_TIMEOUT_MILLIS);
+        connection.setReadTimeout(READ_TIMEOUT_MILLIS);
+        connection.setRequestMethod("GET");
+        //自分で Accept-Encoding を指定すると、HttpURLConnection は自動では伸長しなくなる
+        connection.setRequestProperty("Accept-Encoding", "gzip");
+        if (headers != null) {
+            for (Map.Entry<String, String> header : headers.entrySet()) {
+                connection.setRequestProperty(header.getKey(), header.getValue());
+            }
+        }
+        mRequestCount.incrementAndGet();
+        try {
+            long start = Metrics.startTimer();
+            connection.connect();
+            Metrics.recordSince(Metrics.Metric.CONNECT, start);
+            //getResponseCode() はレスポンスヘッダを受け取るまで待つ
+            int code = connection.getResponseCode();
+            Metrics.recordSince(Metrics.Metric.TTFB, start);
+            return new UrlConnectionResponse(connection, code);
+        } catch (IOException e) {
+            //接続自体に失敗した場合は、使い回せないので切断する
+            connection.disconnect();
+            throw e;
+        }
+    }
+
+    /**
+     * これまでに送ったリクエストの数
+     */
+    long getRequestCount() {
+        return mRequestCount.get();
+    }
+
+    /**
+     * ネットワークから受け取ったレスポンス本体のバイト数 (圧縮されたまま)
+     */
+    long getBytesReceived() {
+        return mBytesReceived.get();
+    }
+
+    /**
+     * 伸長後のレスポンス本体のバイト数
+     */
+    long getBytesDecoded() {
+        return mBytesDecoded.get();
+    }
+
+    private final class UrlConnectionResponse implements Response {
+        private final HttpURLConnection mConnection;
+        private final int mCode;
+        private CountingInputStream mRawStream;
+        private InputStream mBody;
+        //abort() は別のスレッドから呼ばれる
+        private volatile boolean mAborted;
+
+        UrlConnectionResponse(HttpURLConnection connection, int code) {
+            mConnection = connection;
+            mCode = code;
+        }
+
+        @Override
+        public int getCode() {
+            return mCode;
+        }
+
+        @Override
+        public String getHeader(String name) {
+            return mConnection.getHeaderField(name);
+        }
+
+        @Override
+        public InputStream getBody() throws IOException {
+            if (mBody == null) {
+                mRawStream = new CountingInputStream(openRawStream(), mBytesReceived);
+                InputStream decoded = "gzip".equalsIgnoreCase(mConnection.getContentEncoding())
+                        ? new GZIPInputStream(mRawStream, 8192) : mRawStream;
+                mBody = new CountingInputStream(decoded, mBytesDecoded);
+            }
+            return mBody;
+        }
+
+        private InputStream openRawStream() throws IOException {
+            if (mCode >= HttpURLConnection.HTTP_BAD_REQUEST) {
+                InputStream errorStream = mConnection.getErrorStream();
+                return errorStream != null ? errorStream : new ByteArrayInputStream(new byte[0]);
+            }
+            return mConnection.getInputStream();
+        }
+
+        @Override
+        public void abort() {
+            //ソケットごと閉じるので、読み込みで止まっている他のスレッドも抜けられる。
+            //伸長用の Inflater は読んでいるスレッドが使っているかもしれないので、close() で解放する
+            mAborted = true;
+            mConnection.disconnect();
+        }
+
+        /**
+         * 残っている本体を読み捨ててから閉じ、接続を keep-alive のプールに返す。
+         * abort() の後は読み捨てずに、ストリームと Inflater だけを解放する
+         */
+        @Override
+        public void close() throws IOException {
+            if (mAborted) {
+                closeBody();
+                return;
+            }
+            //本体を読まなかった場合 (304 など) も、接続を返すためにストリームを開いて閉じる
+            CountingInputStream raw;
+            try {
+                getBody();
+                raw = mRawStream;
+            } catch (IOException e) {
+                //gzip のヘッダが壊れていた場合は、生のストリームだけが開いている
+                closeBody();
+                mConnection.disconnect();
+                return;
+            }
+            try {
+                byte[] buffer = new byte[4096];
+                long drained = 0;
+                int read;
+                while (drained <= MAX_DRAIN_BYTES && (read = raw.read(buffer)) != -1) {
+                    drained += read;
+                }
+                if (drained > MAX_DRAIN_BYTES) {
+                    mConnection.disconnect();
+                }
+            } catch (IOException e) {
+                mConnection.disconnect();
+            } finally {
+                closeBody();
+            }
+        }
+
+        /**
+         * GZIPInputStream を閉じて、ネイティブのメモリを持つ Inflater を解放する。
+         * 包んでいる生のストリームも一緒に閉じられる
+         */
+        private void closeBody() {
+            if (mRawStream != null) {
+                Metrics.record(Metrics.Metric.BYTES_READ, mRawStream.getCount());
+            }
+            HttpDiskCache.closeQuietly(mBody != null ? mBody : mRawStream);
+        }
+    }
+
+    /**
+     * 読んだバイト数を、このストリームの分と全体の統計の両方に数える InputStream
+     */
+    private static final class CountingInputStream extends FilterInputStream {
+        private final AtomicLong mCounter;
+        private long mCount;
+
+        CountingInputStream(InputStream in, AtomicLong counter) {
+            super(in);
+            mCounter = counter;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b != -1) {
+                mCount++;
+                mCounter.incrementAndGet();
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int count) throws IOException {
+            int read = super.read(buffer, offset, count);
+            if (read > 0) {
+                mCount += read;
+                mCounter.addAndGet(read);
+            }
+            return read;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long skipped = super.skip(n);
+            mCount += skipped;
+            mCounter.addAndGet(skipped);
+            return skipped;
+        }
+
+        long getCount() {
+            return mCount;
+        }
+    }
+}
@@ -0,0 +1,256 @@
+package com.example.android.quakereport;
+
+import android.net.Uri;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.TimeZone;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * 一括インポートの時間窓の決め方を、密度の変わる合成のカタログに対して確かめる。
+ * カタログは1時間に1件のまばらな期間の途中に、1時間で50000件の群発を含む
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(constants = BuildConfig.class, sdk = 23)
+public class BulkImporterTest {
+
+    private static final long HOUR_MILLIS = 60 * 60 * 1000L;
+    private static final long DAY_MILLIS = 24 * HOUR_MILLIS;
+    private static final long START = FdsnFixtures.BASE_TIME - 10 * DAY_MILLIS;
+    private static final long END = FdsnFixtures.BASE_TIME;
+    private static final long BURST_START = START + 3 * DAY_MILLIS;
+    private static final int BURST_EVENTS = 50000;
+
+    private static final Uri BASE_URI = Uri.parse(
+            "https://earthquake.usgs.gov/fdsnws/event/1/query?format=geojson&minmag=2.5&limit=20&orderby=time");
+
+    //発生時刻の古い順
+    private static final List<Earthquake> CATALOG = createCatalog();
+
+    @Test
+    public void nextWindowTargetsTheObservedDensityWithinBounds() {
+        //密度が分からないうちは、前の窓と同じ長さ
+        assertEquals(BulkImporter.INITIAL_WINDOW_MILLIS,
+                BulkImporter.nextWindowMillis(-1, BulkImporter.INITIAL_WINDOW_MILLIS));
+        //1時間に1000件なら、5000件になる5時間
+        assertEquals(5 * HOUR_MILLIS, BulkImporter.nextWindowMillis(1000.0 / HOUR_MILLIS, DAY_MILLIS));
+        //まばらでも、前の窓の4倍までしか伸ばさない
+        assertEquals(4 * DAY_MILLIS, BulkImporter.nextWindowMillis(1.0 / HOUR_MILLIS, DAY_MILLIS));
+        assertEquals(4 * DAY_MILLIS, BulkImporter.nextWindowMillis(0, DAY_MILLIS));
+        //最大と最小の長さに収める
+        assertEquals(BulkImporter.MAX_WINDOW_MILLIS, BulkImporter.nextWindowMillis(0, 60 * DAY_MILLIS));
+        assertEquals(BulkImporter.MIN_WINDOW_MILLIS, BulkImporter.nextWindowMillis(1000, DAY_MILLIS));
+    }
+
+    @Test
+    public void windowUrlReplacesPagingAndTimeParameters() {
+        Uri url = Uri.parse(BulkImporter.buildWindowUrl(BASE_URI, START, START + DAY_MILLIS));
+
+        assertEquals(QueryUtils.RESPONSE_FORMAT, url.getQueryParameter("format"));
+        assertEquals("2.5", url.getQueryParameter("minmag"));
+        assertEquals("time-asc", url.getQueryParameter("orderby"));
+        assertEquals(String.valueOf(BulkImporter.MAX_EVENTS_PER_QUERY), url.getQueryParameter("limit"));
+        assertEquals(START, parseIsoTime(url.getQueryParameter("starttime")));
+        //endtime は境界を含むので、隣の窓の starttime の1ミリ秒手前
+        assertEquals(START + DAY_MILLIS - 1, parseIsoTime(url.getQueryParameter("endtime")));
+    }
+
+    @Test
+    public void denseWindowsAreHalvedAndSparseOnesWidened() {
+        Catalog catalog = new Catalog(Long.MAX_VALUE);
+        Sink sink = new Sink();
+        BulkImporter importer = new BulkImporter(BASE_URI, START, END, catalog, sink, new Checkpoint(), 2, 0);
+
+        BulkImporter.Report report = importer.run();
+
+        assertTrue(report.toString(), report.isComplete());
+        assertTrue(report.toString(), report.getSplits() > 0);
+        assertEquals(CATALOG.size(), report.getEvents());
+        sink.assertImportedOnce(CATALOG);
+        //上限に当たった窓は書き込まずに分けて取り直すので、書き込んだ窓はすべて上限未満
+        for (int size : sink.mWindowSizes) {
+            assertTrue(size + " events", size < BulkImporter.MAX_EVENTS_PER_QUERY);
+        }
+
+        long shortest = Long.MAX_VALUE;
+        long longest = 0;
+        for (long[] window : catalog.requested()) {
+            shortest = Math.min(shortest, window[1] - window[0]);
+            longest = Math.max(longest, window[1] - window[0]);
+        }
+        assertTrue("longest " + longest, longest > BulkImporter.INITIAL_WINDOW_MILLIS);
+        //群発の1時間は、5000件程度になるまで短くする
+        assertTrue("shortest " + shortest, shortest < HOUR_MILLIS);
+    }
+
+    @Test
+    public void resumesFromTheCheckpointWithoutRefetchingCompletedRanges() {
+        Checkpoint checkpoint = new Checkpoint();
+        //2回の取り込みで同じストアに書き込む
+        Sink sink = new Sink();
+        //群発の後の期間は、取得に失敗し続ける
+        BulkImporter first = new BulkImporter(BASE_URI, START, END, new Catalog(BURST_START + DAY_MILLIS),
+                sink, checkpoint, 2, 0);
+
+        BulkImporter.Report firstReport = first.run();
+
+        assertFalse(firstReport.isComplete());
+        assertTrue(firstReport.getFailures() > 0);
+        assertTrue(firstReport.getEvents() > 0);
+        String progress = checkpoint.load();
+        assertNotNull(progress);
+        List<long[]> completed = parseProgress(progress);
+
+        Catalog catalog = new Catalog(Long.MAX_VALUE);
+        BulkImporter second = new BulkImporter(BASE_URI, START, END, catalog, sink, checkpoint, 2, 0);
+
+        BulkImporter.Report secondReport = second.run();
+
+        assertTrue(secondReport.toString(), secondReport.isComplete());
+        assertEquals(CATALOG.size(), firstReport.getEvents() + secondReport.getEvents());
+        for (long[] window : catalog.requested()) {
+            for (long[] range : completed) {
+                assertTrue("window " + window[0] + "-" + window[1] + " overlaps " + progress,
+                        window[1] <= range[0] || range[1] <= window[0]);
+            }
+        }
+        //2回の取り込みを合わせて、すべてのイベントがちょうど1回ずつ書き込まれている
+        sink.assertImportedOnce(CATALOG);
+    }
+
+    private static List<Earthquake> createCatalog() {
+        List<Earthquake> catalog = new ArrayList<>();
+        int index = 0;
+        for (long time = START; time < END; time += HOUR_MILLIS) {
+            catalog.add(FdsnFixtures.event(index++, time, time + 1000, "reviewed"));
+        }
+        long spacing = HOUR_MILLIS / BURST_EVENTS;
+        for (int i = 0; i < BURST_EVENTS; i++) {
+            long time = BURST_START + 1 + i * spacing;
+            catalog.add(FdsnFixtures.event(index++, time, time + 1000, "reviewed"));
+        }
+        Collections.sort(catalog, new Comparator<Earthquake>() {
+            @Override
+            public int compare(Earthquake a, Earthquake b) {
+                return Long.compare(a.getTimeInMilliseconds(), b.getTimeInMilliseconds());
+            }
+        });
+        return catalog;
+    }
+
+    private static long parseIsoTime(String value) {
+        SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS", Locale.US);
+        format.setTimeZone(TimeZone.getTimeZone("UTC"));
+        try {
+            return format.parse(value).getTime();
+        } catch (ParseException e) {
+            throw new IllegalArgumentException(value, e);
+        }
+    }
+
+    private static List<long[]> parseProgress(String progress) {
+        List<long[]> ranges = new ArrayList<>();
+        for (String range : progress.split(";")) {
+            String[] bounds = range.split(":");
+            ranges.add(new long[]{Long.parseLong(bounds[0]), Long.parseLong(bounds[1])});
+        }
+        return ranges;
+    }
+
+    /**
+     * FDSN と同じく、starttime から endtime (含む) のイベントを古い順に limit 件まで返す。
+     * failFrom 以降を含む窓は失敗 (null) にする
+     */
+    private static final class Catalog implements FetchCoordinator.Fetcher {
+        private final long mFailFrom;
+        private final List<long[]> mRequested = new ArrayList<>();
+
+        Catalog(long failFrom) {
+            mFailFrom = failFrom;
+        }
+
+        synchronized List<long[]> requested() {
+            return new ArrayList<>(mRequested);
+        }
+
+        @Override
+        public List<Earthquake> fetch(String url, CancellationToken token) {
+            Uri uri = Uri.parse(url);
+            long start = parseIsoTime(uri.getQueryParameter("starttime"));
+            long endInclusive = parseIsoTime(uri.getQueryParameter("endtime"));
+            int limit = Integer.parseInt(uri.getQueryParameter("limit"));
+            synchronized (this) {
+                mRequested.add(new long[]{start, endInclusive + 1});
+            }
+            if (endInclusive >= mFailFrom) {
+                return null;
+            }
+            List<Earthquake> result = new ArrayList<>();
+            for (Earthquake earthquake : CATALOG) {
+                long time = earthquake.getTimeInMilliseconds();
+                if (time >= start && time <= endInclusive) {
+                    result.add(earthquake);
+                    if (result.size() == limit) {
+                        break;
+                    }
+                }
+            }
+            return result;
+        }
+    }
+
+    private static final class Sink implements BulkImporter.Sink {
+        final Set<String> mImported = new HashSet<>();
+        final List<Integer> mWindowSizes = new ArrayList<>();
+        int mDuplicates;
+
+        @Override
+        public void write(List<Earthquake> earthquakes) {
+            mWindowSizes.add(earthquakes.size());
+            for (Earthquake earthquake : earthquakes) {
+                if (!mImported.add(earthquake.getId())) {
+                    mDuplicates++;
+                }
+            }
+        }
+
+        void assertImportedOnce(List<Earthquake> expected) {
+            assertEquals("duplicates", 0, mDuplicates);
+            assertEquals(expected.size(), mImported.size());
+            for (Earthquake earthquake : expected) {
+                assertTrue(earthquake.getId(), mImported.contains(earthquake.getId()));
+            }
+        }
+    }
+
+    private static final class Checkpoint implements BulkImporter.Checkpoint {
+        private String mProgress;
+
+        @Override
+        public String load() {
+            return mProgress;
+        }
+
+        @Override
+        public void save(String progress) {
+            mProgress = progress;
+        }
+    }
+}
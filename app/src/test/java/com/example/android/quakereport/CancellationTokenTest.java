@@ -0,0 +1,159 @@
+package com.example.android.quakereport;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.StringReader;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * 本文の途中で止まったサーバから読んでいる取得を別のスレッドからキャンセルし、
+ * 読み込みのタイムアウトを待たずに、決まった時間内に抜けることを確かめる
+ */
+public class CancellationTokenTest {
+
+    //キャンセルしてから取得が返るまでに許す時間
+    private static final long ABORT_BOUND_MILLIS = 1000;
+    private static final long CANCEL_AFTER_MILLIS = 200;
+
+    private HttpTransport mTransport;
+    private LocalHttpServer mServer;
+    private volatile LocalHttpServer.Response mResponse;
+
+    @Before
+    public void setUp() throws IOException {
+        //HttpURLConnection は JVM では読み込み中の切断を待ってしまうので、ソケットを直接閉じる transport にする
+        mTransport = QueryUtils.getTransport();
+        QueryUtils.setTransport(new SocketTransport());
+        mServer = new LocalHttpServer(new LocalHttpServer.Handler() {
+            @Override
+            public LocalHttpServer.Response handle(LocalHttpServer.Request request) {
+                return mResponse;
+            }
+        });
+    }
+
+    @After
+    public void tearDown() {
+        QueryUtils.setTransport(mTransport);
+        mServer.close();
+    }
+
+    @Test(timeout = 10000)
+    public void stalledWholeFetchReturnsSoonAfterCancel() throws InterruptedException {
+        mResponse = LocalHttpServer.Response.ok(FdsnFixtures.csv(FdsnFixtures.events(2000)), "text/csv")
+                .pauseAfter(8192, 30000);
+        final CancellationToken token = new CancellationToken();
+        Canceller canceller = new Canceller(token);
+
+        canceller.start();
+        List<Earthquake> earthquakes = QueryUtils.fetchWhole(mServer.url("/query?format=csv&limit=2000"), token);
+        long returned = System.nanoTime();
+        canceller.join();
+
+        assertNull(earthquakes);
+        canceller.assertReturnedWithinBound(returned);
+    }
+
+    @Test(timeout = 10000)
+    public void stalledDisplayFetchReturnsSoonAfterCancel() throws InterruptedException {
+        mResponse = LocalHttpServer.Response.ok(FdsnFixtures.geoJson(FdsnFixtures.events(2000)),
+                "application/json").pauseAfter(8192, 30000);
+        final CancellationToken token = new CancellationToken();
+        Canceller canceller = new Canceller(token);
+
+        canceller.start();
+        List<Earthquake> earthquakes = QueryUtils.fetchEarthquakeData(
+                mServer.url("/query?format=geojson&limit=2000"), null, null, token);
+        long returned = System.nanoTime();
+        canceller.join();
+
+        assertNull(earthquakes);
+        canceller.assertReturnedWithinBound(returned);
+    }
+
+    /**
+     * キャンセルされていれば、次の feature を読む前に止まる
+     */
+    @Test
+    public void parserStopsAtTheNextFeature() throws IOException {
+        final CancellationToken token = new CancellationToken();
+        final int[] count = new int[1];
+        GeoJsonStreamParser parser = new GeoJsonStreamParser(
+                new StringReader(FdsnFixtures.geoJson(FdsnFixtures.events(5000))));
+        parser.setCancellationToken(token);
+
+        try {
+            parser.parse(new GeoJsonStreamParser.Callback() {
+                @Override
+                public void onEarthquake(Earthquake earthquake) {
+                    if (++count[0] == 100) {
+                        token.cancel();
+                    }
+                }
+            });
+            fail("parsed every feature after cancel");
+        } catch (InterruptedIOException expected) {
+        }
+        assertEquals(100, count[0]);
+    }
+
+    @Test
+    public void listenersRunOnceAndImmediatelyAfterCancel() {
+        CancellationToken token = new CancellationToken();
+        final int[] calls = new int[1];
+        Runnable listener = new Runnable() {
+            @Override
+            public void run() {
+                calls[0]++;
+            }
+        };
+        token.addOnCancelListener(listener);
+
+        token.cancel();
+        token.cancel();
+        assertEquals(1, calls[0]);
+
+        //キャンセルの後に登録したリスナーはすぐに呼ぶ
+        token.addOnCancelListener(listener);
+        assertEquals(2, calls[0]);
+    }
+
+    /**
+     * 少し待ってからキャンセルし、キャンセルした時刻を覚えておくスレッド
+     */
+    private static final class Canceller extends Thread {
+        private final CancellationToken mToken;
+        private volatile long mCancelledAt;
+
+        Canceller(CancellationToken token) {
+            mToken = token;
+        }
+
+        @Override
+        public void run() {
+            try {
+                Thread.sleep(CANCEL_AFTER_MILLIS);
+            } catch (InterruptedException e) {
+                return;
+            }
+            mCancelledAt = System.nanoTime();
+            mToken.cancel();
+        }
+
+        void assertReturnedWithinBound(long returned) {
+            assertTrue("returned before cancel", mCancelledAt != 0 && returned >= mCancelledAt);
+            long abortMillis = TimeUnit.NANOSECONDS.toMillis(returned - mCancelledAt);
+            assertTrue(abortMillis + "ms after cancel", abortMillis < ABORT_BOUND_MILLIS);
+        }
+    }
+}
@@ -0,0 +1,111 @@
+package com.example.android.quakereport;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class DelimitedStreamParserTest {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    @Test
+    public void csvMatchesGeoJson() throws IOException {
+        List<Earthquake> events = FdsnFixtures.events(500);
+        List<Earthquake> fromGeoJson = parseGeoJson(FdsnFixtures.geoJson(events));
+
+        FdsnFixtures.assertSameEarthquakes(fromGeoJson, parse(FdsnFixtures.csv(events)));
+    }
+
+    /**
+     * text には updated と status の列がないので、それ以外を比べる
+     */
+    @Test
+    public void textMatchesGeoJsonExceptSyncColumns() throws IOException {
+        List<Earthquake> events = FdsnFixtures.events(500);
+        List<Earthquake> fromGeoJson = parseGeoJson(FdsnFixtures.geoJson(events));
+        List<Earthquake> fromText = parse(FdsnFixtures.text(events));
+
+        assertEquals(fromGeoJson.size(), fromText.size());
+        for (int i = 0; i < fromGeoJson.size(); i++) {
+            Earthquake expected = fromGeoJson.get(i);
+            Earthquake actual = fromText.get(i);
+            assertEquals(0, actual.getUpdated());
+            assertEquals(null, actual.getStatus());
+            FdsnFixtures.assertSameEarthquake(new Earthquake(expected.getId(), expected.getMagnitude(),
+                    expected.getPlace(), expected.getTimeInMilliseconds(), expected.getUrl(), 0, null,
+                    expected.getLatitude(), expected.getLongitude(), expected.getDepth()), actual);
+        }
+    }
+
+    @Test
+    public void emptyBodyAndHeaderOnlyHaveNoEvents() throws IOException {
+        assertEquals(0, parse("").size());
+        assertEquals(0, parse(FdsnFixtures.CSV_HEADER + "\n").size());
+        assertEquals(0, parse(FdsnFixtures.CSV_HEADER + "\r\n").size());
+    }
+
+    /**
+     * 最後の行が改行で終わっていないものは、列が揃っていても途中で切れたものとして扱う
+     */
+    @Test
+    public void lastLineWithoutNewlineIsTruncation() {
+        String csv = FdsnFixtures.csv(FdsnFixtures.events(3));
+        //status の後ろの列まで揃っているが、最後の改行がない
+        assertFails(csv.substring(0, csv.length() - 1));
+        //数値の途中で切れていて、列の数は足りている
+        String truncated = FdsnFixtures.CSV_HEADER + "\n"
+                + "2016-09-16T17:19:58.000Z,12.5,-170.25,10.0,4.5,mb,,,,,us,us1,2016-09-16T17:19:59.000Z,"
+                + "\"3km N of Volcano, Hawaii\",earthquake,,,,,reviewed,us,u";
+        assertFails(truncated);
+        //ヘッダーも同じ
+        assertFails(FdsnFixtures.CSV_HEADER);
+    }
+
+    @Test
+    public void bodiesThatAreNotCsvOrTextFail() {
+        assertFails("<!DOCTYPE html>\n<html><body>Sign in to the network</body></html>\n");
+        assertFails("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n<q:quakeml xmlns:q=\"http://quakeml.org/xmlns/quakeml/1.2\">\n");
+        assertFails("   \n");
+        assertFails("\n" + FdsnFixtures.csv(FdsnFixtures.events(3)));
+        assertFails("\uFEFF" + FdsnFixtures.csv(FdsnFixtures.events(3)));
+    }
+
+    private static void assertFails(String body) {
+        try {
+            List<Earthquake> earthquakes = parse(body);
+            fail("parsed " + earthquakes.size() + " events from " + body);
+        } catch (IOException e) {
+            assertTrue(e.getMessage(), e.getMessage().startsWith("Malformed FDSN"));
+        }
+    }
+
+    private static List<Earthquake> parse(String body) throws IOException {
+        List<Earthquake> earthquakes = new ArrayList<>();
+        new DelimitedStreamParser(new ByteArrayInputStream(body.getBytes(UTF_8))).parse(collectInto(earthquakes));
+        return earthquakes;
+    }
+
+    private static List<Earthquake> parseGeoJson(String body) throws IOException {
+        List<Earthquake> earthquakes = new ArrayList<>();
+        new GeoJsonStreamParser(new StringReader(body)).parse(collectInto(earthquakes));
+        return earthquakes;
+    }
+
+    private static GeoJsonStreamParser.Callback collectInto(final List<Earthquake> earthquakes) {
+        return new GeoJsonStreamParser.Callback() {
+            @Override
+            public void onEarthquake(Earthquake earthquake) {
+                earthquakes.add(earthquake);
+            }
+        };
+    }
+}
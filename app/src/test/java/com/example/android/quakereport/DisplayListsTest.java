@@ -0,0 +1,121 @@
+package com.example.android.quakereport;
+
+import android.content.ComponentCallbacks2;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Slot に入っている間と、replace で返ってから release するまではリストのファイルが開いていることを確かめる
+ */
+public class DisplayListsTest {
+
+    private static final int PAGES = 8;
+
+    private File mDirectory;
+    private List<Earthquake> mEvents;
+    private DisplayLists mLists;
+    //先頭の2ページ分
+    private long mBudget;
+
+    @Before
+    public void setUp() throws IOException {
+        mDirectory = File.createTempFile("lists", "");
+        assertTrue(mDirectory.delete() && mDirectory.mkdir());
+        mEvents = FdsnFixtures.events(PAGES * TieredEarthquakeList.PAGE_SIZE);
+        for (int i = 0; i < 2 * TieredEarthquakeList.PAGE_SIZE; i++) {
+            mBudget += TieredEarthquakeList.estimateBytes(mEvents.get(i));
+        }
+        mLists = new DisplayLists(mDirectory, mBudget);
+    }
+
+    @After
+    public void tearDown() {
+        mDirectory.delete();
+    }
+
+    @Test
+    public void listsWithinTheBudgetAreReturnedAsIs() {
+        List<Earthquake> page = mEvents.subList(0, TieredEarthquakeList.PAGE_SIZE);
+
+        assertSame(page, mLists.toDisplayList(page));
+        assertNull(mLists.toDisplayList(null));
+    }
+
+    @Test
+    public void replacedListStaysOpenUntilReleased() {
+        DisplayLists.Slot slot = new DisplayLists.Slot();
+        TieredEarthquakeList first = (TieredEarthquakeList) mLists.toDisplayList(mEvents);
+        slot.set(first);
+
+        List<Earthquake> previous = slot.replace(mLists.toDisplayList(mEvents));
+        assertSame(first, previous);
+        FdsnFixtures.assertSameEarthquake(mEvents.get(mEvents.size() - 1), first.get(mEvents.size() - 1));
+
+        DisplayLists.Slot.release(previous);
+        assertClosed(first);
+
+        TieredEarthquakeList second = (TieredEarthquakeList) slot.get();
+        slot.set(null);
+        assertClosed(second);
+    }
+
+    @Test
+    public void discardedListIsClosedUnlessASlotHoldsIt() {
+        DisplayLists.Slot slot = new DisplayLists.Slot();
+        TieredEarthquakeList held = (TieredEarthquakeList) mLists.toDisplayList(mEvents);
+        slot.set(held);
+
+        DisplayLists.discard(held);
+        FdsnFixtures.assertSameEarthquake(mEvents.get(mEvents.size() - 1), held.get(mEvents.size() - 1));
+
+        TieredEarthquakeList unused = (TieredEarthquakeList) mLists.toDisplayList(mEvents);
+        DisplayLists.discard(unused);
+        assertClosed(unused);
+        slot.set(null);
+    }
+
+    @Test
+    public void trimMemoryShrinksTheHotTierByLevel() {
+        TieredEarthquakeList list = (TieredEarthquakeList) mLists.toDisplayList(mEvents);
+        DisplayLists.Slot slot = new DisplayLists.Slot();
+        slot.set(list);
+        long hot = list.getHotBytes();
+
+        mLists.trimMemory(list, ComponentCallbacks2.TRIM_MEMORY_RUNNING_MODERATE);
+        assertTrue(list.getHotBytes() <= mBudget / 2);
+        assertTrue(list.getHotBytes() < hot);
+
+        mLists.trimMemory(list, ComponentCallbacks2.TRIM_MEMORY_UI_HIDDEN);
+        assertTrue(list.getHotBytes() <= list.getFirstPageBytes());
+
+        mLists.trimMemory(list, ComponentCallbacks2.TRIM_MEMORY_BACKGROUND);
+        assertEquals(0, list.getHotBytes());
+        //捨てたページはディスクから読み直す
+        FdsnFixtures.assertSameEarthquake(mEvents.get(0), list.get(0));
+        slot.set(null);
+    }
+
+    /**
+     * ファイルが閉じられていれば、メモリにないページは読めない
+     */
+    private void assertClosed(TieredEarthquakeList list) {
+        list.trimHotTier(0);
+        try {
+            list.get(mEvents.size() - 1);
+            fail("page was read after the file was closed");
+        } catch (IllegalStateException expected) {
+        }
+    }
+}
@@ -0,0 +1,152 @@
+package com.example.android.quakereport;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class EarthquakeAggregatorTest {
+
+    @Test
+    public void keepsOnlyTheNewestEventsUpToTheLimit() {
+        EarthquakeAggregator aggregator = new EarthquakeAggregator(100);
+        //一括取り込みのように、古いものから順に届く
+        for (int i = 999; i >= 0; i--) {
+            aggregator.add(FdsnFixtures.event(i));
+        }
+
+        int size = aggregator.size();
+        assertTrue(size + " events", size >= 75 && size <= 100);
+        //残っているのは新しい方の size 件 (FdsnFixtures.event は index が小さいほど新しい)
+        List<Earthquake> newest = FdsnFixtures.events(size);
+        assertArrayEquals(histogramOf(newest), aggregator.magnitudeHistogram());
+        assertEquals(countByRegion(newest), aggregator.countByRegion());
+    }
+
+    @Test
+    public void eventsOlderThanTheTrimmedOnesAreIgnored() {
+        EarthquakeAggregator aggregator = new EarthquakeAggregator(100);
+        for (int i = 199; i >= 0; i--) {
+            aggregator.add(FdsnFixtures.event(i));
+        }
+        int size = aggregator.size();
+        int[] histogram = aggregator.magnitudeHistogram();
+
+        for (int i = 199; i >= size; i--) {
+            aggregator.add(FdsnFixtures.event(i));
+        }
+
+        assertEquals(size, aggregator.size());
+        assertArrayEquals(histogram, aggregator.magnitudeHistogram());
+    }
+
+    @Test
+    public void tableStaysUsableAfterForgettingDeletions() {
+        EarthquakeAggregator aggregator = new EarthquakeAggregator(100);
+        for (int i = 0; i < 10000; i++) {
+            Earthquake event = FdsnFixtures.event(i);
+            aggregator.add(FdsnFixtures.event(i, event.getTimeInMilliseconds(), event.getUpdated(), "deleted"));
+        }
+        assertEquals(0, aggregator.size());
+
+        //削除済みのイベントを忘れたあとも、表は引き続き使える
+        for (int i = 0; i < 50; i++) {
+            aggregator.add(FdsnFixtures.event(20000 + i));
+        }
+        assertEquals(50, aggregator.size());
+        assertEquals(countByRegion(events(20000, 50)), aggregator.countByRegion());
+    }
+
+    @Test
+    public void revisionsAreCountedOnce() {
+        EarthquakeAggregator aggregator = new EarthquakeAggregator(100);
+        for (int round = 0; round < 20; round++) {
+            for (int i = 0; i < 60; i++) {
+                Earthquake event = FdsnFixtures.event(i);
+                aggregator.add(FdsnFixtures.event(i, event.getTimeInMilliseconds(),
+                        event.getUpdated() + round, "reviewed"));
+            }
+        }
+        assertEquals(60, aggregator.size());
+        assertArrayEquals(histogramOf(FdsnFixtures.events(60)), aggregator.magnitudeHistogram());
+    }
+
+    /**
+     * キャッシュの再生やローカルストアからの読み直しのように、同じページが別のオブジェクトとしてもう一度届く
+     */
+    @Test
+    public void samePageTwiceLeavesTheCountsUnchanged() throws IOException {
+        final EarthquakeAggregator aggregator = new EarthquakeAggregator(1000);
+        QueryUtils.EarthquakeObserver observer = new QueryUtils.EarthquakeObserver() {
+            @Override
+            public void onEarthquake(Earthquake earthquake) {
+                aggregator.add(earthquake);
+            }
+        };
+        String page = FdsnFixtures.geoJson(FdsnFixtures.events(300));
+        QueryUtils.addObserver(observer);
+        try {
+            QueryUtils.notifyObservers(parse(page));
+            int size = aggregator.size();
+            int[] histogram = aggregator.magnitudeHistogram();
+            Map<String, Integer> regions = aggregator.countByRegion();
+            int[] hours = aggregator.countsPerHour(FdsnFixtures.BASE_TIME, EarthquakeAggregator.HOUR_BUCKETS);
+
+            QueryUtils.notifyObservers(parse(page));
+
+            assertEquals(300, size);
+            assertEquals(size, aggregator.size());
+            assertArrayEquals(histogram, aggregator.magnitudeHistogram());
+            assertEquals(regions, aggregator.countByRegion());
+            assertArrayEquals(hours, aggregator.countsPerHour(FdsnFixtures.BASE_TIME,
+                    EarthquakeAggregator.HOUR_BUCKETS));
+        } finally {
+            QueryUtils.removeObserver(observer);
+        }
+    }
+
+    private static List<Earthquake> parse(String geoJson) throws IOException {
+        final List<Earthquake> earthquakes = new ArrayList<>();
+        new GeoJsonStreamParser(new StringReader(geoJson)).parse(new GeoJsonStreamParser.Callback() {
+            @Override
+            public void onEarthquake(Earthquake earthquake) {
+                earthquakes.add(earthquake);
+            }
+        });
+        return earthquakes;
+    }
+
+    private static List<Earthquake> events(int from, int count) {
+        List<Earthquake> earthquakes = new ArrayList<>();
+        for (int i = from; i < from + count; i++) {
+            earthquakes.add(FdsnFixtures.event(i));
+        }
+        return earthquakes;
+    }
+
+    private static int[] histogramOf(List<Earthquake> earthquakes) {
+        int[] bins = new int[EarthquakeAggregator.MAGNITUDE_BINS];
+        for (Earthquake earthquake : earthquakes) {
+            bins[EarthquakeAggregator.binOf(earthquake.getMagnitude())]++;
+        }
+        return bins;
+    }
+
+    private static Map<String, Integer> countByRegion(List<Earthquake> earthquakes) {
+        Map<String, Integer> counts = new HashMap<>();
+        for (Earthquake earthquake : earthquakes) {
+            String region = EarthquakeAggregator.regionOf(earthquake);
+            Integer count = counts.get(region);
+            counts.put(region, count == null ? 1 : count + 1);
+        }
+        return counts;
+    }
+}
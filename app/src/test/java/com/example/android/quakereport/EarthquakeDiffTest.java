@@ -0,0 +1,193 @@
+package com.example.android.quakereport;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * 重なりのある2つの取得結果の差分を、アダプタの代わりのリストに当てはめて確かめる
+ */
+public class EarthquakeDiffTest {
+
+    /**
+     * 新しいイベントが先頭に入り、古いものが末尾から落ち、いくつかは更新された
+     */
+    @Test
+    public void slidingWindowOnlyTouchesChangedRows() {
+        List<Earthquake> oldList = range(0, 200);
+        List<Earthquake> newList = new ArrayList<>();
+        for (int i = -3; i < 190; i++) {
+            newList.add(i % 25 == 0 ? revised(i) : FdsnFixtures.event(i));
+        }
+
+        EarthquakeDiff diff = EarthquakeDiff.calculate(oldList, newList);
+        Rows rows = apply(oldList, diff);
+
+        rows.assertShows(newList);
+        //追加した3件と、更新した8件 (0, 25, ..., 175) だけを作り直す
+        assertEquals(3 + 8, rows.rebound());
+        //末尾の削除、先頭の挿入、8件の変更
+        assertEquals(1 + 1 + 8, diff.getOperationCount());
+    }
+
+    @Test
+    public void identicalSnapshotsNeedNoOperations() {
+        List<Earthquake> oldList = range(0, 100);
+
+        EarthquakeDiff diff = EarthquakeDiff.calculate(oldList, range(0, 100));
+
+        assertEquals(0, diff.getOperationCount());
+        assertEquals(0, apply(oldList, diff).rebound());
+    }
+
+    /**
+     * 時刻が訂正されて順番が変わったイベントは、作り直さずに移動する
+     */
+    @Test
+    public void reorderedEventsAreMoved() {
+        List<Earthquake> oldList = range(0, 50);
+        List<Earthquake> newList = range(0, 50);
+        Collections.swap(newList, 3, 40);
+        newList.add(10, newList.remove(30));
+
+        EarthquakeDiff diff = EarthquakeDiff.calculate(oldList, newList);
+        Rows rows = apply(oldList, diff);
+
+        rows.assertShows(newList);
+        assertEquals(0, rows.rebound());
+        assertTrue(rows.moves() > 0);
+    }
+
+    @Test
+    public void overlappingSnapshotsInBothDirections() {
+        List<Earthquake> older = range(100, 400);
+        List<Earthquake> newer = range(0, 300);
+
+        apply(older, EarthquakeDiff.calculate(older, newer)).assertShows(newer);
+        apply(newer, EarthquakeDiff.calculate(newer, older)).assertShows(older);
+    }
+
+    /**
+     * 並べ替えで移動が多すぎる場合と、同じイベントが2回出てくる場合は全体を再描画する
+     */
+    @Test
+    public void largeReordersAndDuplicatesReset() {
+        List<Earthquake> oldList = range(0, 500);
+        List<Earthquake> byMagnitude = new ArrayList<>(oldList);
+        Collections.sort(byMagnitude, new Comparator<Earthquake>() {
+            @Override
+            public int compare(Earthquake lhs, Earthquake rhs) {
+                return Double.compare(rhs.getMagnitude(), lhs.getMagnitude());
+            }
+        });
+        assertEquals(-1, EarthquakeDiff.calculate(oldList, byMagnitude).getOperationCount());
+
+        List<Earthquake> duplicated = range(0, 10);
+        duplicated.add(FdsnFixtures.event(3));
+        assertEquals(-1, EarthquakeDiff.calculate(oldList, duplicated).getOperationCount());
+    }
+
+    private static List<Earthquake> range(int from, int to) {
+        List<Earthquake> earthquakes = new ArrayList<>();
+        for (int i = from; i < to; i++) {
+            earthquakes.add(FdsnFixtures.event(i));
+        }
+        return earthquakes;
+    }
+
+    /**
+     * 同じイベントの、updated だけが新しい版
+     */
+    private static Earthquake revised(int index) {
+        Earthquake event = FdsnFixtures.event(index);
+        return FdsnFixtures.event(index, event.getTimeInMilliseconds(), event.getUpdated() + 60000, "reviewed");
+    }
+
+    private static Rows apply(List<Earthquake> oldList, EarthquakeDiff diff) {
+        Rows rows = new Rows(oldList);
+        diff.dispatchTo(rows);
+        assertFalse("reset", rows.mReset);
+        return rows;
+    }
+
+    /**
+     * RecyclerView の代わり。各行に、最後にバインドしたイベントを持つ。挿入・変更された行は null にしておく
+     */
+    private static final class Rows implements EarthquakeDiff.Callback {
+        private final List<Earthquake> mBound;
+        private int mMoves;
+        private boolean mReset;
+
+        Rows(List<Earthquake> earthquakes) {
+            mBound = new ArrayList<>(earthquakes);
+        }
+
+        @Override
+        public void onInserted(int position, int count) {
+            for (int i = 0; i < count; i++) {
+                mBound.add(position + i, null);
+            }
+        }
+
+        @Override
+        public void onRemoved(int position, int count) {
+            for (int i = 0; i < count; i++) {
+                mBound.remove(position);
+            }
+        }
+
+        @Override
+        public void onMoved(int fromPosition, int toPosition) {
+            mBound.add(toPosition, mBound.remove(fromPosition));
+            mMoves++;
+        }
+
+        @Override
+        public void onChanged(int position, int count) {
+            for (int i = 0; i < count; i++) {
+                mBound.set(position + i, null);
+            }
+        }
+
+        @Override
+        public void onReset() {
+            mReset = true;
+        }
+
+        /**
+         * 作り直した行は新しいリストの内容で、それ以外の行は前にバインドした内容のままで正しいこと
+         */
+        void assertShows(List<Earthquake> newList) {
+            assertEquals(newList.size(), mBound.size());
+            for (int i = 0; i < newList.size(); i++) {
+                Earthquake bound = mBound.get(i);
+                if (bound == null) {
+                    continue;
+                }
+                assertEquals("row " + i, newList.get(i).getId(), bound.getId());
+                assertTrue("row " + i + " is stale", bound.hasSameContent(newList.get(i)));
+            }
+        }
+
+        int rebound() {
+            int count = 0;
+            for (Earthquake earthquake : mBound) {
+                if (earthquake == null) {
+                    count++;
+                }
+            }
+            return count;
+        }
+
+        int moves() {
+            return mMoves;
+        }
+    }
+}
@@ -0,0 +1,111 @@
+package com.example.android.quakereport;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.text.DecimalFormat;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+import java.util.TimeZone;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * リストの行をバインドするときのアロケーションを、スレッドごとの割り当てバイト数で確かめる
+ */
+public class EarthquakeFormatterTest {
+
+    private static final int EVENTS = 5000;
+
+    private com.sun.management.ThreadMXBean mThreads;
+    private EarthquakeFormatter mFormatter;
+    private List<Earthquake> mEvents;
+
+    @Before
+    public void setUp() {
+        java.lang.management.ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        assumeTrue(threads instanceof com.sun.management.ThreadMXBean);
+        mThreads = (com.sun.management.ThreadMXBean) threads;
+        assumeTrue(mThreads.isThreadAllocatedMemorySupported());
+        mThreads.setThreadAllocatedMemoryEnabled(true);
+
+        int[] colors = new int[EarthquakeFormatter.MAGNITUDE_COLOR_COUNT];
+        for (int i = 0; i < colors.length; i++) {
+            colors[i] = 0xff000000 | i;
+        }
+        mFormatter = new EarthquakeFormatter(Locale.US, TimeZone.getTimeZone("UTC"), colors, "Near the");
+        mEvents = FdsnFixtures.events(EVENTS);
+    }
+
+    /**
+     * 表示用データを作ってあれば、行をバインドし直してもヒープに何も割り当てない
+     */
+    @Test
+    public void rebindingPreparedRowsDoesNotAllocate() {
+        mFormatter.prepare(mEvents);
+        EarthquakeDisplay first = mFormatter.displayFor(mEvents.get(0));
+
+        long before = allocatedBytes();
+        int colors = 0;
+        for (int pass = 0; pass < 10; pass++) {
+            for (int i = 0; i < EVENTS; i++) {
+                colors += mFormatter.displayFor(mEvents.get(i)).magnitudeColor;
+            }
+        }
+        long allocated = allocatedBytes() - before;
+
+        //getThreadAllocatedBytes 自体の分だけは許す
+        assertTrue(allocated + " bytes for " + 10 * EVENTS + " binds", allocated < 4096);
+        assertSame(first, mFormatter.displayFor(mEvents.get(0)));
+        assertTrue(colors != 0);
+    }
+
+    /**
+     * 1件を作るときに割り当てるのは表示する文字列と作業用の分だけで、
+     * 呼ぶたびにフォーマッタを作る場合より少ない
+     */
+    @Test
+    public void formattingReusesTheFormatters() {
+        //クラスの初期化などの分を除くため、一度ずつ作っておく
+        mFormatter.prepare(FdsnFixtures.events(10));
+        formatWithNewFormatters(FdsnFixtures.events(10));
+
+        long before = allocatedBytes();
+        mFormatter.prepare(mEvents);
+        long cached = allocatedBytes() - before;
+
+        before = allocatedBytes();
+        formatWithNewFormatters(FdsnFixtures.events(EVENTS));
+        long uncached = allocatedBytes() - before;
+
+        assertTrue(cached + " bytes with cached formatters, " + uncached + " bytes without",
+                cached * 3 < uncached);
+        EarthquakeDisplay display = mEvents.get(0).getDisplay();
+        assertEquals(mFormatter.formatMagnitude(mEvents.get(0).getMagnitude()), display.magnitude);
+    }
+
+    private long allocatedBytes() {
+        return mThreads.getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    /**
+     * バインドのたびにフォーマッタを作っていた、以前のアダプタと同じ作り方
+     */
+    private static int formatWithNewFormatters(List<Earthquake> earthquakes) {
+        int length = 0;
+        for (Earthquake earthquake : earthquakes) {
+            Date date = new Date(earthquake.getTimeInMilliseconds());
+            length += new DecimalFormat("0.0").format(earthquake.getMagnitude()).length();
+            length += new SimpleDateFormat("LLL dd, yyyy", Locale.US).format(date).length();
+            length += new SimpleDateFormat("h:mm a", Locale.US).format(date).length();
+            length += earthquake.getPlace().split(" of ").length;
+        }
+        return length;
+    }
+}
@@ -0,0 +1,152 @@
+package com.example.android.quakereport;
+
+import android.content.Context;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * 設定の変更で作り直したローダーが、どの場合にメモリ上の前回の結果で答え、どの場合にネットワークに行くかを確かめる
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(constants = BuildConfig.class, sdk = 23)
+public class EarthquakeLoaderTest {
+
+    private static final int EVENTS = 60;
+
+    private Context mContext;
+    private LocalHttpServer mServer;
+    private final List<Earthquake> mEvents = new ArrayList<>();
+    private final EarthquakeResultSet.Holder mHolder = new EarthquakeResultSet.Holder();
+
+    @Before
+    public void setUp() throws IOException {
+        mContext = RuntimeEnvironment.application;
+        //ローカルストアは他のテストと共有なので、前のテストの取り込み済みの記録で答えないようにする
+        EarthquakeStore.getInstance(mContext).clearCoverage();
+        //ローカルストアの期間 (30日) に入るよう、今から1分ごとにさかのぼる
+        long now = System.currentTimeMillis();
+        for (int i = 0; i < EVENTS; i++) {
+            long time = now - (i + 1) * 60000L;
+            mEvents.add(FdsnFixtures.event(i, time, time + 1000, "reviewed"));
+        }
+        mServer = new LocalHttpServer(new LocalHttpServer.Handler() {
+            @Override
+            public LocalHttpServer.Response handle(LocalHttpServer.Request request) {
+                //FDSN の offset は1から数える
+                int offset = request.intParam("offset", 1) - 1;
+                int limit = request.intParam("limit", EVENTS);
+                List<Earthquake> page = mEvents.subList(Math.min(offset, EVENTS), Math.min(offset + limit, EVENTS));
+                return LocalHttpServer.Response.ok(FdsnFixtures.geoJson(page), "application/json");
+            }
+        });
+    }
+
+    @After
+    public void tearDown() {
+        mServer.close();
+    }
+
+    @Test
+    public void stricterMinMagnitudeIsSelectedInMemory() {
+        load(mHolder, 2.5, "time", "");
+        int requests = mServer.getRequestCount();
+        assertTrue(requests > 0);
+
+        //ローカルストアでは答えられないようにしておく
+        EarthquakeStore.getInstance(mContext).clearCoverage();
+        List<Earthquake> byMagnitude = load(mHolder, 4.5, "magnitude", "");
+        List<Earthquake> byTime = load(mHolder, 5.0, "time", "");
+
+        assertEquals(requests, mServer.getRequestCount());
+        FdsnFixtures.assertSameEarthquakes(expected(4.5, "magnitude"), byMagnitude);
+        FdsnFixtures.assertSameEarthquakes(expected(5.0, "time"), byTime);
+    }
+
+    @Test
+    public void lowerMinMagnitudeOrAnotherScopeGoesToTheNetwork() {
+        load(mHolder, 4.5, "time", "");
+
+        EarthquakeStore.getInstance(mContext).clearCoverage();
+        int requests = mServer.getRequestCount();
+        load(mHolder, 2.5, "time", "");
+        assertTrue(mServer.getRequestCount() > requests);
+
+        EarthquakeStore.getInstance(mContext).clearCoverage();
+        requests = mServer.getRequestCount();
+        load(mHolder, 4.5, "time", "&eventtype=earthquake");
+        assertTrue(mServer.getRequestCount() > requests);
+    }
+
+    /**
+     * holder を渡さないローダー (バックグラウンドの定期更新) は、前回の結果を使わない
+     */
+    @Test
+    public void loaderWithoutHolderDoesNotShareResults() {
+        load(mHolder, 2.5, "time", "");
+        EarthquakeStore.getInstance(mContext).clearCoverage();
+        int requests = mServer.getRequestCount();
+
+        load(null, 4.5, "time", "");
+
+        assertTrue(mServer.getRequestCount() > requests);
+    }
+
+    @Test
+    public void trimMemoryDropsTheResultSet() {
+        EarthquakeLoader loader = loader(mHolder, 2.5, "time", "");
+        loader.loadInBackground();
+        assertTrue(mHolder.get() != null);
+
+        loader.onTrimMemory(android.content.ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW);
+
+        assertFalse(mHolder.get() != null);
+    }
+
+    private List<Earthquake> load(EarthquakeResultSet.Holder holder, double minMagnitude, String orderBy,
+                                  String extraQuery) {
+        return loader(holder, minMagnitude, orderBy, extraQuery).loadInBackground();
+    }
+
+    private EarthquakeLoader loader(EarthquakeResultSet.Holder holder, double minMagnitude, String orderBy,
+                                    String extraQuery) {
+        EarthquakeLoader loader = new EarthquakeLoader(mContext, mServer.url("/fdsnws/event/1/query?format=geojson"
+                + "&limit=1000&minmag=" + minMagnitude + "&orderby=" + orderBy + extraQuery));
+        loader.setResultSetHolder(holder);
+        return loader;
+    }
+
+    private List<Earthquake> expected(double minMagnitude, final String orderBy) {
+        List<Earthquake> expected = new ArrayList<>();
+        for (Earthquake event : mEvents) {
+            if (event.getMagnitude() >= minMagnitude) {
+                expected.add(event);
+            }
+        }
+        Collections.sort(expected, new Comparator<Earthquake>() {
+            @Override
+            public int compare(Earthquake lhs, Earthquake rhs) {
+                if ("magnitude".equals(orderBy)) {
+                    return Double.compare(rhs.getMagnitude(), lhs.getMagnitude());
+                }
+                return Long.compare(rhs.getTimeInMilliseconds(), lhs.getTimeInMilliseconds());
+            }
+        });
+        return expected;
+    }
+}
@@ -0,0 +1,204 @@
+package com.example.android.quakereport;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * ページの間にフィードが更新されても、イベントが重複したり抜けたりしないことを、ローカルのサーバで確かめる
+ */
+public class EarthquakePagerTest {
+
+    private static final int EVENTS = 3000;
+
+    private LocalHttpServer mServer;
+    //サーバが返すフィード。新しい順
+    private final List<Earthquake> mFeed = new ArrayList<>();
+    //ページを返すたびに、フィードを変える
+    private volatile Runnable mOnPage;
+    //true の間はエラーを返す
+    private volatile boolean mFailing;
+    private int mNextNewIndex = EVENTS;
+
+    @Before
+    public void setUp() throws IOException {
+        mFeed.addAll(FdsnFixtures.events(EVENTS));
+        mServer = new LocalHttpServer(new LocalHttpServer.Handler() {
+            @Override
+            public LocalHttpServer.Response handle(LocalHttpServer.Request request) {
+                if (mFailing) {
+                    return LocalHttpServer.Response.status(503);
+                }
+                String body;
+                synchronized (mFeed) {
+                    int from = Math.min(request.intParam("offset", 1) - 1, mFeed.size());
+                    int to = Math.min(from + request.intParam("limit", 20000), mFeed.size());
+                    body = FdsnFixtures.csv(new ArrayList<>(mFeed.subList(from, to)));
+                    if (mOnPage != null) {
+                        mOnPage.run();
+                    }
+                }
+                return LocalHttpServer.Response.ok(body, "text/csv");
+            }
+        });
+    }
+
+    @After
+    public void tearDown() {
+        mServer.close();
+    }
+
+    @Test
+    public void staticFeedIsReadOnceInOrder() {
+        List<Earthquake> earthquakes = new ArrayList<>();
+
+        EarthquakePager.Result result = fetch(20000, earthquakes);
+
+        assertEquals(EarthquakePager.Result.COMPLETE, result);
+        FdsnFixtures.assertSameEarthquakes(FdsnFixtures.events(EVENTS), earthquakes);
+    }
+
+    /**
+     * 新しいイベントが先頭に入ると後ろにずれるので、前のページの末尾がもう一度返ってくる
+     */
+    @Test
+    public void eventsInsertedBetweenPagesAreNotDuplicated() {
+        final int inserted = 3;
+        mOnPage = new Runnable() {
+            @Override
+            public void run() {
+                for (int i = 0; i < inserted; i++) {
+                    mFeed.add(0, FdsnFixtures.event(mNextNewIndex++));
+                }
+            }
+        };
+        List<Earthquake> earthquakes = new ArrayList<>();
+
+        assertEquals(EarthquakePager.Result.COMPLETE, fetch(20000, earthquakes));
+
+        assertUnique(earthquakes);
+        assertContainsAll(earthquakes, FdsnFixtures.events(EVENTS));
+    }
+
+    /**
+     * 取得済みの範囲のイベントが消えると前にずれるので、offset だけで進めると次のページの先頭が抜ける
+     */
+    @Test
+    public void eventsRemovedBetweenPagesAreNotSkipped() {
+        final Set<String> removed = new HashSet<>();
+        mOnPage = new Runnable() {
+            @Override
+            public void run() {
+                //先頭に近い、取得済みのはずの範囲から消す
+                for (int i = 0; i < EarthquakePager.OVERLAP && mFeed.size() > 10; i++) {
+                    removed.add(mFeed.remove(10).getId());
+                }
+            }
+        };
+        List<Earthquake> earthquakes = new ArrayList<>();
+
+        assertEquals(EarthquakePager.Result.COMPLETE, fetch(20000, earthquakes));
+
+        assertUnique(earthquakes);
+        List<Earthquake> kept = new ArrayList<>();
+        for (Earthquake earthquake : FdsnFixtures.events(EVENTS)) {
+            if (!removed.contains(earthquake.getId())) {
+                kept.add(earthquake);
+            }
+        }
+        assertContainsAll(earthquakes, kept);
+    }
+
+    @Test
+    public void limitCountsDistinctEvents() {
+        mOnPage = new Runnable() {
+            @Override
+            public void run() {
+                mFeed.add(0, FdsnFixtures.event(mNextNewIndex++));
+            }
+        };
+        List<Earthquake> earthquakes = new ArrayList<>();
+
+        assertEquals(EarthquakePager.Result.LIMIT_REACHED, fetch(500, earthquakes));
+
+        assertEquals(500, earthquakes.size());
+        assertUnique(earthquakes);
+    }
+
+    /**
+     * 最初のページは小さく、その後は倍々に増え、境目は前のページと重なる
+     */
+    @Test
+    public void pagesGrowAndOverlap() {
+        fetch(20000, new ArrayList<Earthquake>());
+
+        List<LocalHttpServer.Request> requests = mServer.getRequests();
+        assertEquals(1, requests.get(0).intParam("offset", -1));
+        assertEquals(EarthquakePager.FIRST_PAGE_SIZE, requests.get(0).intParam("limit", -1));
+        int covered = EarthquakePager.FIRST_PAGE_SIZE;
+        for (int i = 1; i < requests.size(); i++) {
+            int offset = requests.get(i).intParam("offset", -1);
+            assertEquals(covered + 1 - EarthquakePager.OVERLAP, offset);
+            covered = offset - 1 + requests.get(i).intParam("limit", -1);
+        }
+        assertEquals(EarthquakePager.MAX_PAGE_SIZE + EarthquakePager.OVERLAP,
+                requests.get(requests.size() - 1).intParam("limit", -1));
+    }
+
+    @Test
+    public void failedPageStopsWithWhatWasRead() {
+        mOnPage = new Runnable() {
+            @Override
+            public void run() {
+                mFailing = true;
+            }
+        };
+        List<Earthquake> earthquakes = new ArrayList<>();
+
+        assertEquals(EarthquakePager.Result.FAILED, fetch(20000, earthquakes));
+
+        FdsnFixtures.assertSameEarthquakes(FdsnFixtures.events(EarthquakePager.FIRST_PAGE_SIZE), earthquakes);
+    }
+
+    private EarthquakePager.Result fetch(int maxEvents, final List<Earthquake> into) {
+        return new EarthquakePager(maxEvents).fetch(new EarthquakePager.PageFetcher() {
+            @Override
+            public List<Earthquake> fetchPage(int offset, int limit) {
+                return QueryUtils.fetchEarthquakeData(
+                        mServer.url("/query?format=csv&offset=" + offset + "&limit=" + limit));
+            }
+        }, new EarthquakePager.Callback() {
+            @Override
+            public boolean onPage(List<Earthquake> events, boolean last) {
+                into.addAll(events);
+                return true;
+            }
+        });
+    }
+
+    private static void assertUnique(List<Earthquake> earthquakes) {
+        Set<String> ids = new HashSet<>();
+        for (Earthquake earthquake : earthquakes) {
+            assertTrue("duplicate " + earthquake.getId(), ids.add(earthquake.getId()));
+        }
+    }
+
+    private static void assertContainsAll(List<Earthquake> earthquakes, List<Earthquake> expected) {
+        Set<String> ids = new HashSet<>();
+        for (Earthquake earthquake : earthquakes) {
+            ids.add(earthquake.getId());
+        }
+        for (Earthquake earthquake : expected) {
+            assertTrue("missing " + earthquake.getId(), ids.contains(earthquake.getId()));
+        }
+    }
+}
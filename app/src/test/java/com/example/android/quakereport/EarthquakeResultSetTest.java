@@ -0,0 +1,97 @@
+package com.example.android.quakereport;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertNull;
+
+/**
+ * 前回の結果から選び直した結果が、条件に合うものを全件並べ替えた結果と同じになることを確かめる
+ */
+public class EarthquakeResultSetTest {
+
+    private static final String SCOPE = "https://earthquake.usgs.gov/fdsnws/event/1/query?format=geojson&limit=20000";
+    private static final long LOADED_AT = FdsnFixtures.BASE_TIME;
+    private static final long FRESHNESS = 15 * 60 * 1000;
+
+    private List<Earthquake> mEvents;
+    private EarthquakeResultSet mResultSet;
+
+    @Before
+    public void setUp() {
+        //同じ時刻・同じマグニチュードのイベントも混ぜ、取得した順 (新しい順) とは違う順で渡す
+        mEvents = FdsnFixtures.events(2000);
+        for (int i = 0; i < 200; i++) {
+            Earthquake event = FdsnFixtures.event(i);
+            mEvents.add(new Earthquake("dup" + i, event.getMagnitude(), event.getPlace(),
+                    event.getTimeInMilliseconds(), event.getUrl(), event.getUpdated(), event.getStatus(),
+                    event.getLatitude(), event.getLongitude(), event.getDepth()));
+        }
+        Collections.shuffle(mEvents, new Random(17));
+        mResultSet = new EarthquakeResultSet(SCOPE, 2.5, mEvents, LOADED_AT, FRESHNESS);
+    }
+
+    @Test
+    public void stricterMinMagnitudeMatchesAFullSort() {
+        for (double minMagnitude : new double[]{2.5, 3.0, 4.75, 6.5, 7.5, 9.0}) {
+            for (String orderBy : new String[]{"time", "magnitude"}) {
+                FdsnFixtures.assertSameEarthquakes(fullSort(minMagnitude, orderBy),
+                        mResultSet.select(SCOPE, minMagnitude, orderBy, LOADED_AT + FRESHNESS - 1));
+            }
+        }
+    }
+
+    /**
+     * 持っていないイベントが要る条件・別のクエリ・古くなった結果では答えない
+     */
+    @Test
+    public void queriesItCannotAnswerFallThrough() {
+        assertNull(mResultSet.select(SCOPE, 2.4, "time", LOADED_AT));
+        assertNull(mResultSet.select(SCOPE + "&starttime=2016-09-01", 4.5, "time", LOADED_AT));
+        assertNull(mResultSet.select(SCOPE, 4.5, "time-asc", LOADED_AT));
+        assertNull(mResultSet.select(SCOPE, 4.5, null, LOADED_AT));
+        assertNull(mResultSet.select(SCOPE, 4.5, "time", LOADED_AT + FRESHNESS));
+    }
+
+    @Test
+    public void sortsAreStableAndDescending() {
+        assertArrayEquals(new int[]{4, 0, 2, 3, 5, 1},
+                EarthquakeResultSet.sortDescending(new long[]{500, 100, 400, 300, 600, 200}));
+        double[] magnitudes = {4.5, 3.0, 4.5, 6.1, 3.0, 5.2, -0.5, 0.0};
+        long[] keys = new long[magnitudes.length];
+        for (int i = 0; i < magnitudes.length; i++) {
+            keys[i] = EarthquakeResultSet.sortableBits(magnitudes[i]);
+        }
+        //負のマグニチュードも 0 より後ろに来る
+        assertArrayEquals(new int[]{3, 5, 0, 2, 1, 4, 7, 6}, EarthquakeResultSet.sortDescending(keys));
+    }
+
+    /**
+     * 条件に合うものを、EarthquakeStore や USGS と同じく降順に並べ直す。同じ値のものは元の順番のまま
+     */
+    private List<Earthquake> fullSort(double minMagnitude, final String orderBy) {
+        List<Earthquake> expected = new ArrayList<>();
+        for (Earthquake event : mEvents) {
+            if (event.getMagnitude() >= minMagnitude) {
+                expected.add(event);
+            }
+        }
+        Collections.sort(expected, new Comparator<Earthquake>() {
+            @Override
+            public int compare(Earthquake lhs, Earthquake rhs) {
+                if ("magnitude".equals(orderBy)) {
+                    return Double.compare(rhs.getMagnitude(), lhs.getMagnitude());
+                }
+                return Long.compare(rhs.getTimeInMilliseconds(), lhs.getTimeInMilliseconds());
+            }
+        });
+        return expected;
+    }
+}
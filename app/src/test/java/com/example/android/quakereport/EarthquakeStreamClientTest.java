@@ -0,0 +1,186 @@
+package com.example.android.quakereport;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+
+/**
+ * イベントフィードの読み方と、切れた後に Last-Event-ID で続きから受け取れることを、
+ * テスト用のフィードサーバで確かめる
+ */
+public class EarthquakeStreamClientTest {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static final int EVENTS = 40;
+    //1回の接続で送るイベントの数
+    private static final int PER_CONNECTION = 6;
+
+    private final List<Earthquake> mFeed = FdsnFixtures.events(EVENTS);
+    private final List<Earthquake> mReceived = Collections.synchronizedList(new ArrayList<Earthquake>());
+    private LocalHttpServer mServer;
+    private EarthquakeStreamClient mClient;
+
+    @After
+    public void tearDown() {
+        if (mClient != null) {
+            mClient.stop();
+        }
+        if (mServer != null) {
+            mServer.close();
+        }
+    }
+
+    @Test
+    public void readerParsesFieldsAndKeepsTheLastId() throws IOException {
+        String stream = ": heartbeat\r\n"
+                + "retry: 2500\r\n"
+                + "id: 1\r\n"
+                + "event: earthquake\r\n"
+                + "data:first\r\n"
+                + "data: second\r\n"
+                + "\r\n"
+                //id も data もないイベントは渡さないが、id は前のものを引き継ぐ
+                + "event: earthquakes\n"
+                + "\n"
+                + "data: no id\n"
+                + "unknown: ignored\n"
+                + "\n"
+                + "id: 2\n"
+                + "\n"
+                + "retry: 10x\r"
+                + "id\r"
+                + "data\r"
+                + "\r"
+                //最後の空行がないイベントは途中で切れたものなので捨てる
+                + "id: 3\n"
+                + "data: truncated";
+        final List<String> events = new ArrayList<>();
+        ServerSentEventReader reader = new ServerSentEventReader(new StringReader(stream), "0");
+
+        reader.read(new ServerSentEventReader.Callback() {
+            @Override
+            public void onEvent(String event, String data, String lastEventId) {
+                events.add(event + "|" + data + "|" + lastEventId);
+            }
+        });
+
+        assertEquals(3, events.size());
+        assertEquals("earthquake|first\nsecond|1", events.get(0));
+        assertEquals(ServerSentEventReader.DEFAULT_EVENT + "|no id|1", events.get(1));
+        //空の id はIDをリセットする
+        assertEquals(ServerSentEventReader.DEFAULT_EVENT + "||", events.get(2));
+        assertEquals("", reader.getLastEventId());
+        assertEquals(2500, reader.getRetryMillis());
+    }
+
+    /**
+     * 接続ごとに数件ずつ送って閉じるフィードを、最後まで1件ずつ、重複なく受け取る
+     */
+    @Test
+    public void reconnectsWithLastEventId() throws Exception {
+        startFeed(false);
+
+        awaitStopped();
+
+        FdsnFixtures.assertSameEarthquakes(mFeed, mReceived);
+        List<LocalHttpServer.Request> requests = mServer.getRequests();
+        //最後の1回は 204 で再接続を断られる
+        int connections = (EVENTS + PER_CONNECTION - 1) / PER_CONNECTION + 1;
+        assertEquals(connections, requests.size());
+        assertNull(requests.get(0).header("Last-Event-ID"));
+        for (int i = 1; i < connections; i++) {
+            assertEquals(String.valueOf(Math.min(i * PER_CONNECTION, EVENTS) - 1),
+                    requests.get(i).header("Last-Event-ID"));
+            assertEquals("text/event-stream", requests.get(i).header("Accept"));
+        }
+        assertEquals(String.valueOf(EVENTS - 1), mClient.getLastEventId());
+    }
+
+    /**
+     * イベントの途中で切れた場合、途中までのイベントは捨て、次の接続でもう一度受け取る
+     */
+    @Test
+    public void eventCutMidwayIsReceivedAgain() throws Exception {
+        startFeed(true);
+
+        awaitStopped();
+
+        FdsnFixtures.assertSameEarthquakes(mFeed, mReceived);
+        List<LocalHttpServer.Request> requests = mServer.getRequests();
+        //切れる接続では最後の1件が届かないので、1回に受け取れるのは PER_CONNECTION - 1 件
+        for (int i = 1; i < requests.size(); i++) {
+            assertEquals(String.valueOf(Math.min(i * (PER_CONNECTION - 1), EVENTS) - 1),
+                    requests.get(i).header("Last-Event-ID"));
+        }
+    }
+
+    /**
+     * @param cut true の場合、各接続の最後のイベントを data の途中で切る
+     */
+    private void startFeed(final boolean cut) throws IOException {
+        mServer = new LocalHttpServer(new LocalHttpServer.Handler() {
+            @Override
+            public LocalHttpServer.Response handle(LocalHttpServer.Request request) {
+                String lastEventId = request.header("Last-Event-ID");
+                int next = lastEventId == null ? 0 : Integer.parseInt(lastEventId) + 1;
+                if (next >= EVENTS) {
+                    return LocalHttpServer.Response.status(204);
+                }
+                StringBuilder body = new StringBuilder(": connected\n\n");
+                int end = Math.min(next + PER_CONNECTION, EVENTS);
+                int lastEventStart = 0;
+                for (int i = next; i < end; i++) {
+                    lastEventStart = body.length();
+                    //1つの Feature を2行の data に分けて送る
+                    String feature = feature(mFeed.get(i));
+                    int split = feature.indexOf("\"geometry\"");
+                    body.append("id: ").append(i).append('\n')
+                            .append("event: ").append(EarthquakeStreamClient.EVENT_EARTHQUAKE).append('\n')
+                            .append("data: ").append(feature.substring(0, split)).append('\n')
+                            .append("data: ").append(feature.substring(split)).append("\n\n");
+                }
+                byte[] bytes = body.toString().getBytes(UTF_8);
+                LocalHttpServer.Response response = LocalHttpServer.Response.ok(bytes, "text/event-stream");
+                if (cut && end < EVENTS) {
+                    response.cutAfter(lastEventStart + (bytes.length - lastEventStart) / 2);
+                }
+                return response;
+            }
+        });
+        mClient = new EarthquakeStreamClient(mServer.url("/events"), new EarthquakeStreamClient.Listener() {
+            @Override
+            public void onEarthquakes(List<Earthquake> changes) {
+                mReceived.addAll(changes);
+            }
+        }, 10, 100);
+        mClient.start();
+    }
+
+    private void awaitStopped() throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10000;
+        while (mClient.isRunning() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertFalse("still running after " + mReceived.size() + " events", mClient.isRunning());
+    }
+
+    /**
+     * format=geojson の features の要素1つ
+     */
+    private static String feature(Earthquake earthquake) {
+        String collection = FdsnFixtures.geoJson(Collections.singletonList(earthquake));
+        String start = "\"features\":[";
+        return collection.substring(collection.indexOf(start) + start.length(), collection.length() - 2);
+    }
+}
@@ -0,0 +1,100 @@
+package com.example.android.quakereport;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * フィードの変更が、元のリストがある間だけ差し込まれ、ない間もローカルストアには入ることを確かめる。
+ * フィードには接続せず、届いた変更を直接渡す
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(constants = BuildConfig.class, sdk = 23)
+public class EarthquakeStreamMergerTest {
+
+    private static final int EVENTS = 10;
+    private static final int MAX_EVENTS = 8;
+
+    private final long mNow = System.currentTimeMillis();
+    private final List<List<Earthquake>> mMerged = new ArrayList<>();
+    private EarthquakeStore mStore;
+    private EarthquakeStreamMerger mMerger;
+
+    @Before
+    public void setUp() {
+        mStore = EarthquakeStore.getInstance(RuntimeEnvironment.application);
+        File directory = RuntimeEnvironment.application.getCacheDir();
+        mMerger = new EarthquakeStreamMerger("http://localhost/stream", mStore,
+                new DisplayLists(directory, Long.MAX_VALUE), 0, "time", MAX_EVENTS,
+                new EarthquakeStreamMerger.Listener() {
+                    @Override
+                    public void onMerged(List<Earthquake> merged) {
+                        mMerged.add(merged);
+                    }
+                });
+    }
+
+    @Test
+    public void changesBeforeTheFirstLoadOnlyGoToTheStore() {
+        Earthquake change = event(0, "reviewed");
+
+        mMerger.onChanges(Collections.singletonList(change));
+
+        assertTrue(mMerged.isEmpty());
+        assertTrue(storeContains(change.getId()));
+    }
+
+    @Test
+    public void changesAreMergedIntoTheLatestList() {
+        List<Earthquake> base = new ArrayList<>();
+        for (int i = 1; i <= EVENTS; i++) {
+            base.add(event(i, "reviewed"));
+        }
+        mMerger.setBase(base);
+
+        mMerger.onChanges(Collections.singletonList(event(0, "reviewed")));
+        mMerger.onChanges(Collections.singletonList(event(3, "deleted")));
+
+        assertEquals(2, mMerged.size());
+        //2回目の変更は、1回目の変更で上限から外れた分を除いたリストに差し込まれる
+        List<Earthquake> expected = new ArrayList<>();
+        for (int i = 0; i < MAX_EVENTS; i++) {
+            if (i != 3) {
+                expected.add(event(i, "reviewed"));
+            }
+        }
+        FdsnFixtures.assertSameEarthquakes(expected, mMerged.get(1));
+
+        mMerger.setBase(null);
+        mMerger.onChanges(Collections.singletonList(event(EVENTS + 1, "reviewed")));
+        assertEquals(2, mMerged.size());
+    }
+
+    /**
+     * ローカルストアの期間 (30日) に入るよう、今から1分ごとにさかのぼる
+     */
+    private Earthquake event(int index, String status) {
+        long time = mNow - (index + 1) * 60000L;
+        return FdsnFixtures.event(index, time, time + 1000, status);
+    }
+
+    private boolean storeContains(String id) {
+        for (Earthquake earthquake : mStore.query(-Double.MAX_VALUE, "time", Long.MIN_VALUE, 1000)) {
+            if (id.equals(earthquake.getId())) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,293 @@
+package com.example.android.quakereport;
+
+import android.content.Context;
+import android.net.Uri;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import java.io.IOException;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TimeZone;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * 差分同期を、版の変わるイベントを返すローカルのサーバに対して確かめる。
+ * サーバは updatedafter より後に更新されたイベントを、FDSN と同じく発生時刻の新しい順に offset / limit で返す
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(constants = BuildConfig.class, sdk = 23)
+public class EarthquakeSyncerTest {
+
+    private static final int EVENT_COUNT = 30;
+
+    private Context mContext;
+    private EarthquakeStore mStore;
+    private EarthquakeSyncer mSyncer;
+    private RevisionServer mCatalog;
+    private LocalHttpServer mServer;
+    private Uri mBaseUri;
+    private HttpTransport mTransport;
+
+    @Before
+    public void setUp() throws IOException {
+        mContext = RuntimeEnvironment.application;
+        mTransport = QueryUtils.getTransport();
+        mStore = new EarthquakeStore(mContext);
+        mSyncer = new EarthquakeSyncer(mContext, mStore);
+        mCatalog = new RevisionServer();
+        mServer = new LocalHttpServer(mCatalog);
+        mBaseUri = Uri.parse(mServer.url("/fdsnws/event/1/query?format=csv&minmag=2.5&limit=20000"));
+
+        //全件取得を済ませた状態から始める
+        List<Earthquake> initial = FdsnFixtures.events(EVENT_COUNT);
+        for (Earthquake earthquake : initial) {
+            mCatalog.put(earthquake);
+        }
+        mStore.upsert(initial);
+        mSyncer.recordFullFetch(mBaseUri, initial);
+    }
+
+    @After
+    public void tearDown() {
+        QueryUtils.setTransport(mTransport);
+        mServer.close();
+    }
+
+    @Test
+    public void mergesRevisionsAndDeletionsSinceTheMark() {
+        Earthquake revised = mCatalog.revise(3, 7.25);
+        mCatalog.delete(5);
+        Earthquake added = mCatalog.add(-1);
+
+        assertEquals(3, mSyncer.syncChanges(mBaseUri, null));
+
+        Map<String, Earthquake> stored = storedById();
+        assertEquals(EVENT_COUNT, stored.size());
+        assertEquals(7.25, stored.get(revised.getId()).getMagnitude(), 0);
+        assertFalse(stored.containsKey(FdsnFixtures.event(5).getId()));
+        FdsnFixtures.assertSameEarthquake(withoutStatus(added), stored.get(added.getId()));
+
+        //差分も本文の小さい csv で、削除されたものも含めて要求する
+        LocalHttpServer.Request request = mServer.getRequests().get(0);
+        assertEquals(QueryUtils.RESPONSE_FORMAT, request.param("format"));
+        assertEquals("true", request.param("includedeleted"));
+        assertEquals("2.5", request.param("minmag"));
+
+        //マークが進んだので、次は何も返ってこない
+        assertEquals(0, mSyncer.syncChanges(mBaseUri, null));
+    }
+
+    @Test
+    public void truncatedDeltaIsNotMergedAndKeepsTheMark() {
+        List<Earthquake> revised = new ArrayList<>();
+        for (int i = 0; i < 20; i++) {
+            revised.add(mCatalog.revise(i, 8.0));
+        }
+        mCatalog.cutNextResponse();
+
+        assertEquals(-1, mSyncer.syncChanges(mBaseUri, null));
+        //切れる前に届いた分も書き込まない
+        Map<String, Earthquake> stored = storedById();
+        for (Earthquake earthquake : revised) {
+            assertTrue(stored.get(earthquake.getId()).getMagnitude() < 8.0);
+        }
+
+        //マークを進めていないので、取り直せばすべて届く
+        assertEquals(20, mSyncer.syncChanges(mBaseUri, null));
+        stored = storedById();
+        for (Earthquake earthquake : revised) {
+            assertEquals(8.0, stored.get(earthquake.getId()).getMagnitude(), 0);
+        }
+    }
+
+    @Test
+    public void truncatedSecondPageDiscardsTheWholeDelta() {
+        //PAGE_SIZE (1000) を超える変更は2ページに分かれる
+        for (int i = 0; i < 1500; i++) {
+            mCatalog.add(EVENT_COUNT + i);
+        }
+        mCatalog.cutResponseAt(2);
+
+        assertEquals(-1, mSyncer.syncChanges(mBaseUri, null));
+        assertEquals(EVENT_COUNT, storedById().size());
+
+        assertEquals(1500, mSyncer.syncChanges(mBaseUri, null));
+        assertEquals(EVENT_COUNT + 1500, storedById().size());
+    }
+
+    @Test(timeout = 10000)
+    public void cancelStopsAStalledDeltaAndKeepsTheMark() throws InterruptedException {
+        //HttpURLConnection は JVM では読み込み中の切断を待ってしまうので、ソケットを直接閉じる transport にする
+        QueryUtils.setTransport(new SocketTransport());
+        mCatalog.revise(1, 6.5);
+        mCatalog.stallNextResponse();
+
+        final CancellationToken cancellation = new CancellationToken();
+        Thread canceller = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    Thread.sleep(200);
+                } catch (InterruptedException ignored) {
+                }
+                cancellation.cancel();
+            }
+        });
+        canceller.start();
+        long start = System.nanoTime();
+        assertEquals(-1, mSyncer.syncChanges(mBaseUri, cancellation));
+        assertTrue((System.nanoTime() - start) / 1000000 < 5000);
+        canceller.join();
+
+        assertEquals(1, mSyncer.syncChanges(mBaseUri, null));
+    }
+
+    @Test
+    public void upgradingTheDatabaseForgetsMarksCoverageAndImportProgress() {
+        mStore.markCovered(2.5, System.currentTimeMillis());
+        mContext.getSharedPreferences(BulkImportService.PREFS_NAME, Context.MODE_PRIVATE)
+                .edit().putString("import:test", "0:1000").apply();
+        assertTrue(mSyncer.hasHighWaterMark(mBaseUri));
+
+        EarthquakeDbHelper helper = new EarthquakeDbHelper(mContext);
+        helper.onUpgrade(helper.getWritableDatabase(), 3, 4);
+
+        assertFalse(mSyncer.hasHighWaterMark(mBaseUri));
+        assertFalse(mStore.covers(2.5, System.currentTimeMillis()));
+        assertNull(mContext.getSharedPreferences(BulkImportService.PREFS_NAME, Context.MODE_PRIVATE)
+                .getString("import:test", null));
+    }
+
+    private Map<String, Earthquake> storedById() {
+        Map<String, Earthquake> byId = new HashMap<>();
+        for (Earthquake earthquake : mStore.query(0, "time", 0, 100000)) {
+            byId.put(earthquake.getId(), earthquake);
+        }
+        return byId;
+    }
+
+    //ストアは status を保存しない
+    private static Earthquake withoutStatus(Earthquake earthquake) {
+        return new Earthquake(earthquake.getId(), earthquake.getMagnitude(), earthquake.getPlace(),
+                earthquake.getTimeInMilliseconds(), earthquake.getUrl(), earthquake.getUpdated(), null,
+                earthquake.getLatitude(), earthquake.getLongitude(), earthquake.getDepth());
+    }
+
+    /**
+     * イベントの最新の版を持ち、updatedafter の問い合わせに答えるサーバ。
+     * 版を変えるたびに updated を進める
+     */
+    private static final class RevisionServer implements LocalHttpServer.Handler {
+        private final Map<String, Earthquake> mEvents = new HashMap<>();
+        private long mClock = FdsnFixtures.BASE_TIME + 60000;
+        //この番号のリクエスト (1 始まり) の本文を途中で切る・止める
+        private int mRequests;
+        private int mCutAt = -1;
+        private int mStallAt = -1;
+
+        synchronized void put(Earthquake earthquake) {
+            mEvents.put(earthquake.getId(), earthquake);
+        }
+
+        synchronized Earthquake revise(int index, double magnitude) {
+            Earthquake old = mEvents.get(FdsnFixtures.event(index).getId());
+            Earthquake revised = new Earthquake(old.getId(), magnitude, old.getPlace(),
+                    old.getTimeInMilliseconds(), old.getUrl(), ++mClock, "reviewed",
+                    old.getLatitude(), old.getLongitude(), old.getDepth());
+            put(revised);
+            return revised;
+        }
+
+        synchronized void delete(int index) {
+            Earthquake old = mEvents.get(FdsnFixtures.event(index).getId());
+            put(new Earthquake(old.getId(), old.getMagnitude(), old.getPlace(), old.getTimeInMilliseconds(),
+                    old.getUrl(), ++mClock, "deleted", old.getLatitude(), old.getLongitude(), old.getDepth()));
+        }
+
+        synchronized Earthquake add(int index) {
+            Earthquake template = FdsnFixtures.event(index);
+            Earthquake added = new Earthquake(template.getId(), template.getMagnitude(), template.getPlace(),
+                    template.getTimeInMilliseconds(), template.getUrl(), ++mClock, "automatic",
+                    template.getLatitude(), template.getLongitude(), template.getDepth());
+            put(added);
+            return added;
+        }
+
+        synchronized void cutNextResponse() {
+            mCutAt = mRequests + 1;
+        }
+
+        synchronized void cutResponseAt(int request) {
+            mCutAt = mRequests + request;
+        }
+
+        synchronized void stallNextResponse() {
+            mStallAt = mRequests + 1;
+        }
+
+        @Override
+        public synchronized LocalHttpServer.Response handle(LocalHttpServer.Request request) {
+            mRequests++;
+            //FDSN は includedeleted を csv か geojson でしか受け付けない
+            if (!"csv".equals(request.param("format")) && !"geojson".equals(request.param("format"))) {
+                return LocalHttpServer.Response.status(400);
+            }
+            long updatedAfter = parseIsoTime(request.param("updatedafter"));
+            boolean includeDeleted = "true".equals(request.param("includedeleted"));
+            List<Earthquake> matched = new ArrayList<>();
+            for (Earthquake earthquake : mEvents.values()) {
+                if (earthquake.getUpdated() > updatedAfter && (includeDeleted || !earthquake.isDeleted())) {
+                    matched.add(earthquake);
+                }
+            }
+            Collections.sort(matched, new Comparator<Earthquake>() {
+                @Override
+                public int compare(Earthquake a, Earthquake b) {
+                    return Long.compare(b.getTimeInMilliseconds(), a.getTimeInMilliseconds());
+                }
+            });
+            int from = Math.min(matched.size(), request.intParam("offset", 1) - 1);
+            int to = Math.min(matched.size(), from + request.intParam("limit", 20000));
+            String body = FdsnFixtures.csv(matched.subList(from, to));
+
+            LocalHttpServer.Response response = LocalHttpServer.Response.ok(body, "text/csv");
+            if (mRequests == mCutAt) {
+                response.cutAfter(body.length() / 2);
+            } else if (mRequests == mStallAt) {
+                response.pauseAfter(body.length() / 2, 60000);
+            }
+            return response;
+        }
+
+        private static long parseIsoTime(String value) {
+            if (value == null) {
+                return Long.MIN_VALUE;
+            }
+            SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS", Locale.US);
+            format.setTimeZone(TimeZone.getTimeZone("UTC"));
+            try {
+                return format.parse(value).getTime();
+            } catch (ParseException e) {
+                throw new IllegalArgumentException(value, e);
+            }
+        }
+    }
+}
@@ -0,0 +1,135 @@
+package com.example.android.quakereport;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * クエリごとに遅延を入れて、並行に投げた場合の待ち時間と締め切りの扱いを確かめる
+ */
+public class FanOutFetcherTest {
+
+    private ExecutorService mExecutor;
+    //URL ごとの遅延 (ミリ秒) と結果。結果が null の URL は失敗する
+    private final Map<String, Long> mDelays = new HashMap<>();
+    private final Map<String, List<Earthquake>> mResults = new HashMap<>();
+    private final CountDownLatch mInterrupted = new CountDownLatch(1);
+
+    private final FanOutFetcher.Query mQuery = new FanOutFetcher.Query() {
+        @Override
+        public List<Earthquake> fetch(String url) {
+            try {
+                Thread.sleep(mDelays.get(url));
+            } catch (InterruptedException e) {
+                mInterrupted.countDown();
+                return null;
+            }
+            return mResults.get(url);
+        }
+    };
+
+    @Before
+    public void setUp() {
+        mExecutor = Executors.newFixedThreadPool(4);
+    }
+
+    @After
+    public void tearDown() {
+        mExecutor.shutdownNow();
+    }
+
+    @Test
+    public void totalTimeIsTheSlowestQuery() {
+        for (int i = 0; i < 4; i++) {
+            region("r" + i, 100 * (i + 1), events(i * 10, i * 10 + 10));
+        }
+
+        long start = System.nanoTime();
+        List<Earthquake> merged = new FanOutFetcher(mExecutor, 5000).fetch(urls(), mQuery, "time", 1000);
+        long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+
+        //1つずつ投げると 100 + 200 + 300 + 400 ミリ秒かかる
+        assertTrue(elapsed + "ms", elapsed >= 400 && elapsed < 900);
+        FdsnFixtures.assertSameEarthquakes(events(0, 40), merged);
+    }
+
+    /**
+     * 締め切りに間に合わなかったクエリは割り込んで止め、間に合ったものだけで返す
+     */
+    @Test
+    public void slowQueryIsDroppedAtTheDeadline() throws InterruptedException {
+        region("fast", 50, events(0, 10));
+        region("slow", 10000, events(10, 20));
+        region("failed", 50, null);
+
+        long start = System.nanoTime();
+        List<Earthquake> merged = new FanOutFetcher(mExecutor, 300).fetch(urls(), mQuery, "time", 1000);
+        long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+
+        assertTrue(elapsed + "ms", elapsed >= 300 && elapsed < 2000);
+        FdsnFixtures.assertSameEarthquakes(events(0, 10), merged);
+        assertTrue(mInterrupted.await(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void allFailedIsNull() {
+        region("a", 10, null);
+        region("b", 10000, events(0, 10));
+
+        assertNull(new FanOutFetcher(mExecutor, 200).fetch(urls(), mQuery, "time", 1000));
+    }
+
+    /**
+     * 複数の領域に入っているイベントは、updated の新しい方を1件だけ残し、orderby の順に上限まで並べる
+     */
+    @Test
+    public void overlappingRegionsAreMergedByEventId() {
+        Earthquake old = FdsnFixtures.event(5);
+        Earthquake revised = FdsnFixtures.event(5, old.getTimeInMilliseconds(), old.getUpdated() + 1000, "reviewed");
+        List<Earthquake> west = events(0, 8);
+        List<Earthquake> east = events(5, 15);
+        east.set(0, revised);
+
+        List<Earthquake> all = FanOutFetcher.merge(Arrays.asList(west, east), "time", 1000);
+        List<Earthquake> expected = events(0, 15);
+        expected.set(5, revised);
+        FdsnFixtures.assertSameEarthquakes(expected, all);
+
+        List<Earthquake> byMagnitude = FanOutFetcher.merge(Arrays.asList(west, east), "magnitude", 12);
+        assertEquals(12, byMagnitude.size());
+        for (int i = 1; i < byMagnitude.size(); i++) {
+            assertTrue(byMagnitude.get(i - 1).getMagnitude() >= byMagnitude.get(i).getMagnitude());
+        }
+    }
+
+    private void region(String url, long delayMillis, List<Earthquake> result) {
+        mDelays.put(url, delayMillis);
+        mResults.put(url, result);
+    }
+
+    private List<String> urls() {
+        return new ArrayList<>(mDelays.keySet());
+    }
+
+    private static List<Earthquake> events(int from, int to) {
+        List<Earthquake> earthquakes = new ArrayList<>();
+        for (int i = from; i < to; i++) {
+            earthquakes.add(FdsnFixtures.event(i));
+        }
+        return earthquakes;
+    }
+}
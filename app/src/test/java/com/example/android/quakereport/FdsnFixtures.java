@@ -0,0 +1,159 @@
+package com.example.android.quakereport;
+
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.TimeZone;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * テストで使う地震と、それを FDSN event サービスと同じ形式 (GeoJSON / csv / text) にしたレスポンス
+ */
+final class FdsnFixtures {
+
+    static final String CSV_HEADER = "time,latitude,longitude,depth,mag,magType,nst,gap,dmin,rms,net,id,updated,"
+            + "place,type,horizontalError,depthError,magError,magNst,status,locationSource,magSource";
+
+    private static final String[] REGIONS = {
+            "Yelizovo, Russia", "Volcano, Hawaii", "Anchorage, Alaska", "Ridgecrest, CA", "Tokyo, Japan"};
+
+    //2016-09-16T17:19:58Z
+    static final long BASE_TIME = 1474046398000L;
+
+    private FdsnFixtures() {
+    }
+
+    /**
+     * index ごとに決まった内容の地震。time は index が大きいほど古い
+     */
+    static Earthquake event(int index) {
+        return event(index, BASE_TIME - index * 60000L, BASE_TIME - index * 60000L + 1000, "reviewed");
+    }
+
+    static Earthquake event(int index, long time, long updated, String status) {
+        Random random = new Random(index);
+        double magnitude = Math.round((2.5 + random.nextDouble() * 5) * 100) / 100.0;
+        double latitude = Math.round((random.nextDouble() * 180 - 90) * 10000) / 10000.0;
+        double longitude = Math.round((random.nextDouble() * 360 - 180) * 10000) / 10000.0;
+        double depth = Math.round(random.nextDouble() * 700 * 100) / 100.0;
+        String id = "us" + (10000000 + index);
+        String place = (1 + random.nextInt(200)) + "km N of " + REGIONS[random.nextInt(REGIONS.length)];
+        return new Earthquake(id, magnitude, place, time, DelimitedStreamParser.EVENT_PAGE_URL + id, updated,
+                status, latitude, longitude, depth);
+    }
+
+    static List<Earthquake> events(int count) {
+        List<Earthquake> earthquakes = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            earthquakes.add(event(i));
+        }
+        return earthquakes;
+    }
+
+    /**
+     * format=csv と同じ列の並びのレスポンス。最後の行も改行で終わる
+     */
+    static String csv(List<Earthquake> earthquakes) {
+        StringBuilder builder = new StringBuilder(CSV_HEADER).append('\n');
+        for (Earthquake earthquake : earthquakes) {
+            builder.append(isoTime(earthquake.getTimeInMilliseconds())).append(',')
+                    .append(earthquake.getLatitude()).append(',')
+                    .append(earthquake.getLongitude()).append(',')
+                    .append(earthquake.getDepth()).append(',')
+                    .append(earthquake.getMagnitude()).append(",mb,,,,,us,")
+                    .append(earthquake.getId()).append(',')
+                    .append(isoTime(earthquake.getUpdated())).append(',')
+                    .append('"').append(earthquake.getPlace().replace("\"", "\"\"")).append('"')
+                    .append(",earthquake,,,,,")
+                    .append(earthquake.getStatus()).append(",us,us\n");
+        }
+        return builder.toString();
+    }
+
+    /**
+     * format=text と同じ列の並びのレスポンス。updated と status の列はない
+     */
+    static String text(List<Earthquake> earthquakes) {
+        StringBuilder builder = new StringBuilder("#EventID|Time|Latitude|Longitude|Depth/km|Author|Catalog|")
+                .append("Contributor|ContributorID|MagType|Magnitude|MagAuthor|EventLocationName|EventType\n");
+        for (Earthquake earthquake : earthquakes) {
+            String time = isoTime(earthquake.getTimeInMilliseconds());
+            builder.append(earthquake.getId()).append('|')
+                    .append(time.substring(0, time.length() - 1)).append('|')
+                    .append(earthquake.getLatitude()).append('|')
+                    .append(earthquake.getLongitude()).append('|')
+                    .append(earthquake.getDepth()).append("|us|us|us|")
+                    .append(earthquake.getId()).append("|mb|")
+                    .append(earthquake.getMagnitude()).append("|us|")
+                    .append(earthquake.getPlace()).append("|earthquake\n");
+        }
+        return builder.toString();
+    }
+
+    /**
+     * format=geojson と同じ構造のレスポンス
+     */
+    static String geoJson(List<Earthquake> earthquakes) {
+        StringBuilder builder = new StringBuilder();
+        builder.append("{\"type\":\"FeatureCollection\",\"metadata\":{\"generated\":").append(BASE_TIME)
+                .append(",\"count\":").append(earthquakes.size()).append("},\"features\":[");
+        for (int i = 0; i < earthquakes.size(); i++) {
+            Earthquake earthquake = earthquakes.get(i);
+            if (i > 0) {
+                builder.append(',');
+            }
+            builder.append("{\"type\":\"Feature\",\"properties\":{\"mag\":").append(earthquake.getMagnitude())
+                    .append(",\"place\":\"").append(earthquake.getPlace().replace("\"", "\\\""))
+                    .append("\",\"time\":").append(earthquake.getTimeInMilliseconds())
+                    .append(",\"updated\":").append(earthquake.getUpdated())
+                    .append(",\"tz\":null,\"url\":\"").append(earthquake.getUrl())
+                    .append("\",\"detail\":\"https://earthquake.usgs.gov/fdsnws/event/1/query?eventid=")
+                    .append(earthquake.getId())
+                    .append("&format=geojson\",\"felt\":null,\"cdi\":null,\"alert\":null,\"status\":\"")
+                    .append(earthquake.getStatus())
+                    .append("\",\"tsunami\":0,\"sig\":12,\"net\":\"us\",\"code\":\"x\",\"ids\":\",x,\",")
+                    .append("\"types\":\",origin,phase-data,\",\"mag_type\":\"mb\",\"type\":\"earthquake\"},")
+                    .append("\"geometry\":{\"type\":\"Point\",\"coordinates\":[")
+                    .append(earthquake.getLongitude()).append(',')
+                    .append(earthquake.getLatitude()).append(',')
+                    .append(earthquake.getDepth()).append("]},\"id\":\"")
+                    .append(earthquake.getId()).append("\"}");
+        }
+        builder.append("]}");
+        return builder.toString();
+    }
+
+    static String isoTime(long time) {
+        SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'", Locale.US);
+        format.setTimeZone(TimeZone.getTimeZone("UTC"));
+        return format.format(new Date(time));
+    }
+
+    /**
+     * 2つの地震のすべての項目が同じことを確かめる
+     */
+    static void assertSameEarthquake(Earthquake expected, Earthquake actual) {
+        String id = expected.getId();
+        assertEquals(id, expected.getId(), actual.getId());
+        assertEquals(id, expected.getMagnitude(), actual.getMagnitude(), 0);
+        assertEquals(id, expected.getPlace(), actual.getPlace());
+        assertEquals(id, expected.getTimeInMilliseconds(), actual.getTimeInMilliseconds());
+        assertEquals(id, expected.getUrl(), actual.getUrl());
+        assertEquals(id, expected.getUpdated(), actual.getUpdated());
+        assertEquals(id, expected.getStatus(), actual.getStatus());
+        assertEquals(id, expected.getLatitude(), actual.getLatitude(), 0);
+        assertEquals(id, expected.getLongitude(), actual.getLongitude(), 0);
+        assertEquals(id, expected.getDepth(), actual.getDepth(), 0);
+    }
+
+    static void assertSameEarthquakes(List<Earthquake> expected, List<Earthquake> actual) {
+        assertEquals("size", expected.size(), actual.size());
+        for (int i = 0; i < expected.size(); i++) {
+            assertSameEarthquake(expected.get(i), actual.get(i));
+        }
+    }
+}
@@ -0,0 +1,271 @@
+package com.example.android.quakereport;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Queue;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class FetchCoordinatorTest {
+
+    private static final String BASE_URL = "https://earthquake.usgs.gov/fdsnws/event/1/query";
+
+    @Test
+    public void sameQueryIsFetchedOnceForConcurrentCallers() throws InterruptedException {
+        final FetchCoordinator coordinator = new FetchCoordinator(0, RefreshPolicy.SYSTEM_CLOCK);
+        final CountDownLatch release = new CountDownLatch(1);
+        final AtomicInteger fetches = new AtomicInteger();
+        final FetchCoordinator.Fetcher fetcher = new FetchCoordinator.Fetcher() {
+            @Override
+            public List<Earthquake> fetch(String url, CancellationToken token) {
+                fetches.incrementAndGet();
+                await(release);
+                return FdsnFixtures.events(3);
+            }
+        };
+
+        final Queue<List<Earthquake>> results = new ConcurrentLinkedQueue<>();
+        List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            //パラメータの順番が違っても同じクエリ
+            final String url = i % 2 == 0 ? BASE_URL + "?minmag=2.5&limit=20" : BASE_URL + "?limit=20&minmag=2.5";
+            threads.add(start(new Runnable() {
+                @Override
+                public void run() {
+                    results.add(coordinator.fetch(url, null, fetcher));
+                }
+            }));
+        }
+        while (coordinator.getJoinedCount() < 3) {
+            Thread.sleep(1);
+        }
+        release.countDown();
+        join(threads);
+
+        assertEquals(1, fetches.get());
+        assertEquals(4, results.size());
+        for (List<Earthquake> result : results) {
+            FdsnFixtures.assertSameEarthquakes(FdsnFixtures.events(3), result);
+        }
+    }
+
+    @Test
+    public void newQueryOnTheSameChannelCancelsThePreviousOne() throws InterruptedException {
+        final FetchCoordinator coordinator = new FetchCoordinator(0, RefreshPolicy.SYSTEM_CLOCK);
+        final CountDownLatch started = new CountDownLatch(1);
+        final List<List<Earthquake>> first = new ArrayList<>();
+        Thread thread = start(new Runnable() {
+            @Override
+            public void run() {
+                first.add(coordinator.fetch(BASE_URL + "?minmag=1", "list", new FetchCoordinator.Fetcher() {
+                    @Override
+                    public List<Earthquake> fetch(String url, CancellationToken token) {
+                        started.countDown();
+                        while (!token.isCancelled()) {
+                            Thread.yield();
+                        }
+                        return null;
+                    }
+                }));
+            }
+        });
+        await(started);
+
+        List<Earthquake> second = coordinator.fetch(BASE_URL + "?minmag=5", "list", returning(2));
+        thread.join();
+
+        assertNull(first.get(0));
+        assertEquals(2, second.size());
+        assertEquals(1, coordinator.getCancelledCount());
+    }
+
+    /**
+     * 表示中のローダーと RefreshService のローダーのように、チャンネルの違う取得は止め合わない
+     */
+    @Test
+    public void queriesOnDifferentChannelsDoNotCancelEachOther() throws InterruptedException {
+        final FetchCoordinator coordinator = new FetchCoordinator(0, RefreshPolicy.SYSTEM_CLOCK);
+        final CountDownLatch bothStarted = new CountDownLatch(2);
+        final Queue<List<Earthquake>> results = new ConcurrentLinkedQueue<>();
+        List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < 2; i++) {
+            final String url = BASE_URL + "?offset=" + (i * 20 + 1) + "&limit=20";
+            final String channel = EarthquakeLoader.class.getName() + "#" + i;
+            threads.add(start(new Runnable() {
+                @Override
+                public void run() {
+                    results.add(coordinator.fetch(url, channel, new FetchCoordinator.Fetcher() {
+                        @Override
+                        public List<Earthquake> fetch(String url, CancellationToken token) {
+                            bothStarted.countDown();
+                            await(bothStarted);
+                            return token.isCancelled() ? null : FdsnFixtures.events(20);
+                        }
+                    }));
+                }
+            }));
+        }
+        join(threads);
+
+        assertEquals(2, results.size());
+        for (List<Earthquake> result : results) {
+            assertNotNull(result);
+            assertEquals(20, result.size());
+        }
+        assertEquals(0, coordinator.getCancelledCount());
+    }
+
+    /**
+     * 多数のスレッドが、それぞれのチャンネルで重なり合うクエリを取得し、一部は途中で待つのをやめる。
+     * やめていない呼び出し元は必ず自分のクエリの結果を最後まで受け取り、同じクエリを同時に2回取得しないこと
+     */
+    @Test(timeout = 60000)
+    public void hammer() throws InterruptedException {
+        final FetchCoordinator coordinator = new FetchCoordinator(5, RefreshPolicy.SYSTEM_CLOCK);
+        final int threadCount = 8;
+        final int iterations = 500;
+        final int queryCount = 6;
+
+        //クエリごとの、実行中の取得のトークン。止めた取得が終わる前に、次の取得が始まるのはよい
+        final ConcurrentHashMap<String, Set<CancellationToken>> running = new ConcurrentHashMap<>();
+        final AtomicInteger overlaps = new AtomicInteger();
+        final FetchCoordinator.Fetcher fetcher = new FetchCoordinator.Fetcher() {
+            @Override
+            public List<Earthquake> fetch(String url, CancellationToken token) {
+                String key = FetchCoordinator.normalize(url);
+                running.putIfAbsent(key, new HashSet<CancellationToken>());
+                Set<CancellationToken> tokens = running.get(key);
+                synchronized (tokens) {
+                    for (CancellationToken other : tokens) {
+                        if (!other.isCancelled()) {
+                            overlaps.incrementAndGet();
+                        }
+                    }
+                    tokens.add(token);
+                }
+                try {
+                    long deadline = System.nanoTime() + TimeUnit.MICROSECONDS.toNanos(200 + (url.length() % 7) * 100);
+                    while (System.nanoTime() < deadline) {
+                        if (token.isCancelled()) {
+                            return null;
+                        }
+                        Thread.yield();
+                    }
+                    return resultFor(url);
+                } finally {
+                    synchronized (tokens) {
+                        tokens.remove(token);
+                    }
+                }
+            }
+        };
+
+        final Queue<Throwable> failures = new ConcurrentLinkedQueue<>();
+        final AtomicInteger completed = new AtomicInteger();
+        final AtomicInteger withdrawn = new AtomicInteger();
+        List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < threadCount; t++) {
+            final int threadIndex = t;
+            threads.add(start(new Runnable() {
+                @Override
+                public void run() {
+                    Random random = new Random(threadIndex);
+                    String channel = EarthquakeLoader.class.getName() + "#" + threadIndex;
+                    try {
+                        for (int i = 0; i < iterations; i++) {
+                            int query = random.nextInt(queryCount);
+                            String url = random.nextBoolean()
+                                    ? BASE_URL + "?minmag=" + query + "&limit=" + (query + 1)
+                                    : BASE_URL + "?limit=" + (query + 1) + "&minmag=" + query;
+                            final CancellationToken cancellation = new CancellationToken();
+                            boolean cancel = random.nextInt(10) == 0;
+                            if (cancel) {
+                                //別のスレッドから、取得の途中で待つのをやめる
+                                final long delayMicros = random.nextInt(300);
+                                start(new Runnable() {
+                                    @Override
+                                    public void run() {
+                                        sleepMicros(delayMicros);
+                                        cancellation.cancel();
+                                    }
+                                });
+                            }
+                            List<Earthquake> result = coordinator.fetch(url, channel, fetcher, cancellation);
+                            if (result == null) {
+                                assertTrue("Uncancelled fetch of " + url + " returned null", cancel);
+                                withdrawn.incrementAndGet();
+                                continue;
+                            }
+                            FdsnFixtures.assertSameEarthquakes(resultFor(url), result);
+                            completed.incrementAndGet();
+                        }
+                    } catch (Throwable e) {
+                        failures.add(e);
+                    }
+                }
+            }));
+        }
+        join(threads);
+
+        if (!failures.isEmpty()) {
+            throw new AssertionError(failures.peek());
+        }
+        assertEquals(threadCount * iterations, completed.get() + withdrawn.get());
+        assertEquals(0, overlaps.get());
+        assertTrue(coordinator.getStartedCount() <= threadCount * iterations);
+    }
+
+    private static List<Earthquake> resultFor(String url) {
+        String limit = url.substring(url.indexOf("limit=") + "limit=".length()).split("&")[0];
+        return FdsnFixtures.events(Integer.parseInt(limit));
+    }
+
+    private static FetchCoordinator.Fetcher returning(final int count) {
+        return new FetchCoordinator.Fetcher() {
+            @Override
+            public List<Earthquake> fetch(String url, CancellationToken token) {
+                return FdsnFixtures.events(count);
+            }
+        };
+    }
+
+    private static void sleepMicros(long micros) {
+        long deadline = System.nanoTime() + TimeUnit.MICROSECONDS.toNanos(micros);
+        while (System.nanoTime() < deadline) {
+            Thread.yield();
+        }
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            assertTrue(latch.await(10, TimeUnit.SECONDS));
+        } catch (InterruptedException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    private static Thread start(Runnable runnable) {
+        Thread thread = new Thread(runnable);
+        thread.start();
+        return thread;
+    }
+
+    private static void join(List<Thread> threads) throws InterruptedException {
+        for (Thread thread : threads) {
+            thread.join();
+        }
+    }
+}
@@ -0,0 +1,162 @@
+package com.example.android.quakereport;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * ストリームで読むパーサーが、これまでの JSONObject で読むパーサー ({@link QueryUtils#extractFeatureFromJson})
+ * と同じ結果になることを確かめる。JSONObject は Android の実装を使うので Robolectric で動かす
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(constants = BuildConfig.class, sdk = 23)
+public class GeoJsonStreamParserTest {
+
+    @Test
+    public void fixturesMatchTheJsonObjectParser() throws IOException {
+        List<Earthquake> events = FdsnFixtures.events(500);
+        String json = FdsnFixtures.geoJson(events);
+
+        List<Earthquake> streamed = parse(json);
+
+        assertMatchesJsonObjectParser(json, streamed);
+        //JSONObject のパーサーは読まない列も、同じ値になる
+        FdsnFixtures.assertSameEarthquakes(events, streamed);
+    }
+
+    /**
+     * エスケープ、指数表記、読み飛ばす入れ子の値、キーの順番、geometry のない feature
+     */
+    @Test
+    public void unusualFeaturesMatchTheJsonObjectParser() throws IOException {
+        String json = "{\n  \"type\" : \"FeatureCollection\",\n"
+                + "  \"features\" : [\n"
+                + "    { \"id\" : \"ak1\", \"type\" : \"Feature\",\n"
+                + "      \"geometry\" : { \"type\" : \"Point\", \"coordinates\" : [ -150.5, 61.25, 1.2e1 ] },\n"
+                + "      \"properties\" : { \"mag\" : 4, \"place\" : \"10km \\\"S\\\" of Caf\\u00e9\\\\Town\",\n"
+                + "        \"time\" : 1474046398000, \"products\" : { \"origin\" : [ { \"a\" : [ 1, [ 2 ], {} ] } ] },\n"
+                + "        \"url\" : \"https:\\/\\/earthquake.usgs.gov\\/earthquakes\\/eventpage\\/ak1\" } },\n"
+                + "    { \"type\" : \"Feature\", \"properties\" : { \"time\" : 1474046300000, \"mag\" : -0.5E0,\n"
+                + "        \"felt\" : null, \"tsunami\" : false, \"place\" : \"\", \"url\" : \"u\" },\n"
+                + "      \"id\" : \"nc2\" },\n"
+                + "    { \"properties\" : { \"mag\" : 2.5, \"place\" : \"x\", \"time\" : 1, \"url\" : \"v\" },\n"
+                + "      \"geometry\" : null, \"id\" : \"hv3\" }\n"
+                + "  ],\n"
+                + "  \"metadata\" : { \"count\" : 3, \"bbox\" : [ -180, -90, 0, 180, 90, 700 ] }\n"
+                + "}\n";
+
+        List<Earthquake> streamed = parse(json);
+
+        assertEquals(3, streamed.size());
+        assertEquals("10km \"S\" of Café\\Town", streamed.get(0).getPlace());
+        assertEquals(12.0, streamed.get(0).getDepth(), 0);
+        assertEquals(-0.5, streamed.get(1).getMagnitude(), 0);
+        assertEquals(Double.NaN, streamed.get(1).getLatitude(), 0);
+        assertEquals(Double.NaN, streamed.get(2).getLongitude(), 0);
+        assertMatchesJsonObjectParser(json, streamed);
+    }
+
+    /**
+     * USGS のレスポンスと同じ形のファイル。null のプロパティ、UTF-8 のままの場所、指数表記の数値、
+     * mag が null の削除済みイベントと未確定のイベントを含む
+     */
+    @Test
+    public void usgsResponseMatchesTheJsonObjectParser() throws IOException {
+        String json = readResource("usgs_query.geojson");
+
+        List<Earthquake> streamed = parse(json);
+
+        //mag が null のうち、削除済みのものだけは差分同期のために渡す
+        assertEquals(5, streamed.size());
+        Earthquake deleted = streamed.remove(4);
+        assertEquals("us10006ozt", deleted.getId());
+        assertTrue(deleted.isDeleted());
+        assertMatchesJsonObjectParser(json, streamed);
+
+        assertEquals("45km ESE of Ōfunato, Japan", streamed.get(0).getPlace());
+        assertEquals("Ōfunato, Japan", streamed.get(0).getPrimaryLocation());
+        assertEquals("12km NNE of Tlalchapa, México", streamed.get(1).getPlace());
+        assertEquals(50.0, streamed.get(1).getDepth(), 0);
+        assertEquals("5km W of İzmir, Turkey", streamed.get(3).getPlace());
+        assertEquals(10.0, streamed.get(3).getDepth(), 0);
+        //null は空文字列にしない
+        assertNull(streamed.get(2).getPlace());
+        assertNull(streamed.get(2).getPrimaryLocation());
+        assertEquals(1474045530640L, streamed.get(2).getUpdated());
+    }
+
+    @Test
+    public void nullStringsStayNull() throws IOException {
+        String json = "{ \"features\" : [ { \"id\" : null, \"properties\" : { \"mag\" : 3.5, \"time\" : 1,\n"
+                + "  \"place\" : null, \"url\" : null, \"status\" : null } },\n"
+                + "  { \"properties\" : { \"mag\" : 3.5, \"time\" : 2 } } ] }";
+
+        List<Earthquake> streamed = parse(json);
+
+        assertEquals(2, streamed.size());
+        for (Earthquake earthquake : streamed) {
+            assertNull(earthquake.getId());
+            assertNull(earthquake.getPlace());
+            assertNull(earthquake.getUrl());
+            assertNull(earthquake.getStatus());
+        }
+        assertMatchesJsonObjectParser(json, streamed);
+    }
+
+    /**
+     * JSONObject のパーサーは updated と status を読まないので、それ以外を比べる
+     */
+    private static void assertMatchesJsonObjectParser(String json, List<Earthquake> streamed) {
+        List<Earthquake> expected = QueryUtils.extractFeatureFromJson(json);
+
+        assertEquals(expected.size(), streamed.size());
+        for (int i = 0; i < expected.size(); i++) {
+            Earthquake actual = streamed.get(i);
+            FdsnFixtures.assertSameEarthquake(expected.get(i), new Earthquake(actual.getId(),
+                    actual.getMagnitude(), actual.getPlace(), actual.getTimeInMilliseconds(), actual.getUrl(),
+                    0, null, actual.getLatitude(), actual.getLongitude(), actual.getDepth()));
+        }
+    }
+
+    private static String readResource(String name) throws IOException {
+        InputStream in = GeoJsonStreamParserTest.class.getClassLoader().getResourceAsStream(name);
+        assertNotNull(name, in);
+        try {
+            Reader reader = new InputStreamReader(in, "UTF-8");
+            StringBuilder builder = new StringBuilder();
+            char[] buffer = new char[4096];
+            int read;
+            while ((read = reader.read(buffer)) != -1) {
+                builder.append(buffer, 0, read);
+            }
+            return builder.toString();
+        } finally {
+            in.close();
+        }
+    }
+
+    private static List<Earthquake> parse(String json) throws IOException {
+        final List<Earthquake> earthquakes = new ArrayList<>();
+        new GeoJsonStreamParser(new StringReader(json)).parse(new GeoJsonStreamParser.Callback() {
+            @Override
+            public void onEarthquake(Earthquake earthquake) {
+                earthquakes.add(earthquake);
+            }
+        });
+        return earthquakes;
+    }
+}
@@ -0,0 +1,122 @@
+package com.example.android.quakereport;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * ヒストグラムの値を、同じ値を並べ替えた配列から求めた正確な値と比べる
+ */
+public class HistogramTest {
+
+    private static final double[] PERCENTILES = {0, 1, 10, 25, 50, 75, 90, 99, 99.9, 100};
+
+    @Test
+    public void percentilesStayWithinTheBucketOfTheExactValue() {
+        Random random = new Random(42);
+        long[] values = new long[10000];
+        Histogram histogram = new Histogram();
+        for (int i = 0; i < values.length; i++) {
+            //計測値のように、数十〜数百万の範囲に裾を引いて広がる値
+            values[i] = (long) Math.exp(random.nextGaussian() * 2 + 8);
+            histogram.record(values[i]);
+        }
+        Arrays.sort(values);
+
+        Histogram.Snapshot snapshot = histogram.snapshot();
+        for (double percentile : PERCENTILES) {
+            long exact = values[(int) Math.max(0, Math.ceil(values.length * percentile / 100) - 1)];
+            long estimated = snapshot.getPercentile(percentile);
+            //バケットの上限で返すので、正確な値以上で、2倍未満
+            assertTrue("p" + percentile + ": " + estimated + " for " + exact,
+                    estimated >= exact && (estimated < 2 * exact || estimated == exact));
+        }
+    }
+
+    @Test
+    public void minMaxMeanAndCountAreExact() {
+        Random random = new Random(7);
+        long[] values = new long[5000];
+        Histogram histogram = new Histogram();
+        long sum = 0;
+        for (int i = 0; i < values.length; i++) {
+            values[i] = random.nextInt(1000000);
+            sum += values[i];
+            histogram.record(values[i]);
+        }
+        Arrays.sort(values);
+
+        Histogram.Snapshot snapshot = histogram.snapshot();
+        assertEquals(values.length, snapshot.getCount());
+        assertEquals(values[0], snapshot.getMin());
+        assertEquals(values[values.length - 1], snapshot.getMax());
+        assertEquals(sum, snapshot.getSum());
+        assertEquals((double) sum / values.length, snapshot.getMean(), 1e-9);
+        //両端のパーセンタイルは、最小値・最大値そのもの
+        assertEquals(values[values.length - 1], snapshot.getPercentile(100));
+    }
+
+    @Test
+    public void emptyAndNegativeValues() {
+        Histogram histogram = new Histogram();
+        Histogram.Snapshot empty = histogram.snapshot();
+        assertEquals(0, empty.getCount());
+        assertEquals(0, empty.getMin());
+        assertEquals(0, empty.getMax());
+        assertEquals(0, empty.getPercentile(50));
+
+        //時計が戻った場合などの負の値は 0 として数える
+        histogram.record(-5);
+        assertEquals(0, histogram.snapshot().getMax());
+        assertEquals(1, histogram.snapshot().getCount());
+    }
+
+    @Test
+    public void concurrentRecordsLoseNoCounts() throws InterruptedException {
+        final Histogram histogram = new Histogram();
+        final int threads = 8;
+        final int perThread = 100000;
+        final CountDownLatch start = new CountDownLatch(1);
+        Thread[] workers = new Thread[threads];
+        for (int t = 0; t < threads; t++) {
+            final int offset = t;
+            workers[t] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    for (int i = 0; i < perThread; i++) {
+                        histogram.record(i % 1000 + offset);
+                    }
+                }
+            });
+            workers[t].start();
+        }
+        start.countDown();
+        for (Thread worker : workers) {
+            worker.join();
+        }
+
+        long expectedSum = 0;
+        for (int t = 0; t < threads; t++) {
+            for (int i = 0; i < perThread; i++) {
+                expectedSum += i % 1000 + t;
+            }
+        }
+        Histogram.Snapshot snapshot = histogram.snapshot();
+        assertEquals((long) threads * perThread, snapshot.getCount());
+        assertEquals(expectedSum, snapshot.getSum());
+        assertEquals(0, snapshot.getMin());
+        assertEquals(999 + threads - 1, snapshot.getMax());
+        //どのバケットの加算も失われていなければ、p100 は最大値のバケットに届く
+        assertEquals(snapshot.getMax(), snapshot.getPercentile(100));
+    }
+}
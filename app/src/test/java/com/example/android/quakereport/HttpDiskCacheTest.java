@@ -0,0 +1,119 @@
+package com.example.android.quakereport;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+public class HttpDiskCacheTest {
+
+    private static final String URL = "https://earthquake.usgs.gov/fdsnws/event/1/query?format=csv&limit=20";
+
+    private File mDirectory;
+
+    @Before
+    public void setUp() throws IOException {
+        mDirectory = File.createTempFile("http-cache", "");
+        assertTrue(mDirectory.delete() && mDirectory.mkdir());
+    }
+
+    @After
+    public void tearDown() {
+        File[] files = mDirectory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        mDirectory.delete();
+    }
+
+    /**
+     * プロセスが書き込みの途中で落ちて残った一時ファイルは、次の commit で消える
+     */
+    @Test
+    public void orphanedTempFilesAreDeletedOnCommit() throws IOException {
+        File orphan = new File(mDirectory, "0123456789abcdef.tmp");
+        writeBytes(orphan, 4096);
+        HttpDiskCache cache = new HttpDiskCache(mDirectory, 1024 * 1024, HttpDiskCache.DEFAULT_TTL_MILLIS);
+
+        store(cache, URL, 100);
+
+        assertFalse(orphan.exists());
+        assertNotNull(cache.get(URL));
+        assertEquals(Arrays.asList(mDirectory.list()).toString(), 2, mDirectory.list().length);
+    }
+
+    /**
+     * 別のリクエストが書き込み中の一時ファイルは消さない
+     */
+    @Test
+    public void tempFilesOfOpenEditorsAreKept() throws IOException {
+        HttpDiskCache cache = new HttpDiskCache(mDirectory, 1024 * 1024, HttpDiskCache.DEFAULT_TTL_MILLIS);
+        HttpDiskCache.Editor open = cache.edit(URL + "&offset=21");
+        InputStream in = open.wrap(new ByteArrayInputStream(new byte[200]));
+        in.read(new byte[50]);
+
+        store(cache, URL, 100);
+        in.read(new byte[1024]);
+        open.commit(null, null);
+
+        assertNotNull(cache.get(URL));
+        assertNotNull(cache.get(URL + "&offset=21"));
+        assertEquals(200, cache.get(URL + "&offset=21").body.length());
+    }
+
+    /**
+     * 残った一時ファイルの分でサイズの上限を超えたことにして、エントリを消してしまわない
+     */
+    @Test
+    public void orphanedTempFilesDoNotCountTowardsTheLimit() throws IOException {
+        writeBytes(new File(mDirectory, "0123456789abcdef.tmp"), 8192);
+        HttpDiskCache cache = new HttpDiskCache(mDirectory, 1024, HttpDiskCache.DEFAULT_TTL_MILLIS);
+
+        store(cache, URL, 100);
+
+        assertNotNull(cache.get(URL));
+    }
+
+    @Test
+    public void abortedEditsLeaveNoFiles() throws IOException {
+        HttpDiskCache cache = new HttpDiskCache(mDirectory, 1024 * 1024, HttpDiskCache.DEFAULT_TTL_MILLIS);
+        HttpDiskCache.Editor editor = cache.edit(URL);
+        editor.wrap(new ByteArrayInputStream(new byte[100])).read(new byte[10]);
+
+        editor.abort();
+
+        assertEquals(0, mDirectory.list().length);
+    }
+
+    private static void store(HttpDiskCache cache, String url, int length) throws IOException {
+        HttpDiskCache.Editor editor = cache.edit(url);
+        InputStream in = editor.wrap(new ByteArrayInputStream(new byte[length]));
+        byte[] buffer = new byte[1024];
+        while (in.read(buffer) != -1) {
+            //読み捨てる
+        }
+        editor.commit("\"etag\"", null);
+    }
+
+    private static void writeBytes(File file, int length) throws IOException {
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(new byte[length]);
+        } finally {
+            out.close();
+        }
+    }
+}
@@ -0,0 +1,347 @@
+package com.example.android.quakereport;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.net.URLDecoder;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * テスト用の USGS の代わりになる HTTP/1.1 サーバ。127.0.0.1 の空いているポートで待ち受け、
+ * リクエストごとに {@link Handler} が返した応答を送る。keep-alive で1つの接続に続けてリクエストを受ける。
+ * <p>
+ * 本文を途中で切って接続を閉じる ({@link Response#cutAfter(int)}) と、本文の途中で止まる
+ * ({@link Response#pauseAfter(int, long)}) で、通信の失敗やタイムアウトも再現できる。
+ */
+final class LocalHttpServer {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    interface Handler {
+        Response handle(Request request) throws IOException;
+    }
+
+    private final Handler mHandler;
+    private final ServerSocket mServerSocket;
+    private final List<Socket> mSockets = new CopyOnWriteArrayList<>();
+    private final List<Request> mRequests = new CopyOnWriteArrayList<>();
+    private final AtomicInteger mConnections = new AtomicInteger();
+    private volatile boolean mClosed;
+
+    LocalHttpServer(Handler handler) throws IOException {
+        mHandler = handler;
+        mServerSocket = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+        Thread acceptor = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                accept();
+            }
+        }, "LocalHttpServer");
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    /**
+     * @param pathAndQuery "/fdsnws/event/1/query?format=csv" のような、パスから後ろ
+     */
+    String url(String pathAndQuery) {
+        return "http://127.0.0.1:" + mServerSocket.getLocalPort() + pathAndQuery;
+    }
+
+    /**
+     * これまでに受けたリクエスト (受けた順)
+     */
+    List<Request> getRequests() {
+        return new ArrayList<>(mRequests);
+    }
+
+    int getRequestCount() {
+        return mRequests.size();
+    }
+
+    int getConnectionCount() {
+        return mConnections.get();
+    }
+
+    void close() {
+        mClosed = true;
+        try {
+            mServerSocket.close();
+        } catch (IOException ignored) {
+        }
+        for (Socket socket : mSockets) {
+            try {
+                socket.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    private void accept() {
+        while (!mClosed) {
+            final Socket socket;
+            try {
+                socket = mServerSocket.accept();
+            } catch (IOException e) {
+                return;
+            }
+            mSockets.add(socket);
+            mConnections.incrementAndGet();
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    serve(socket);
+                }
+            }, "LocalHttpServer connection");
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    private void serve(Socket socket) {
+        try {
+            InputStream in = new BufferedInputStream(socket.getInputStream());
+            OutputStream out = socket.getOutputStream();
+            while (!mClosed) {
+                Request request = readRequest(in);
+                if (request == null) {
+                    break;
+                }
+                mRequests.add(request);
+                Response response = mHandler.handle(request);
+                if (!write(response, out)) {
+                    break;
+                }
+            }
+        } catch (SocketException e) {
+            //クライアントかテストが接続を切った
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        } finally {
+            try {
+                socket.close();
+            } catch (IOException ignored) {
+            }
+            mSockets.remove(socket);
+        }
+    }
+
+    private static Request readRequest(InputStream in) throws IOException {
+        String requestLine = readLine(in);
+        if (requestLine == null || requestLine.isEmpty()) {
+            return null;
+        }
+        String[] parts = requestLine.split(" ");
+        Map<String, String> headers = new HashMap<>();
+        String line;
+        while ((line = readLine(in)) != null && !line.isEmpty()) {
+            int colon = line.indexOf(':');
+            if (colon > 0) {
+                headers.put(line.substring(0, colon).trim().toLowerCase(Locale.US), line.substring(colon + 1).trim());
+            }
+        }
+        return new Request(parts[0], parts[1], headers);
+    }
+
+    private static String readLine(InputStream in) throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        int c;
+        while ((c = in.read()) != -1 && c != '\n') {
+            if (c != '\r') {
+                line.write(c);
+            }
+        }
+        if (c == -1 && line.size() == 0) {
+            return null;
+        }
+        return line.toString("ISO-8859-1");
+    }
+
+    /**
+     * @return 接続を使い続けられる場合は true
+     */
+    private boolean write(Response response, OutputStream out) throws IOException {
+        StringBuilder head = new StringBuilder();
+        head.append("HTTP/1.1 ").append(response.mCode).append(" X\r\n");
+        for (Map.Entry<String, String> header : response.mHeaders.entrySet()) {
+            head.append(header.getKey()).append(": ").append(header.getValue()).append("\r\n");
+        }
+        byte[] body = response.mBody;
+        boolean chunked = response.mCutAfter >= 0 || response.mPauseAfter >= 0;
+        if (chunked) {
+            //途中で切る応答は chunked にして、クライアントが終わりの chunk がないことに気づけるようにする
+            head.append("Transfer-Encoding: chunked\r\n");
+        } else {
+            head.append("Content-Length: ").append(body.length).append("\r\n");
+        }
+        head.append("\r\n");
+        out.write(head.toString().getBytes(UTF_8));
+        if (!chunked) {
+            out.write(body);
+            out.flush();
+            return true;
+        }
+
+        int end = response.mCutAfter >= 0 ? Math.min(response.mCutAfter, body.length) : body.length;
+        int pause = response.mPauseAfter >= 0 ? Math.min(response.mPauseAfter, end) : -1;
+        if (pause >= 0) {
+            writeChunk(out, body, 0, pause);
+            out.flush();
+            sleep(response.mPauseMillis);
+            writeChunk(out, body, pause, end - pause);
+        } else {
+            writeChunk(out, body, 0, end);
+        }
+        if (response.mCutAfter >= 0) {
+            out.flush();
+            return false;
+        }
+        out.write("0\r\n\r\n".getBytes(UTF_8));
+        out.flush();
+        return true;
+    }
+
+    private static void writeChunk(OutputStream out, byte[] body, int offset, int length) throws IOException {
+        if (length == 0) {
+            return;
+        }
+        out.write((Integer.toHexString(length) + "\r\n").getBytes(UTF_8));
+        out.write(body, offset, length);
+        out.write("\r\n".getBytes(UTF_8));
+    }
+
+    private void sleep(long millis) {
+        long deadline = System.currentTimeMillis() + millis;
+        while (!mClosed && System.currentTimeMillis() < deadline) {
+            try {
+                Thread.sleep(10);
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * 受けたリクエスト
+     */
+    static final class Request {
+        final String method;
+        final String path;
+        final Map<String, String> headers;
+        private final Map<String, String> mQuery = new LinkedHashMap<>();
+
+        Request(String method, String target, Map<String, String> headers) {
+            this.method = method;
+            this.headers = Collections.unmodifiableMap(headers);
+            int question = target.indexOf('?');
+            path = question >= 0 ? target.substring(0, question) : target;
+            if (question >= 0) {
+                for (String pair : target.substring(question + 1).split("&")) {
+                    int equals = pair.indexOf('=');
+                    if (equals > 0) {
+                        mQuery.put(decode(pair.substring(0, equals)), decode(pair.substring(equals + 1)));
+                    }
+                }
+            }
+        }
+
+        /**
+         * クエリパラメータの値。ない場合は null
+         */
+        String param(String name) {
+            return mQuery.get(name);
+        }
+
+        int intParam(String name, int defaultValue) {
+            String value = mQuery.get(name);
+            return value != null ? Integer.parseInt(value) : defaultValue;
+        }
+
+        /**
+         * ヘッダの値。名前は大文字・小文字を区別しない
+         */
+        String header(String name) {
+            return headers.get(name.toLowerCase(Locale.US));
+        }
+
+        private static String decode(String value) {
+            try {
+                return URLDecoder.decode(value, "UTF-8");
+            } catch (UnsupportedEncodingException e) {
+                throw new AssertionError(e);
+            }
+        }
+
+        @Override
+        public String toString() {
+            return method + " " + path + " " + mQuery;
+        }
+    }
+
+    /**
+     * 返す応答
+     */
+    static final class Response {
+        private final int mCode;
+        private final byte[] mBody;
+        private final Map<String, String> mHeaders = new LinkedHashMap<>();
+        private int mCutAfter = -1;
+        private int mPauseAfter = -1;
+        private long mPauseMillis;
+
+        Response(int code, byte[] body) {
+            mCode = code;
+            mBody = body;
+        }
+
+        static Response ok(byte[] body, String contentType) {
+            return new Response(200, body).header("Content-Type", contentType);
+        }
+
+        static Response ok(String body, String contentType) {
+            return ok(body.getBytes(UTF_8), contentType);
+        }
+
+        static Response status(int code) {
+            return new Response(code, new byte[0]);
+        }
+
+        Response header(String name, String value) {
+            mHeaders.put(name, value);
+            return this;
+        }
+
+        /**
+         * 本文を bytes バイト送ったところで、終わりの chunk を送らずに接続を閉じる
+         */
+        Response cutAfter(int bytes) {
+            mCutAfter = bytes;
+            return this;
+        }
+
+        /**
+         * 本文を bytes バイト送ったところで millis ミリ秒止まる。サーバを close() すると止まるのをやめる
+         */
+        Response pauseAfter(int bytes, long millis) {
+            mPauseAfter = bytes;
+            mPauseMillis = millis;
+            return this;
+        }
+    }
+}
@@ -0,0 +1,75 @@
+package com.example.android.quakereport;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * 計測を無効にしている間は、何も記録しないことを確かめる
+ */
+public class MetricsTest {
+
+    private boolean mWasEnabled;
+
+    @Before
+    public void setUp() {
+        //Metrics は static なので、他のテストの記録を消しておく
+        mWasEnabled = Metrics.isEnabled();
+        Metrics.reset();
+    }
+
+    @After
+    public void tearDown() {
+        Metrics.setEnabled(mWasEnabled);
+        Metrics.reset();
+    }
+
+    @Test
+    public void disabledMetricsRecordNothing() {
+        Metrics.setEnabled(false);
+
+        long start = Metrics.startTimer();
+        Metrics.recordSince(Metrics.Metric.LOAD, start);
+        Metrics.record(Metrics.Metric.BYTES_READ, 1234);
+        Metrics.increment(Metrics.Metric.CACHE_HIT);
+
+        assertEquals(0, start);
+        for (Metrics.Metric metric : Metrics.Metric.values()) {
+            assertEquals(metric.label, 0, Metrics.get(metric).getCount());
+        }
+    }
+
+    /**
+     * 無効な間に始めた計測は、途中で有効になっても記録しない (開始時刻がないため)
+     */
+    @Test
+    public void timerStartedWhileDisabledIsIgnoredAfterEnabling() {
+        Metrics.setEnabled(false);
+        long start = Metrics.startTimer();
+
+        Metrics.setEnabled(true);
+        Metrics.recordSince(Metrics.Metric.LOAD, start);
+
+        assertEquals(0, Metrics.get(Metrics.Metric.LOAD).getCount());
+    }
+
+    @Test
+    public void enabledMetricsRecord() {
+        Metrics.setEnabled(true);
+
+        long start = Metrics.startTimer();
+        Metrics.recordSince(Metrics.Metric.LOAD, start);
+        Metrics.record(Metrics.Metric.BYTES_READ, 1234);
+        Metrics.increment(Metrics.Metric.CACHE_HIT);
+        Metrics.increment(Metrics.Metric.CACHE_HIT);
+
+        assertTrue(start != 0);
+        assertEquals(1, Metrics.get(Metrics.Metric.LOAD).getCount());
+        assertEquals(1234, Metrics.get(Metrics.Metric.BYTES_READ).getMax());
+        assertEquals(2, Metrics.get(Metrics.Metric.CACHE_HIT).getCount());
+        assertTrue(Metrics.dump().contains("cache_hit"));
+    }
+}
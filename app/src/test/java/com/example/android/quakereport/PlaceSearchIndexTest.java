@@ -0,0 +1,106 @@
+package com.example.android.quakereport;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(constants = BuildConfig.class, sdk = 23)
+public class PlaceSearchIndexTest {
+
+    @Test
+    public void keepsOnlyTheNewestEventsUpToTheLimit() {
+        PlaceSearchIndex index = new PlaceSearchIndex(100);
+        //一括取り込みのように、古いものから順に届く
+        for (int i = 999; i >= 0; i--) {
+            index.add(FdsnFixtures.event(i));
+        }
+
+        int size = index.size();
+        assertTrue(size + " events", size >= 75 && size <= 100);
+        //残っているのは新しい方の size 件なので、地域で引くとそれだけが新しい順に返る
+        List<Earthquake> newest = FdsnFixtures.events(size);
+        assertEquals(idsOf(inRegion(newest, "Hawaii")), idsOf(index.search(", hawaii", 1000)));
+
+        //外したものより古いイベントは、後から届いても入れない
+        index.add(FdsnFixtures.event(998));
+        assertEquals(size, index.size());
+    }
+
+    @Test
+    public void placesOnlyInTrimmedEventsAreNoLongerFound() {
+        PlaceSearchIndex index = new PlaceSearchIndex(100);
+        Earthquake old = FdsnFixtures.event(5000);
+        index.add(new Earthquake(old.getId(), old.getMagnitude(), "3km N of Atlantis, Nowhere",
+                old.getTimeInMilliseconds(), old.getUrl(), old.getUpdated(), old.getStatus(),
+                old.getLatitude(), old.getLongitude(), old.getDepth()));
+        assertEquals(1, index.search("atlantis", 10).size());
+
+        for (int i = 0; i < 200; i++) {
+            index.add(FdsnFixtures.event(i));
+        }
+
+        assertEquals(0, index.search("atlantis", 10).size());
+        assertEquals(0, index.search(", nowhere", 10).size());
+    }
+
+    @Test
+    public void buildsFromTheNewestStoredEvents() {
+        final EarthquakeStore store = new EarthquakeStore(RuntimeEnvironment.application);
+        store.upsert(FdsnFixtures.events(300));
+
+        //オフラインで起動した場合のように、ネットワークからは何も届いていない
+        PlaceSearchIndex index = new PlaceSearchIndex(200);
+        index.loadFrom(new PlaceSearchIndex.Source() {
+            @Override
+            public List<Earthquake> newest(int limit) {
+                return store.query(-Double.MAX_VALUE, "time", Long.MIN_VALUE, limit);
+            }
+        });
+
+        assertEquals(200, index.size());
+        List<Earthquake> newest = FdsnFixtures.events(200);
+        assertEquals(idsOf(inRegion(newest, "Hawaii")), idsOf(index.search(", hawaii", 1000)));
+    }
+
+    @Test
+    public void samePageTwiceLeavesTheCountsUnchanged() {
+        PlaceSearchIndex index = new PlaceSearchIndex(1000);
+        index.addAll(FdsnFixtures.events(300));
+        int size = index.size();
+        List<String> hawaii = idsOf(index.search(", hawaii", 1000));
+
+        //別のオブジェクトとして、同じページがもう一度届く
+        index.addAll(FdsnFixtures.events(300));
+
+        assertEquals(300, size);
+        assertEquals(size, index.size());
+        assertEquals(hawaii, idsOf(index.search(", hawaii", 1000)));
+    }
+
+    private static List<Earthquake> inRegion(List<Earthquake> earthquakes, String region) {
+        List<Earthquake> matched = new ArrayList<>();
+        for (Earthquake earthquake : earthquakes) {
+            if (region.equals(EarthquakeAggregator.regionOf(earthquake))) {
+                matched.add(earthquake);
+            }
+        }
+        return matched;
+    }
+
+    private static List<String> idsOf(List<Earthquake> earthquakes) {
+        List<String> ids = new ArrayList<>();
+        for (Earthquake earthquake : earthquakes) {
+            ids.add(earthquake.getId());
+        }
+        return ids;
+    }
+}
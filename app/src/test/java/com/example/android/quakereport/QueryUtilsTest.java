@@ -0,0 +1,127 @@
+package com.example.android.quakereport;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+public class QueryUtilsTest {
+
+    private LocalHttpServer mServer;
+    private volatile LocalHttpServer.Response mResponse =
+            LocalHttpServer.Response.ok(FdsnFixtures.csv(FdsnFixtures.events(50)), "text/csv");
+    private final AtomicInteger mNotified = new AtomicInteger();
+    private final QueryUtils.EarthquakeObserver mObserver = new QueryUtils.EarthquakeObserver() {
+        @Override
+        public void onEarthquake(Earthquake earthquake) {
+            mNotified.incrementAndGet();
+        }
+    };
+
+    @Before
+    public void setUp() throws IOException {
+        mServer = new LocalHttpServer(new LocalHttpServer.Handler() {
+            @Override
+            public LocalHttpServer.Response handle(LocalHttpServer.Request request) {
+                return mResponse;
+            }
+        });
+        QueryUtils.addObserver(mObserver);
+    }
+
+    @After
+    public void tearDown() {
+        QueryUtils.removeObserver(mObserver);
+        mServer.close();
+    }
+
+    @Test
+    public void displayFetchesNotifyObservers() {
+        List<Earthquake> earthquakes = QueryUtils.fetchEarthquakeData(mServer.url("/query?format=csv&limit=50"));
+
+        assertEquals(50, earthquakes.size());
+        assertEquals(50, mNotified.get());
+    }
+
+    /**
+     * 一括インポートと差分同期の取得は、集計や検索インデックスに直接は入れない
+     */
+    @Test
+    public void wholeFetchesDoNotNotifyObservers() {
+        List<Earthquake> earthquakes = QueryUtils.fetchWhole(mServer.url("/query?format=csv&limit=20000"), null);
+
+        FdsnFixtures.assertSameEarthquakes(FdsnFixtures.events(50), earthquakes);
+        assertEquals(0, mNotified.get());
+    }
+
+    @Test
+    public void responseFormatComesFromTheQueryAndContentType() throws IOException {
+        String base = "https://earthquake.usgs.gov/fdsnws/event/1/query?minmag=2.5&format=";
+        //キャッシュから読む場合は、クエリの format だけで決める
+        assertEquals(QueryUtils.FORMAT_CSV, QueryUtils.responseFormat(base + "csv", null));
+        assertEquals(QueryUtils.FORMAT_GEOJSON,
+                QueryUtils.responseFormat(base + "geojson", "application/json;charset=UTF-8"));
+        assertEquals(QueryUtils.FORMAT_TEXT, QueryUtils.responseFormat(base + "text", "text/plain"));
+        assertEquals(QueryUtils.FORMAT_CSV, QueryUtils.responseFormat(base + "csv", "text/plain"));
+        assertEquals(QueryUtils.FORMAT_GEOJSON, QueryUtils.responseFormat(
+                "https://earthquake.usgs.gov/earthquakes/feed/v1.0/summary/all_day.geojson", "application/json"));
+
+        assertUnsupported(base + "csv", "text/html");
+        assertUnsupported(base + "geojson", "text/csv");
+        assertUnsupported(base + "quakeml", null);
+        assertUnsupported(base + "xml", "application/xml");
+        //format のないクエリに FDSN は QuakeML を返す
+        assertUnsupported("https://earthquake.usgs.gov/fdsnws/event/1/query?minmag=2.5", null);
+        assertUnsupported("https://earthquake.usgs.gov/fdsnws/event/1/query?minmag=2.5", "application/xml");
+    }
+
+    /**
+     * captive portal のログインページのように、200 で HTML が返ってきた場合は空の結果ではなく失敗にする
+     */
+    @Test
+    public void htmlBodiesFailTheFetch() {
+        mResponse = LocalHttpServer.Response.ok("<!DOCTYPE html>\n<html><body>Sign in</body></html>\n",
+                "text/html; charset=utf-8");
+
+        assertNull(QueryUtils.fetchEarthquakeData(mServer.url("/query?format=csv&limit=50")));
+        assertEquals(0, mNotified.get());
+    }
+
+    /**
+     * Content-Type が合っていても、本文が形式と違っていて1件も読めなければ失敗にする
+     */
+    @Test
+    public void unreadableBodiesFailTheFetch() {
+        mResponse = LocalHttpServer.Response.ok("\uFEFF" + FdsnFixtures.csv(FdsnFixtures.events(50)), "text/csv");
+
+        assertNull(QueryUtils.fetchEarthquakeData(mServer.url("/query?format=csv&limit=51")));
+    }
+
+    /**
+     * 先頭の1バイトではなく format で選ぶので、空白で始まる GeoJSON も GeoJSON として読む
+     */
+    @Test
+    public void parserIsChosenByTheRequestedFormat() {
+        mResponse = LocalHttpServer.Response.ok(" \n" + FdsnFixtures.geoJson(FdsnFixtures.events(50)),
+                "application/json");
+
+        List<Earthquake> earthquakes = QueryUtils.fetchEarthquakeData(mServer.url("/query?format=geojson&limit=50"));
+
+        FdsnFixtures.assertSameEarthquakes(FdsnFixtures.events(50), earthquakes);
+    }
+
+    private static void assertUnsupported(String requestUrl, String contentType) {
+        try {
+            String format = QueryUtils.responseFormat(requestUrl, contentType);
+            fail(requestUrl + " (" + contentType + ") was read as " + format);
+        } catch (IOException expected) {
+        }
+    }
+}
@@ -0,0 +1,103 @@
+package com.example.android.quakereport;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * 偽の時計を進めたり戻したりして、定期更新の判断を確かめる
+ */
+public class RefreshPolicyTest {
+
+    private static final long FRESHNESS = 15 * 60 * 1000;
+    private static final long INITIAL_BACKOFF = 60 * 1000;
+    private static final long MAX_BACKOFF = 60 * 60 * 1000;
+
+    private final FakeClock mClock = new FakeClock();
+    private final RefreshPolicy mPolicy = new RefreshPolicy(mClock, FRESHNESS, INITIAL_BACKOFF, MAX_BACKOFF);
+
+    @Test
+    public void triggersInsideTheFreshnessWindowAreSkipped() {
+        assertEquals(RefreshPolicy.Decision.RUN, mPolicy.check());
+        mPolicy.onSucceeded();
+
+        //溜まっていたトリガーが続けて届いても、1回の更新にまとまる
+        for (int i = 0; i < 5; i++) {
+            assertEquals(RefreshPolicy.Decision.SKIP_FRESH, mPolicy.check());
+            mClock.advance(FRESHNESS / 10);
+        }
+        mClock.advance(FRESHNESS);
+        assertEquals(RefreshPolicy.Decision.RUN, mPolicy.check());
+    }
+
+    @Test
+    public void failuresDoubleTheBackoffUpToTheMaximum() {
+        long expected = INITIAL_BACKOFF;
+        for (int failures = 1; failures <= 10; failures++) {
+            assertEquals(RefreshPolicy.Decision.RUN, mPolicy.check());
+            mPolicy.onFailed();
+
+            assertEquals(failures, mPolicy.getFailureCount());
+            assertEquals(mClock.now() + expected, mPolicy.getNextAttemptAt());
+            mClock.advance(expected - 1);
+            assertEquals(RefreshPolicy.Decision.SKIP_BACKOFF, mPolicy.check());
+            mClock.advance(1);
+            expected = Math.min(expected * 2, MAX_BACKOFF);
+        }
+        assertEquals(MAX_BACKOFF, mPolicy.getBackoffMillis(10));
+        //大きな回数でもあふれない
+        assertEquals(MAX_BACKOFF, mPolicy.getBackoffMillis(Integer.MAX_VALUE));
+    }
+
+    @Test
+    public void successResetsTheFailureCount() {
+        mPolicy.onFailed();
+        mClock.advance(INITIAL_BACKOFF);
+        mPolicy.onFailed();
+        mClock.advance(2 * INITIAL_BACKOFF);
+
+        mPolicy.onSucceeded();
+
+        assertEquals(0, mPolicy.getFailureCount());
+        assertEquals(0, mPolicy.getNextAttemptAt());
+        //次に失敗したときは、また初期値から待つ
+        mClock.advance(FRESHNESS);
+        mPolicy.onFailed();
+        assertEquals(mClock.now() + INITIAL_BACKOFF, mPolicy.getNextAttemptAt());
+    }
+
+    @Test
+    public void clockMovedBackwardsIsNotFresh() {
+        mClock.advance(FRESHNESS);
+        mPolicy.onSucceeded();
+
+        mClock.advance(-1000);
+
+        assertEquals(RefreshPolicy.Decision.RUN, mPolicy.check());
+    }
+
+    @Test
+    public void restoredStateIsUsed() {
+        RefreshPolicy restored = new RefreshPolicy(mClock, FRESHNESS, INITIAL_BACKOFF, MAX_BACKOFF);
+        restored.restore(0, 3, mClock.now() + 1000);
+
+        assertEquals(RefreshPolicy.Decision.SKIP_BACKOFF, restored.check());
+        mClock.advance(1000);
+        restored.onFailed();
+        assertEquals(mClock.now() + 8 * INITIAL_BACKOFF, restored.getNextAttemptAt());
+    }
+
+    private static final class FakeClock implements RefreshPolicy.Clock {
+        //0 は「まだ成功していない」を表すので、それより後から始める
+        private long mNow = 1000000000000L;
+
+        @Override
+        public long now() {
+            return mNow;
+        }
+
+        void advance(long millis) {
+            mNow += millis;
+        }
+    }
+}
@@ -0,0 +1,110 @@
+package com.example.android.quakereport;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * バックグラウンドの更新で、サーバのエラー応答が失敗として {@link RefreshPolicy} に記録されることを確かめる
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(constants = BuildConfig.class, sdk = 23)
+public class RefreshServiceTest {
+
+    private static final long BACKOFF = 60 * 1000;
+
+    private LocalHttpServer mServer;
+    private final List<Earthquake> mEvents = new ArrayList<>();
+    private volatile int mErrorCode;
+    private long mNow = System.currentTimeMillis();
+    private RefreshPolicy mPolicy;
+
+    @Before
+    public void setUp() throws IOException {
+        //ローカルストアは他のテストと共有なので、前のテストの取り込み済みの記録で答えないようにする
+        EarthquakeStore.getInstance(RuntimeEnvironment.application).clearCoverage();
+        //ローカルストアの期間 (30日) に入るよう、今から1分ごとにさかのぼる
+        for (int i = 0; i < 30; i++) {
+            long time = mNow - (i + 1) * 60000L;
+            mEvents.add(FdsnFixtures.event(i, time, time + 1000, "reviewed"));
+        }
+        mServer = new LocalHttpServer(new LocalHttpServer.Handler() {
+            @Override
+            public LocalHttpServer.Response handle(LocalHttpServer.Request request) {
+                if (mErrorCode != 0) {
+                    return LocalHttpServer.Response.status(mErrorCode);
+                }
+                //FDSN の offset は1から数える
+                int offset = request.intParam("offset", 1) - 1;
+                int limit = request.intParam("limit", mEvents.size());
+                List<Earthquake> page = mEvents.subList(Math.min(offset, mEvents.size()),
+                        Math.min(offset + limit, mEvents.size()));
+                return LocalHttpServer.Response.ok(FdsnFixtures.geoJson(page), "application/json");
+            }
+        });
+        mPolicy = new RefreshPolicy(new RefreshPolicy.Clock() {
+            @Override
+            public long now() {
+                return mNow;
+            }
+        }, HttpDiskCache.DEFAULT_TTL_MILLIS, BACKOFF, 60 * BACKOFF);
+    }
+
+    @After
+    public void tearDown() {
+        mServer.close();
+    }
+
+    @Test
+    public void errorResponseIsCountedAsFailure() {
+        mErrorCode = 503;
+
+        assertFalse(RefreshService.refresh(loader(2.5), mPolicy));
+
+        assertEquals(1, mPolicy.getFailureCount());
+        assertEquals(mNow + BACKOFF, mPolicy.getNextAttemptAt());
+        assertEquals(RefreshPolicy.Decision.SKIP_BACKOFF, mPolicy.check());
+    }
+
+    /**
+     * ローカルストアの結果を返せても、ネットワークから取得できなかった場合は成功にしない
+     */
+    @Test
+    public void localResultAfterAnErrorResponseIsStillAFailure() {
+        assertTrue(RefreshService.refresh(loader(2.5), mPolicy));
+        assertEquals(0, mPolicy.getFailureCount());
+
+        //ストアが答えられない、より広い条件で問い合わせる
+        mErrorCode = 500;
+        mNow += HttpDiskCache.DEFAULT_TTL_MILLIS;
+        EarthquakeLoader loader = loader(1.0);
+
+        assertFalse(RefreshService.refresh(loader, mPolicy));
+
+        assertTrue(loader.isLastLoadFailed());
+        assertEquals(1, mPolicy.getFailureCount());
+
+        //回復したら失敗の回数を戻す
+        mErrorCode = 0;
+        mNow += BACKOFF;
+        assertTrue(RefreshService.refresh(loader(1.0), mPolicy));
+        assertEquals(0, mPolicy.getFailureCount());
+    }
+
+    private EarthquakeLoader loader(double minMagnitude) {
+        return new EarthquakeLoader(RuntimeEnvironment.application,
+                mServer.url("/fdsnws/event/1/query?format=geojson&orderby=time&limit=100&minmag=" + minMagnitude));
+    }
+}
@@ -0,0 +1,220 @@
+package com.example.android.quakereport;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.net.URL;
+import java.nio.charset.Charset;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * ソケットを直接使う、テスト用の {@link HttpTransport}。1つのリクエストごとに接続し、keep-alive はしない。
+ * <p>
+ * JVM の HttpURLConnection は、chunked の本体を読んでいる最中に別のスレッドから disconnect() すると、
+ * 読み込みが終わるまで待ってしまう (Android の実装はすぐにソケットを閉じる)。
+ * キャンセルでどれだけ早く抜けられるかを確かめるテストでは、abort でソケットを閉じるこちらを使う。
+ */
+final class SocketTransport implements HttpTransport {
+
+    private static final Charset ISO_8859_1 = Charset.forName("ISO-8859-1");
+
+    @Override
+    public Response get(URL url, Map<String, String> headers) throws IOException {
+        int port = url.getPort() != -1 ? url.getPort() : url.getDefaultPort();
+        Socket socket = new Socket(url.getHost(), port);
+        try {
+            StringBuilder request = new StringBuilder();
+            request.append("GET ").append(url.getFile()).append(" HTTP/1.1\r\n");
+            request.append("Host: ").append(url.getHost()).append(':').append(port).append("\r\n");
+            request.append("Connection: close\r\n");
+            request.append("Accept-Encoding: gzip\r\n");
+            if (headers != null) {
+                for (Map.Entry<String, String> header : headers.entrySet()) {
+                    request.append(header.getKey()).append(": ").append(header.getValue()).append("\r\n");
+                }
+            }
+            request.append("\r\n");
+            OutputStream out = socket.getOutputStream();
+            out.write(request.toString().getBytes(ISO_8859_1));
+            out.flush();
+
+            InputStream in = new BufferedInputStream(socket.getInputStream());
+            String statusLine = readLine(in);
+            if (statusLine == null) {
+                throw new IOException("no response");
+            }
+            int code = Integer.parseInt(statusLine.split(" ")[1]);
+            Map<String, String> responseHeaders = new HashMap<>();
+            String line;
+            while ((line = readLine(in)) != null && !line.isEmpty()) {
+                int colon = line.indexOf(':');
+                if (colon > 0) {
+                    responseHeaders.put(line.substring(0, colon).trim().toLowerCase(Locale.US),
+                            line.substring(colon + 1).trim());
+                }
+            }
+            return new SocketResponse(socket, in, code, responseHeaders);
+        } catch (IOException | RuntimeException e) {
+            socket.close();
+            throw e;
+        }
+    }
+
+    private static String readLine(InputStream in) throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        int c;
+        while ((c = in.read()) != -1 && c != '\n') {
+            if (c != '\r') {
+                line.write(c);
+            }
+        }
+        if (c == -1 && line.size() == 0) {
+            return null;
+        }
+        return line.toString("ISO-8859-1");
+    }
+
+    private static final class SocketResponse implements Response {
+        private final Socket mSocket;
+        private final InputStream mIn;
+        private final int mCode;
+        private final Map<String, String> mHeaders;
+        private InputStream mBody;
+
+        SocketResponse(Socket socket, InputStream in, int code, Map<String, String> headers) {
+            mSocket = socket;
+            mIn = in;
+            mCode = code;
+            mHeaders = headers;
+        }
+
+        @Override
+        public int getCode() {
+            return mCode;
+        }
+
+        @Override
+        public String getHeader(String name) {
+            return mHeaders.get(name.toLowerCase(Locale.US));
+        }
+
+        @Override
+        public InputStream getBody() throws IOException {
+            if (mBody == null) {
+                InputStream body;
+                String length = getHeader("Content-Length");
+                if ("chunked".equalsIgnoreCase(getHeader("Transfer-Encoding"))) {
+                    body = new ChunkedInputStream(mIn);
+                } else if (length != null) {
+                    body = new FixedLengthInputStream(mIn, Long.parseLong(length));
+                } else {
+                    body = mIn;
+                }
+                mBody = "gzip".equalsIgnoreCase(getHeader("Content-Encoding")) ? new GZIPInputStream(body) : body;
+            }
+            return mBody;
+        }
+
+        @Override
+        public void abort() {
+            //読み込みで止まっている他のスレッドも、ソケットが閉じられて例外で抜ける
+            try {
+                mSocket.close();
+            } catch (IOException ignored) {
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            //GZIPInputStream の Inflater も解放する
+            HttpDiskCache.closeQuietly(mBody);
+            mSocket.close();
+        }
+    }
+
+    /**
+     * Content-Length の分だけ読む。足りないまま接続が切れた場合は例外にする
+     */
+    private static final class FixedLengthInputStream extends FilterInputStream {
+        private long mRemaining;
+
+        FixedLengthInputStream(InputStream in, long length) {
+            super(in);
+            mRemaining = length;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] one = new byte[1];
+            return read(one, 0, 1) == -1 ? -1 : one[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            if (mRemaining == 0) {
+                return -1;
+            }
+            int read = in.read(buffer, offset, (int) Math.min(length, mRemaining));
+            if (read == -1) {
+                throw new IOException("unexpected end of stream");
+            }
+            mRemaining -= read;
+            return read;
+        }
+    }
+
+    /**
+     * chunked の本体を解く。終わりの chunk が届く前に接続が切れた場合は例外にする
+     */
+    private static final class ChunkedInputStream extends FilterInputStream {
+        private long mRemaining;
+        private boolean mDone;
+
+        ChunkedInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] one = new byte[1];
+            return read(one, 0, 1) == -1 ? -1 : one[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            if (mDone) {
+                return -1;
+            }
+            if (mRemaining == 0) {
+                String size = readLine(in);
+                if (size == null) {
+                    throw new IOException("unexpected end of stream");
+                }
+                mRemaining = Long.parseLong(size.trim(), 16);
+                if (mRemaining == 0) {
+                    //終わりの chunk の後ろの空行
+                    readLine(in);
+                    mDone = true;
+                    return -1;
+                }
+            }
+            int read = in.read(buffer, offset, (int) Math.min(length, mRemaining));
+            if (read == -1) {
+                throw new IOException("unexpected end of stream");
+            }
+            mRemaining -= read;
+            if (mRemaining == 0) {
+                //chunk の後ろの改行
+                readLine(in);
+            }
+            return read;
+        }
+    }
+}
@@ -0,0 +1,173 @@
+package com.example.android.quakereport;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * グリッドで絞り込んだ結果が、全件の haversine 距離を総当たりで調べた結果と同じになることを確かめる
+ */
+public class SpatialIndexTest {
+
+    private static final int EVENTS = 20000;
+
+    private double[] mLatitudes;
+    private double[] mLongitudes;
+    private SpatialIndex mIndex;
+
+    @Before
+    public void setUp() {
+        Random random = new Random(16);
+        mLatitudes = new double[EVENTS];
+        mLongitudes = new double[EVENTS];
+        for (int i = 0; i < EVENTS; i++) {
+            if (i % 100 == 0) {
+                //位置が分からないイベントはインデックスに入らない
+                mLatitudes[i] = Double.NaN;
+                mLongitudes[i] = Double.NaN;
+            } else if (i % 10 == 0) {
+                //極と日付変更線の近くに寄せる
+                mLatitudes[i] = (random.nextBoolean() ? 1 : -1) * (88 + random.nextDouble() * 2);
+                mLongitudes[i] = (random.nextBoolean() ? 1 : -1) * (178 + random.nextDouble() * 2);
+            } else {
+                mLatitudes[i] = random.nextDouble() * 180 - 90;
+                mLongitudes[i] = random.nextDouble() * 360 - 180;
+            }
+        }
+        mIndex = SpatialIndex.build(mLatitudes, mLongitudes, EVENTS, SpatialIndex.DEFAULT_CELL_DEGREES);
+    }
+
+    @Test
+    public void haversineDistances() {
+        //赤道上の経度1度
+        assertEquals(111.195, SpatialIndex.distanceKm(0, 0, 0, 1), 0.001);
+        //日付変更線をまたいでも近い
+        assertEquals(SpatialIndex.distanceKm(0, 179.5, 0, -179.5), SpatialIndex.distanceKm(0, 0, 0, 1), 1e-9);
+        //東京駅から大阪駅まで約 403km
+        assertEquals(403, SpatialIndex.distanceKm(35.6812, 139.7671, 34.7025, 135.4959), 1);
+        assertEquals(Math.PI * SpatialIndex.EARTH_RADIUS_KM, SpatialIndex.distanceKm(90, 0, -90, 0), 1e-6);
+    }
+
+    @Test
+    public void withinRadiusMatchesBruteForce() {
+        assertEquals(EVENTS - EVENTS / 100, mIndex.size());
+        double[][] centers = queryCenters();
+        double[] radii = {1, 50, 300, 1500, 6000, 25000};
+        for (double[] center : centers) {
+            for (double radius : radii) {
+                assertArrayEquals(Arrays.toString(center) + " " + radius + "km",
+                        bruteForceWithin(center[0], center[1], radius),
+                        mIndex.withinRadius(center[0], center[1], radius));
+            }
+        }
+    }
+
+    @Test
+    public void nearestMatchesBruteForce() {
+        for (double[] center : queryCenters()) {
+            List<Integer> expected = bruteForceByDistance(center[0], center[1]);
+            for (int count : new int[]{1, 10, 250}) {
+                int[] nearest = mIndex.nearest(center[0], center[1], count);
+
+                assertEquals(count, nearest.length);
+                //距離が同じものの順番は決まらないので、距離を比べる
+                for (int i = 0; i < count; i++) {
+                    assertEquals(Arrays.toString(center) + " #" + i,
+                            distance(center, expected.get(i)), distance(center, nearest[i]), 0);
+                }
+            }
+        }
+        assertEquals(EVENTS - EVENTS / 100, mIndex.nearest(0, 0, EVENTS).length);
+    }
+
+    @Test
+    public void boundingBoxMatchesBruteForce() {
+        //日付変更線をまたぐ矩形を含む
+        double[][] boxes = {{-10, 10, -20, 20}, {30, 45, 130, 150}, {-90, -80, -180, 180}, {50, 70, 170, -170}};
+        for (double[] box : boxes) {
+            List<Integer> expected = new ArrayList<>();
+            for (int i = 0; i < EVENTS; i++) {
+                double latitude = mLatitudes[i];
+                double longitude = mLongitudes[i];
+                boolean inLongitude = box[2] <= box[3]
+                        ? longitude >= box[2] && longitude <= box[3]
+                        : longitude >= box[2] || longitude <= box[3];
+                if (latitude >= box[0] && latitude <= box[1] && inLongitude) {
+                    expected.add(i);
+                }
+            }
+            assertArrayEquals(Arrays.toString(box), toArray(expected),
+                    mIndex.withinBoundingBox(box[0], box[1], box[2], box[3]));
+        }
+    }
+
+    /**
+     * ランダムな点と、極・日付変更線・セルの境目の上の点
+     */
+    private static double[][] queryCenters() {
+        Random random = new Random(61);
+        double[][] centers = new double[24][];
+        centers[0] = new double[]{90, 0};
+        centers[1] = new double[]{-89.9, 45};
+        centers[2] = new double[]{0, 180};
+        centers[3] = new double[]{10, -179.99};
+        centers[4] = new double[]{35, 139};
+        centers[5] = new double[]{0, 0};
+        for (int i = 6; i < centers.length; i++) {
+            centers[i] = new double[]{random.nextDouble() * 180 - 90, random.nextDouble() * 360 - 180};
+        }
+        return centers;
+    }
+
+    private int[] bruteForceWithin(double latitude, double longitude, double radiusKm) {
+        List<Integer> result = new ArrayList<>();
+        for (int i = 0; i < EVENTS; i++) {
+            if (!Double.isNaN(mLatitudes[i])
+                    && SpatialIndex.distanceKm(latitude, longitude, mLatitudes[i], mLongitudes[i]) <= radiusKm) {
+                result.add(i);
+            }
+        }
+        return toArray(result);
+    }
+
+    private List<Integer> bruteForceByDistance(final double latitude, final double longitude) {
+        List<Integer> result = new ArrayList<>();
+        for (int i = 0; i < EVENTS; i++) {
+            if (!Double.isNaN(mLatitudes[i])) {
+                result.add(i);
+            }
+        }
+        final double[] distances = new double[EVENTS];
+        for (int index : result) {
+            distances[index] = SpatialIndex.distanceKm(latitude, longitude, mLatitudes[index], mLongitudes[index]);
+        }
+        Collections.sort(result, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer lhs, Integer rhs) {
+                return Double.compare(distances[lhs], distances[rhs]);
+            }
+        });
+        return result;
+    }
+
+    private double distance(double[] center, int index) {
+        return SpatialIndex.distanceKm(center[0], center[1], mLatitudes[index], mLongitudes[index]);
+    }
+
+    private static int[] toArray(List<Integer> list) {
+        int[] array = new int[list.size()];
+        for (int i = 0; i < array.length; i++) {
+            array[i] = list.get(i);
+        }
+        return array;
+    }
+}
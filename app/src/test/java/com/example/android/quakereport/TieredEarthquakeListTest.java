@@ -0,0 +1,163 @@
+package com.example.android.quakereport;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class TieredEarthquakeListTest {
+
+    private static final int PAGES = 20;
+
+    private File mDirectory;
+    private List<Earthquake> mEvents;
+    //先頭の4ページ分
+    private long mBudget;
+
+    @Before
+    public void setUp() throws IOException {
+        mDirectory = File.createTempFile("tiered", "");
+        assertTrue(mDirectory.delete() && mDirectory.mkdir());
+        mEvents = FdsnFixtures.events(PAGES * TieredEarthquakeList.PAGE_SIZE);
+        for (int i = 0; i < 4 * TieredEarthquakeList.PAGE_SIZE; i++) {
+            mBudget += TieredEarthquakeList.estimateBytes(mEvents.get(i));
+        }
+    }
+
+    @After
+    public void tearDown() {
+        File[] files = mDirectory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        mDirectory.delete();
+    }
+
+    @Test
+    public void pagesInTheRightEventsWithinTheBudget() {
+        TieredEarthquakeList list = build();
+
+        assertTrue(list.isSpilled());
+        assertEquals(mEvents.size(), list.size());
+        assertTrue(list.getHotBytes() <= mBudget);
+        //ページのファイルは開いたまま名前を消してあるので、ディレクトリには残らない
+        assertEquals(0, mDirectory.listFiles().length);
+
+        List<Integer> order = new ArrayList<>();
+        for (int i = 0; i < mEvents.size(); i += 7) {
+            order.add(i);
+        }
+        Collections.shuffle(order, new Random(1));
+        for (int index : order) {
+            FdsnFixtures.assertSameEarthquake(mEvents.get(index), list.get(index));
+            assertTrue(list.getHotBytes() + " bytes", list.getHotBytes() <= mBudget);
+        }
+        assertTrue(list.getPageInCount() > 0);
+    }
+
+    @Test
+    public void trimmedPagesAreReadAgain() {
+        TieredEarthquakeList list = build();
+        int last = mEvents.size() - 1;
+        list.get(last);
+
+        list.trimHotTier(0);
+
+        assertEquals(0, list.getHotBytes());
+        int pageIns = list.getPageInCount();
+        FdsnFixtures.assertSameEarthquake(mEvents.get(0), list.get(0));
+        FdsnFixtures.assertSameEarthquake(mEvents.get(last), list.get(last));
+        assertEquals(pageIns + 2, list.getPageInCount());
+    }
+
+    @Test
+    public void fileIsClosedWhenTheLastRetainedListIsReleased() {
+        TieredEarthquakeList.Builder builder = new TieredEarthquakeList.Builder(mDirectory, mBudget);
+        int half = mEvents.size() / 2;
+        builder.addAll(mEvents.subList(0, half));
+        TieredEarthquakeList view = builder.view();
+        view.retain();
+        builder.addAll(mEvents.subList(half, mEvents.size()));
+        TieredEarthquakeList list = builder.build();
+
+        //途中経過のリストを手放しても、作ったリストが retain されるまでは閉じない
+        view.release();
+        FdsnFixtures.assertSameEarthquake(mEvents.get(half + 1), list.get(half + 1));
+        list.retain();
+        list.release();
+
+        assertClosed(list, mEvents.size() - 1);
+    }
+
+    @Test
+    public void fileIsKeptWhileAViewIsRetained() {
+        TieredEarthquakeList.Builder builder = new TieredEarthquakeList.Builder(mDirectory, mBudget);
+        builder.addAll(mEvents);
+        TieredEarthquakeList view = builder.view();
+        view.retain();
+        TieredEarthquakeList list = builder.build();
+
+        //表示しないまま捨てても、表示中の途中経過が同じファイルを使っている
+        list.discardIfUnused();
+        FdsnFixtures.assertSameEarthquake(mEvents.get(mEvents.size() - 1), view.get(mEvents.size() - 1));
+
+        view.release();
+        assertClosed(view, mEvents.size() / 2);
+    }
+
+    @Test
+    public void discardedBuilderClosesTheFile() {
+        TieredEarthquakeList.Builder builder = new TieredEarthquakeList.Builder(mDirectory, mBudget);
+        builder.addAll(mEvents);
+        TieredEarthquakeList view = builder.view();
+
+        builder.discard();
+
+        assertClosed(view, mEvents.size() - 1);
+    }
+
+    @Test
+    public void listsWithinTheBudgetStayInMemory() {
+        TieredEarthquakeList.Builder builder = new TieredEarthquakeList.Builder(mDirectory, mBudget);
+        builder.addAll(mEvents.subList(0, TieredEarthquakeList.PAGE_SIZE));
+        TieredEarthquakeList list = builder.build();
+
+        assertFalse(list.isSpilled());
+        assertEquals(TieredEarthquakeList.PAGE_SIZE, list.getResidentSize());
+        list.retain();
+        list.release();
+        FdsnFixtures.assertSameEarthquakes(mEvents.subList(0, TieredEarthquakeList.PAGE_SIZE), list);
+        assertEquals(0, list.getPageInCount());
+    }
+
+    private TieredEarthquakeList build() {
+        TieredEarthquakeList.Builder builder = new TieredEarthquakeList.Builder(mDirectory, mBudget);
+        builder.addAll(mEvents);
+        return builder.build();
+    }
+
+    /**
+     * ファイルが閉じられていれば、メモリにないページは読めない
+     */
+    private static void assertClosed(TieredEarthquakeList list, int index) {
+        list.trimHotTier(0);
+        try {
+            list.get(index);
+            fail("page of " + index + " was read after the file was closed");
+        } catch (IllegalStateException expected) {
+        }
+    }
+}
@@ -0,0 +1,105 @@
+package com.example.android.quakereport;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.nio.charset.Charset;
+import java.util.zip.GZIPOutputStream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class UrlConnectionTransportTest {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private LocalHttpServer mServer;
+    private volatile LocalHttpServer.Response mResponse;
+    private byte[] mCsv;
+
+    @Before
+    public void setUp() throws IOException {
+        mCsv = FdsnFixtures.csv(FdsnFixtures.events(2000)).getBytes(UTF_8);
+        mResponse = gzipped(mCsv);
+        mServer = new LocalHttpServer(new LocalHttpServer.Handler() {
+            @Override
+            public LocalHttpServer.Response handle(LocalHttpServer.Request request) {
+                return mResponse;
+            }
+        });
+    }
+
+    @After
+    public void tearDown() {
+        mServer.close();
+    }
+
+    /**
+     * 途中まで読んで close しても、残りを読み捨てて接続を使い回し、伸長用のストリームも閉じる
+     */
+    @Test
+    public void closeReleasesTheDecompressedBodyAndKeepsTheConnection() throws IOException {
+        UrlConnectionTransport transport = new UrlConnectionTransport();
+        HttpTransport.Response response = transport.get(new URL(mServer.url("/query?format=csv")), null);
+        InputStream body = response.getBody();
+        assertEquals(1024, readFully(body, new byte[1024]));
+
+        response.close();
+
+        assertClosed(body);
+        HttpTransport.Response next = transport.get(new URL(mServer.url("/query?format=csv&offset=2")), null);
+        assertEquals(mCsv.length, readFully(next.getBody(), new byte[mCsv.length + 1]));
+        next.close();
+        assertEquals(1, mServer.getConnectionCount());
+    }
+
+    /**
+     * abort の後の close は読み捨てを待たずに、伸長用のストリームだけを閉じる
+     */
+    @Test
+    public void closeAfterAbortReleasesTheBodyWithoutDraining() throws IOException {
+        mResponse = gzipped(mCsv).pauseAfter(4096, 30000);
+        UrlConnectionTransport transport = new UrlConnectionTransport();
+        HttpTransport.Response response = transport.get(new URL(mServer.url("/query?format=csv")), null);
+        InputStream body = response.getBody();
+        assertTrue(body.read() != -1);
+
+        long start = System.currentTimeMillis();
+        response.abort();
+        response.close();
+
+        assertTrue(System.currentTimeMillis() - start < 5000);
+        assertClosed(body);
+    }
+
+    private static void assertClosed(InputStream body) {
+        try {
+            body.read();
+            fail("body is still open");
+        } catch (IOException expected) {
+        }
+    }
+
+    private static int readFully(InputStream in, byte[] buffer) throws IOException {
+        int total = 0;
+        int read;
+        while (total < buffer.length && (read = in.read(buffer, total, buffer.length - total)) != -1) {
+            total += read;
+        }
+        return total;
+    }
+
+    private static LocalHttpServer.Response gzipped(byte[] body) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        GZIPOutputStream out = new GZIPOutputStream(bytes);
+        out.write(body);
+        out.close();
+        return LocalHttpServer.Response.ok(bytes.toByteArray(), "text/csv").header("Content-Encoding", "gzip");
+    }
+}
@@ -0,0 +1,115 @@
+package com.example.android.quakereport;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 集計エンジンの計測。
+ * 1件の追加・更新のコストが件数によらないこと、集計の問い合わせがバケットの数だけで済み、
+ * 表示のたびに全件をなめ直す (rescan) より件数が増えても速いままであることを確かめる
+ */
+@State(Scope.Benchmark)
+public class AggregatorBenchmark {
+
+    @Param({"1000", "20000", "100000"})
+    public int featureCount;
+
+    private List<Earthquake> mEarthquakes;
+    private EarthquakeAggregator mAggregator;
+    private long mEndMillis;
+    private int mNext;
+
+    @Setup
+    public void setUp() throws IOException {
+        byte[] response = GeoJsonFixtures.create(featureCount);
+        final List<Earthquake> earthquakes = new ArrayList<>(featureCount);
+        new GeoJsonStreamParser(new InputStreamReader(new ByteArrayInputStream(response),
+                Charset.forName("UTF-8"))).parse(new GeoJsonStreamParser.Callback() {
+            @Override
+            public void onEarthquake(Earthquake earthquake) {
+                earthquakes.add(earthquake);
+            }
+        });
+        mEarthquakes = earthquakes;
+        //全件をなめ直す集計と比べるので、上限で古いイベントを外さないようにする
+        mAggregator = new EarthquakeAggregator(featureCount);
+        mAggregator.addAll(earthquakes);
+        mEndMillis = earthquakes.get(0).getTimeInMilliseconds();
+    }
+
+    /**
+     * 全件を空の集計に入れる
+     */
+    @Benchmark
+    public EarthquakeAggregator build() {
+        EarthquakeAggregator aggregator = new EarthquakeAggregator(featureCount);
+        aggregator.addAll(mEarthquakes);
+        return aggregator;
+    }
+
+    /**
+     * 集計済みのイベントがもう一度届いた場合 (更新)
+     */
+    @Benchmark
+    public int update() {
+        mNext = (mNext + 1) % mEarthquakes.size();
+        mAggregator.add(mEarthquakes.get(mNext));
+        return mAggregator.size();
+    }
+
+    @Benchmark
+    public Object summary() {
+        Object[] summary = new Object[4];
+        summary[0] = mAggregator.countsPerHour(mEndMillis, 24);
+        summary[1] = mAggregator.countsPerDay(mEndMillis, 30);
+        summary[2] = mAggregator.cumulativeMagnitudeCounts();
+        summary[3] = mAggregator.maxMagnitudeByRegion();
+        return summary;
+    }
+
+    /**
+     * 比較対象: 同じ集計をリストの全件から作り直す
+     */
+    @Benchmark
+    public Object rescan() {
+        int[] hours = new int[24];
+        int[] days = new int[30];
+        int[] magnitudes = new int[EarthquakeAggregator.MAGNITUDE_BINS];
+        Map<String, Double> maxByRegion = new HashMap<>();
+        long endHour = mEndMillis / EarthquakeAggregator.HOUR_MILLIS;
+        long endDay = mEndMillis / EarthquakeAggregator.DAY_MILLIS;
+        for (Earthquake earthquake : mEarthquakes) {
+            long time = earthquake.getTimeInMilliseconds();
+            long hour = endHour - time / EarthquakeAggregator.HOUR_MILLIS;
+            if (hour >= 0 && hour < hours.length) {
+                hours[hours.length - 1 - (int) hour]++;
+            }
+            long day = endDay - time / EarthquakeAggregator.DAY_MILLIS;
+            if (day >= 0 && day < days.length) {
+                days[days.length - 1 - (int) day]++;
+            }
+            magnitudes[EarthquakeAggregator.binOf(earthquake.getMagnitude())]++;
+            String region = EarthquakeAggregator.regionOf(earthquake);
+            Double max = maxByRegion.get(region);
+            if (max == null || earthquake.getMagnitude() > max) {
+                maxByRegion.put(region, earthquake.getMagnitude());
+            }
+        }
+        for (int i = magnitudes.length - 2; i >= 0; i--) {
+            magnitudes[i] += magnitudes[i + 1];
+        }
+        return new Object[]{hours, days, magnitudes, maxByRegion};
+    }
+}
@@ -0,0 +1,94 @@
+package com.example.android.quakereport;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+import java.util.TimeZone;
+
+/**
+ * リストの行を表示するための処理の計測。
+ * formatDate / formatTime / getMagnitudeColor と、場所の分割 (Earthquake の生成時に行う) を個別に、
+ * さらに表示用データ (EarthquakeDisplay) の作成をまとめて計測する
+ */
+@State(Scope.Benchmark)
+public class FormatBenchmark {
+
+    @Param({"10", "1000", "20000", "100000"})
+    public int featureCount;
+
+    private List<Earthquake> mEarthquakes;
+    private EarthquakeFormatter mFormatter;
+    private final Date mDate = new Date();
+
+    @Setup
+    public void setUp() throws IOException {
+        byte[] response = GeoJsonFixtures.create(featureCount);
+        final List<Earthquake> earthquakes = new ArrayList<>(featureCount);
+        new GeoJsonStreamParser(new InputStreamReader(new ByteArrayInputStream(response),
+                Charset.forName("UTF-8"))).parse(new GeoJsonStreamParser.Callback() {
+            @Override
+            public void onEarthquake(Earthquake earthquake) {
+                earthquakes.add(earthquake);
+            }
+        });
+        mEarthquakes = earthquakes;
+
+        int[] colors = new int[EarthquakeFormatter.MAGNITUDE_COLOR_COUNT];
+        for (int i = 0; i < colors.length; i++) {
+            colors[i] = 0xFF000000 | (i * 0x101010);
+        }
+        mFormatter = new EarthquakeFormatter(Locale.US, TimeZone.getTimeZone("UTC"), colors, "Near the");
+    }
+
+    @Benchmark
+    public void formatDateAndTime(Blackhole blackhole) {
+        for (Earthquake earthquake : mEarthquakes) {
+            mDate.setTime(earthquake.getTimeInMilliseconds());
+            blackhole.consume(mFormatter.formatDate(mDate));
+            blackhole.consume(mFormatter.formatTime(mDate));
+        }
+    }
+
+    @Benchmark
+    public void formatMagnitudeAndColor(Blackhole blackhole) {
+        for (Earthquake earthquake : mEarthquakes) {
+            blackhole.consume(mFormatter.formatMagnitude(earthquake.getMagnitude()));
+            blackhole.consume(mFormatter.getMagnitudeColor(earthquake.getMagnitude()));
+        }
+    }
+
+    /**
+     * 場所の分割は Earthquake のコンストラクタで行われるので、生成し直して計測する
+     */
+    @Benchmark
+    public void splitLocation(Blackhole blackhole) {
+        for (Earthquake earthquake : mEarthquakes) {
+            blackhole.consume(new Earthquake(earthquake.getId(), earthquake.getMagnitude(),
+                    earthquake.getPlace(), earthquake.getTimeInMilliseconds(), earthquake.getUrl()));
+        }
+    }
+
+    /**
+     * Loader のバックグラウンドスレッドで行う、表示用データの作成全体
+     */
+    @Benchmark
+    public void prepareDisplay(Blackhole blackhole) {
+        //毎回作り直させるため、新しいフォーマッタを使う
+        EarthquakeFormatter formatter = new EarthquakeFormatter(Locale.US, TimeZone.getTimeZone("UTC"),
+                new int[EarthquakeFormatter.MAGNITUDE_COLOR_COUNT], "Near the");
+        formatter.prepare(mEarthquakes);
+        blackhole.consume(formatter);
+    }
+}
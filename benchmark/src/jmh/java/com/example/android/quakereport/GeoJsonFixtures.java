@@ -0,0 +1,162 @@
+package com.example.android.quakereport;
+
+import java.nio.charset.Charset;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.Random;
+import java.util.TimeZone;
+
+/**
+ * USGS の FDSN event サービスが返す GeoJSON と同じ形のフィクスチャを作る。
+ * <p>
+ * feature ごとのフィールド構成 (properties の全フィールド、geometry、id) と値の分布は
+ * 実際のレスポンスに合わせてあるので、パースのコストは本物とほぼ同じになる。
+ * 乱数のシードは固定なので、件数が同じなら毎回同じバイト列になる。
+ * 同じイベントを format=csv / format=text の形でも作れる。
+ */
+final class GeoJsonFixtures {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static final String[] REGIONS = {
+            "Volcano, Hawaii", "Alaska", "CA", "Japan", "Chile", "Indonesia", "Papua New Guinea",
+            "Tonga", "Fiji region", "Puerto Rico", "Nevada", "Mid-Atlantic Ridge", "Kermadec Islands, New Zealand"
+    };
+    private static final String[] DIRECTIONS = {
+            "N", "NNE", "NE", "ENE", "E", "ESE", "SE", "SSE", "S", "SSW", "SW", "WSW", "W", "WNW", "NW", "NNW"
+    };
+
+    private GeoJsonFixtures() {
+    }
+
+    static byte[] create(int featureCount) {
+        Random random = new Random(42);
+        StringBuilder builder = new StringBuilder(featureCount * 1100 + 512);
+        long generated = 1474046398000L;
+
+        builder.append("{\"type\":\"FeatureCollection\",\"metadata\":{\"generated\":").append(generated)
+                .append(",\"url\":\"https://earthquake.usgs.gov/fdsnws/event/1/query?format=geojson&limit=")
+                .append(featureCount)
+                .append("\",\"title\":\"USGS Earthquakes\",\"status\":200,\"api\":\"1.5.2\",\"limit\":")
+                .append(featureCount).append(",\"offset\":1,\"count\":").append(featureCount)
+                .append("},\"features\":[");
+
+        for (int i = 0; i < featureCount; i++) {
+            if (i > 0) {
+                builder.append(',');
+            }
+            appendFeature(builder, new Event(random, i, generated - i * 60000L));
+        }
+        builder.append("],\"bbox\":[-179.9,-60.1,-3.2,179.9,71.3,620.5]}");
+        return builder.toString().getBytes(UTF_8);
+    }
+
+    /**
+     * {@link #create(int)} と同じイベントを format=csv の形で返す
+     */
+    static byte[] createCsv(int featureCount) {
+        Random random = new Random(42);
+        StringBuilder builder = new StringBuilder(featureCount * 250 + 256);
+        builder.append("time,latitude,longitude,depth,mag,magType,nst,gap,dmin,rms,net,id,updated,place,type,")
+                .append("horizontalError,depthError,magError,magNst,status,locationSource,magSource\n");
+        for (int i = 0; i < featureCount; i++) {
+            Event event = new Event(random, i, 1474046398000L - i * 60000L);
+            String place = event.place.indexOf(',') >= 0 ? '"' + event.place + '"' : event.place;
+            builder.append(formatIsoTime(event.time, "Z")).append(',')
+                    .append(event.latitude).append(',').append(event.longitude).append(',').append(event.depth)
+                    .append(',').append(event.mag).append(",mb,,").append(event.gap).append(',')
+                    .append(event.dmin).append(',').append(event.rms).append(",us,").append(event.id).append(',')
+                    .append(formatIsoTime(event.time + 3600000L, "Z")).append(',').append(place)
+                    .append(",earthquake,8.2,1.9,0.046,146,reviewed,us,us\n");
+        }
+        return builder.toString().getBytes(UTF_8);
+    }
+
+    /**
+     * {@link #create(int)} と同じイベントを format=text の形で返す
+     */
+    static byte[] createText(int featureCount) {
+        Random random = new Random(42);
+        StringBuilder builder = new StringBuilder(featureCount * 160 + 256);
+        builder.append("#EventID|Time|Latitude|Longitude|Depth/km|Author|Catalog|Contributor|ContributorID|")
+                .append("MagType|Magnitude|MagAuthor|EventLocationName|EventType\n");
+        for (int i = 0; i < featureCount; i++) {
+            Event event = new Event(random, i, 1474046398000L - i * 60000L);
+            builder.append(event.id).append('|').append(formatIsoTime(event.time, "")).append('|')
+                    .append(event.latitude).append('|').append(event.longitude).append('|').append(event.depth)
+                    .append("|us|us|us|").append(event.id).append("|mb|").append(event.mag)
+                    .append("|us|").append(event.place).append("|earthquake\n");
+        }
+        return builder.toString().getBytes(UTF_8);
+    }
+
+    private static String formatIsoTime(long time, String suffix) {
+        SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS", Locale.US);
+        format.setTimeZone(TimeZone.getTimeZone("UTC"));
+        return format.format(new Date(time)) + suffix;
+    }
+
+    private static void appendFeature(StringBuilder builder, Event event) {
+        String id = event.id;
+        builder.append("{\"type\":\"Feature\",\"properties\":{\"mag\":").append(event.mag)
+                .append(",\"place\":\"").append(event.place)
+                .append("\",\"time\":").append(event.time)
+                .append(",\"updated\":").append(event.time + 3600000L)
+                .append(",\"tz\":-600,\"url\":\"https://earthquake.usgs.gov/earthquakes/eventpage/").append(id)
+                .append("\",\"detail\":\"https://earthquake.usgs.gov/fdsnws/event/1/query?eventid=").append(id)
+                .append("&format=geojson\",\"felt\":").append(event.felt)
+                .append(",\"cdi\":null,\"mmi\":null,\"alert\":null,\"status\":\"reviewed\",\"tsunami\":0,\"sig\":")
+                .append(event.sig)
+                .append(",\"net\":\"us\",\"code\":\"").append(id.substring(2))
+                .append("\",\"ids\":\",").append(id).append(",\",\"sources\":\",us,\",")
+                .append("\"types\":\",geoserve,origin,phase-data,\",\"nst\":null,\"dmin\":")
+                .append(event.dmin)
+                .append(",\"rms\":").append(event.rms)
+                .append(",\"gap\":").append(event.gap)
+                .append(",\"magType\":\"mb\",\"type\":\"earthquake\",\"title\":\"M ").append(event.mag).append(" - ")
+                .append(event.place.replace("\"", "\\\""))
+                .append("\"},\"geometry\":{\"type\":\"Point\",\"coordinates\":[")
+                .append(event.longitude).append(',').append(event.latitude).append(',').append(event.depth)
+                .append("]},\"id\":\"").append(id).append("\"}");
+    }
+
+    /**
+     * 1件分の値。どの形式でも同じ乱数列から同じ順に作るので、同じ件数なら同じイベントになる。
+     * 座標などの桁数は USGS のレスポンスに合わせて丸める
+     */
+    private static final class Event {
+        final String id;
+        final double mag;
+        final String place;
+        final long time;
+        final double longitude;
+        final double latitude;
+        final double depth;
+        final String felt;
+        final int sig;
+        final double dmin;
+        final double rms;
+        final int gap;
+
+        Event(Random random, int index, long time) {
+            this.id = "us" + String.format(Locale.US, "%08d", index);
+            this.time = time;
+            mag = Math.round(random.nextDouble() * 80) / 10.0;
+            if (random.nextInt(10) == 0) {
+                place = REGIONS[random.nextInt(REGIONS.length)];
+            } else {
+                place = (1 + random.nextInt(300)) + "km " + DIRECTIONS[random.nextInt(DIRECTIONS.length)]
+                        + " of " + REGIONS[random.nextInt(REGIONS.length)];
+            }
+            longitude = Math.round((random.nextDouble() * 360 - 180) * 1e4) / 1e4;
+            latitude = Math.round((random.nextDouble() * 180 - 90) * 1e4) / 1e4;
+            depth = Math.round(random.nextDouble() * 600 * 100) / 100.0;
+            felt = random.nextInt(4) == 0 ? String.valueOf(random.nextInt(500)) : "null";
+            sig = random.nextInt(1000);
+            dmin = Math.round(random.nextDouble() * 10 * 1000) / 1000.0;
+            rms = Math.round(random.nextDouble() * 100) / 100.0;
+            gap = random.nextInt(360);
+        }
+    }
+}
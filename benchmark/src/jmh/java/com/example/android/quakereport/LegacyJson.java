@@ -0,0 +1,56 @@
+package com.example.android.quakereport;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 比較対象にする、以前の JSON の読み方。
+ * QueryUtils.extractFeatureFromJson は Android の Log に依存するので、同じ処理をここに写してある
+ */
+final class LegacyJson {
+
+    private LegacyJson() {
+    }
+
+    /**
+     * 以前の QueryUtils.readFromStream と同じ
+     */
+    static String readFromStream(InputStream inputStream) throws IOException {
+        StringBuilder output = new StringBuilder();
+        BufferedReader reader = new BufferedReader(new InputStreamReader(inputStream, Charset.forName("UTF-8")));
+        String line = reader.readLine();
+        while (line != null) {
+            output.append(line);
+            line = reader.readLine();
+        }
+        return output.toString();
+    }
+
+    /**
+     * QueryUtils.extractFeatureFromJson と同じ
+     */
+    static List<Earthquake> extractFeatureFromJson(String earthquakeJSON) throws JSONException {
+        List<Earthquake> earthquakes = new ArrayList<>();
+        JSONObject jsonRootObj = new JSONObject(earthquakeJSON);
+        JSONArray jsonArray = jsonRootObj.optJSONArray("features");
+        for (int i = 0; i < jsonArray.length(); i++) {
+            JSONObject jsonObject = jsonArray.getJSONObject(i);
+            JSONObject properties = jsonObject.optJSONObject("properties");
+            earthquakes.add(new Earthquake(jsonObject.optString("id", null),
+                    properties.getDouble("mag"),
+                    properties.optString("place"),
+                    properties.getLong("time"),
+                    properties.getString("url")));
+        }
+        return earthquakes;
+    }
+}
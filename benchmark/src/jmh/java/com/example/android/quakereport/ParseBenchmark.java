@@ -0,0 +1,61 @@
+package com.example.android.quakereport;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * レスポンスの InputStream から Earthquake のリストを作るまでの計測。
+ * <p>
+ * legacy は以前の QueryUtils.readFromStream + extractFeatureFromJson と同じ処理
+ * (全体を String に溜めてから JSONObject のツリーにする。{@link LegacyJson} を参照)。
+ * streaming は現在の {@link GeoJsonStreamParser} による処理。
+ */
+@State(Scope.Benchmark)
+public class ParseBenchmark {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    @Param({"10", "1000", "20000", "100000"})
+    public int featureCount;
+
+    private byte[] mResponse;
+
+    @Setup
+    public void setUp() {
+        mResponse = GeoJsonFixtures.create(featureCount);
+    }
+
+    @Benchmark
+    public String legacyReadFromStream() throws IOException {
+        return LegacyJson.readFromStream(new ByteArrayInputStream(mResponse));
+    }
+
+    @Benchmark
+    public List<Earthquake> legacyReadAndExtract() throws Exception {
+        return LegacyJson.extractFeatureFromJson(
+                LegacyJson.readFromStream(new ByteArrayInputStream(mResponse)));
+    }
+
+    @Benchmark
+    public List<Earthquake> streaming() throws IOException {
+        final List<Earthquake> earthquakes = new ArrayList<>();
+        new GeoJsonStreamParser(new InputStreamReader(new ByteArrayInputStream(mResponse), UTF_8))
+                .parse(new GeoJsonStreamParser.Callback() {
+                    @Override
+                    public void onEarthquake(Earthquake earthquake) {
+                        earthquakes.add(earthquake);
+                    }
+                });
+        return earthquakes;
+    }
+}
@@ -0,0 +1,83 @@
+package com.example.android.quakereport;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * 場所の検索の計測。
+ * 転置インデックスの問い合わせが、全件の place を String.contains で調べる (containsScan) のように
+ * 件数に比例しては伸びないことを確かめる。インデックスの作成 (パースのたびに少しずつ行う) も別に計測する
+ */
+@State(Scope.Benchmark)
+public class PlaceSearchBenchmark {
+
+    private static final int LIMIT = 500;
+
+    @Param({"1000", "20000", "100000"})
+    public int featureCount;
+
+    //1文字ずつ入力している途中 ("haw") と、地域を指定したもの
+    @Param({"haw", "hawaii", "volcano, haw", ", new zealand"})
+    public String query;
+
+    private List<Earthquake> mEarthquakes;
+    private PlaceSearchIndex mIndex;
+
+    @Setup
+    public void setUp() throws IOException {
+        byte[] response = GeoJsonFixtures.create(featureCount);
+        final List<Earthquake> earthquakes = new ArrayList<>(featureCount);
+        new GeoJsonStreamParser(new InputStreamReader(new ByteArrayInputStream(response),
+                Charset.forName("UTF-8"))).parse(new GeoJsonStreamParser.Callback() {
+            @Override
+            public void onEarthquake(Earthquake earthquake) {
+                earthquakes.add(earthquake);
+            }
+        });
+        mEarthquakes = earthquakes;
+        //上限で古いイベントを外さないよう、全件を入れられる大きさにする
+        mIndex = new PlaceSearchIndex(featureCount);
+        mIndex.addAll(earthquakes);
+    }
+
+    @Benchmark
+    public PlaceSearchIndex build() {
+        PlaceSearchIndex index = new PlaceSearchIndex(featureCount);
+        index.addAll(mEarthquakes);
+        return index;
+    }
+
+    @Benchmark
+    public List<Earthquake> search() {
+        return mIndex.search(query, LIMIT);
+    }
+
+    /**
+     * 比較対象: インデックスを使わずに、全件の place を小文字にして contains で調べる。
+     * 新しい順に選ぶには一致したものを全部集める必要があるので、LIMIT 件で打ち切らない。
+     * 前方一致や地域の指定はできず、並べ替えもしていないので、search より仕事は少ない
+     */
+    @Benchmark
+    public List<Earthquake> containsScan() {
+        String lowerQuery = query.toLowerCase(Locale.US);
+        List<Earthquake> results = new ArrayList<>();
+        for (Earthquake earthquake : mEarthquakes) {
+            String place = earthquake.getPlace();
+            if (place != null && place.toLowerCase(Locale.US).contains(lowerQuery)) {
+                results.add(earthquake);
+            }
+        }
+        return results;
+    }
+}
@@ -0,0 +1,107 @@
+package com.example.android.quakereport;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * 同じイベントを GeoJSON / csv / text で受け取った場合の、パースの速さとレスポンスの大きさの比較。
+ * <p>
+ * geojson は {@link GeoJsonStreamParser}、csv と text は {@link DelimitedStreamParser} による処理。
+ * 3つの形式の結果が同じ Earthquake になることは、DelimitedStreamParserTest で確かめている。
+ * レスポンスの大きさ (そのまま / gzip) は {@link ResponseSize} の副次的な結果として、計測結果と一緒に出す。
+ */
+@State(Scope.Benchmark)
+public class ResponseFormatBenchmark {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    @Param({"1000", "20000", "100000"})
+    public int featureCount;
+
+    private byte[] mGeoJson;
+    private byte[] mCsv;
+    private byte[] mText;
+    private int mGeoJsonGzipBytes;
+    private int mCsvGzipBytes;
+    private int mTextGzipBytes;
+
+    /**
+     * 計測したレスポンスの大きさ。JMH が計測の結果に responseBytes / gzipBytes として並べて出す
+     */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class ResponseSize {
+        public long responseBytes;
+        public long gzipBytes;
+
+        void set(int bytes, int gzip) {
+            responseBytes = bytes;
+            gzipBytes = gzip;
+        }
+    }
+
+    @Setup
+    public void setUp() throws IOException {
+        mGeoJson = GeoJsonFixtures.create(featureCount);
+        mCsv = GeoJsonFixtures.createCsv(featureCount);
+        mText = GeoJsonFixtures.createText(featureCount);
+        mGeoJsonGzipBytes = gzipSize(mGeoJson);
+        mCsvGzipBytes = gzipSize(mCsv);
+        mTextGzipBytes = gzipSize(mText);
+    }
+
+    @Benchmark
+    public List<Earthquake> geojson(ResponseSize size) throws IOException {
+        size.set(mGeoJson.length, mGeoJsonGzipBytes);
+        final List<Earthquake> earthquakes = new ArrayList<>();
+        new GeoJsonStreamParser(new InputStreamReader(new ByteArrayInputStream(mGeoJson), UTF_8))
+                .parse(collectInto(earthquakes));
+        return earthquakes;
+    }
+
+    @Benchmark
+    public List<Earthquake> csv(ResponseSize size) throws IOException {
+        size.set(mCsv.length, mCsvGzipBytes);
+        List<Earthquake> earthquakes = new ArrayList<>();
+        new DelimitedStreamParser(new ByteArrayInputStream(mCsv)).parse(collectInto(earthquakes));
+        return earthquakes;
+    }
+
+    @Benchmark
+    public List<Earthquake> text(ResponseSize size) throws IOException {
+        size.set(mText.length, mTextGzipBytes);
+        List<Earthquake> earthquakes = new ArrayList<>();
+        new DelimitedStreamParser(new ByteArrayInputStream(mText)).parse(collectInto(earthquakes));
+        return earthquakes;
+    }
+
+    private static GeoJsonStreamParser.Callback collectInto(final List<Earthquake> earthquakes) {
+        return new GeoJsonStreamParser.Callback() {
+            @Override
+            public void onEarthquake(Earthquake earthquake) {
+                earthquakes.add(earthquake);
+            }
+        };
+    }
+
+    private static int gzipSize(byte[] bytes) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        GZIPOutputStream gzip = new GZIPOutputStream(out);
+        gzip.write(bytes);
+        gzip.close();
+        return out.size();
+    }
+}
@@ -0,0 +1,81 @@
+package com.example.android.quakereport;
+
+import org.json.JSONException;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * コールドスタートで最初のリストを用意するまでの計測。
+ * 同じイベントを、ディスクのスナップショットから読む場合と、ディスクに保存した JSON を
+ * extractFeatureFromJson でパースする場合とで比べる。
+ */
+@State(Scope.Benchmark)
+public class SnapshotBenchmark {
+
+    private static final String QUERY = "http://earthquake.usgs.gov/fdsnws/event/1/query?format=geojson";
+
+    @Param({"10", "1000", "20000", "100000"})
+    public int featureCount;
+
+    private File mSnapshotFile;
+    private File mJsonFile;
+
+    @Setup
+    public void setUp() throws IOException {
+        byte[] response = GeoJsonFixtures.create(featureCount);
+        final List<Earthquake> earthquakes = new ArrayList<>(featureCount);
+        new GeoJsonStreamParser(new InputStreamReader(new ByteArrayInputStream(response),
+                Charset.forName("UTF-8"))).parse(new GeoJsonStreamParser.Callback() {
+            @Override
+            public void onEarthquake(Earthquake earthquake) {
+                earthquakes.add(earthquake);
+            }
+        });
+
+        mSnapshotFile = File.createTempFile("earthquakes", ".snapshot");
+        EarthquakeSnapshot.write(mSnapshotFile, QUERY, earthquakes, System.currentTimeMillis());
+
+        mJsonFile = File.createTempFile("earthquakes", ".json");
+        FileOutputStream out = new FileOutputStream(mJsonFile);
+        try {
+            out.write(response);
+        } finally {
+            out.close();
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        mSnapshotFile.delete();
+        mJsonFile.delete();
+    }
+
+    @Benchmark
+    public List<Earthquake> snapshotLoad() throws IOException {
+        return EarthquakeSnapshot.read(mSnapshotFile).toList();
+    }
+
+    @Benchmark
+    public List<Earthquake> legacyJsonLoad() throws IOException, JSONException {
+        FileInputStream in = new FileInputStream(mJsonFile);
+        try {
+            return LegacyJson.extractFeatureFromJson(LegacyJson.readFromStream(in));
+        } finally {
+            in.close();
+        }
+    }
+}
@@ -0,0 +1,99 @@
+package com.example.android.quakereport;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 地点からの距離・矩形・近い順の問い合わせの計測。
+ * 件数を増やしたときに、SpatialIndex の問い合わせ時間が全件の haversine (bruteForceRadius) のように
+ * 線形には伸びないことを確かめる。インデックスの作成 (ロードのたびに行う) も別に計測する
+ */
+@State(Scope.Benchmark)
+public class SpatialIndexBenchmark {
+
+    //東京から 300km
+    private static final double CENTER_LATITUDE = 35.68;
+    private static final double CENTER_LONGITUDE = 139.69;
+    private static final double RADIUS_KM = 300;
+
+    @Param({"1000", "20000", "100000"})
+    public int featureCount;
+
+    private List<Earthquake> mEarthquakes;
+    private double[] mLatitudes;
+    private double[] mLongitudes;
+    private SpatialIndex mIndex;
+
+    @Setup
+    public void setUp() throws IOException {
+        byte[] response = GeoJsonFixtures.create(featureCount);
+        final List<Earthquake> earthquakes = new ArrayList<>(featureCount);
+        new GeoJsonStreamParser(new InputStreamReader(new ByteArrayInputStream(response),
+                Charset.forName("UTF-8"))).parse(new GeoJsonStreamParser.Callback() {
+            @Override
+            public void onEarthquake(Earthquake earthquake) {
+                earthquakes.add(earthquake);
+            }
+        });
+        mEarthquakes = earthquakes;
+        mLatitudes = new double[earthquakes.size()];
+        mLongitudes = new double[earthquakes.size()];
+        for (int i = 0; i < earthquakes.size(); i++) {
+            mLatitudes[i] = earthquakes.get(i).getLatitude();
+            mLongitudes[i] = earthquakes.get(i).getLongitude();
+        }
+        mIndex = SpatialIndex.build(earthquakes);
+    }
+
+    @Benchmark
+    public SpatialIndex build() {
+        return SpatialIndex.build(mEarthquakes);
+    }
+
+    @Benchmark
+    public int[] withinRadius() {
+        return mIndex.withinRadius(CENTER_LATITUDE, CENTER_LONGITUDE, RADIUS_KM);
+    }
+
+    /**
+     * 比較対象: インデックスを使わずに、全件の距離を計算する
+     */
+    @Benchmark
+    public int bruteForceRadius() {
+        int count = 0;
+        for (int i = 0; i < mLatitudes.length; i++) {
+            if (SpatialIndex.distanceKm(CENTER_LATITUDE, CENTER_LONGITUDE, mLatitudes[i], mLongitudes[i])
+                    <= RADIUS_KM) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    @Benchmark
+    public int[] withinBoundingBox() {
+        //関東周辺
+        return mIndex.withinBoundingBox(34, 37, 138, 141);
+    }
+
+    @Benchmark
+    public int[] withinBoundingBoxAcrossAntimeridian() {
+        //フィジー周辺 (経度 170〜-170 をまたぐ)
+        return mIndex.withinBoundingBox(-25, -10, 170, -170);
+    }
+
+    @Benchmark
+    public int[] nearest10() {
+        return mIndex.nearest(CENTER_LATITUDE, CENTER_LONGITUDE, 10);
+    }
+}
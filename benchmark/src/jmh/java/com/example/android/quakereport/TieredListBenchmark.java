@@ -0,0 +1,158 @@
+package com.example.android.quakereport;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 件数の多い結果を、全件メモリに持つ ArrayList と {@link TieredEarthquakeList} で持った場合の、
+ * 先頭から最後までスクロールする速さの比較。
+ * <p>
+ * セットアップで csv のレスポンスを1件ずつ Builder に追加し、次を確かめる。満たさない場合は計測せずに失敗する。
+ * <ul>
+ * <li>作ったリストが GC の後に実際に保持しているヒープが予算以下であること</li>
+ * <li>最後までスクロールする間、メモリ上のページの見積もりが予算を超えないこと</li>
+ * <li>ArrayList と同じ順に、同じ内容のイベントが返ること</li>
+ * </ul>
+ * メモリに持つ件数などは {@link TieredStats} の副次的な結果として、scrollTieredList の結果と一緒に出す。
+ */
+@State(Scope.Benchmark)
+public class TieredListBenchmark {
+
+    @Param({"20000", "200000"})
+    public int featureCount;
+
+    @Param({"4"})
+    public int budgetMegabytes;
+
+    private File mDirectory;
+    private List<Earthquake> mArrayList;
+    private TieredEarthquakeList mTieredList;
+    private long mRetainedBytes;
+    private int mPageInsPerScroll;
+
+    /**
+     * セットアップで確かめた値。JMH が計測の結果に residentEvents / retainedBytes / pageInsPerScroll として並べて出す
+     */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class TieredStats {
+        public long residentEvents;
+        public long retainedBytes;
+        public long pageInsPerScroll;
+    }
+
+    @Setup
+    public void setUp() throws IOException {
+        long budget = budgetMegabytes * 1024L * 1024L;
+        byte[] csv = GeoJsonFixtures.createCsv(featureCount);
+        mDirectory = File.createTempFile("tiered", "");
+        mDirectory.delete();
+        mDirectory.mkdirs();
+
+        long before = usedHeap();
+        final TieredEarthquakeList.Builder builder = new TieredEarthquakeList.Builder(mDirectory, budget);
+        new DelimitedStreamParser(new ByteArrayInputStream(csv)).parse(new GeoJsonStreamParser.Callback() {
+            @Override
+            public void onEarthquake(Earthquake earthquake) {
+                builder.add(earthquake);
+            }
+        });
+        mTieredList = builder.build();
+        mRetainedBytes = usedHeap() - before;
+        if (mRetainedBytes > budget) {
+            throw new IllegalStateException("Tiered list retains " + mRetainedBytes + " bytes, budget " + budget);
+        }
+
+        mArrayList = new ArrayList<>(featureCount);
+        new DelimitedStreamParser(new ByteArrayInputStream(csv)).parse(new GeoJsonStreamParser.Callback() {
+            @Override
+            public void onEarthquake(Earthquake earthquake) {
+                mArrayList.add(earthquake);
+            }
+        });
+        checkScroll(budget);
+        mPageInsPerScroll = mTieredList.getPageInCount();
+    }
+
+    @TearDown
+    public void tearDown() {
+        mTieredList = null;
+        File[] files = mDirectory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        mDirectory.delete();
+    }
+
+    @Benchmark
+    public double scrollArrayList() {
+        return scroll(mArrayList);
+    }
+
+    @Benchmark
+    public double scrollTieredList(TieredStats stats) {
+        stats.residentEvents = mTieredList.getResidentSize();
+        stats.retainedBytes = mRetainedBytes;
+        stats.pageInsPerScroll = mPageInsPerScroll;
+        return scroll(mTieredList);
+    }
+
+    /**
+     * 表示するときと同じく、1件ずつ get() して値を読む
+     */
+    private static double scroll(List<Earthquake> earthquakes) {
+        double sum = 0;
+        for (int i = 0, size = earthquakes.size(); i < size; i++) {
+            sum += earthquakes.get(i).getMagnitude();
+        }
+        return sum;
+    }
+
+    private void checkScroll(long budget) {
+        if (mTieredList.size() != mArrayList.size()) {
+            throw new IllegalStateException(mTieredList.size() + " events, expected " + mArrayList.size());
+        }
+        for (int i = 0; i < mArrayList.size(); i++) {
+            Earthquake e = mArrayList.get(i);
+            Earthquake a = mTieredList.get(i);
+            if (mTieredList.getHotBytes() > budget) {
+                throw new IllegalStateException("Hot tier holds " + mTieredList.getHotBytes()
+                        + " bytes at event " + i + ", budget " + budget);
+            }
+            boolean same = e.getId().equals(a.getId())
+                    && e.getMagnitude() == a.getMagnitude()
+                    && e.getPlace().equals(a.getPlace())
+                    && e.getTimeInMilliseconds() == a.getTimeInMilliseconds()
+                    && e.getUrl().equals(a.getUrl())
+                    && e.getUpdated() == a.getUpdated()
+                    && e.getStatus().equals(a.getStatus())
+                    && e.getLatitude() == a.getLatitude()
+                    && e.getLongitude() == a.getLongitude()
+                    && e.getDepth() == a.getDepth();
+            if (!same) {
+                throw new IllegalStateException("Event " + e.getId() + " differs at " + i);
+            }
+        }
+    }
+
+    private static long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+}